@@ -28,6 +28,7 @@ import java.util.Map;
 import java.util.Set;
 
 import jflowmap.data.AttrDataTypes;
+import jflowmap.data.EdgeWeightStore;
 import jflowmap.data.FlowMapGraphBuilder;
 import jflowmap.data.FlowMapNodeTotals;
 import jflowmap.data.FlowMapStats;
@@ -78,12 +79,11 @@ public class FlowMapGraph {
 
   public static final String SRC = GRAPH_EDGE_SOURCE_NODE_COLUMN;
   public static final String TRG = GRAPH_EDGE_TARGET_NODE_COLUMN;
-  public static final String SRC_TEMP_ID = SRC + "_id";
-  public static final String TRG_TEMP_ID = TRG + "_id";
 
   private final Graph graph;
   private final FlowMapAttrSpec attrSpec;
   private final FlowMapStats stats;
+  private volatile EdgeWeightStore edgeWeightStore;
 
 
   public FlowMapGraph(Graph graph, FlowMapAttrSpec attrSpec) {
@@ -309,17 +309,107 @@ public class FlowMapGraph {
     return stats.getEdgeLengthStats();
   }
 
+  /**
+   * Returns the store holding a dense copy of the weights of all edges
+   * which is kept in sync with the edge table. The store is created on first use
+   * and should only be requested by code iterating over many edges. The single
+   * edge accessors read the table unless the store is already there.
+   */
+  public EdgeWeightStore getEdgeWeightStore() {
+    EdgeWeightStore store = edgeWeightStore;
+    if (store == null) {
+      synchronized (this) {
+        store = edgeWeightStore;
+        if (store == null) {
+          store = new EdgeWeightStore(graph.getEdgeTable(), getEdgeWeightAttrs());
+          edgeWeightStore = store;
+        }
+      }
+    }
+    return store;
+  }
+
+  /**
+   * Detaches the edge weight store (if it was created) from the edge table.
+   * A new store is created the next time it is requested.
+   */
+  public void disposeEdgeWeightStore() {
+    EdgeWeightStore store;
+    synchronized (this) {
+      store = edgeWeightStore;
+      edgeWeightStore = null;
+    }
+    if (store != null) {
+      store.dispose();
+    }
+  }
+
+  /**
+   * @return The store if it was already created, otherwise null
+   */
+  private EdgeWeightStore getExistingEdgeWeightStore(Edge edge) {
+    return (isOwnEdge(edge) ? edgeWeightStore : null);
+  }
+
+  /**
+   * @return The index of the attr in {@link #getEdgeWeightAttrs()} or -1
+   */
+  public int getEdgeWeightAttrIndex(String weightAttr) {
+    EdgeWeightStore store = edgeWeightStore;
+    if (store != null) {
+      return store.getAttrIndex(weightAttr);
+    }
+    return getEdgeWeightAttrs().indexOf(weightAttr);
+  }
+
+  public double getEdgeWeight(int edgeRow, int weightAttrIndex) {
+    EdgeWeightStore store = edgeWeightStore;
+    if (store != null) {
+      return store.get(edgeRow, weightAttrIndex);
+    }
+    return graph.getEdgeTable().getDouble(edgeRow, getEdgeWeightAttrs().get(weightAttrIndex));
+  }
+
+  public double getEdgeWeight(Edge edge, int weightAttrIndex) {
+    EdgeWeightStore store = getExistingEdgeWeightStore(edge);
+    if (store != null) {
+      return store.get(edge.getRow(), weightAttrIndex);
+    }
+    return edge.getDouble(getEdgeWeightAttrs().get(weightAttrIndex));
+  }
+
   public double getEdgeWeight(Edge edge, String weightAttr) {
+    EdgeWeightStore store = getExistingEdgeWeightStore(edge);
+    if (store != null) {
+      int index = store.getAttrIndex(weightAttr);
+      if (index >= 0) {
+        return store.get(edge.getRow(), index);
+      }
+    }
     return edge.getDouble(weightAttr);
   }
 
+  private boolean isOwnEdge(Edge edge) {
+    return (edge.getTable() == graph.getEdgeTable());
+  }
+
   public Iterable<Double> getEdgeWeights(final Edge edge) {
-    return Iterables.transform(getEdgeWeightAttrs(), new Function<String, Double>() {
-      @Override
-      public Double apply(String weightAttr) {
-        return getEdgeWeight(edge, weightAttr);
-      }
-    });
+    EdgeWeightStore store = getExistingEdgeWeightStore(edge);
+    if (store == null) {
+      return Iterables.transform(getEdgeWeightAttrs(), new Function<String, Double>() {
+        @Override
+        public Double apply(String weightAttr) {
+          return edge.getDouble(weightAttr);
+        }
+      });
+    }
+    double[] weights = new double[getEdgeWeightAttrsCount()];
+    store.getAll(edge.getRow(), weights);
+    List<Double> list = Lists.newArrayListWithCapacity(weights.length);
+    for (double w : weights) {
+      list.add(w);
+    }
+    return list;
   }
 
   public List<Point> getEdgePoints(Edge edge) {
@@ -670,26 +760,47 @@ public class FlowMapGraph {
       @Override
       public int compare(Edge e1, Edge e2) {
         return MathUtils.compareDoubles_smallestIsNaN(
-            e1.getDouble(weightAttr), e2.getDouble(weightAttr));
+            getEdgeWeight(e1, weightAttr), getEdgeWeight(e2, weightAttr));
       }
     };
   }
 
   public Comparator<Edge> createMaxEdgeWeightComparator(final List<String> weightAttrs) {
+    final int[] indices = getEdgeWeightStore().getAttrIndices(weightAttrs);
     return new Comparator<Edge>() {
       @Override
       public int compare(Edge e1, Edge e2) {
         return MathUtils.compareDoubles_smallestIsNaN(
-            getMaxAttrValue(e1, weightAttrs), getMaxAttrValue(e2, weightAttrs));
+            getMaxEdgeWeight(e1, weightAttrs, indices),
+            getMaxEdgeWeight(e2, weightAttrs, indices));
       }
     };
   }
 
+  /**
+   * @param indices Indices of the attrs in the edge weight store
+   *        or null if not all of them are weight attrs
+   */
+  private double getMaxEdgeWeight(Edge edge, Iterable<String> attrs, int[] indices) {
+    if (indices != null  &&  isOwnEdge(edge)) {
+      return getEdgeWeightStore().getMax(edge.getRow(), indices);
+    }
+    return getMaxAttrValue(edge, attrs);
+  }
+
+  private double getAvgEdgeWeight(Edge edge, Iterable<String> attrs, int[] indices) {
+    if (indices != null  &&  isOwnEdge(edge)) {
+      return getEdgeWeightStore().getAvg(edge.getRow(), indices);
+    }
+    return getAvgAttrValue(edge, attrs);
+  }
+
   public Comparator<Edge> createMaxNodeSummariesForWeightComparator(FlowEndpoint s) {
     return createMaxNodeSummariesComparator(getEdgeWeightAttrs(), s);
   }
 
   private Comparator<Edge> createMaxNodeSummariesComparator(final List<String> attrs, final FlowEndpoint s) {
+    final int[] indices = getEdgeWeightStore().getAttrIndices(attrs);
     return new Comparator<Edge>() {
       @Override
       public int compare(Edge e1, Edge e2) {
@@ -702,7 +813,7 @@ public class FlowMapGraph {
         }
         if (c == 0) {
           c = MathUtils.compareDoubles_smallestIsNaN(
-              getMaxAttrValue(e1, attrs), getMaxAttrValue(e2, attrs));
+              getMaxEdgeWeight(e1, attrs, indices), getMaxEdgeWeight(e2, attrs, indices));
         }
         return c;
       }
@@ -718,11 +829,13 @@ public class FlowMapGraph {
   }
 
   public Comparator<Edge> createAvgEdgeWeightComparator(final Iterable<String> attrNames) {
+    final int[] indices = getEdgeWeightStore().getAttrIndices(attrNames);
     return new Comparator<Edge>() {
       @Override
       public int compare(Edge e1, Edge e2) {
         return MathUtils.compareDoubles_smallestIsNaN(
-            getAvgAttrValue(e1, attrNames), getAvgAttrValue(e2, attrNames));
+            getAvgEdgeWeight(e1, attrNames, indices),
+            getAvgEdgeWeight(e2, attrNames, indices));
       }
     };
   }
@@ -734,7 +847,9 @@ public class FlowMapGraph {
     for (String attr : getEdgeWeightAttrs()) {
       String diffAttr = getAttrSpec().getFlowWeightDiffAttr(attr);
 
-      graph.getEdges().addColumn(diffAttr, double.class);
+      if (!graph.getEdgeTable().canSetDouble(diffAttr)) {  // could be inherited with the schema
+        graph.getEdges().addColumn(diffAttr, double.class);
+      }
 
       for (Edge edge : edges) {
         double prevVal = Double.NaN;
@@ -760,7 +875,9 @@ public class FlowMapGraph {
     for (String attr : getEdgeWeightAttrs()) {
       String diffAttr = getAttrSpec().getFlowWeightRelativeDiffAttr(attr);
 
-      graph.getEdges().addColumn(diffAttr, double.class);
+      if (!graph.getEdgeTable().canSetDouble(diffAttr)) {  // could be inherited with the schema
+        graph.getEdges().addColumn(diffAttr, double.class);
+      }
 
       for (Edge edge : edges) {
         double rdiff = Double.NaN;
@@ -835,6 +952,10 @@ public class FlowMapGraph {
   }
 
   public boolean hasNonZeroWeight(Edge edge) {
+    EdgeWeightStore store = getExistingEdgeWeightStore(edge);
+    if (store != null) {
+      return store.hasNonNaNWeight(edge.getRow());
+    }
     for (String attr : getEdgeWeightAttrs()) {
       if (!Double.isNaN(getEdgeWeight(edge, attr))) {
         return true;
@@ -895,9 +1016,7 @@ public class FlowMapGraph {
     return attrsOf(graph.getEdgeTable(), new Predicate<String>() {
       @Override
       public boolean apply(String attr) {
-        return
-          FlowMapGraph.isEdgeSelfAttr(attr) &&
-          (ofType == null  ||  graph.getNodeTable().getColumnType(attr) == ofType);
+        return (ofType == null  ||  graph.getNodeTable().getColumnType(attr) == ofType);
       }
     });
   }
@@ -927,8 +1046,4 @@ public class FlowMapGraph {
     return !attrName.equals(GRAPH_NODE_ID_COLUMN);
   }
 
-  public static boolean isEdgeSelfAttr(String attrName) {
-    return !attrName.equals(SRC_TEMP_ID)  &&  !attrName.equals(TRG_TEMP_ID);
-  }
-
 }
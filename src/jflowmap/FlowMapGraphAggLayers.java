@@ -15,23 +15,39 @@ import prefuse.data.Graph;
 import prefuse.data.Node;
 
 import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 /**
+ * The aggregation layers are created lazily: the graph of a layer is aggregated
+ * only when the layer is selected or when the layers built on top of it are created.
+ * The graphs of the layers which weren't used recently can be evicted to limit
+ * the memory use (see {@link #setMaxResidentAggEdges(int)}).
+ *
  * @author Ilya Boyandin
  */
 public class FlowMapGraphAggLayers {
 
+  /**
+   * Called for the graph of every layer once it's created.
+   */
+  public interface LayerInitializer {
+    void init(FlowMapGraph layerFlowMapGraph);
+  }
+
   public static class Builder {
 
     private final Map<String, AggLayer> layersByName = Maps.newLinkedHashMap();
     private final AggLayer baseLayer;
+    private final LayerCache cache = new LayerCache();
 
     public Builder(String baseLayerName, FlowMapGraph fmg) {
-      baseLayer = new AggLayer(baseLayerName, null, fmg);
+      baseLayer = new AggLayer(baseLayerName, null, null, cache);
+      baseLayer.flowMapGraph = fmg;
     }
 
     public Builder addAggregationLayer(String layerName, String prevLayerName,
@@ -48,18 +64,25 @@ public class FlowMapGraphAggLayers {
       }
       AggLayer prevLayer = layer(prevLayerName);
 
-
-      FlowMapGraph newFmg = agg.aggregate();
-
-      layersByName.put(layerName, new AggLayer(layerName, prevLayer, newFmg));
+      layersByName.put(layerName, new AggLayer(layerName, prevLayer, agg, cache));
 
       return this;
     }
 
 
+    /**
+     * The returned aggregator obtains the graph of the previous layer only when
+     * it aggregates it.
+     */
     public FlowMapGraphEdgeAggregator edgeAggregatorFor(Function<Edge, Object> aggFunc,
-         String prevLayerName) {
-      return new FlowMapGraphEdgeAggregator(layerFlowMapGraph(prevLayerName), aggFunc);
+         final String prevLayerName) {
+      final AggLayer prevLayer = layer(prevLayerName);
+      return new FlowMapGraphEdgeAggregator(new Supplier<FlowMapGraph>() {
+        @Override
+        public FlowMapGraph get() {
+          return prevLayer.getFlowMapGraph();
+        }
+      }, aggFunc);
     }
 
     public FlowMapGraph layerFlowMapGraph(String layerName) {
@@ -80,7 +103,8 @@ public class FlowMapGraphAggLayers {
     }
 
     public FlowMapGraphAggLayers build(String initialLayer) {
-      return new FlowMapGraphAggLayers(baseLayer, layersByName.values(), layer(initialLayer));
+      return new FlowMapGraphAggLayers(baseLayer, layersByName.values(), layer(initialLayer),
+          cache);
     }
   }
 
@@ -88,21 +112,59 @@ public class FlowMapGraphAggLayers {
   private final List<AggLayer> aggLayers;
   private List<Edge> edges;  // possibly of different graphs
   private final AggLayer baseLayer;
+  private final LayerCache cache;
   private FlowMapStats edgesStats;
 
-  private FlowMapGraphAggLayers(AggLayer base, Iterable<AggLayer> layers, AggLayer initialLayer) {
+  private FlowMapGraphAggLayers(AggLayer base, Iterable<AggLayer> layers, AggLayer initialLayer,
+      LayerCache cache) {
     baseLayer = base;
     aggLayers = ImmutableList.copyOf(Iterables.concat(ImmutableList.of(base), layers));
+    this.cache = cache;
+    cache.layers = aggLayers;
     setEdges(Lists.newArrayList(initialLayer.getFlowMapGraph().edges()));
   }
 
-  public Iterable<FlowMapGraph> getFlowMapGraphs() {
-    return Iterables.transform(aggLayers, new Function<AggLayer, FlowMapGraph>() {
-      @Override
-      public FlowMapGraph apply(AggLayer from) {
-        return from.getFlowMapGraph();
+  /**
+   * Sets the initializer which is called for the graphs of the layers when they are
+   * created. It's called right away for the graphs which were already created.
+   */
+  public void setLayerInitializer(LayerInitializer initializer) {
+    cache.initializer = initializer;
+    if (initializer != null) {
+      for (FlowMapGraph fmg : getFlowMapGraphs()) {
+        initializer.init(fmg);
       }
-    });
+    }
+  }
+
+  /**
+   * Limits the total number of edges in the graphs of the aggregation layers kept
+   * in memory. When the limit is exceeded, the least recently used layers which
+   * aren't needed for the current edges are evicted. They are aggregated again
+   * when they are selected the next time.
+   */
+  public void setMaxResidentAggEdges(int maxResidentAggEdges) {
+    cache.maxResidentAggEdges = maxResidentAggEdges;
+    cache.evictUnused(edges);
+  }
+
+  /**
+   * @return Graphs of the layers which were created (and not evicted)
+   */
+  public Iterable<FlowMapGraph> getFlowMapGraphs() {
+    return Iterables.transform(
+        Iterables.filter(aggLayers, LayerCache.IS_RESIDENT),
+        new Function<AggLayer, FlowMapGraph>() {
+          @Override
+          public FlowMapGraph apply(AggLayer from) {
+            return from.getFlowMapGraph();
+          }
+        });
+  }
+
+  public boolean isLayerResident(String layerName) {
+    AggLayer layer = getLayerByName(layerName);
+    return layer != null  &&  layer.isResident();
   }
 
   public FlowMapGraph getBaseFlowMapGraph() {
@@ -116,6 +178,7 @@ public class FlowMapGraphAggLayers {
   private void setEdges(List<Edge> edges) {
     this.edges = edges;
     this.edgesStats = null;
+    cache.evictUnused(edges);
   }
 
 //  public boolean isEdgeAggregatedBy(Edge edge, Edge aggEdge) {
@@ -328,11 +391,16 @@ public class FlowMapGraphAggLayers {
   private static class AggLayer {
     private final String name;
     private final AggLayer prevLayer;
-    private final FlowMapGraph flowMapGraph;
-    public AggLayer(String name, AggLayer prevLayer, FlowMapGraph flowMapGraph) {
+    private final FlowMapGraphEdgeAggregator aggregator;  // null for the base layer
+    private final LayerCache cache;
+    private FlowMapGraph flowMapGraph;  // null until aggregated or when evicted
+    private long lastUsed;
+    public AggLayer(String name, AggLayer prevLayer, FlowMapGraphEdgeAggregator aggregator,
+        LayerCache cache) {
       this.name = name;
       this.prevLayer = prevLayer;
-      this.flowMapGraph = flowMapGraph;
+      this.aggregator = aggregator;
+      this.cache = cache;
     }
     public String getName() {
       return name;
@@ -340,8 +408,82 @@ public class FlowMapGraphAggLayers {
     public AggLayer getPrevLayerName() {
       return prevLayer;
     }
+    public boolean isResident() {
+      return flowMapGraph != null;
+    }
     public FlowMapGraph getFlowMapGraph() {
-      return flowMapGraph;
+      return cache.get(this);
+    }
+  }
+
+  private static class LayerCache {
+    static final Predicate<AggLayer> IS_RESIDENT = new Predicate<AggLayer>() {
+      @Override
+      public boolean apply(AggLayer layer) {
+        return layer.isResident();
+      }
+    };
+
+    private List<AggLayer> layers = ImmutableList.of();
+    private LayerInitializer initializer;
+    private int maxResidentAggEdges = Integer.MAX_VALUE;
+    private long clock;
+
+    FlowMapGraph get(AggLayer layer) {
+      layer.lastUsed = ++clock;
+      if (layer.flowMapGraph == null) {
+        FlowMapGraph fmg = layer.aggregator.aggregate();
+        layer.flowMapGraph = fmg;
+        if (initializer != null) {
+          initializer.init(fmg);
+        }
+      }
+      return layer.flowMapGraph;
+    }
+
+    void evictUnused(List<Edge> edges) {
+      int resident = 0;
+      for (AggLayer layer : layers) {
+        if (layer.aggregator != null  &&  layer.isResident()) {
+          resident += layer.flowMapGraph.getGraph().getEdgeCount();
+        }
+      }
+      while (resident > maxResidentAggEdges) {
+        AggLayer lru = null;
+        for (AggLayer layer : layers) {
+          if (isEvictable(layer, edges)  &&  (lru == null  ||  layer.lastUsed < lru.lastUsed)) {
+            lru = layer;
+          }
+        }
+        if (lru == null) {
+          break;
+        }
+        resident -= lru.flowMapGraph.getGraph().getEdgeCount();
+        lru.flowMapGraph = null;
+      }
+    }
+
+    /**
+     * A layer can't be evicted if it's the base layer, if the current edges include
+     * its edges or if the graph of another layer was aggregated from its graph
+     * (the aggregate lists of that graph refer to its edges).
+     */
+    private boolean isEvictable(AggLayer layer, List<Edge> edges) {
+      if (layer.aggregator == null  ||  !layer.isResident()) {
+        return false;
+      }
+      for (AggLayer other : layers) {
+        if (other.prevLayer == layer  &&  other.isResident()) {
+          return false;
+        }
+      }
+      Graph graph = layer.flowMapGraph.getGraph();
+      for (Edge e : edges) {
+        if (e.getGraph() == graph) {
+          return false;
+        }
+      }
+      return true;
     }
   }
 
@@ -355,7 +497,7 @@ public class FlowMapGraphAggLayers {
 
   private AggLayer getLayerOf(Graph graph) {
     for (AggLayer layer : aggLayers) {
-      if (graph == layer.getFlowMapGraph().getGraph()) {
+      if (layer.isResident()  &&  graph == layer.getFlowMapGraph().getGraph()) {
         return layer;
       }
     }
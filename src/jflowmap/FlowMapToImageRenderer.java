@@ -23,7 +23,9 @@ import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.reflect.InvocationTargetException;
 import java.util.List;
 import java.util.Map;
@@ -35,6 +37,7 @@ import javax.swing.ProgressMonitor;
 import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
 
+import jflowmap.bundling.BundlingResultCache;
 import jflowmap.bundling.ForceDirectedBundlerParameters;
 import jflowmap.clustering.NodeDistanceMeasure;
 import jflowmap.data.FlowMapStats;
@@ -96,6 +99,7 @@ public class FlowMapToImageRenderer extends JFrame {
 
   private final String outputFileName;
   private boolean showLegend = true;
+  private boolean tiledOutput = false;
   private final FlowMapView jFlowMap;
 
   public FlowMapToImageRenderer(String outputFileName, GraphMLDatasetSpec datasetSpec, String ... datasetNames) {
@@ -149,6 +153,17 @@ public class FlowMapToImageRenderer extends JFrame {
     this.useGlobalVisualMappings = useGlobalVisualMappings;
   }
 
+  /**
+   * If true, every flow map is written to a separate file as soon as it is rendered
+   * instead of being painted in one big image. The files are named after the output file
+   * without the extension ({@code <output>-<number>-<dataset name>.<ext>}), and their
+   * positions in the mosaic are listed in the index file {@code <output>.tiles.csv}.
+   * Only one tile-sized image buffer is kept in memory.
+   */
+  public void setTiledOutput(boolean tiledOutput) {
+    this.tiledOutput = tiledOutput;
+  }
+
   public void setZoom(double zoom) {
     this.zoom = zoom;
   }
@@ -225,7 +240,8 @@ public class FlowMapToImageRenderer extends JFrame {
     private final int height;
     private final int totalWidth;
     private final int totalHeight;
-    private final BufferedImage image;
+    private final BufferedImage image;   // the whole mosaic or the current tile in the tiled mode
+    private final List<String> tileIndex = Lists.newArrayList();
     private final JFrame parentFrame;
 
     public RenderTask(JFrame parent, FlowMapView jFlowMap) {
@@ -240,7 +256,11 @@ public class FlowMapToImageRenderer extends JFrame {
       totalWidth = Math.min(n, numColumns) * (width + paddingX) + paddingX;
       totalHeight = ((int)Math.ceil((double)n / numColumns)) * (height + paddingY) + paddingY;
 
-      image = new BufferedImage(totalWidth, totalHeight, BufferedImage.TYPE_INT_RGB);
+      if (tiledOutput) {
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+      } else {
+        image = new BufferedImage(totalWidth, totalHeight, BufferedImage.TYPE_INT_RGB);
+      }
 
     }
 
@@ -275,7 +295,7 @@ public class FlowMapToImageRenderer extends JFrame {
 
       g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
       g.setColor(getBackground());
-      g.fillRect(0, 0, totalWidth, totalHeight);
+      g.fillRect(0, 0, image.getWidth(), image.getHeight());
 
 
       int cycle = 0;
@@ -310,7 +330,7 @@ public class FlowMapToImageRenderer extends JFrame {
               ForceDirectedBundlerParameters bundlerParams = new ForceDirectedBundlerParameters(
                   fmg, visualFlowMap.getFlowWeightAttr());
               setupBundlerParams(bundlerParams);
-              visualFlowMap.bundleEdges(bundlerParams);
+              visualFlowMap.bundleEdges(bundlerParams, BundlingResultCache.forDataset(ds.getFilename()));
             }
           }
         });
@@ -362,30 +382,68 @@ public class FlowMapToImageRenderer extends JFrame {
             final int x = paddingX + (width + paddingX) * (_cycle % numColumns);
             final int y = paddingY + (height + paddingY) * (_cycle / numColumns);
 
-            g.translate(x, y);
+            if (tiledOutput) {
+              g.setColor(getBackground());
+              g.fillRect(0, 0, width, height);
+              jFlowMap.getVisualCanvas().paint(g);
+            } else {
+              g.translate(x, y);
 
-            jFlowMap.getVisualCanvas().paint(g);
+              jFlowMap.getVisualCanvas().paint(g);
 
-            g.setColor(datasetNameLabelColor);
-            g.setFont(LABEL_FONT);
+              g.setColor(datasetNameLabelColor);
+              g.setFont(LABEL_FONT);
 
-            g.translate(-x, -y);
+              g.translate(-x, -y);
+            }
 
             progress.setProgress(_cycle);
             progress.setNote("Rendering graphic " + (_cycle + 1) + " of " + datasets.size());
           }
         });
 
+        if (tiledOutput) {
+          writeTile(_cycle, name);
+        }
+
         cycle++;
       }
     }
 
+    private void writeTile(int index, String name) throws IOException {
+      String tileFileName = String.format("%s-%03d-%s.%s",
+          FileUtils.cutOffExtension(outputFileName), index + 1,
+          name.replaceAll("[^A-Za-z0-9_.-]", "_"), FileUtils.getExtension(outputFileName));
+      ImageIO.write(image, FileUtils.getExtension(outputFileName), new File(tileFileName));
+      int x = paddingX + (width + paddingX) * (index % numColumns);
+      int y = paddingY + (height + paddingY) * (index / numColumns);
+      tileIndex.add("\"" + name.replace("\"", "\"\"") + "\"," +
+          new File(tileFileName).getName() + "," + x + "," + y + "," + width + "," + height);
+    }
+
+    private void writeTileIndex() throws IOException {
+      PrintWriter out = new PrintWriter(new FileWriter(
+          FileUtils.cutOffExtension(outputFileName) + ".tiles.csv"));
+      try {
+        out.println("name,file,x,y,width,height");
+        for (String line : tileIndex) {
+          out.println(line);
+        }
+      } finally {
+        out.close();
+      }
+    }
+
     @Override
     public void done() {
       if (!progress.isCanceled()) {
         progress.setNote("Writing image to file " + outputFileName);
         try {
-          ImageIO.write(image, FileUtils.getExtension(outputFileName), new File(outputFileName));
+          if (tiledOutput) {
+            writeTileIndex();
+          } else {
+            ImageIO.write(image, FileUtils.getExtension(outputFileName), new File(outputFileName));
+          }
         } catch (IOException e) {
           JOptionPane.showMessageDialog(parentFrame,  "Couldn't save image [" + e.getClass().getSimpleName()+ "] " + e.getMessage());
           logger.error(e);
@@ -729,9 +787,21 @@ public class FlowMapToImageRenderer extends JFrame {
     return sm;
   }
 
+  /**
+   * Pass {@code --tiled} to write every flow map to a separate file
+   * (see {@link #setTiledOutput(boolean)}).
+   */
   public static void main(String[] args) throws IOException, InterruptedException, InvocationTargetException {
 //    SmallMultiplesMain sm = createSM_eurovisPoster_6years_global();
     FlowMapToImageRenderer sm = createSM_TLBS_all();
+    for (String arg : args) {
+      if (arg.equals("--tiled")) {
+        sm.setTiledOutput(true);
+      } else {
+        System.out.println("Unknown option " + arg + "\nUsage: FlowMapToImageRenderer [--tiled]");
+        System.exit(1);
+      }
+    }
     sm.setVisible(true);
     sm.start();
   }
@@ -0,0 +1,449 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jflowmap;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import jflowmap.FlowMapToImageRenderer.Clusterer;
+import jflowmap.FlowMapToImageRenderer.FDEBInitializer;
+import jflowmap.FlowMapToImageRenderer.FlowMapModelInitializer;
+import jflowmap.bundling.BundlingResultCache;
+import jflowmap.bundling.ForceDirectedBundlerParameters;
+import jflowmap.data.FlowMapStats;
+import jflowmap.data.GraphMLDatasetSpec;
+import jflowmap.data.MultiFlowMapStats;
+import jflowmap.geo.MapProjections;
+import jflowmap.views.IFlowMapColorScheme;
+import jflowmap.views.VisualCanvas;
+import jflowmap.views.flowmap.FlowMapView;
+import jflowmap.views.flowmap.VisualFlowMap;
+
+import org.apache.log4j.Logger;
+
+import at.fhj.utils.misc.FileUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import edu.umd.cs.piccolo.PCamera;
+import edu.umd.cs.piccolo.nodes.PText;
+import edu.umd.cs.piccolo.util.PBounds;
+import edu.umd.cs.piccolo.util.PPaintContext;
+
+/**
+ * Renders small multiples of flow maps into an image file without a display.
+ * Unlike {@link FlowMapToImageRenderer} it doesn't use the Swing event thread:
+ * every dataset gets its own view which is loaded, bundled and painted in a
+ * worker thread, and independent datasets are rendered concurrently.
+ * <p>
+ * The view of the first dataset is fitted in the cell, zoomed and translated,
+ * and then used for all the other datasets so that the maps can be compared.
+ *
+ * @author Ilya Boyandin
+ */
+public class HeadlessFlowMapRenderer {
+
+  private static Logger logger = Logger.getLogger(HeadlessFlowMapRenderer.class);
+
+  private static final Font TITLE_FONT = new Font("Helvetica", Font.BOLD, 32);
+
+  private final String outputFileName;
+  private final Map<String, GraphMLDatasetSpec> datasets;
+
+  private int width = 1024;
+  private int height = 768;
+  private int numColumns = 5;
+  private int paddingX = 5;
+  private int paddingY = 5;
+  private Color background = new Color(0x60, 0x60, 0x60);
+  private Color datasetNameLabelColor = Color.gray;
+  private double zoom = 1.0;
+  private double translateX, translateY;
+  private boolean useGlobalVisualMappings = true;
+  private boolean showLegend = true;
+  private boolean useBundlingCache = true;
+  private int numThreads = Runtime.getRuntime().availableProcessors();
+  private IFlowMapColorScheme colorScheme;
+
+  private FlowMapModelInitializer flowMapModelInitializer;
+  private FDEBInitializer fdebInitializer;
+  private Clusterer clusterer;
+
+  public HeadlessFlowMapRenderer(String outputFileName, Map<String, GraphMLDatasetSpec> datasets) {
+    if (datasets.isEmpty()) {
+      throw new IllegalArgumentException("No datasets to render");
+    }
+    this.outputFileName = outputFileName;
+    this.datasets = datasets;
+  }
+
+  public void setSize(int width, int height) {
+    this.width = width;
+    this.height = height;
+  }
+
+  public void setNumColumns(int numColumns) {
+    this.numColumns = numColumns;
+  }
+
+  public void setPaddingX(int paddingX) {
+    this.paddingX = paddingX;
+  }
+
+  public void setPaddingY(int paddingY) {
+    this.paddingY = paddingY;
+  }
+
+  public void setBackground(Color background) {
+    this.background = background;
+  }
+
+  public void setDatasetNameLabelColor(Color datasetNameLabelColor) {
+    this.datasetNameLabelColor = datasetNameLabelColor;
+  }
+
+  public void setZoom(double zoom) {
+    this.zoom = zoom;
+  }
+
+  public void setTranslation(double dx, double dy) {
+    this.translateX = dx;
+    this.translateY = dy;
+  }
+
+  public void setUseGlobalVisualMappings(boolean useGlobalVisualMappings) {
+    this.useGlobalVisualMappings = useGlobalVisualMappings;
+  }
+
+  public void setShowLegend(boolean showLegend) {
+    this.showLegend = showLegend;
+  }
+
+  /**
+   * If true (the default), the bundling results are stored next to the
+   * datasets and reused in the subsequent runs.
+   */
+  public void setUseBundlingCache(boolean useBundlingCache) {
+    this.useBundlingCache = useBundlingCache;
+  }
+
+  /**
+   * Number of datasets rendered concurrently. When more than one thread is used,
+   * each bundling job runs single-threaded (unless the {@link FDEBInitializer}
+   * sets otherwise).
+   */
+  public void setNumThreads(int numThreads) {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("numThreads must be at least 1");
+    }
+    this.numThreads = numThreads;
+  }
+
+  public void setColorScheme(IFlowMapColorScheme colorScheme) {
+    this.colorScheme = colorScheme;
+  }
+
+  public void setFlowMapModelInitializer(FlowMapModelInitializer flowMapModelInitializer) {
+    this.flowMapModelInitializer = flowMapModelInitializer;
+  }
+
+  public void setFdebInitializer(FDEBInitializer fdebInitializer) {
+    this.fdebInitializer = fdebInitializer;
+  }
+
+  public void setClusterer(Clusterer clusterer) {
+    this.clusterer = clusterer;
+  }
+
+  public void render() throws IOException {
+    final List<FlowMapGraph> flowMapGraphs = (useGlobalVisualMappings ? loadWithGlobalStats() : null);
+
+    final int n = datasets.size();
+    int totalWidth = Math.min(n, numColumns) * (width + paddingX) + paddingX;
+    int totalHeight = ((int)Math.ceil((double)n / numColumns)) * (height + paddingY) + paddingY;
+    final BufferedImage image = new BufferedImage(totalWidth, totalHeight, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = image.createGraphics();
+    g.setColor(background);
+    g.fillRect(0, 0, totalWidth, totalHeight);
+    g.dispose();
+
+    List<Map.Entry<String, GraphMLDatasetSpec>> entries = Lists.newArrayList(datasets.entrySet());
+
+    // the view of the first map is used for all the others
+    Map.Entry<String, GraphMLDatasetSpec> first = entries.get(0);
+    final PBounds viewBounds = renderCell(0, first.getKey(), first.getValue(),
+        flowMapGraphs != null ? flowMapGraphs.get(0) : null, null, image);
+
+    if (n > 1) {
+      ExecutorService executor = Executors.newFixedThreadPool(Math.min(numThreads, n - 1));
+      try {
+        List<Future<PBounds>> futures = Lists.newArrayList();
+        for (int i = 1; i < n; i++) {
+          final int index = i;
+          final Map.Entry<String, GraphMLDatasetSpec> entry = entries.get(i);
+          final FlowMapGraph flowMapGraph = (flowMapGraphs != null ? flowMapGraphs.get(i) : null);
+          futures.add(executor.submit(new Callable<PBounds>() {
+            @Override
+            public PBounds call() throws Exception {
+              return renderCell(index, entry.getKey(), entry.getValue(), flowMapGraph, viewBounds, image);
+            }
+          }));
+        }
+        for (Future<PBounds> future : futures) {
+          future.get();
+        }
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Rendering was interrupted");
+      } catch (ExecutionException ee) {
+        Throwable cause = ee.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException)cause;
+        }
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException)cause;
+        }
+        throw new RuntimeException(cause);
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+
+    logger.info("Writing image to file " + outputFileName);
+    ImageIO.write(image, FileUtils.getExtension(outputFileName), new File(outputFileName));
+  }
+
+  /**
+   * Loads the graphs of all the datasets with the stats over all of them, so
+   * that their maps use the same visual mappings. {@link FlowMapGraphSet} can't
+   * be used here, because it requires one attr spec for all the graphs, whereas
+   * every dataset has its own spec.
+   * <p>
+   * The stats are calculated before the graphs are rendered, as the rendering
+   * threads add the bundling results to the graphs.
+   */
+  @SuppressWarnings("deprecation")
+  private List<FlowMapGraph> loadWithGlobalStats() throws IOException {
+    List<FlowMapGraph> loaded = Lists.newArrayList();
+    for (GraphMLDatasetSpec ds : datasets.values()) {
+      loaded.add(FlowMapGraph.loadGraphML(ds));
+    }
+    FlowMapStats stats = MultiFlowMapStats.createFor(loaded);
+    stats.getEdgeWeightStats();
+    stats.getNodeXStats();
+    stats.getNodeYStats();
+    stats.getEdgeLengthStats();
+
+    List<FlowMapGraph> withGlobalStats = Lists.newArrayList();
+    for (FlowMapGraph fmg : loaded) {
+      withGlobalStats.add(new FlowMapGraph(fmg.getGraph(), fmg.getAttrSpec(), stats));
+    }
+    return withGlobalStats;
+  }
+
+  /**
+   * Loads, bundles and paints one dataset into its cell of the image.
+   *
+   * @param flowMapGraph The loaded graph of the dataset or null to load it here
+   * @param viewBounds The camera view bounds to use or null to fit the map in the cell
+   * @return The camera view bounds used for the dataset
+   */
+  private PBounds renderCell(int index, String name, GraphMLDatasetSpec ds, FlowMapGraph flowMapGraph,
+      PBounds viewBounds, BufferedImage image) {
+    logger.info("Rendering graphic " + (index + 1) + " of " + datasets.size() + ": " + name);
+
+    FlowMapView view = new FlowMapView(null, false);
+    VisualCanvas canvas = view.getVisualCanvas();
+    canvas.setBackground(background);
+    canvas.setBounds(0, 0, width, height);
+    if (colorScheme != null) {
+      view.setColorScheme(colorScheme);
+    }
+    if (flowMapGraph != null) {
+      view.load(ds, flowMapGraph);
+    } else {
+      view.load(ds);
+    }
+
+    VisualFlowMap visualFlowMap = view.getVisualFlowMap();
+    visualFlowMap.setLegendVisible(showLegend);
+    setupFlowMapModel(visualFlowMap);
+    if (clusterer != null) {
+      clusterer.cluster(view);
+      visualFlowMap = view.getVisualFlowMap();
+      setupFlowMapModel(visualFlowMap);
+    }
+    if (fdebInitializer != null) {
+      ForceDirectedBundlerParameters bundlerParams = new ForceDirectedBundlerParameters(
+          visualFlowMap.getFlowMapGraph(), visualFlowMap.getFlowWeightAttr());
+      if (numThreads > 1  &&  datasets.size() > 1) {
+        bundlerParams.setNumThreads(1);
+      }
+      fdebInitializer.setupFDEB(bundlerParams);
+      visualFlowMap.bundleEdgesInCurrentThread(bundlerParams,
+          useBundlingCache ? BundlingResultCache.forDataset(ds.getFilename()) : null);
+    }
+
+    PCamera camera = visualFlowMap.getCamera();
+    if (viewBounds == null) {
+      visualFlowMap.fitInCameraView();
+      PBounds bounds = camera.getViewBounds();
+      camera.scaleViewAboutPoint(zoom, bounds.x + bounds.width / 2, bounds.y + bounds.height / 2);
+      bounds = (PBounds) camera.getViewBounds().clone();
+      bounds.x += translateX;
+      bounds.y += translateY;
+      camera.setViewBounds(bounds);
+    } else {
+      camera.setViewBounds(viewBounds);
+    }
+    visualFlowMap.addChild(createDatasetNameLabel(name, camera.getViewBounds()));
+
+    BufferedImage cell = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = cell.createGraphics();
+    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    g.setColor(canvas.getBackground());
+    g.fillRect(0, 0, width, height);
+    PPaintContext paintContext = new PPaintContext(g);
+    paintContext.setRenderQuality(PPaintContext.HIGH_QUALITY_RENDERING);
+    camera.fullPaint(paintContext);
+    g.dispose();
+
+    int x = paddingX + (width + paddingX) * (index % numColumns);
+    int y = paddingY + (height + paddingY) * (index / numColumns);
+    synchronized (image) {
+      Graphics2D ig = image.createGraphics();
+      ig.drawImage(cell, x, y, null);
+      ig.dispose();
+    }
+    return (PBounds) camera.getViewBounds().clone();
+  }
+
+  private void setupFlowMapModel(VisualFlowMap visualFlowMap) {
+    if (flowMapModelInitializer != null) {
+      flowMapModelInitializer.setupFlowMapModel(visualFlowMap.getModel());
+    }
+  }
+
+  private PText createDatasetNameLabel(String title, PBounds cameraBounds) {
+    PText ptext = new PText(title);
+    ptext.setX(cameraBounds.getX());
+    ptext.setY(cameraBounds.getY() + cameraBounds.getHeight() - TITLE_FONT.getSize2D());
+    ptext.setFont(TITLE_FONT);
+    ptext.setTextPaint(datasetNameLabelColor);
+    return ptext;
+  }
+
+  private static void printUsage() {
+    System.err.println(
+        "Usage: java -cp jflowmap.jar jflowmap.HeadlessFlowMapRenderer [options]\n" +
+        "    <output.png> <dataset-{name}.xml> <weight-attr> <x-attr> <y-attr> <label-attr> <name>...\n" +
+        "Options:\n" +
+        "  --threads <n>        Number of datasets rendered concurrently\n" +
+        "  --columns <n>        Number of columns of small multiples\n" +
+        "  --size <w>x<h>       Size of a single flow map in pixels\n" +
+        "  --areamap <file>     Area map to show under the flow maps\n" +
+        "  --projection <name>  Map projection (" + MapProjections.MERCATOR + " by default)\n" +
+        "  --bundle             Bundle the edges using the default bundling parameters\n" +
+        "  --no-legend          Don't show the legends");
+  }
+
+  public static void main(String[] args) throws IOException {
+    System.setProperty("java.awt.headless", "true");
+
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    int numColumns = 5;
+    int width = 1024, height = 768;
+    String areaMap = null;
+    MapProjections proj = MapProjections.MERCATOR;
+    boolean bundle = false, showLegend = true;
+
+    int argi = 0;
+    try {
+      for (; argi < args.length  &&  args[argi].startsWith("--"); argi++) {
+        String opt = args[argi];
+        if (opt.equals("--threads")) {
+          numThreads = Integer.parseInt(args[++argi]);
+        } else if (opt.equals("--columns")) {
+          numColumns = Integer.parseInt(args[++argi]);
+        } else if (opt.equals("--size")) {
+          String[] size = args[++argi].split("x");
+          width = Integer.parseInt(size[0]);
+          height = Integer.parseInt(size[1]);
+        } else if (opt.equals("--areamap")) {
+          areaMap = args[++argi];
+        } else if (opt.equals("--projection")) {
+          proj = MapProjections.valueOf(args[++argi].toUpperCase());
+        } else if (opt.equals("--bundle")) {
+          bundle = true;
+        } else if (opt.equals("--no-legend")) {
+          showLegend = false;
+        } else {
+          throw new IllegalArgumentException("Unknown option " + opt);
+        }
+      }
+    } catch (RuntimeException re) {
+      System.err.println(re.getMessage());
+      printUsage();
+      System.exit(1);
+    }
+    if (args.length - argi < 7) {
+      printUsage();
+      System.exit(1);
+    }
+
+    String outputFileName = args[argi];
+    GraphMLDatasetSpec datasetSpec = new GraphMLDatasetSpec(
+        args[argi + 1], args[argi + 2], args[argi + 3], args[argi + 4], args[argi + 5],
+        areaMap, null, null, proj);
+    Map<String, GraphMLDatasetSpec> datasets = Maps.newLinkedHashMap();
+    for (int i = argi + 6; i < args.length; i++) {
+      String name = args[i];
+      datasets.put(name, datasetSpec.withFilename(datasetSpec.getFilename().replace("{name}", name)));
+    }
+
+    HeadlessFlowMapRenderer renderer = new HeadlessFlowMapRenderer(outputFileName, datasets);
+    renderer.setNumThreads(numThreads);
+    renderer.setNumColumns(numColumns);
+    renderer.setSize(width, height);
+    renderer.setShowLegend(showLegend);
+    if (bundle) {
+      renderer.setFdebInitializer(new FDEBInitializer() {
+        @Override
+        public void setupFDEB(ForceDirectedBundlerParameters bundlerParams) {
+        }
+      });
+    }
+    renderer.render();
+  }
+
+}
@@ -0,0 +1,254 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.bundling;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+
+import jflowmap.FlowMapGraph;
+import jflowmap.geom.Point;
+
+import org.apache.log4j.Logger;
+
+import prefuse.data.Edge;
+import prefuse.data.Graph;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Stores the subdivision points produced by {@link ForceDirectedEdgeBundler}
+ * in binary files next to the dataset file. The files are keyed by a hash
+ * of the edge endpoints and of all the bundler parameters which affect the
+ * result (and of the edge weights if they affect the attraction), so a
+ * cached result is only used for an identical bundling job.
+ *
+ * @author Ilya Boyandin
+ */
+public class BundlingResultCache {
+
+  private static Logger logger = Logger.getLogger(BundlingResultCache.class);
+
+  private static final int MAGIC = 0x46444542;   // "FDEB"
+  private static final int FORMAT_VERSION = 1;
+  private static final String FILE_EXTENSION = ".fdeb";
+
+  private final File datasetFile;
+
+  /**
+   * @param datasetFile The cache files will be stored in the directory of this file
+   */
+  public BundlingResultCache(File datasetFile) {
+    this.datasetFile = datasetFile;
+  }
+
+  /**
+   * @return Null if the dataset isn't a local file (e.g. a URL)
+   */
+  public static BundlingResultCache forDataset(String datasetFilename) {
+    if (datasetFilename == null  ||  datasetFilename.contains("://")) {
+      return null;
+    }
+    return new BundlingResultCache(new File(datasetFilename));
+  }
+
+  public File getCacheFile(String key) {
+    return new File(datasetFile.getAbsoluteFile().getParentFile(),
+        datasetFile.getName() + "." + key + FILE_EXTENSION);
+  }
+
+  /**
+   * Loads the cached subdivision points for the graph and the bundler parameters
+   * into the graph.
+   *
+   * @return False if there is no cached result or it couldn't be read
+   */
+  public boolean load(FlowMapGraph flowMapGraph, ForceDirectedBundlerParameters params) {
+    String key = computeKey(flowMapGraph, params);
+    File file = getCacheFile(key);
+    if (!file.isFile()) {
+      return false;
+    }
+    Graph graph = flowMapGraph.getGraph();
+    int numEdges = graph.getEdgeCount();
+    List<List<Point>> points;
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      if (in.readInt() != MAGIC  ||  in.readInt() != FORMAT_VERSION  ||
+          !key.equals(in.readUTF())  ||  in.readInt() != numEdges) {
+        logger.warn("Ignoring invalid bundling cache file " + file);
+        return false;
+      }
+      ImmutableList.Builder<List<Point>> builder = ImmutableList.builder();
+      for (int i = 0; i < numEdges; i++) {
+        int numPoints = in.readInt();
+        if (numPoints == 0) {
+          builder.add(Collections.<Point>emptyList());
+        } else {
+          ImmutableList.Builder<Point> edgePoints = ImmutableList.builder();
+          for (int j = 0; j < numPoints; j++) {
+            edgePoints.add(new Point(in.readDouble(), in.readDouble()));
+          }
+          builder.add(edgePoints.build());
+        }
+      }
+      points = builder.build();
+    } catch (IOException ioe) {
+      logger.warn("Couldn't read bundling cache file " + file, ioe);
+      return false;
+    } finally {
+      closeQuietly(in);
+    }
+
+    for (int i = 0; i < numEdges; i++) {
+      flowMapGraph.setEdgeSubdivisionPoints(graph.getEdge(i), points.get(i));
+    }
+    logger.info("Loaded bundling result from " + file);
+    return true;
+  }
+
+  /**
+   * Stores the subdivision points which are currently set in the graph.
+   * The file is written under a temporary name first, so that concurrently
+   * running jobs never read a partially written file.
+   */
+  public void store(FlowMapGraph flowMapGraph, ForceDirectedBundlerParameters params)
+      throws IOException {
+    String key = computeKey(flowMapGraph, params);
+    File file = getCacheFile(key);
+    File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+    Graph graph = flowMapGraph.getGraph();
+    int numEdges = graph.getEdgeCount();
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeUTF(key);
+      out.writeInt(numEdges);
+      for (int i = 0; i < numEdges; i++) {
+        Edge edge = graph.getEdge(i);
+        if (flowMapGraph.hasEdgeSubdivisionPoints(edge)) {
+          List<Point> points = flowMapGraph.getEdgeSubdivisionPoints(edge);
+          out.writeInt(points.size());
+          for (Point p : points) {
+            out.writeDouble(p.x());
+            out.writeDouble(p.y());
+          }
+        } else {
+          out.writeInt(0);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    if (file.exists()) {
+      file.delete();
+    }
+    if (!tmpFile.renameTo(file)) {
+      tmpFile.delete();
+      throw new IOException("Couldn't write bundling cache file " + file);
+    }
+    logger.info("Stored bundling result in " + file);
+  }
+
+  /**
+   * The number of threads and the spatial compatibility index don't
+   * affect the result, so they are not a part of the key.
+   */
+  public static String computeKey(FlowMapGraph flowMapGraph, ForceDirectedBundlerParameters params) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(params.getNumCycles());
+      out.writeInt(params.getP());
+      out.writeDouble(params.getS());
+      out.writeInt(params.getI());
+      out.writeDouble(params.getK());
+      out.writeDouble(params.getStepDampingFactor());
+      out.writeDouble(params.getEdgeCompatibilityThreshold());
+      out.writeBoolean(params.getDirectionAffectsCompatibility());
+      out.writeBoolean(params.getBinaryCompatibility());
+      out.writeBoolean(params.getUseInverseQuadraticModel());
+      out.writeBoolean(params.getUseRepulsionForOppositeEdges());
+      out.writeBoolean(params.getUseSimpleCompatibilityMeasure());
+      out.writeBoolean(params.getEdgeValueAffectsAttraction());
+      out.writeDouble(params.getForceApproximationTheta());
+      out.writeDouble(params.getRepulsionAmount());
+      out.writeDouble(params.getSubdivisionPointsCycleIncreaseRate());
+      if (params.getEdgeValueAffectsAttraction()) {
+        out.writeUTF(params.getEdgeWeightAttr());
+      }
+
+      Graph graph = flowMapGraph.getGraph();
+      int numEdges = graph.getEdgeCount();
+      out.writeInt(numEdges);
+      for (int i = 0; i < numEdges; i++) {
+        Edge edge = graph.getEdge(i);
+        Point src = flowMapGraph.getEdgeSourcePoint(edge);
+        Point target = flowMapGraph.getEdgeTargetPoint(edge);
+        out.writeDouble(src.x());
+        out.writeDouble(src.y());
+        out.writeDouble(target.x());
+        out.writeDouble(target.y());
+        if (params.getEdgeValueAffectsAttraction()) {
+          out.writeDouble(flowMapGraph.getEdgeWeight(edge, params.getEdgeWeightAttr()));
+        }
+      }
+      out.flush();
+    } catch (IOException ioe) {
+      // can't happen with a ByteArrayOutputStream
+      throw new RuntimeException(ioe);
+    }
+
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes.toByteArray());
+      StringBuilder sb = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+        sb.append(Character.forDigit(b & 0xf, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException nsae) {
+      throw new RuntimeException(nsae);
+    }
+  }
+
+  private static void closeQuietly(DataInputStream in) {
+    if (in != null) {
+      try {
+        in.close();
+      } catch (IOException ioe) {
+        logger.warn("Couldn't close file", ioe);
+      }
+    }
+  }
+
+}
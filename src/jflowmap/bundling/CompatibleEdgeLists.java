@@ -0,0 +1,183 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.bundling;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Lists of compatible edges for every edge stored in compressed sparse row format:
+ * the compatible edges of the edge i and the compatibility values are found in
+ * the index range [getStart(i), getEnd(i)). The lists are symmetric: if j is in
+ * the list of i, then i is in the list of j with the same compatibility value.
+ *
+ * @author Ilya Boyandin
+ */
+class CompatibleEdgeLists {
+
+  private final int[] offsets;
+  private final int[] edges;
+  private final double[] compatibilities;
+
+  private CompatibleEdgeLists(int[] offsets, int[] edges, double[] compatibilities) {
+    this.offsets = offsets;
+    this.edges = edges;
+    this.compatibilities = compatibilities;
+  }
+
+  public int getNumEdges() {
+    return offsets.length - 1;
+  }
+
+  public int getStart(int edgeIdx) {
+    return offsets[edgeIdx];
+  }
+
+  public int getEnd(int edgeIdx) {
+    return offsets[edgeIdx + 1];
+  }
+
+  public int getEdge(int k) {
+    return edges[k];
+  }
+
+  public double getCompatibility(int k) {
+    return compatibilities[k];
+  }
+
+  public int getNumCompatiblePairs() {
+    return edges.length / 2;
+  }
+
+  /**
+   * @return The number of bytes occupied by the arrays of the lists
+   */
+  public long estimateMemoryUsage() {
+    return estimateMemoryUsage(getNumEdges(), getNumCompatiblePairs());
+  }
+
+  public static long estimateMemoryUsage(int numEdges, long numCompatiblePairs) {
+    return 4L * (numEdges + 1) + (4L + 8L) * 2 * numCompatiblePairs;
+  }
+
+  /**
+   * @return The number of bytes the builder needs at most while building the lists:
+   *   when the final arrays are allocated, the staged pairs are still held
+   */
+  public static long estimatePeakMemoryUsage(int numEdges, long numCompatiblePairs) {
+    long stagingChunks = (numCompatiblePairs + Builder.CHUNK_SIZE - 1) / Builder.CHUNK_SIZE;
+    return estimateMemoryUsage(numEdges, numCompatiblePairs) +
+        4L * 3 * numEdges +                                  // degrees, pair counts, fill cursors
+        (4L + 8L) * stagingChunks * Builder.CHUNK_SIZE;      // staged pairs
+  }
+
+  /**
+   * Collects the compatible pairs (i, j) with j < i. The pairs must be added
+   * in the order of ascending i, and for the same i in the order of ascending j.
+   * The lists will then contain the compatible edges of every edge in ascending order.
+   * <p>
+   * Only j and the compatibility of every pair are staged (in fixed-size chunks,
+   * so that there is no copying on growth), i is restored from the number of pairs
+   * added for every edge. The chunks are released one by one as they are consumed
+   * by {@link #build()}.
+   */
+  public static class Builder {
+    static final int CHUNK_SIZE = 1 << 16;
+    private static final int MAX_PAIRS = Integer.MAX_VALUE / 2;
+
+    private final int numEdges;
+    private final int[] degrees;
+    private final int[] numPairsOf;
+    private final List<int[]> pairsJ = Lists.newArrayList();
+    private final List<double[]> pairsC = Lists.newArrayList();
+    private int numPairs;
+    private int lastI;
+
+    public Builder(int numEdges) {
+      this.numEdges = numEdges;
+      this.degrees = new int[numEdges];
+      this.numPairsOf = new int[numEdges];
+    }
+
+    public void add(int i, int j, double C) {
+      if (j >= i) {
+        throw new IllegalArgumentException("Pairs must be added as (i, j) with j < i");
+      }
+      if (i < lastI) {
+        throw new IllegalArgumentException("Pairs must be added in the order of ascending i");
+      }
+      if (numPairs >= MAX_PAIRS) {
+        throw new IllegalStateException("Too many compatible edge pairs: the lists cannot hold " +
+            "more than " + MAX_PAIRS + " pairs. Increase the edge compatibility threshold.");
+      }
+      int offset = numPairs % CHUNK_SIZE;
+      if (offset == 0) {
+        pairsJ.add(new int[CHUNK_SIZE]);
+        pairsC.add(new double[CHUNK_SIZE]);
+      }
+      int chunk = numPairs / CHUNK_SIZE;
+      pairsJ.get(chunk)[offset] = j;
+      pairsC.get(chunk)[offset] = C;
+      numPairs++;
+      lastI = i;
+      numPairsOf[i]++;
+      degrees[i]++;
+      degrees[j]++;
+    }
+
+    public int getNumPairs() {
+      return numPairs;
+    }
+
+    /**
+     * Builds the lists. The builder cannot be used anymore afterwards.
+     */
+    public CompatibleEdgeLists build() {
+      int[] offsets = new int[numEdges + 1];
+      for (int i = 0; i < numEdges; i++) {
+        offsets[i + 1] = offsets[i] + degrees[i];
+      }
+      int[] edges = new int[numPairs * 2];
+      double[] compatibilities = new double[numPairs * 2];
+      int[] fill = Arrays.copyOf(offsets, numEdges);
+      int k = 0;
+      for (int i = 0; i < numEdges; i++) {
+        for (int n = 0; n < numPairsOf[i]; n++, k++) {
+          int chunk = k / CHUNK_SIZE, offset = k % CHUNK_SIZE;
+          int j = pairsJ.get(chunk)[offset];
+          double C = pairsC.get(chunk)[offset];
+          if (offset == CHUNK_SIZE - 1) {
+            pairsJ.set(chunk, null);
+            pairsC.set(chunk, null);
+          }
+          edges[fill[i]] = j;
+          compatibilities[fill[i]++] = C;
+          edges[fill[j]] = i;
+          compatibilities[fill[j]++] = C;
+        }
+      }
+      pairsJ.clear();
+      pairsC.clear();
+      return new CompatibleEdgeLists(offsets, edges, compatibilities);
+    }
+  }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.bundling;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over edge midpoints in which every edge occupies a square of the
+ * given radius around its midpoint. Used to find the pairs of edges which can
+ * possibly be compatible: two edges are returned as candidates only if the
+ * distance between their midpoints doesn't exceed the sum of their radii.
+ * <p>
+ * Edges covering more than {@link #MAX_GRID_CELLS_PER_EDGE} cells are not put into
+ * the cells, but kept in a separate list which is checked on every query, so that
+ * a few very long edges don't make the grid quadratic in size.
+ *
+ * @author Ilya Boyandin
+ */
+class EdgeMidpointGrid {
+
+  private static final int MAX_CELLS_PER_EDGE = 4;
+  private static final int MAX_GRID_CELLS_PER_EDGE = 16;
+
+  private final double[] mx;
+  private final double[] my;
+  private final double[] radius;
+
+  private final double minX, minY;
+  private final double cellSize;
+  private final int numCols, numRows;
+
+  private final int[] cellStarts;
+  private final int[] cellEdges;
+  private final int[] overflowEdges;
+  private final int numIndexed;
+
+  private final int[] stamps;
+  private int queryCount;
+
+  /**
+   * @param radius Edges with a negative or NaN radius are not added to the grid
+   */
+  public EdgeMidpointGrid(double[] mx, double[] my, double[] radius) {
+    this.mx = mx;
+    this.my = my;
+    this.radius = radius;
+
+    final int numEdges = mx.length;
+    double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY;
+    double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+    double[] sizes = new double[numEdges];
+    int numIndexed = 0;
+    for (int i = 0; i < numEdges; i++) {
+      if (isIndexed(i)) {
+        x0 = Math.min(x0, mx[i] - radius[i]);
+        y0 = Math.min(y0, my[i] - radius[i]);
+        x1 = Math.max(x1, mx[i] + radius[i]);
+        y1 = Math.max(y1, my[i] + radius[i]);
+        sizes[numIndexed++] = 2 * radius[i];
+      }
+    }
+
+    if (numIndexed == 0) {
+      minX = minY = 0;
+      cellSize = 1.0;
+      numCols = numRows = 1;
+    } else {
+      Arrays.sort(sizes, 0, numIndexed);
+      double size = sizes[numIndexed / 2];   // median
+      double width = x1 - x0, height = y1 - y0;
+      // don't let the grid get much bigger than the number of edges
+      double minSize = Math.sqrt(width * height / ((double)MAX_CELLS_PER_EDGE * numIndexed));
+      if (!(size >= minSize)) {
+        size = minSize;
+      }
+      if (!(size > 0)) {
+        size = Math.max(Math.max(width, height), 1.0);
+      }
+      minX = x0;
+      minY = y0;
+      cellSize = size;
+      numCols = Math.max(1, (int)Math.ceil(width / size));
+      numRows = Math.max(1, (int)Math.ceil(height / size));
+    }
+
+    this.numIndexed = numIndexed;
+
+    // count the edges in each cell
+    int numCells = numCols * numRows;
+    cellStarts = new int[numCells + 1];
+    int numOverflow = 0;
+    for (int i = 0; i < numEdges; i++) {
+      if (isIndexed(i)  &&  numOfCellsCovered(i) > MAX_GRID_CELLS_PER_EDGE) {
+        numOverflow++;
+      } else if (isIndexed(i)) {
+        int c0 = col(mx[i] - radius[i]), c1 = col(mx[i] + radius[i]);
+        int r0 = row(my[i] - radius[i]), r1 = row(my[i] + radius[i]);
+        for (int r = r0; r <= r1; r++) {
+          for (int c = c0; c <= c1; c++) {
+            cellStarts[r * numCols + c + 1]++;
+          }
+        }
+      }
+    }
+    for (int c = 0; c < numCells; c++) {
+      cellStarts[c + 1] += cellStarts[c];
+    }
+
+    // fill the cells (edge indices in each cell will be in ascending order)
+    cellEdges = new int[cellStarts[numCells]];
+    overflowEdges = new int[numOverflow];
+    numOverflow = 0;
+    int[] fill = Arrays.copyOf(cellStarts, numCells);
+    for (int i = 0; i < numEdges; i++) {
+      if (isIndexed(i)  &&  numOfCellsCovered(i) > MAX_GRID_CELLS_PER_EDGE) {
+        overflowEdges[numOverflow++] = i;
+      } else if (isIndexed(i)) {
+        int c0 = col(mx[i] - radius[i]), c1 = col(mx[i] + radius[i]);
+        int r0 = row(my[i] - radius[i]), r1 = row(my[i] + radius[i]);
+        for (int r = r0; r <= r1; r++) {
+          for (int c = c0; c <= c1; c++) {
+            cellEdges[fill[r * numCols + c]++] = i;
+          }
+        }
+      }
+    }
+
+    stamps = new int[numEdges];
+  }
+
+  private boolean isIndexed(int i) {
+    return radius[i] >= 0  &&
+      !Double.isNaN(mx[i])  &&  !Double.isInfinite(mx[i])  &&
+      !Double.isNaN(my[i])  &&  !Double.isInfinite(my[i])  &&
+      !Double.isInfinite(radius[i]);
+  }
+
+  private int numOfCellsCovered(int i) {
+    int c0 = col(mx[i] - radius[i]), c1 = col(mx[i] + radius[i]);
+    int r0 = row(my[i] - radius[i]), r1 = row(my[i] + radius[i]);
+    return (c1 - c0 + 1) * (r1 - r0 + 1);
+  }
+
+  private int col(double x) {
+    return Math.max(0, Math.min(numCols - 1, (int)((x - minX) / cellSize)));
+  }
+
+  private int row(double y) {
+    return Math.max(0, Math.min(numRows - 1, (int)((y - minY) / cellSize)));
+  }
+
+  /**
+   * Finds the candidates among the edges with indices smaller than {@code edgeIdx}.
+   * Not thread-safe.
+   *
+   * @param out Array which must be big enough to hold the results
+   * @return The number of candidates written to {@code out} in ascending order
+   */
+  public int findCandidatesBefore(int edgeIdx, int[] out) {
+    if (!isIndexed(edgeIdx)) {
+      return 0;
+    }
+    final double x = mx[edgeIdx], y = my[edgeIdx], r = radius[edgeIdx];
+    int c0 = col(x - r), c1 = col(x + r);
+    int r0 = row(y - r), r1 = row(y + r);
+    int count = 0;
+    if ((long)(c1 - c0 + 1) * (r1 - r0 + 1) > numIndexed) {
+      // visiting the cells would be more expensive than checking all the edges
+      for (int j = 0; j < edgeIdx; j++) {
+        if (isIndexed(j)  &&  isCandidate(j, x, y, r)) {
+          out[count++] = j;
+        }
+      }
+      return count;
+    }
+    for (int k = 0; k < overflowEdges.length  &&  overflowEdges[k] < edgeIdx; k++) {
+      int j = overflowEdges[k];
+      if (isCandidate(j, x, y, r)) {
+        out[count++] = j;
+      }
+    }
+    int stamp = ++queryCount;
+    for (int rw = r0; rw <= r1; rw++) {
+      for (int c = c0; c <= c1; c++) {
+        int cell = rw * numCols + c;
+        for (int k = cellStarts[cell], end = cellStarts[cell + 1]; k < end; k++) {
+          int j = cellEdges[k];
+          if (j >= edgeIdx) {
+            break;
+          }
+          if (stamps[j] != stamp) {
+            stamps[j] = stamp;
+            if (isCandidate(j, x, y, r)) {
+              out[count++] = j;
+            }
+          }
+        }
+      }
+    }
+    Arrays.sort(out, 0, count);
+    return count;
+  }
+
+  private boolean isCandidate(int j, double x, double y, double r) {
+    double dx = mx[j] - x, dy = my[j] - y, rr = radius[j] + r;
+    return (dx * dx + dy * dy <= rr * rr);
+  }
+
+}
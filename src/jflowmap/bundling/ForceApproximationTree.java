@@ -0,0 +1,473 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.bundling;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import jflowmap.geom.Point;
+
+/**
+ * Hierarchy of edge groups used to approximate the electrostatic forces in the
+ * force-directed bundler in the manner of the Barnes-Hut method.
+ * <p>
+ * Edges are grouped by the cells of nested uniform grids over their endpoints
+ * (the (x1, y1, x2, y2) space), the cell size doubling with every level. In every
+ * simulation step the centroid and the radius of the subdivision points of every
+ * group are calculated for each subdivision point index.
+ * <p>
+ * The compatible edges of every edge are organized in a tree following the group
+ * hierarchy. Each tree node knows the sum of the static force weights of the
+ * compatible edges it contains. When the forces acting on a subdivision point are
+ * calculated, the tree is traversed from the top, and the forces of all the
+ * compatible edges of a node are replaced by a single force from their centroid
+ * if they are close to each other compared to their distance to the point
+ * (radius / distance < theta). Only the nodes containing all the members of their
+ * group (except the edge itself) can be approximated, so that the centroid
+ * is taken over the compatible edges only. The other nodes are descended into.
+ * With theta going to zero the forces converge to the exact ones.
+ * <p>
+ * Note that the tree is built from the compatible edge lists and its size is
+ * proportional to theirs. It makes the simulation steps faster, but doesn't
+ * reduce the memory needed for the lists or the time needed to calculate them.
+ *
+ * @author Ilya Boyandin
+ */
+class ForceApproximationTree {
+
+  private final int numLevels;
+  private final int numGroups;
+  private final int[] levelGroupStarts;     // groups of the level L are [levelGroupStarts[L], levelGroupStarts[L + 1])
+  private final int[] groupParents;
+  private final int[] groupSizes;
+  private final int[] finestGroupMemberStarts;
+  private final int[] sortedEdges;
+  private final int[][] edgeGroups;         // [level][edge]
+
+  // tree nodes of the compatible edge lists
+  private final int[] rootStarts;
+  private final int[] rootEnds;
+  private int numNodes;
+  private int[] nodeLevels;
+  private int[] nodeGroups;
+  private int[] nodeNeighbourStarts;
+  private int[] nodeNeighbourEnds;
+  private int[] nodeChildStarts;
+  private int[] nodeChildEnds;
+  private double[] nodeWeights;
+  private byte[] nodeKinds;
+  private double[] nodeMaxAbsWeights;
+
+  /** Node which doesn't contain all the members of its group, can't be approximated */
+  public static final byte PARTIAL_NODE = 0;
+  /** Node containing all the members of its group */
+  public static final byte COMPLETE_NODE = 1;
+  /** Node containing all the members of its group except the edge whose tree it belongs to */
+  public static final byte COMPLETE_EXCEPT_SELF_NODE = 2;
+
+  // compatible edges sorted by group
+  private final int[] neighbours;
+  private final double[] neighbourCompatibilities;
+
+  // centroids and radii of the groups for each subdivision point index
+  private int P;
+  private double[] centroidX;
+  private double[] centroidY;
+  private double[] radius;
+
+  /**
+   * @param edgeStarts Edges with a null start are not put in any group
+   * @param cellSize Size of the finest grid cells along each of the four coordinates
+   * @param pairWeights Static force weight for every pair in {@code lists}
+   */
+  public ForceApproximationTree(Point[] edgeStarts, Point[] edgeEnds, double cellSize,
+      int numLevels, CompatibleEdgeLists lists, double[] pairWeights) {
+    final int numEdges = edgeStarts.length;
+    this.numLevels = numLevels;
+
+    // cell coordinates of the edges in the finest grid
+    final int[][] cells = new int[numEdges][];
+    int numGrouped = 0;
+    for (int i = 0; i < numEdges; i++) {
+      if (edgeStarts[i] != null) {
+        cells[i] = new int[] {
+            cell(edgeStarts[i].x(), cellSize), cell(edgeStarts[i].y(), cellSize),
+            cell(edgeEnds[i].x(), cellSize), cell(edgeEnds[i].y(), cellSize) };
+        numGrouped++;
+      }
+    }
+
+    // sort the edges so that the members of every group at every level are contiguous
+    Integer[] order = new Integer[numGrouped];
+    for (int i = 0, n = 0; i < numEdges; i++) {
+      if (cells[i] != null) {
+        order[n++] = i;
+      }
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer e1, Integer e2) {
+        for (int level = ForceApproximationTree.this.numLevels - 1; level >= 0; level--) {
+          int c = compareCells(cells[e1], cells[e2], level);
+          if (c != 0) {
+            return c;
+          }
+        }
+        return e1.compareTo(e2);
+      }
+    });
+    sortedEdges = new int[numGrouped];
+    for (int n = 0; n < numGrouped; n++) {
+      sortedEdges[n] = order[n];
+    }
+
+    // assign the groups: finest level first, then the coarser ones
+    edgeGroups = new int[numLevels][numEdges];
+    levelGroupStarts = new int[numLevels + 1];
+    int groupCount = 0;
+    for (int level = 0; level < numLevels; level++) {
+      levelGroupStarts[level] = groupCount;
+      Arrays.fill(edgeGroups[level], -1);
+      for (int n = 0; n < numGrouped; n++) {
+        int e = sortedEdges[n];
+        if (n == 0  ||  compareCells(cells[sortedEdges[n - 1]], cells[e], level) != 0) {
+          groupCount++;
+        }
+        edgeGroups[level][e] = groupCount - 1;
+      }
+    }
+    levelGroupStarts[numLevels] = groupCount;
+    numGroups = groupCount;
+
+    groupParents = new int[numGroups];
+    groupSizes = new int[numGroups];
+    Arrays.fill(groupParents, -1);
+    for (int level = 0; level < numLevels; level++) {
+      for (int n = 0; n < numGrouped; n++) {
+        int e = sortedEdges[n];
+        int g = edgeGroups[level][e];
+        groupSizes[g]++;
+        if (level + 1 < numLevels) {
+          groupParents[g] = edgeGroups[level + 1][e];
+        }
+      }
+    }
+    int numFinestGroups = levelGroupStarts[1];
+    finestGroupMemberStarts = new int[numFinestGroups + 1];
+    for (int g = 0; g < numFinestGroups; g++) {
+      finestGroupMemberStarts[g + 1] = finestGroupMemberStarts[g] + groupSizes[g];
+    }
+
+    // sort the compatible edges of every edge by their finest groups and build the trees
+    int numListEntries = lists.getNumCompatiblePairs() * 2;
+    neighbours = new int[numListEntries];
+    neighbourCompatibilities = new double[numListEntries];
+    double[] sortedWeights = new double[numListEntries];
+    rootStarts = new int[numEdges];
+    rootEnds = new int[numEdges];
+    int initialCapacity = Math.max(16, numListEntries);
+    nodeLevels = new int[initialCapacity];
+    nodeGroups = new int[initialCapacity];
+    nodeNeighbourStarts = new int[initialCapacity];
+    nodeNeighbourEnds = new int[initialCapacity];
+    nodeChildStarts = new int[initialCapacity];
+    nodeChildEnds = new int[initialCapacity];
+    nodeWeights = new double[initialCapacity];
+    nodeKinds = new byte[initialCapacity];
+    nodeMaxAbsWeights = new double[initialCapacity];
+    for (int pe = 0; pe < numEdges; pe++) {
+      int start = lists.getStart(pe), end = lists.getEnd(pe);
+      long[] keys = new long[end - start];
+      for (int k = start; k < end; k++) {
+        keys[k - start] = ((long)edgeGroups[0][lists.getEdge(k)] << 32) | (k - start);
+      }
+      Arrays.sort(keys);
+      for (int n = 0; n < keys.length; n++) {
+        int k = start + (int)(keys[n] & 0xffffffffL);
+        neighbours[start + n] = lists.getEdge(k);
+        neighbourCompatibilities[start + n] = lists.getCompatibility(k);
+        sortedWeights[start + n] = pairWeights[k];
+      }
+
+      rootStarts[pe] = numNodes;
+      if (start < end  &&  edgeGroups[0][neighbours[start]] < 0) {
+        // neighbours which are not in any group (these come first) are put into a node
+        // without a group, which is never approximated
+        int groupless = start;
+        while (groupless < end  &&  edgeGroups[0][neighbours[groupless]] < 0) {
+          groupless++;
+        }
+        addNode(pe, 0, -1, start, groupless, sortedWeights);
+        start = groupless;
+      }
+      addChildNodes(pe, numLevels - 1, start, end, sortedWeights);
+      int rootEnd = numNodes;   // the roots are the nodes created before their children
+      for (int node = rootStarts[pe]; node < numNodes; node++) {
+        int level = nodeLevels[node];
+        if (level > 0  &&  nodeGroups[node] >= 0) {
+          nodeChildStarts[node] = numNodes;
+          addChildNodes(pe, level - 1, nodeNeighbourStarts[node], nodeNeighbourEnds[node], sortedWeights);
+          nodeChildEnds[node] = numNodes;
+        }
+      }
+      rootEnds[pe] = rootEnd;
+    }
+  }
+
+  /**
+   * Adds a node for each group of the given level in the range of the sorted neighbours.
+   * If all the neighbours of a node are in the same group on the next finer level,
+   * the node is created on that level instead, because the smaller group approximates
+   * the forces better.
+   */
+  private void addChildNodes(int pe, int level, int start, int end, double[] sortedWeights) {
+    int runStart = start;
+    while (runStart < end) {
+      int group = edgeGroups[level][neighbours[runStart]];
+      int runEnd = runStart + 1;
+      while (runEnd < end  &&  edgeGroups[level][neighbours[runEnd]] == group) {
+        runEnd++;
+      }
+      int nodeLevel = level;
+      while (nodeLevel > 0  &&
+          edgeGroups[nodeLevel - 1][neighbours[runStart]] == edgeGroups[nodeLevel - 1][neighbours[runEnd - 1]]) {
+        nodeLevel--;
+      }
+      addNode(pe, nodeLevel, edgeGroups[nodeLevel][neighbours[runStart]], runStart, runEnd, sortedWeights);
+      runStart = runEnd;
+    }
+  }
+
+  private void addNode(int pe, int level, int group, int start, int end, double[] sortedWeights) {
+    if (numNodes == nodeLevels.length) {
+      int newLength = nodeLevels.length * 2;
+      nodeLevels = Arrays.copyOf(nodeLevels, newLength);
+      nodeGroups = Arrays.copyOf(nodeGroups, newLength);
+      nodeNeighbourStarts = Arrays.copyOf(nodeNeighbourStarts, newLength);
+      nodeNeighbourEnds = Arrays.copyOf(nodeNeighbourEnds, newLength);
+      nodeChildStarts = Arrays.copyOf(nodeChildStarts, newLength);
+      nodeChildEnds = Arrays.copyOf(nodeChildEnds, newLength);
+      nodeWeights = Arrays.copyOf(nodeWeights, newLength);
+      nodeKinds = Arrays.copyOf(nodeKinds, newLength);
+      nodeMaxAbsWeights = Arrays.copyOf(nodeMaxAbsWeights, newLength);
+    }
+    byte kind = PARTIAL_NODE;
+    if (group >= 0) {
+      boolean containsSelf = (edgeGroups[level][pe] == group);
+      if (end - start == groupSizes[group] - (containsSelf ? 1 : 0)) {
+        kind = (containsSelf ? COMPLETE_EXCEPT_SELF_NODE : COMPLETE_NODE);
+      }
+    }
+    double weight = 0, maxAbsWeight = 0;
+    for (int k = start; k < end; k++) {
+      weight += sortedWeights[k];
+      maxAbsWeight = Math.max(maxAbsWeight, Math.abs(sortedWeights[k]));
+    }
+    nodeLevels[numNodes] = level;
+    nodeGroups[numNodes] = group;
+    nodeNeighbourStarts[numNodes] = start;
+    nodeNeighbourEnds[numNodes] = end;
+    nodeChildStarts[numNodes] = numNodes;
+    nodeChildEnds[numNodes] = numNodes;
+    nodeWeights[numNodes] = weight;
+    nodeKinds[numNodes] = kind;
+    nodeMaxAbsWeights[numNodes] = maxAbsWeight;
+    numNodes++;
+  }
+
+  private static int cell(double v, double cellSize) {
+    return (int)Math.floor(v / cellSize);
+  }
+
+  private static int compareCells(int[] c1, int[] c2, int level) {
+    for (int d = 0; d < 4; d++) {
+      int v1 = c1[d] >> level, v2 = c2[d] >> level;   // floor division by 2^level
+      if (v1 != v2) {
+        return v1 < v2 ? -1 : 1;
+      }
+    }
+    return 0;
+  }
+
+  public int getNumLevels() {
+    return numLevels;
+  }
+
+  public int getNumGroups() {
+    return numGroups;
+  }
+
+  public int getNumNodes() {
+    return numNodes;
+  }
+
+  public int getRootStart(int edgeIdx) {
+    return rootStarts[edgeIdx];
+  }
+
+  public int getRootEnd(int edgeIdx) {
+    return rootEnds[edgeIdx];
+  }
+
+  /**
+   * @return The group of the node or -1 if the node's edges must not be approximated
+   */
+  public int getNodeGroup(int node) {
+    return nodeGroups[node];
+  }
+
+  /**
+   * @return {@link #PARTIAL_NODE}, {@link #COMPLETE_NODE} or {@link #COMPLETE_EXCEPT_SELF_NODE}
+   */
+  public byte getNodeKind(int node) {
+    return nodeKinds[node];
+  }
+
+  public int getGroupSize(int group) {
+    return groupSizes[group];
+  }
+
+  public int getNodeLevel(int node) {
+    return nodeLevels[node];
+  }
+
+  /**
+   * @return The sum of the static force weights of the compatible edges in the node
+   */
+  public double getNodeWeight(int node) {
+    return nodeWeights[node];
+  }
+
+  /**
+   * @return The biggest absolute static force weight of the compatible edges in the node
+   */
+  public double getNodeMaxAbsWeight(int node) {
+    return nodeMaxAbsWeights[node];
+  }
+
+  public int getNodeNeighbourStart(int node) {
+    return nodeNeighbourStarts[node];
+  }
+
+  public int getNodeNeighbourEnd(int node) {
+    return nodeNeighbourEnds[node];
+  }
+
+  /**
+   * Leaf nodes have no children: the forces of their compatible edges
+   * which can't be approximated must be calculated one by one.
+   */
+  public int getNodeChildStart(int node) {
+    return nodeChildStarts[node];
+  }
+
+  public int getNodeChildEnd(int node) {
+    return nodeChildEnds[node];
+  }
+
+  public int getNeighbour(int k) {
+    return neighbours[k];
+  }
+
+  public double getNeighbourCompatibility(int k) {
+    return neighbourCompatibilities[k];
+  }
+
+  public double getCentroidX(int group, int i) {
+    return centroidX[group * P + i];
+  }
+
+  public double getCentroidY(int group, int i) {
+    return centroidY[group * P + i];
+  }
+
+  public double getRadius(int group, int i) {
+    return radius[group * P + i];
+  }
+
+  /**
+   * Calculates the centroids and the radii of the groups from the subdivision
+   * points stored in the flat arrays x and y (the i-th point of the edge pe at pe * P + i).
+   * The radii of the coarser groups are upper bounds calculated from the radii
+   * of their subgroups.
+   */
+  public void updateCentroids(double[] x, double[] y, int P) {
+    if (this.P != P  ||  centroidX == null) {
+      this.P = P;
+      centroidX = new double[numGroups * P];
+      centroidY = new double[numGroups * P];
+      radius = new double[numGroups * P];
+    }
+
+    // finest groups are calculated from their members
+    for (int g = 0, numFinest = levelGroupStarts[1]; g < numFinest; g++) {
+      int start = finestGroupMemberStarts[g], end = finestGroupMemberStarts[g + 1];
+      int numMembers = end - start;
+      for (int i = 0; i < P; i++) {
+        double sx = 0, sy = 0;
+        for (int k = start; k < end; k++) {
+          int idx = sortedEdges[k] * P + i;
+          sx += x[idx];
+          sy += y[idx];
+        }
+        double cx = sx / numMembers, cy = sy / numMembers;
+        double maxDistSq = 0;
+        for (int k = start; k < end; k++) {
+          int idx = sortedEdges[k] * P + i;
+          double dx = x[idx] - cx, dy = y[idx] - cy;
+          double distSq = dx * dx + dy * dy;
+          if (distSq > maxDistSq) {
+            maxDistSq = distSq;
+          }
+        }
+        centroidX[g * P + i] = cx;
+        centroidY[g * P + i] = cy;
+        radius[g * P + i] = Math.sqrt(maxDistSq);
+      }
+    }
+
+    // coarser groups are calculated from their subgroups
+    for (int level = 1; level < numLevels; level++) {
+      int parentStart = levelGroupStarts[level], parentEnd = levelGroupStarts[level + 1];
+      Arrays.fill(centroidX, parentStart * P, parentEnd * P, 0.0);
+      Arrays.fill(centroidY, parentStart * P, parentEnd * P, 0.0);
+      Arrays.fill(radius, parentStart * P, parentEnd * P, 0.0);
+      for (int g = levelGroupStarts[level - 1]; g < parentStart; g++) {
+        int parent = groupParents[g];
+        double share = (double)groupSizes[g] / groupSizes[parent];
+        for (int i = 0; i < P; i++) {
+          centroidX[parent * P + i] += centroidX[g * P + i] * share;
+          centroidY[parent * P + i] += centroidY[g * P + i] * share;
+        }
+      }
+      for (int g = levelGroupStarts[level - 1]; g < parentStart; g++) {
+        int parent = groupParents[g];
+        for (int i = 0; i < P; i++) {
+          double dx = centroidX[g * P + i] - centroidX[parent * P + i];
+          double dy = centroidY[g * P + i] - centroidY[parent * P + i];
+          double r = Math.sqrt(dx * dx + dy * dy) + radius[g * P + i];
+          if (r > radius[parent * P + i]) {
+            radius[parent * P + i] = r;
+          }
+        }
+      }
+    }
+  }
+
+}
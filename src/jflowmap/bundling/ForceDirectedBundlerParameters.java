@@ -43,6 +43,9 @@ public class ForceDirectedBundlerParameters {
   private boolean useRepulsionForOppositeEdges; // for compatible edges going into opposite directions
   private boolean useSimpleCompatibilityMeasure;
   private boolean edgeValueAffectsAttraction;
+  private boolean useSpatialCompatibilityIndex;
+  private int numThreads;
+  private double forceApproximationTheta;
 //  private boolean joinCloseSubdivisionPoints;
   private double repulsionAmount;
   private double subdivisionPointsCycleIncreaseRate;
@@ -84,6 +87,9 @@ public class ForceDirectedBundlerParameters {
     useRepulsionForOppositeEdges = false;
     useSimpleCompatibilityMeasure = false;
     edgeValueAffectsAttraction = false;
+    useSpatialCompatibilityIndex = true;
+    numThreads = Runtime.getRuntime().availableProcessors();
+    forceApproximationTheta = 0;
 //    joinCloseSubdivisionPoints = true;
     subdivisionPointsCycleIncreaseRate = 1.3;
   }
@@ -218,6 +224,57 @@ public class ForceDirectedBundlerParameters {
     this.edgeValueAffectsAttraction = edgeValueAffectsAttraction;
   }
 
+  /**
+   * If true, edge compatibilities are only calculated for the pairs of edges
+   * which are close enough to each other to pass the compatibility threshold.
+   * The resulting compatibility lists are the same as when all pairs are checked.
+   */
+  public boolean getUseSpatialCompatibilityIndex() {
+    return useSpatialCompatibilityIndex;
+  }
+
+  public void setUseSpatialCompatibilityIndex(boolean useSpatialCompatibilityIndex) {
+    this.useSpatialCompatibilityIndex = useSpatialCompatibilityIndex;
+  }
+
+  /**
+   * The number of threads used to perform the simulation steps. With one thread
+   * the steps are performed in the calling thread. The results don't depend on
+   * the number of threads.
+   */
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  public void setNumThreads(int numThreads) {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("numThreads must be positive");
+    }
+    this.numThreads = numThreads;
+  }
+
+  /**
+   * Accuracy parameter of the approximation of the electrostatic forces. Forces of
+   * a group of compatible edges with similar endpoints are replaced by the force of
+   * the group's centroid if the ratio between the radius of the group and its distance
+   * to the subdivision point is below theta. Zero means that all the forces are
+   * calculated exactly.
+   * <p>
+   * The approximation only speeds up the simulation steps. The compatible edge
+   * lists are still needed, so the memory and the time needed to calculate them
+   * stay proportional to the number of compatible pairs.
+   */
+  public double getForceApproximationTheta() {
+    return forceApproximationTheta;
+  }
+
+  public void setForceApproximationTheta(double forceApproximationTheta) {
+    if (forceApproximationTheta < 0) {
+      throw new IllegalArgumentException("forceApproximationTheta must not be negative");
+    }
+    this.forceApproximationTheta = forceApproximationTheta;
+  }
+
   public double getRepulsionAmount() {
     return repulsionAmount;
   }
@@ -255,6 +312,9 @@ public class ForceDirectedBundlerParameters {
       + "useRepulsionForOppositeEdges = " + this.useRepulsionForOppositeEdges + TAB
       + "useSimpleCompatibilityMeasure = " + this.useSimpleCompatibilityMeasure + TAB
       + "edgeValueAffectsAttraction = " + this.edgeValueAffectsAttraction + TAB
+      + "useSpatialCompatibilityIndex = " + this.useSpatialCompatibilityIndex + TAB
+      + "numThreads = " + this.numThreads + TAB
+      + "forceApproximationTheta = " + this.forceApproximationTheta + TAB
 //      + "joinCloseSubdivisionPoints = " + this.joinCloseSubdivisionPoints + TAB
       + "repulsionAmount = " + this.repulsionAmount + TAB
       + "subdivisionPointsCycleIncreaseRate = " + this.subdivisionPointsCycleIncreaseRate + TAB
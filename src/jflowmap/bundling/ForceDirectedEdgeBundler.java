@@ -18,10 +18,18 @@
 
 package jflowmap.bundling;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jflowmap.FlowMapGraph;
 import jflowmap.geom.GeomUtils;
@@ -35,6 +43,7 @@ import prefuse.data.Graph;
 import at.fhj.utils.misc.ProgressTracker;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 
 /**
  * This is an implementation of the algorithm described in the paper
@@ -46,13 +55,26 @@ import com.google.common.collect.ImmutableList;
 public class ForceDirectedEdgeBundler {
 
   private static final double EPS = 1e-7;
+  private static final double COMPATIBILITY_INDEX_SLACK = 1e-6;
+  private static final int CHUNKS_PER_THREAD = 4;
+  private static final double FORCE_APPROXIMATION_CELL_SIZE_FACTOR = 2.0;
+  private static final int FORCE_APPROXIMATION_MAX_LEVELS = 12;
 
   private static Logger logger = Logger.getLogger(ForceDirectedEdgeBundler.class);
 
-  private Point[][] edgePoints;
+  // Subdivision points of all edges: the coordinates of the i-th point of
+  // the edge pe are stored at the index pe * P + i
+  private double[] edgePointsX;
+  private double[] edgePointsY;
+  // Buffers for the next simulation step which are swapped with the above
+  private double[] tmpEdgePointsX;
+  private double[] tmpEdgePointsY;
+  private int numSubdivisionPoints;   // the current number of points per edge in the above arrays
   private double[] edgeLengths;
 
-  private List<CompatibleEdge>[] compatibleEdgeLists;
+  private CompatibleEdgeLists compatibleEdgeLists;
+  private List<Object> compatibilitySettings;   // the parameters compatibleEdgeLists were calculated with
+  private ForceApproximationTree forceApproximationTree;
   private Point[] edgeStarts;
   private Point[] edgeEnds;
   private double[] edgeValues;
@@ -69,6 +91,8 @@ public class ForceDirectedEdgeBundler {
   private final ForceDirectedBundlerParameters params;
 
   private ProgressTracker progressTracker;
+  private ExecutorService executor;
+  private final List<CycleListener> cycleListeners = Lists.newArrayList();
 //  private MinMax nodeXStats;
 //  private MinMax nodeYStats;
 
@@ -79,18 +103,76 @@ public class ForceDirectedEdgeBundler {
     this.params = params;
   }
 
+  public interface CycleListener {
+    /**
+     * Called in the bundling thread after each completed cycle. The subdivision
+     * points of the cycle can be read from the bundler until the method returns.
+     */
+    void cycleCompleted(ForceDirectedEdgeBundler bundler, int cycle, int numCycles);
+  }
+
+  public void addCycleListener(CycleListener listener) {
+    cycleListeners.add(listener);
+  }
+
+  public void removeCycleListener(CycleListener listener) {
+    cycleListeners.remove(listener);
+  }
+
   public ProgressTracker getProgressTracker() {
     return progressTracker;
   }
 
+  public int getNumEdges() {
+    return numEdges;
+  }
+
+  /**
+   * @return The number of subdivision points of every edge which isn't a self-loop
+   */
+  public int getNumSubdivisionPoints() {
+    return numSubdivisionPoints;
+  }
+
+  /**
+   * @return False if the edge is a self-loop which has no subdivision points
+   */
+  public boolean hasSubdivisionPoints(int edgeIndex) {
+    return edgePointsX != null  &&  !isSelfLoop(edgeIndex);
+  }
+
+  public double getSubdivisionPointX(int edgeIndex, int i) {
+    return edgePointsX[edgeIndex * numSubdivisionPoints + i];
+  }
+
+  public double getSubdivisionPointY(int edgeIndex, int i) {
+    return edgePointsY[edgeIndex * numSubdivisionPoints + i];
+  }
+
   public List<Point> getSubdivisionPoints(int edgeIndex) {
-    if (isSelfLoop(edgeIndex)) {
+    if (isSelfLoop(edgeIndex)  ||  edgePointsX == null) {
       return Collections.emptyList();
     }
-    return ImmutableList.copyOf(
-//        Lists.transform(Arrays.asList(edgePoints[edgeIndex]), denormalizeFun)
-        Arrays.asList(edgePoints[edgeIndex])
-    );
+    ImmutableList.Builder<Point> points = ImmutableList.builder();
+    final int P = numSubdivisionPoints;
+    for (int i = 0, offset = edgeIndex * P; i < P; i++) {
+      points.add(new Point(edgePointsX[offset + i], edgePointsY[offset + i]));
+    }
+    return points.build();
+  }
+
+  /**
+   * Releases the subdivision point buffers and the force approximation tree once
+   * the result has been written to the flow map graph. Only what is needed to reuse
+   * the compatibility lists in a later {@link #rebundle} is kept.
+   */
+  public void releaseSimulationData() {
+    edgePointsX = edgePointsY = null;
+    tmpEdgePointsX = tmpEdgePointsY = null;
+    numSubdivisionPoints = 0;
+    forceApproximationTree = null;
+    edgeValues = null;
+    progressTracker = null;
   }
 
   private void addGraphSubdivisionPoints() {
@@ -101,22 +183,60 @@ public class ForceDirectedEdgeBundler {
   }
 
   public void bundle(ProgressTracker pt) {
+    bundle(pt, null, false);
+  }
+
+  /**
+   * Bundles the edges starting from the subdivision points which are currently
+   * stored in the flow map graph (e.g. by a previous bundling) instead of the straight
+   * edges. The simulation is resumed from the first cycle which would add more
+   * subdivision points than the stored ones have, but at least the last cycle is
+   * performed, so that the changed parameters take effect.
+   * If there are no stored subdivision points the edges are bundled from scratch.
+   * <p>
+   * The compatibility lists of {@code previous} are reused if it was run on the same
+   * edge geometry and with the same compatibility parameters.
+   *
+   * @param previous Bundler of an earlier run, can be null
+   */
+  public void rebundle(ProgressTracker pt, ForceDirectedEdgeBundler previous) {
+    bundle(pt, previous, true);
+  }
+
+  private void bundle(ProgressTracker pt, ForceDirectedEdgeBundler previous, boolean warmStart) {
     logger.info("FDE bundling started with the following parameters: " + params);
     pt.startTask("Initializing", .05);
-    init(pt);
+    init(pt, previous, warmStart);
     if (!pt.isCancelled()) {
       pt.taskCompleted();
 
-      // iterative refinement scheme
-      int numCycles = params.getNumCycles();
-      for (int cycle = 0; cycle < numCycles; cycle++) {
-        pt.startTask("Bundling cycle " + (cycle + 1) + " of " + numCycles, cycle, .95 / numCycles);
-        nextCycle();
-        if (pt.isCancelled()) {
-          break;
+      int numThreads = params.getNumThreads();
+      if (numThreads > 1) {
+        logger.info("Using " + numThreads + " threads for the simulation steps");
+        executor = Executors.newFixedThreadPool(numThreads, new WorkerThreadFactory());
+      }
+      try {
+        // iterative refinement scheme
+        int numCycles = params.getNumCycles();
+        int firstCycle = this.cycle;
+        for (int cycle = firstCycle; cycle < numCycles; cycle++) {
+          pt.startTask("Bundling cycle " + (cycle + 1) + " of " + numCycles, cycle,
+              .95 / (numCycles - firstCycle));
+          nextCycle();
+          if (pt.isCancelled()) {
+            break;
+          }
+          pt.taskCompleted();
+          addGraphSubdivisionPoints();
+          for (CycleListener listener : cycleListeners) {
+            listener.cycleCompleted(this, cycle, numCycles);
+          }
+        }
+      } finally {
+        if (executor != null) {
+          executor.shutdownNow();
+          executor = null;
         }
-        pt.taskCompleted();
-        addGraphSubdivisionPoints();
       }
     }
 
@@ -144,7 +264,7 @@ public class ForceDirectedEdgeBundler {
 //    return new Point(nodeXStats.denormalize(p.x()), nodeYStats.denormalize(p.y()));
 //  }
 
-  private void init(ProgressTracker progressTracker) {
+  private void init(ProgressTracker progressTracker, ForceDirectedEdgeBundler previous, boolean warmStart) {
     this.progressTracker = progressTracker;
 
     numEdges = flowMapGraph.getGraph().getEdgeCount();
@@ -188,12 +308,155 @@ public class ForceDirectedEdgeBundler {
     this.S = params.getS();
 //    this.S = 1e-6;
 
-    calcEdgeCompatibilityMeasures();
+    List<Object> settings = getCompatibilitySettings();
+    if (previous != null  &&  previous.compatibleEdgeLists != null  &&
+        settings.equals(previous.compatibilitySettings)  &&
+        Arrays.equals(edgeStarts, previous.edgeStarts)  &&  Arrays.equals(edgeEnds, previous.edgeEnds)) {
+      logger.info("Reusing the compatibility lists of the previous bundling");
+      compatibleEdgeLists = previous.compatibleEdgeLists;
+    } else {
+      calcEdgeCompatibilityMeasures();
+    }
+    compatibilitySettings = settings;
+
+    forceApproximationTree = null;
+    if (params.getForceApproximationTheta() > 0  &&  compatibleEdgeLists != null) {
+      initForceApproximationTree();
+    }
 
     cycle = 0;
+    numSubdivisionPoints = 0;
+    edgePointsX = edgePointsY = null;
+    if (warmStart) {
+      if (initSubdivisionPointsFromGraph()) {
+        resumeCycles();
+      } else {
+        logger.info("No subdivision points to start from, bundling from scratch");
+      }
+    }
+  }
+
+  private List<Object> getCompatibilitySettings() {
+    return Arrays.<Object>asList(
+        params.getEdgeCompatibilityThreshold(),
+        params.getUseSimpleCompatibilityMeasure(),
+        params.getBinaryCompatibility(),
+        params.getDirectionAffectsCompatibility(),
+        params.getUseRepulsionForOppositeEdges());
+  }
+
+  /**
+   * Copies the subdivision points stored in the flow map graph. All the edges
+   * except self-loops must have the same number of points.
+   *
+   * @return False if there were no suitable subdivision points
+   */
+  private boolean initSubdivisionPointsFromGraph() {
+    Graph graph = flowMapGraph.getGraph();
+    int P = 0;
+    for (int i = 0; i < numEdges; i++) {
+      if (isSelfLoop(i)) {
+        continue;
+      }
+      Edge edge = graph.getEdge(i);
+      if (!flowMapGraph.hasEdgeSubdivisionPoints(edge)) {
+        return false;
+      }
+      int size = flowMapGraph.getEdgeSubdivisionPoints(edge).size();
+      if (size == 0  ||  (P > 0  &&  size != P)) {
+        return false;
+      }
+      P = size;
+    }
+    if (P == 0) {
+      return false;
+    }
+    edgePointsX = new double[numEdges * P];
+    edgePointsY = new double[numEdges * P];
+    for (int i = 0; i < numEdges; i++) {
+      if (!isSelfLoop(i)) {
+        int offset = i * P;
+        for (Point point : flowMapGraph.getEdgeSubdivisionPoints(graph.getEdge(i))) {
+          edgePointsX[offset] = point.x();
+          edgePointsY[offset] = point.y();
+          offset++;
+        }
+      }
+    }
+    numSubdivisionPoints = P;
+    tmpEdgePointsX = new double[numEdges * P];
+    tmpEdgePointsY = new double[numEdges * P];
+    return true;
+  }
+
+  /**
+   * Finds the cycle to resume the simulation from and sets P, S and I
+   * to the values nextCycle() will derive the parameters of this cycle from.
+   */
+  private void resumeCycles() {
+    int numCycles = params.getNumCycles();
+    double Pdouble = this.Pdouble;
+    int P = this.P;
+    double S = this.S;
+    int I = this.I;
+    while (cycle < numCycles - 1  &&  P <= numSubdivisionPoints) {
+      this.Pdouble = Pdouble;
+      this.P = P;
+      this.S = S;
+      this.I = I;
+
+      Pdouble *= params.getSubdivisionPointsCycleIncreaseRate();
+      P = (int)Math.round(Pdouble);
+      S *= (1.0 - params.getStepDampingFactor());
+      I = (I * 2) / 3;
+      cycle++;
+    }
+    logger.info("Resuming bundling from cycle " + (cycle + 1) + " with " +
+        numSubdivisionPoints + " subdivision points");
+  }
+
+  private void initForceApproximationTree() {
+    double lengthSum = 0;
+    int numNonSelfLoops = 0;
+    double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+    double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+    Point[] groupedEdgeStarts = new Point[numEdges];
+    for (int i = 0; i < numEdges; i++) {
+      if (!isSelfLoop(i)  &&  !Double.isNaN(edgeLengths[i])) {
+        lengthSum += edgeLengths[i];
+        numNonSelfLoops++;
+        groupedEdgeStarts[i] = edgeStarts[i];
+        minX = Math.min(minX, Math.min(edgeStarts[i].x(), edgeEnds[i].x()));
+        maxX = Math.max(maxX, Math.max(edgeStarts[i].x(), edgeEnds[i].x()));
+        minY = Math.min(minY, Math.min(edgeStarts[i].y(), edgeEnds[i].y()));
+        maxY = Math.max(maxY, Math.max(edgeStarts[i].y(), edgeEnds[i].y()));
+      }
+    }
+    if (numNonSelfLoops == 0) {
+      return;
+    }
+    double cellSize = FORCE_APPROXIMATION_CELL_SIZE_FACTOR *
+        params.getForceApproximationTheta() * lengthSum / numNonSelfLoops;
+    // add levels until the coarsest cells cover all the edges
+    double extent = Math.max(maxX - minX, maxY - minY);
+    int numLevels = 1;
+    while (numLevels < FORCE_APPROXIMATION_MAX_LEVELS  &&  cellSize * (1 << (numLevels - 1)) < extent) {
+      numLevels++;
+    }
+
+    double[] pairWeights = new double[compatibleEdgeLists.getNumCompatiblePairs() * 2];
+    for (int pe = 0; pe < numEdges; pe++) {
+      for (int k = compatibleEdgeLists.getStart(pe), end = compatibleEdgeLists.getEnd(pe); k < end; k++) {
+        pairWeights[k] = forceWeight(pe, compatibleEdgeLists.getEdge(k), compatibleEdgeLists.getCompatibility(k));
+      }
+    }
+    forceApproximationTree = new ForceApproximationTree(
+        groupedEdgeStarts, edgeEnds, cellSize, numLevels, compatibleEdgeLists, pairWeights);
+    logger.info("Force approximation: " + forceApproximationTree.getNumGroups() + " edge groups on " +
+        numLevels + " levels, " + forceApproximationTree.getNumNodes() + " tree nodes for " +
+        compatibleEdgeLists.getNumCompatiblePairs() * 2 + " compatible edge list entries");
   }
 
-  @SuppressWarnings("unchecked")
   private void calcEdgeCompatibilityMeasures() {
     progressTracker.startSubtask("Allocating memory", .05);
     progressTracker.subtaskCompleted();
@@ -203,24 +466,44 @@ public class ForceDirectedEdgeBundler {
     progressTracker.startSubtask("Precalculating edge compatibility measures", .95);
     progressTracker.setSubtaskIncUnit(100.0 / numEdges);
 
-    compatibleEdgeLists = new List[numEdges];
-    for (int i = 0; i < numEdges; i++) {
-      compatibleEdgeLists[i] = new ArrayList<CompatibleEdge>();
+    CompatibleEdgeLists.Builder builder = new CompatibleEdgeLists.Builder(numEdges);
+    if (params.getUseSpatialCompatibilityIndex()  &&  params.getEdgeCompatibilityThreshold() > 0) {
+      calcEdgeCompatibilityMeasuresUsingIndex(builder);
+    } else {
+      calcAllEdgeCompatibilityMeasures(builder);
+    }
+    if (progressTracker.isCancelled()) {
+      compatibleEdgeLists = null;
+    } else {
+      compatibleEdgeLists = builder.build();
+      logger.info("Compatible edge pairs: " + compatibleEdgeLists.getNumCompatiblePairs() +
+          ", estimated size of the compatibility lists: " +
+          bytesToString(compatibleEdgeLists.estimateMemoryUsage()) + " (" +
+          bytesToString(CompatibleEdgeLists.estimatePeakMemoryUsage(
+              numEdges, compatibleEdgeLists.getNumCompatiblePairs())) + " while building)");
+    }
+  }
+
+  private static String bytesToString(long bytes) {
+    if (bytes < 1024 * 1024) {
+      return (bytes / 1024) + " KB";
     }
+    return Math.round(bytes * 10.0 / (1024 * 1024)) / 10.0 + " MB";
+  }
+
+  private void calcAllEdgeCompatibilityMeasures(CompatibleEdgeLists.Builder builder) {
     int numTotal = 0;
     int numCompatible = 0;
     double Csum = 0;
     for (int i = 0; i < numEdges; i++) {
       for (int j = 0; j < i; j++) {
         if (progressTracker.isCancelled()) {
-          compatibleEdgeLists = null;
           return;
         }
 
         double C = calcEdgeCompatibility(i, j);
         if (Math.abs(C) >= params.getEdgeCompatibilityThreshold()) {
-          compatibleEdgeLists[i].add(new CompatibleEdge(j, C));
-          compatibleEdgeLists[j].add(new CompatibleEdge(i, C));
+          builder.add(i, j, C);
           numCompatible++;
         }
         Csum += Math.abs(C);
@@ -232,18 +515,65 @@ public class ForceDirectedEdgeBundler {
       logger.debug("Average edge compatibility = " + (Csum / numTotal));
       logger.debug("Compatibility ratio = " + Math.round((numCompatible * 100.0 / numTotal) * 100)/100.0 + "%");
     }
-    if (progressTracker.isCancelled()) {
-      compatibleEdgeLists = null;
-    }
   }
 
-  private static class CompatibleEdge {
-    public CompatibleEdge(int edgeIdx, double c) {
-      this.edgeIdx = edgeIdx;
-      C = c;
+  /**
+   * Computes the same compatibility lists as
+   * {@link #calcAllEdgeCompatibilityMeasures(CompatibleEdgeLists.Builder)}, but only
+   * for the pairs of edges which can pass the compatibility threshold.
+   * The position compatibility Cp = l_avg / (l_avg + |pm - qm|) is an upper bound
+   * for both the standard and the simple compatibility measures, so a pair
+   * can only be compatible if |pm - qm| <= l_avg * (1 - threshold) / threshold.
+   * The candidate pairs are looked up in a grid over the edge midpoints.
+   */
+  private void calcEdgeCompatibilityMeasuresUsingIndex(CompatibleEdgeLists.Builder builder) {
+    double threshold = params.getEdgeCompatibilityThreshold();
+    double k = (1.0 - threshold) / (2 * threshold);
+    if (params.getUseSimpleCompatibilityMeasure()) {
+      // |pm - qm| <= (|ps - qs| + |pe - qe|) / 2 for the simple measure
+      k /= 2;
+    }
+    double[] mx = new double[numEdges];
+    double[] my = new double[numEdges];
+    double[] radius = new double[numEdges];
+    for (int i = 0; i < numEdges; i++) {
+      Point m = GeomUtils.midpoint(edgeStarts[i], edgeEnds[i]);
+      mx[i] = m.x();
+      my[i] = m.y();
+      if (isSelfLoop(i)) {
+        radius[i] = -1;   // self-loops are never compatible with any other edge
+      } else {
+        // the slack makes sure rounding errors can't lead to the loss of a compatible pair
+        radius[i] = k * edgeLengths[i] * (1 + COMPATIBILITY_INDEX_SLACK) + EPS;
+      }
+    }
+    EdgeMidpointGrid grid = new EdgeMidpointGrid(mx, my, radius);
+
+    int[] candidates = new int[numEdges];
+    long numCandidates = 0;
+    int numCompatible = 0;
+    for (int i = 0; i < numEdges; i++) {
+      if (progressTracker.isCancelled()) {
+        return;
+      }
+      int numCandidatesOfI = grid.findCandidatesBefore(i, candidates);
+      for (int ci = 0; ci < numCandidatesOfI; ci++) {
+        int j = candidates[ci];
+        double C = calcEdgeCompatibility(i, j);
+        if (Math.abs(C) >= threshold) {
+          builder.add(i, j, C);
+          numCompatible++;
+        }
+      }
+      numCandidates += numCandidatesOfI;
+      progressTracker.incSubtaskProgress();
+    }
+    if (logger.isDebugEnabled()) {
+      long numTotal = (long)numEdges * (numEdges - 1) / 2;
+      logger.debug("Compatibility candidates = " + numCandidates + " of " + numTotal + " edge pairs");
+      logger.debug("Compatibility ratio = " +
+          Math.round((numCompatible * 100.0 / numTotal) * 100)/100.0 + "%");
     }
-    final int edgeIdx;
-    final double C;
   }
 
   private double calcEdgeCompatibility(int i, int j) {
@@ -384,144 +714,334 @@ public class ForceDirectedEdgeBundler {
 
     // Perform simulation steps
 
-    Point[][] tmpEdgePoints = new Point[numEdges][P];
-
     for (int step = 0; step < I; step++) {
       if (progressTracker.isCancelled()) {
         return;
       }
       progressTracker.startSubtask("Step " + (step + 1) + " of " + I, (1.0 - .1) / I);
       progressTracker.setSubtaskIncUnit(100.0 / numEdges);
-      for (int pe = 0; pe < numEdges; pe++) {
+      if (forceApproximationTree != null) {
+        forceApproximationTree.updateCentroids(edgePointsX, edgePointsY, P);
+      }
+      if (executor == null) {
+        for (int pe = 0; pe < numEdges; pe++) {
+          if (progressTracker.isCancelled()) {
+            return;
+          }
+          calcNewEdgePoints(pe, P, S);
+          progressTracker.incSubtaskProgress();
+        }
+      } else {
+        calcNewEdgePointsInParallel(P, S);
         if (progressTracker.isCancelled()) {
           return;
         }
-        Point[] p = edgePoints[pe];
-        Point[] newP = tmpEdgePoints[pe];
-        if (isSelfLoop(pe)) {
-          continue;     // ignore self-loops
-        }
+      }
+      swapEdgePointBuffers();
+      progressTracker.subtaskCompleted();
+    }
 
-        final int numOfSegments = P + 1;
-        double k_p = params.getK() / (edgeLengths[pe] * numOfSegments);
+    if (!progressTracker.isCancelled()) {
+      // update params only in case of success (i.e. no exception)
+      this.P = P;
+      this.Pdouble = Pdouble;
+      this.S = S;
+      this.I = I;
 
-        List<CompatibleEdge> compatible = compatibleEdgeLists[pe];
+      cycle++;
+    }
+  }
 
-        for (int i = 0; i < P; i++) {
-          // spring forces
-          Point p_i = p[i];
-          Point p_prev = (i == 0 ? edgeStarts[pe] : p[i - 1]);
-          Point p_next = (i == P - 1 ? edgeEnds[pe] : p[i + 1]);
-          double Fsi_x = (p_prev.x() - p_i.x()) + (p_next.x() - p_i.x());
-          double Fsi_y = (p_prev.y() - p_i.y()) + (p_next.y() - p_i.y());
+  /**
+   * Calculates the positions of the subdivision points of the edge {@code pe}
+   * after the next simulation step. Only reads the current points and only writes
+   * the points of {@code pe} to the buffers of the next step, so it can be
+   * called for different edges concurrently.
+   */
+  private void calcNewEdgePoints(int pe, int P, double S) {
+    if (isSelfLoop(pe)) {
+      return;     // ignore self-loops
+    }
+    final double[] x = edgePointsX, y = edgePointsY;
+    final double[] newX = tmpEdgePointsX, newY = tmpEdgePointsY;
+    final int offset = pe * P;
+
+    final int numOfSegments = P + 1;
+    double k_p = params.getK() / (edgeLengths[pe] * numOfSegments);
+
+    final CompatibleEdgeLists compatible = compatibleEdgeLists;
+    final int compatibleStart = compatible.getStart(pe), compatibleEnd = compatible.getEnd(pe);
+    final ForceApproximationTree approximation = forceApproximationTree;
+    final double theta = params.getForceApproximationTheta();
+    final int[] stackNodes, stackEnds;
+    if (approximation == null) {
+      stackNodes = stackEnds = null;
+    } else {
+      stackNodes = new int[approximation.getNumLevels() + 1];
+      stackEnds = new int[approximation.getNumLevels() + 1];
+    }
 
-          if (Math.abs(k_p) < 1.0) {
-            Fsi_x *= k_p;
-            Fsi_y *= k_p;
-          }
+    for (int i = 0; i < P; i++) {
+      // spring forces
+      final double p_x = x[offset + i], p_y = y[offset + i];
+      final double prev_x = (i == 0 ? edgeStarts[pe].x() : x[offset + i - 1]);
+      final double prev_y = (i == 0 ? edgeStarts[pe].y() : y[offset + i - 1]);
+      final double next_x = (i == P - 1 ? edgeEnds[pe].x() : x[offset + i + 1]);
+      final double next_y = (i == P - 1 ? edgeEnds[pe].y() : y[offset + i + 1]);
+      double Fsi_x = (prev_x - p_x) + (next_x - p_x);
+      double Fsi_y = (prev_y - p_y) + (next_y - p_y);
+
+      if (Math.abs(k_p) < 1.0) {
+        Fsi_x *= k_p;
+        Fsi_y *= k_p;
+      }
 
-          // attracting electrostatic forces (for each other compatible edge)
-          double Fei_x = 0;
-          double Fei_y = 0;
-          for (int ci = 0, size = compatible.size(); ci < size; ci++) {
-            CompatibleEdge ce = compatible.get(ci);
-            final int qe = ce.edgeIdx;
-            final double C = ce.C;
-            Point q_i = edgePoints[qe][i];
-
-            double v_x = q_i.x() - p_i.x();
-            double v_y = q_i.y() - p_i.y();
-            if (Math.abs(v_x) > EPS  ||  Math.abs(v_y) > EPS) {  // zero vector has no direction
-              double d = Math.sqrt(v_x * v_x + v_y * v_y);  // shouldn't be zero
-              double m;
+      // attracting electrostatic forces (for each other compatible edge)
+      double Fei_x = 0;
+      double Fei_y = 0;
+      if (approximation == null) {
+        for (int ci = compatibleStart; ci < compatibleEnd; ci++) {
+          final int qe = compatible.getEdge(ci);
+          final double C = compatible.getCompatibility(ci);
+
+          double v_x = x[qe * P + i] - p_x;
+          double v_y = y[qe * P + i] - p_y;
+          if (Math.abs(v_x) > EPS  ||  Math.abs(v_y) > EPS) {  // zero vector has no direction
+            double m = electrostaticForceMultiplier(pe, qe, C, v_x, v_y, S);
+            v_x *= m;
+            v_y *= m;
+            Fei_x += v_x;
+            Fei_y += v_y;
+          }
+        }
+      } else {
+        // traverse the tree of the compatible edges from the coarsest groups down
+        int depth = 0;
+        stackNodes[0] = approximation.getRootStart(pe);
+        stackEnds[0] = approximation.getRootEnd(pe);
+        while (depth >= 0) {
+          if (stackNodes[depth] == stackEnds[depth]) {
+            depth--;
+            continue;
+          }
+          final int node = stackNodes[depth]++;
+          final int group = approximation.getNodeGroup(node);
+          final int nStart = approximation.getNodeNeighbourStart(node);
+          final int nEnd = approximation.getNodeNeighbourEnd(node);
+          final byte kind = (group >= 0 ? approximation.getNodeKind(node) : ForceApproximationTree.PARTIAL_NODE);
+          if (kind != ForceApproximationTree.PARTIAL_NODE) {
+            double c_x = approximation.getCentroidX(group, i);
+            double c_y = approximation.getCentroidY(group, i);
+            double r = approximation.getRadius(group, i);
+            if (kind == ForceApproximationTree.COMPLETE_EXCEPT_SELF_NODE) {
+              // take the point of pe out of the centroid of its own group
+              final int size = approximation.getGroupSize(group);
+              double ex_x = (c_x * size - p_x) / (size - 1);
+              double ex_y = (c_y * size - p_y) / (size - 1);
+              r += Math.sqrt((ex_x - c_x) * (ex_x - c_x) + (ex_y - c_y) * (ex_y - c_y));
+              c_x = ex_x;
+              c_y = ex_y;
+            }
+            double v_x = c_x - p_x;
+            double v_y = c_y - p_y;
+            double d = Math.sqrt(v_x * v_x + v_y * v_y);
+            // the closest possible distance to a point of the node, used to check that
+            // none of the forces would be limited as in electrostaticForceMultiplier()
+            double dMin = d - r;
+            double maxM = approximation.getNodeMaxAbsWeight(node) / (dMin * dMin);
+            if (params.getUseInverseQuadraticModel()) {
+              maxM /= dMin;
+            }
+            if (r < theta * d  &&  dMin > 0  &&  maxM * S <= 1.0) {
+              // the group is far enough: use the force of its centroid
+              double m = approximation.getNodeWeight(node) / d;
               if (params.getUseInverseQuadraticModel()) {
-                m = (C / d) / (d * d);
+                m /= (d * d);
               } else {
-                m = (C / d) / d;
+                m /= d;
               }
-              if (C < 0) {  // means that repulsion is enabled
-                m *= params.getRepulsionAmount();
-              }
-              if (params.getEdgeValueAffectsAttraction()) {
-                double coeff = 1.0 + Math.max(-1.0, (edgeValues[qe] - edgeValues[pe])/(edgeValueMax + edgeValueMin));
-                m *= coeff;
-              }
-              if (Math.abs(m * S) > 1.0) {  // this condition is to reduce the "hairy" effect:
-                              // a point shouldn't be moved farther than to the
-                              // point which attracts it
-                m = Math.signum(m) / S;
-                              // TODO: this force difference shouldn't be neglected
-                              // instead it should make it more difficult to move the
-                              // point from it's current position: this should reduce
-                              // the effect even more
-              }
-              v_x *= m;
-              v_y *= m;
-              Fei_x += v_x;
-              Fei_y += v_y;
+              Fei_x += v_x * m;
+              Fei_y += v_y * m;
+              continue;
+            }
+          }
+          if (group >= 0) {
+            final int childStart = approximation.getNodeChildStart(node);
+            final int childEnd = approximation.getNodeChildEnd(node);
+            if (childStart < childEnd) {
+              depth++;
+              stackNodes[depth] = childStart;
+              stackEnds[depth] = childEnd;
+              continue;
+            }
+          }
+          for (int ci = nStart; ci < nEnd; ci++) {
+            final int qe = approximation.getNeighbour(ci);
+            final double C = approximation.getNeighbourCompatibility(ci);
+
+            double v_x = x[qe * P + i] - p_x;
+            double v_y = y[qe * P + i] - p_y;
+            if (Math.abs(v_x) > EPS  ||  Math.abs(v_y) > EPS) {
+              double m = electrostaticForceMultiplier(pe, qe, C, v_x, v_y, S);
+              Fei_x += v_x * m;
+              Fei_y += v_y * m;
             }
           }
+        }
+      }
 
-          double Fpi_x = Fsi_x + Fei_x;
-          double Fpi_y = Fsi_y + Fei_y;
+      double Fpi_x = Fsi_x + Fei_x;
+      double Fpi_y = Fsi_y + Fei_y;
 
-          Point np = newP[i];
-          if (np == null) {
-            np = new Point(p[i].x(), p[i].y());
+      newX[offset + i] = p_x + Fpi_x * S;
+      newY[offset + i] = p_y + Fpi_y * S;
+    }
+  }
+
+  /**
+   * Returns the multiplier m for the vector v between a subdivision point of the
+   * edge pe and the corresponding point of the compatible edge qe, so that
+   * v * m is the electrostatic force between the two points.
+   */
+  private double electrostaticForceMultiplier(int pe, int qe, double C, double v_x, double v_y, double S) {
+    double d = Math.sqrt(v_x * v_x + v_y * v_y);  // shouldn't be zero
+    double m;
+    if (params.getUseInverseQuadraticModel()) {
+      m = (C / d) / (d * d);
+    } else {
+      m = (C / d) / d;
+    }
+    if (C < 0) {  // means that repulsion is enabled
+      m *= params.getRepulsionAmount();
+    }
+    if (params.getEdgeValueAffectsAttraction()) {
+      double coeff = 1.0 + Math.max(-1.0, (edgeValues[qe] - edgeValues[pe])/(edgeValueMax + edgeValueMin));
+      m *= coeff;
+    }
+    if (Math.abs(m * S) > 1.0) {  // this condition is to reduce the "hairy" effect:
+                    // a point shouldn't be moved farther than to the
+                    // point which attracts it
+      m = Math.signum(m) / S;
+                    // TODO: this force difference shouldn't be neglected
+                    // instead it should make it more difficult to move the
+                    // point from it's current position: this should reduce
+                    // the effect even more
+    }
+    return m;
+  }
+
+  /**
+   * The part of the electrostatic force between the edges pe and qe
+   * which doesn't depend on the positions of the subdivision points.
+   */
+  private double forceWeight(int pe, int qe, double C) {
+    double w = C;
+    if (C < 0) {
+      w *= params.getRepulsionAmount();
+    }
+    if (params.getEdgeValueAffectsAttraction()) {
+      w *= 1.0 + Math.max(-1.0, (edgeValues[qe] - edgeValues[pe])/(edgeValueMax + edgeValueMin));
+    }
+    return w;
+  }
+
+  /**
+   * Splits the edges into chunks and calculates the new subdivision points
+   * of the chunks concurrently. The results are the same as when the edges are
+   * processed sequentially, because every edge only depends on the points of
+   * the previous step. Progress is reported and cancellation is checked from
+   * the calling thread. The workers only read a flag which is set when it sees that
+   * the process was cancelled, because the progress tracker isn't thread-safe.
+   */
+  private void calcNewEdgePointsInParallel(final int P, final double S) {
+    int numChunks = Math.min(numEdges, params.getNumThreads() * CHUNKS_PER_THREAD);
+    if (numChunks == 0) {
+      return;
+    }
+    int chunkSize = (numEdges + numChunks - 1) / numChunks;
+    CompletionService<Integer> completionService = new ExecutorCompletionService<Integer>(executor);
+    final AtomicBoolean cancelled = new AtomicBoolean(progressTracker.isCancelled());
+    int numSubmitted = 0;
+    for (int start = 0; start < numEdges; start += chunkSize) {
+      final int from = start;
+      final int to = Math.min(numEdges, start + chunkSize);
+      completionService.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() {
+          for (int pe = from; pe < to; pe++) {
+            if (cancelled.get()) {
+              break;
+            }
+            calcNewEdgePoints(pe, P, S);
           }
-          np = new Point(np.x() + Fpi_x * S, np.y() + Fpi_y * S);
-          newP[i] = np;
+          return to - from;
+        }
+      });
+      numSubmitted++;
+    }
+    try {
+      for (int i = 0; i < numSubmitted; i++) {
+        int numProcessed = completionService.take().get();
+        progressTracker.incSubtaskProgress(numProcessed * 100.0 / numEdges);
+        if (progressTracker.isCancelled()) {
+          cancelled.set(true);
         }
-        progressTracker.incSubtaskProgress();
       }
-      copy(tmpEdgePoints, edgePoints);
-      progressTracker.subtaskCompleted();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      progressTracker.processCancelled();
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new RuntimeException(cause);
     }
+  }
 
-    if (!progressTracker.isCancelled()) {
-      // update params only in case of success (i.e. no exception)
-      this.P = P;
-      this.Pdouble = Pdouble;
-      this.S = S;
-      this.I = I;
-
-      cycle++;
+  private static class WorkerThreadFactory implements ThreadFactory {
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "FDEB-worker-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
     }
   }
 
   private void addSubdivisionPoints(int P) {
-    int prevP;
-    if (edgePoints == null  ||  edgePoints.length == 0) {
-      prevP = 0;
-    } else {
-      prevP = edgePoints[0].length;
-    }
+    int prevP = numSubdivisionPoints;
 
     logger.debug("Adding subdivision points: " + prevP + " -> " + P);
 
-    // bigger array for subdivision points of the next cycle
-    Point[][] newEdgePoints = new Point[numEdges][P];
+    // bigger arrays for subdivision points of the next cycle
+    double[] newX = new double[numEdges * P];
+    double[] newY = new double[numEdges * P];
+    double[] segmentLen = new double[prevP + 1];
 
     // Add subdivision points
-    for (int i = 0, numEdges = newEdgePoints.length; i < numEdges; i++) {
+    for (int i = 0; i < numEdges; i++) {
       if (isSelfLoop(i)) {
         continue;   // ignore self-loops
       }
-      Point[] newPoints = newEdgePoints[i];
-      if (cycle == 0) {
+      final int newOffset = i * P;
+      if (prevP == 0) {
         assert(P == 1);
-        newPoints[0] = GeomUtils.midpoint(edgeStarts[i], edgeEnds[i]);
+        Point m = GeomUtils.midpoint(edgeStarts[i], edgeEnds[i]);
+        newX[newOffset] = m.x();
+        newY[newOffset] = m.y();
       } else {
-        List<Point> points = new ArrayList<Point>(Arrays.asList(edgePoints[i]));
-        points.add(0, edgeStarts[i]);
-        points.add(edgeEnds[i]);
-
-//        final int prevP = edgePoints[i].length;
+        // the polyline consists of the edge start, the prevP subdivision points and the edge end
+        final int offset = i * prevP;
 
         double polylineLen = 0;
-        double[] segmentLen = new double[prevP + 1];
         for (int j = 0; j < prevP + 1; j++) {
-          double segLen = points.get(j).distanceTo(points.get(j + 1));
+          double dx = polylineX(i, offset, prevP, j + 1) - polylineX(i, offset, prevP, j);
+          double dy = polylineY(i, offset, prevP, j + 1) - polylineY(i, offset, prevP, j);
+          double segLen = Math.sqrt(dx * dx + dy * dy);
           segmentLen[j] = segLen;
           polylineLen += segLen;
         }
@@ -529,39 +1049,47 @@ public class ForceDirectedEdgeBundler {
         double L = polylineLen / (P + 1);
         int curSegment = 0;
         double prevSegmentsLen = 0;
-        Point p = points.get(0);
-        Point nextP = points.get(1);
         for (int j = 0; j < P; j++) {
           while (segmentLen[curSegment] < L * (j + 1) - prevSegmentsLen) {
             prevSegmentsLen += segmentLen[curSegment];
             curSegment++;
-            p = points.get(curSegment);
-            nextP = points.get(curSegment + 1);
           }
           double d = L * (j + 1) - prevSegmentsLen;
-          newPoints[j] = GeomUtils.between(p, nextP, d / segmentLen[curSegment]);
+          double alpha = d / segmentLen[curSegment];
+          double ax = polylineX(i, offset, prevP, curSegment);
+          double ay = polylineY(i, offset, prevP, curSegment);
+          newX[newOffset + j] = ax + (polylineX(i, offset, prevP, curSegment + 1) - ax) * alpha;
+          newY[newOffset + j] = ay + (polylineY(i, offset, prevP, curSegment + 1) - ay) * alpha;
         }
 
       }
     }
-    edgePoints = newEdgePoints;
+    edgePointsX = newX;
+    edgePointsY = newY;
+    numSubdivisionPoints = P;
+    tmpEdgePointsX = new double[numEdges * P];
+    tmpEdgePointsY = new double[numEdges * P];
   }
 
-  private void copy(Point[][] src, Point[][] dest) {
-    if (src.length != dest.length) {
-      throw new RuntimeException("Src and dest array sizes mismatch");
-    }
-    for (int i = 0; i < src.length; i++) {
-//      System.arraycopy(src[i], 0, dest[i], 0, src[i].length);
-      for (int j = 0, len = src[i].length; j < len; j++) {
-        Point ps = src[i][j];
-        if (ps == null)
-          dest[i][j] = null;
-        else
-          dest[i][j] = new Point(ps.x(), ps.y());
-//        Point2D.Double pd = dest[i][j];
-//        pd.setLocation(ps.getX(), ps.getY());
-      }
-    }
+  private double polylineX(int edgeIdx, int offset, int numSubdivisionPoints, int j) {
+    if (j == 0) return edgeStarts[edgeIdx].x();
+    if (j == numSubdivisionPoints + 1) return edgeEnds[edgeIdx].x();
+    return edgePointsX[offset + j - 1];
+  }
+
+  private double polylineY(int edgeIdx, int offset, int numSubdivisionPoints, int j) {
+    if (j == 0) return edgeStarts[edgeIdx].y();
+    if (j == numSubdivisionPoints + 1) return edgeEnds[edgeIdx].y();
+    return edgePointsY[offset + j - 1];
+  }
+
+  private void swapEdgePointBuffers() {
+    double[] tmp = edgePointsX;
+    edgePointsX = tmpEdgePointsX;
+    tmpEdgePointsX = tmp;
+
+    tmp = edgePointsY;
+    edgePointsY = tmpEdgePointsY;
+    tmpEdgePointsY = tmp;
   }
 }
@@ -0,0 +1,142 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.clustering;
+
+import java.util.List;
+
+import at.fhj.utils.misc.ProgressTracker;
+import ch.unifr.dmlib.cluster.AbstractDistanceMatrix;
+import ch.unifr.dmlib.cluster.ClusterNode;
+import ch.unifr.dmlib.cluster.DistanceMatrix;
+import ch.unifr.dmlib.cluster.DistanceMeasure;
+import ch.unifr.dmlib.cluster.Linkage;
+
+/**
+ * Distance matrix keeping the distances between the pairs of items in a condensed
+ * triangular array: the distance between the items i and j, j < i, is stored
+ * at i * (i - 1) / 2 + j. There is only one such array, so the matrix needs about
+ * half the memory of {@link ch.unifr.dmlib.cluster.DefaultDistanceMatrix} which keeps
+ * two triangular double[][] matrices, and no per-row arrays.
+ * <p>
+ * The clustering results are the same as with DefaultDistanceMatrix. The latter
+ * stores the result of the linkage only in the slot of the two merged clusters
+ * which is never read again, so the distance between two clusters is always the
+ * distance between the items in whose slots they are kept (the items with the
+ * greatest indices in the clusters). Thus, the second array of DefaultDistanceMatrix
+ * always equals the first one and is not needed here (see {@link #updateDistances}).
+ *
+ * @author Ilya Boyandin
+ */
+public class CondensedDistanceMatrix<T> extends AbstractDistanceMatrix<T> {
+
+  private double[] itemDistances;
+
+  public CondensedDistanceMatrix(List<T> items, DistanceMeasure<T> distanceMeasure,
+      Linkage<T> linkage, double maxMergeableDistance) {
+    super(items, distanceMeasure, linkage, maxMergeableDistance);
+    long size = numberOfPairs(items.size());
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many items for a distance matrix: " + items.size());
+    }
+  }
+
+  public static <T> DistanceMatrix.Factory<T> factory() {
+    return new DistanceMatrix.Factory<T>() {
+      @Override
+      public DistanceMatrix<T> createFor(List<T> items, Linkage<T> linkage,
+          DistanceMeasure<T> measure, double maxMergeableDistance) {
+        return new CondensedDistanceMatrix<T>(items, measure, linkage, maxMergeableDistance);
+      }
+    };
+  }
+
+  public static long numberOfPairs(int numItems) {
+    return (long)numItems * (numItems - 1) / 2;
+  }
+
+  /**
+   * @return Index of the pair of the items i and j in the condensed array
+   */
+  public static int pairIndex(int i, int j) {
+    if (i < j) {
+      int t = i;  i = j;  j = t;
+    }
+    return (int)((long)i * (i - 1) / 2 + j);
+  }
+
+  /**
+   * @return The greater item index i of the pair with the given index in the condensed array
+   */
+  public static int pairRow(int pairIndex) {
+    int i = (int)((1 + Math.sqrt(1 + 8.0 * pairIndex)) / 2);
+    while ((long)i * (i - 1) / 2 > pairIndex) {
+      i--;
+    }
+    while ((long)(i + 1) * i / 2 <= pairIndex) {
+      i++;
+    }
+    return i;
+  }
+
+  @Override
+  public void calc(ProgressTracker tracker) {
+    int n = getNumOfItems();
+    tracker.setSubtaskIncUnit(100.0 / n);
+    double[] distances = new double[(int)numberOfPairs(n)];
+    int index = 0;
+    for (int i = 0; i < n; i++) {
+      for (int j = 0; j < i; j++) {
+        distances[index++] = calcDistanceBetweenItems(i, j);
+      }
+      if (tracker.isCancelled()) {
+        return;
+      }
+      tracker.incSubtaskProgress();
+    }
+    itemDistances = distances;
+  }
+
+  @Override
+  public double distance(int i, int j) {
+    if (i == j) {
+      return 0;
+    }
+    return itemDistances[pairIndex(i, j)];
+  }
+
+  /**
+   * The distance between the clusters kept in the slots i and j.
+   */
+  @Override
+  protected double getDistanceBetweenClusterNodes(int i, int j) {
+    return distance(i, j);
+  }
+
+  /**
+   * Does nothing: the cluster which was created by merging the clusters i and j
+   * is put in place of the cluster i, so it keeps the distances of the item i to
+   * the other clusters. DefaultDistanceMatrix calculates the linkage of the merged
+   * cluster to every other cluster, but only to write the result into the slot (i, j)
+   * of the removed cluster j.
+   */
+  @Override
+  protected void updateDistances(int i, int j, ClusterNode<T> merged) {
+  }
+
+}
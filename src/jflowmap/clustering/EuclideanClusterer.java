@@ -0,0 +1,351 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.clustering;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import jflowmap.geom.Point;
+import at.fhj.utils.misc.ProgressTracker;
+import ch.unifr.dmlib.cluster.ClusterNode;
+
+import com.google.common.base.Function;
+
+/**
+ * Hierarchical clustering of items by the Euclidean distance between their positions.
+ * Builds the same tree of {@link ClusterNode}s as {@link ch.unifr.dmlib.cluster.HierarchicalClusterer}
+ * with {@link NodeDistanceMeasure#EUCLIDEAN}, but without calculating the distance matrix.
+ * <p>
+ * The distance matrix of HierarchicalClusterer keeps a merged cluster in the slot of the
+ * item with the greater index and doesn't apply the linkage to its distances (see
+ * {@link CondensedDistanceMatrix}), so whichever linkage is used, the distance between two
+ * clusters is the distance between the items with the greatest indices in them. Thus, the
+ * clustering repeatedly merges the closest pair of the remaining items (i, j), j < i, and
+ * removes the item j. In case of ties the pair with the smallest i, then the smallest j is
+ * merged, as HierarchicalClusterer does.
+ * <p>
+ * Every remaining item keeps its nearest neighbour which is looked up in a uniform grid
+ * and the pairs are kept in a priority queue. As the items are only removed, the nearest
+ * neighbours of the other items stay the same, except for the ones whose nearest
+ * neighbour was j.
+ *
+ * @author Ilya Boyandin
+ */
+public class EuclideanClusterer<T> {
+
+  private static final int MIN_GRID_CELLS_TO_REBUILD = 64;
+
+  private final Function<T, Point> positionFunction;
+
+  public EuclideanClusterer(Function<T, Point> positionFunction) {
+    this.positionFunction = positionFunction;
+  }
+
+  /**
+   * Reports the progress of the merges as a subtask of the tracker.
+   *
+   * @param tracker Can be null
+   * @return The root cluster node or null if the tracker was cancelled
+   */
+  public ClusterNode<T> clusterToRoot(List<T> items, ProgressTracker tracker) {
+    int numItems = items.size();
+    if (numItems == 0) {
+      throw new IllegalArgumentException("No items to cluster");
+    }
+
+    double[] xs = new double[numItems], ys = new double[numItems];
+    List<ClusterNode<T>> nodes = new ArrayList<ClusterNode<T>>(numItems);
+    for (int i = 0; i < numItems; i++) {
+      T item = items.get(i);
+      Point p = positionFunction.apply(item);
+      xs[i] = p.x();
+      ys[i] = p.y();
+      nodes.add(new ClusterNode<T>(item, i));
+    }
+
+    Grid grid = new Grid(xs, ys, null);
+    int[] nearest = new int[numItems];
+    IntList[] nearestOf = new IntList[numItems];
+    PriorityQueue<Pair> queue = new PriorityQueue<Pair>();
+    for (int i = 0; i < numItems; i++) {
+      findNearest(i, grid, nearest, nearestOf, queue);
+    }
+
+    if (tracker != null) {
+      tracker.startSubtask("Clustering items", 1);
+      tracker.setSubtaskIncUnit(100.0 / Math.max(1, numItems - 1));
+    }
+    ClusterNode<T> lastMerged = nodes.get(0);
+    int numActive = numItems;
+    while (numActive > 1) {
+      if (tracker != null  &&  tracker.isCancelled()) {
+        return null;
+      }
+      Pair pair = queue.poll();
+      if (pair == null) {
+        throw new IllegalStateException("Cannot merge the items into one cluster: " +
+            "some of the positions are undefined");
+      }
+      int i = pair.i, j = pair.j;
+      int other = (pair.owner == i ? j : i);
+      if (!grid.contains(pair.owner)  ||  !grid.contains(other)  ||  nearest[pair.owner] != other) {
+        continue;  // outdated
+      }
+
+      // as in HierarchicalClusterer the left child is the cluster in the slot of i
+      lastMerged = new ClusterNode<T>(nodes.get(i), nodes.get(j), pair.distance);
+      nodes.set(i, lastMerged);
+      nodes.set(j, null);
+      grid.remove(j);
+      numActive--;
+      if (tracker != null) {
+        tracker.incSubtaskProgress();
+      }
+      if (numActive * 4 < grid.numCells()  &&  grid.numCells() > MIN_GRID_CELLS_TO_REBUILD) {
+        grid = new Grid(xs, ys, grid);
+      }
+
+      IntList affected = nearestOf[j];
+      nearestOf[j] = null;
+      if (affected != null) {
+        for (int k = 0; k < affected.size; k++) {
+          int item = affected.values[k];
+          if (grid.contains(item)  &&  nearest[item] == j) {
+            findNearest(item, grid, nearest, nearestOf, queue);
+          }
+        }
+      }
+    }
+    if (tracker != null) {
+      tracker.subtaskCompleted();
+    }
+    return lastMerged;
+  }
+
+  private static void findNearest(int item, Grid grid, int[] nearest, IntList[] nearestOf,
+      PriorityQueue<Pair> queue) {
+    int other = grid.findNearest(item);
+    nearest[item] = other;
+    if (other >= 0) {
+      queue.add(new Pair(item, other, grid.distance(item, other)));
+      if (nearestOf[other] == null) {
+        nearestOf[other] = new IntList();
+      }
+      nearestOf[other].add(item);
+    }
+  }
+
+  /**
+   * @return True if the pair (item, a) is merged before the pair (item, b) with the same distance
+   */
+  private static boolean isMergedBefore(int item, int a, int b) {
+    int ia = Math.max(item, a), ib = Math.max(item, b);
+    if (ia != ib) {
+      return ia < ib;
+    }
+    return Math.min(item, a) < Math.min(item, b);
+  }
+
+  /**
+   * The pair of the items i and j, j < i, found as the nearest neighbours of the owner.
+   */
+  private static class Pair implements Comparable<Pair> {
+    final int i, j, owner;
+    final double distance;
+
+    Pair(int owner, int other, double distance) {
+      this.owner = owner;
+      this.i = Math.max(owner, other);
+      this.j = Math.min(owner, other);
+      this.distance = distance;
+    }
+
+    public int compareTo(Pair o) {
+      int c = Double.compare(distance, o.distance);
+      if (c != 0) {
+        return c;
+      }
+      if (i != o.i) {
+        return (i < o.i ? -1 : 1);
+      }
+      return (j < o.j ? -1 : (j > o.j ? 1 : 0));
+    }
+  }
+
+  private static class IntList {
+    int[] values = new int[2];
+    int size;
+
+    void add(int value) {
+      if (size == values.length) {
+        int[] newValues = new int[size * 2];
+        System.arraycopy(values, 0, newValues, 0, size);
+        values = newValues;
+      }
+      values[size++] = value;
+    }
+
+    void remove(int value) {
+      for (int k = 0; k < size; k++) {
+        if (values[k] == value) {
+          values[k] = values[--size];
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Uniform grid of the remaining items with about as many cells as there are items.
+   */
+  private static class Grid {
+    private final double[] xs, ys;
+    private final boolean[] contained;
+    private final double minX, minY, cellSize;
+    private final int numCellsX, numCellsY;
+    private final IntList[] cells;
+
+    /**
+     * @param previous The grid whose remaining items are put in the new one,
+     *          or null to put all the items
+     */
+    Grid(double[] xs, double[] ys, Grid previous) {
+      this.xs = xs;
+      this.ys = ys;
+      double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+      double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+      int n = 0;
+      for (int i = 0; i < xs.length; i++) {
+        if (previous == null  ||  previous.contains(i)) {
+          // undefined positions are skipped by the comparisons
+          if (xs[i] < minX) minX = xs[i];
+          if (xs[i] > maxX) maxX = xs[i];
+          if (ys[i] < minY) minY = ys[i];
+          if (ys[i] > maxY) maxY = ys[i];
+          n++;
+        }
+      }
+      double w = maxX - minX, h = maxY - minY;
+      if (!(w >= 0  &&  h >= 0)) {  // undefined positions only
+        minX = minY = 0;
+        w = h = 0;
+      }
+      double size = Math.max(Math.sqrt(w * h / n), Math.max(w, h) / n);
+      this.minX = minX;
+      this.minY = minY;
+      this.cellSize = (size > 0 ? size : 1);
+      this.numCellsX = (int)(w / cellSize) + 1;
+      this.numCellsY = (int)(h / cellSize) + 1;
+      this.cells = new IntList[numCellsX * numCellsY];
+      this.contained = new boolean[xs.length];
+      for (int i = 0; i < xs.length; i++) {
+        if (previous == null  ||  previous.contains(i)) {
+          int cell = cell(i);
+          if (cells[cell] == null) {
+            cells[cell] = new IntList();
+          }
+          cells[cell].add(i);
+          contained[i] = true;
+        }
+      }
+    }
+
+    int numCells() {
+      return cells.length;
+    }
+
+    boolean contains(int item) {
+      return contained[item];
+    }
+
+    private int cellX(double x) {
+      return Math.min(numCellsX - 1, Math.max(0, (int)((x - minX) / cellSize)));
+    }
+
+    private int cellY(double y) {
+      return Math.min(numCellsY - 1, Math.max(0, (int)((y - minY) / cellSize)));
+    }
+
+    private int cell(int item) {
+      return cellY(ys[item]) * numCellsX + cellX(xs[item]);
+    }
+
+    void remove(int item) {
+      cells[cell(item)].remove(item);
+      contained[item] = false;
+    }
+
+    /**
+     * Calculated as in {@link NodeDistanceMeasure#EUCLIDEAN}.
+     */
+    double distance(int a, int b) {
+      double dx = xs[a] - xs[b];
+      double dy = ys[a] - ys[b];
+      return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * @return The nearest other item or -1 if there is none. If there are several
+     *    equally near items, the one merged first by HierarchicalClusterer is returned.
+     */
+    int findNearest(int item) {
+      int nearest = -1;
+      double minDist = Double.POSITIVE_INFINITY;
+      int x0 = cellX(xs[item]), y0 = cellY(ys[item]);
+      int maxRing = Math.max(numCellsX, numCellsY);
+      for (int ring = 0; ring <= maxRing; ring++) {
+        // one more ring than necessary, as the cells of the items are rounded
+        if (ring > 1  &&  (ring - 2) * cellSize > minDist) {
+          break;
+        }
+        for (int y = y0 - ring; y <= y0 + ring; y++) {
+          if (y < 0  ||  y >= numCellsY) {
+            continue;
+          }
+          boolean edgeRow = (y == y0 - ring  ||  y == y0 + ring);
+          int step = (edgeRow ? 1 : Math.max(1, 2 * ring));
+          for (int x = x0 - ring; x <= x0 + ring; x += step) {
+            if (x < 0  ||  x >= numCellsX) {
+              continue;
+            }
+            IntList cell = cells[y * numCellsX + x];
+            if (cell == null) {
+              continue;
+            }
+            for (int k = 0; k < cell.size; k++) {
+              int other = cell.values[k];
+              if (other == item) {
+                continue;
+              }
+              double d = distance(item, other);
+              if (nearest < 0 ? d <= minDist :
+                  (d < minDist  ||  (d == minDist  &&  isMergedBefore(item, other, nearest)))) {
+                minDist = d;
+                nearest = other;
+              }
+            }
+          }
+        }
+      }
+      return nearest;
+    }
+  }
+
+}
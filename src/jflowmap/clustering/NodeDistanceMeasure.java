@@ -20,15 +20,13 @@ package jflowmap.clustering;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 
 import jflowmap.geom.GeomUtils;
+import jflowmap.views.flowmap.EdgeVector;
 import jflowmap.views.flowmap.VisualEdge;
 import jflowmap.views.flowmap.VisualNode;
 import ch.unifr.dmlib.cluster.DistanceMeasure;
 
-import com.google.common.collect.Sets;
-
 /**
  * @author Ilya Boyandin
  */
@@ -190,16 +188,11 @@ public enum NodeDistanceMeasure implements DistanceMeasure<VisualNode> {
     }
 
     public double distance(VisualNode node1, VisualNode node2) {
-      List<VisualNode> oppositeNodes1 = node1.getOppositeNodes(incomingNotOutgoing);
-      List<VisualNode> oppositeNodes2 = node2.getOppositeNodes(incomingNotOutgoing);
+      EdgeVector v1 = node1.getEdgeVector(incomingNotOutgoing);
+      EdgeVector v2 = node2.getEdgeVector(incomingNotOutgoing);
 
-      int intersectionSize = 0;
-      for (VisualNode node : oppositeNodes1) {
-        if (oppositeNodes2.contains(node)) {
-          intersectionSize++;
-        }
-      }
-      int unionSize = oppositeNodes1.size() + oppositeNodes2.size() - intersectionSize;
+      int intersectionSize = v1.numberOfMatches(v2);
+      int unionSize = v1.size() + v2.size() - intersectionSize;
 
       double similarity = (double)intersectionSize / unionSize;
       if (Double.isNaN(similarity)) {
@@ -226,36 +219,23 @@ public enum NodeDistanceMeasure implements DistanceMeasure<VisualNode> {
       this.incomingNotOutgoing = incoming;
     }
 
+    /**
+     * The cosine of the vectors of the edge weights over the union of the opposite nodes
+     * of the two nodes. Only the common opposite nodes contribute to the dot product.
+     */
     @Override
     public double distance(VisualNode t1, VisualNode t2) {
-      Set<VisualNode> union = Sets.newHashSet();
-      union.addAll(t1.getEdgeOppositeNodes(incomingNotOutgoing));
-      union.addAll(t2.getEdgeOppositeNodes(incomingNotOutgoing));
+      EdgeVector v1 = t1.getEdgeVector(incomingNotOutgoing);
+      EdgeVector v2 = t2.getEdgeVector(incomingNotOutgoing);
 
-      double dist = 1.0 - jflowmap.clustering.Cosine.cosine(
-          vectorOfEdgeWeigths(t1, union),
-          vectorOfEdgeWeigths(t2, union));
+      double dist = 1.0 - v1.dotProduct(v2) /
+          (Math.sqrt(v1.getSquareSum()) * Math.sqrt(v2.getSquareSum()));
 
       if (Double.isNaN(dist)) {
         dist = 0.0;
       }
       return dist;
     }
-
-    private double[] vectorOfEdgeWeigths(VisualNode node, Set<VisualNode> oppositeNodes) {
-      double[] v = new double[oppositeNodes.size()];
-      int i = 0;
-      for (VisualNode n : oppositeNodes) {
-        VisualEdge ve = node.getEdgeByOppositeNode(n, incomingNotOutgoing);
-        if (ve != null) {
-          v[i] = ve.getEdgeWeight();
-        } else {
-          v[i] = 0;
-        }
-        i++;
-      }
-      return v;
-    }
   }
 
   /**
@@ -277,12 +257,7 @@ public enum NodeDistanceMeasure implements DistanceMeasure<VisualNode> {
     }
 
     private double valueSquareSum(VisualNode node, boolean incoming) {
-      double sum = 0;
-      for (VisualEdge e : node.getEdges(incoming)) {
-        double v = e.getEdgeWeight();
-        sum += v * v;
-      }
-      return sum;
+      return node.getEdgeVector(incoming).getSquareSum();
     }
 
     public double distance(VisualNode node1, VisualNode node2) {
@@ -312,36 +287,8 @@ public enum NodeDistanceMeasure implements DistanceMeasure<VisualNode> {
     }
 
     private double valueProductsSum(VisualNode node1, VisualNode node2, boolean incoming) {
-      double sum = 0;
-      List<VisualEdge> edges1 = node1.getEdges(incoming);
-      for (VisualEdge edge1 : edges1) {
-        VisualEdge matchingEdge = findMatchingEdge(edge1, node2, incoming);
-        if (matchingEdge != null) {
-          sum += edge1.getEdgeWeight() * matchingEdge.getEdgeWeight();
-        }
-      }
-      // it's enough to iterate through edges1, because we only take
-      // perfect matches (edges going to/from the same node) into the sum
-      return sum;
-    }
-
-    /**
-     * Finds an incoming or outgoing (depending on the incoming parameter) edge of
-     * node2 which matches the given edge1. Meaning that the returned edge goes from/to
-     * the same node as edge1.
-     */
-    private VisualEdge findMatchingEdge(VisualEdge edge1, VisualNode node2, boolean incoming) {
-      VisualEdge matchingEdge = null;
-      VisualNode opposite1 = edge1.getNode(incoming ? true : false);  // source if incoming, target if outgoing
-      // find an edge
-      for (VisualEdge edge2 : node2.getEdges(incoming)) {
-        VisualNode opposite2 = edge2.getOppositeNode(node2);
-        if (opposite1 == opposite2) {
-          matchingEdge = edge2;
-          break;
-        }
-      }
-      return matchingEdge;
+      // we only take perfect matches (edges going to/from the same node) into the sum
+      return node1.getEdgeVector(incoming).dotProduct(node2.getEdgeVector(incoming));
     }
   }
 
@@ -384,12 +331,7 @@ public enum NodeDistanceMeasure implements DistanceMeasure<VisualNode> {
     }
 
     private double valueSquareSum(VisualNode node, boolean incoming) {
-      double sum = 0;
-      for (VisualEdge e : node.getEdges(incoming)) {
-        double v = e.getEdgeWeight();
-        sum += v * v;
-      }
-      return sum;
+      return node.getEdgeVector(incoming).getSquareSum();
     }
 
     private static class SimilarityFraction {
@@ -408,21 +350,24 @@ public enum NodeDistanceMeasure implements DistanceMeasure<VisualNode> {
         boolean incoming,
         boolean allowPerfectMatches) {
 
-      for (VisualEdge e1 : node1.getEdges(incoming)) {
-        VisualEdge matchingEdge = null;
-        final boolean oppositeIsSource = (incoming ? true : false);
-        VisualNode opposite1 = e1.getNode(oppositeIsSource);     // source if incoming, target if outgoing
+      final boolean oppositeIsSource = (incoming ? true : false);
+      EdgeVector v1 = node1.getEdgeVector(incoming);
+      EdgeVector v2 = node2.getEdgeVector(incoming);
+      int[] perfectMatches = v1.findMatches(v2);
 
-        // find a matching edge
+      for (int i = 0; i < v1.size(); i++) {
+        VisualEdge e1 = v1.getEdge(i);
+        VisualEdge matchingEdge = null;
         double minDist = Double.POSITIVE_INFINITY;
-        for (VisualEdge e2 : node2.getEdges(incoming)) {
-          VisualNode opposite2 = e2.getOppositeNode(node2);
-          if (opposite1 == opposite2) {
-            minDist = 0;
-            matchingEdge = e2;
-            break;
-          } else {
-            double dist = opposite2.distanceTo(opposite1);
+
+        if (perfectMatches[i] >= 0) {
+          minDist = 0;
+          matchingEdge = v2.getEdge(perfectMatches[i]);
+        } else {
+          // find the edge with the closest opposite node
+          VisualNode opposite1 = e1.getNode(oppositeIsSource);  // source if incoming, target if outgoing
+          for (VisualEdge e2 : node2.getEdges(incoming)) {
+            double dist = e2.getOppositeNode(node2).distanceTo(opposite1);
             if (dist < minDist) {
               minDist = dist;
               matchingEdge = e2;
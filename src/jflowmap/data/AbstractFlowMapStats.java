@@ -7,7 +7,7 @@ import jflowmap.FlowMapAttrSpec;
 import prefuse.data.Edge;
 import prefuse.data.Node;
 
-import com.google.common.collect.Lists;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
 
 /**
@@ -57,6 +57,56 @@ public abstract class AbstractFlowMapStats implements FlowMapStats {
     SeqStat calc();
   }
 
+  /**
+   * Calculates the stats of the weights, of the weight differences, of the relative
+   * weight differences and of every weight attr in one pass and puts all of them
+   * into the cache. Returns the stats for the given key.
+   */
+  protected synchronized SeqStat getEdgeWeightStatsCachedOrCalc(String key) {
+    SeqStat stats = statsCache.get(key);
+    if (stats == null) {
+      List<String> weightAttrs = attrSpec.getFlowWeightAttrs();
+      EdgeWeightStatsCalculator.Result result = new EdgeWeightStatsCalculator(
+          createEdgeWeightSource(), weightAttrs.size()).calc();
+      statsCache.put(AttrKeys.EDGE_WEIGHT.name(), result.weightStats);
+      statsCache.put(AttrKeys.EDGE_WEIGHT_DIFF.name(), result.diffStats);
+      statsCache.put(AttrKeys.EDGE_WEIGHT_DIFF_REL.name(), result.relDiffStats);
+      for (int i = 0; i < weightAttrs.size(); i++) {
+        statsCache.put(AttrKeys.edgeAttr(weightAttrs.get(i)), result.weightAttrStats[i]);
+      }
+      stats = statsCache.get(key);
+    }
+    return stats;
+  }
+
+  EdgeWeightStatsCalculator.WeightSource createEdgeWeightSource() {
+    return EdgeWeightStatsCalculator.sourceFor(
+        ImmutableList.copyOf(edges()), attrSpec.getFlowWeightAttrs());
+  }
+
+  @Override
+  public SeqStat getEdgeWeightStats() {
+    return getEdgeWeightStatsCachedOrCalc(AttrKeys.EDGE_WEIGHT.name());
+  }
+
+  @Override
+  public SeqStat getEdgeWeightDiffStats() {
+    return getEdgeWeightStatsCachedOrCalc(AttrKeys.EDGE_WEIGHT_DIFF.name());
+  }
+
+  @Override
+  public SeqStat getEdgeWeightRelativeDiffStats() {
+    return getEdgeWeightStatsCachedOrCalc(AttrKeys.EDGE_WEIGHT_DIFF_REL.name());
+  }
+
+  @Override
+  public SeqStat getEdgeWeightAttrStats(String weightAttr) {
+    if (!attrSpec.getFlowWeightAttrs().contains(weightAttr)) {
+      throw new IllegalArgumentException("Not a flow weight attr: " + weightAttr);
+    }
+    return getEdgeWeightStatsCachedOrCalc(AttrKeys.edgeAttr(weightAttr));
+  }
+
   protected abstract Iterable<Edge> edges();
 
   public SeqStat getEdgeLengthStats() {
@@ -65,7 +115,7 @@ public abstract class AbstractFlowMapStats implements FlowMapStats {
         new AttrStatsCalculator() {
           @Override
           public SeqStat calc() {
-            List<Double> edgeLengths = Lists.newArrayList();
+            SeqStatAccumulator edgeLengths = new SeqStatAccumulator();
             for (Edge edge : edges()) {
               Node src = edge.getSourceNode();
               Node target = edge.getTargetNode();
@@ -75,7 +125,7 @@ public abstract class AbstractFlowMapStats implements FlowMapStats {
               double y2 = target.getDouble(attrSpec.getNodeLatAttr());
               edgeLengths.add(Math.sqrt((x1 - x2) * (x1 - x2) + (y1 - y2) * (y1 - y2)));
             }
-            return SeqStat.createFor(edgeLengths.iterator());
+            return edgeLengths.toSeqStat();
           }
         });
   }
@@ -46,13 +46,16 @@ public class CsvFlowMapGraphReader {
   private final FlowMapAttrSpec attrSpec;
   private final char separator;
   private final String charset;
+  private final int numThreads;
 
   private FlowMapGraphBuilder builder;
 
-  private CsvFlowMapGraphReader(FlowMapAttrSpec attrSpec, char separator, String charset) {
+  private CsvFlowMapGraphReader(FlowMapAttrSpec attrSpec, char separator, String charset,
+      int numThreads) {
     this.attrSpec = attrSpec;
     this.separator = separator;
     this.charset = charset;
+    this.numThreads = numThreads;
   }
 
   /**
@@ -81,7 +84,18 @@ public class CsvFlowMapGraphReader {
 
   public static FlowMapGraph readFlowMapGraph(String nodesLocation, String flowsLocation,
       FlowMapAttrSpec attrSpec, char separator, String charset) throws IOException {
-    return new CsvFlowMapGraphReader(attrSpec, separator, charset).read(nodesLocation, flowsLocation);
+    return readFlowMapGraph(nodesLocation, flowsLocation, attrSpec, separator, charset,
+        Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param numThreads The number of threads used for parsing the flows
+   */
+  public static FlowMapGraph readFlowMapGraph(String nodesLocation, String flowsLocation,
+      FlowMapAttrSpec attrSpec, char separator, String charset, int numThreads)
+  throws IOException {
+    return new CsvFlowMapGraphReader(attrSpec, separator, charset, numThreads)
+        .read(nodesLocation, flowsLocation);
   }
 
   private FlowMapGraph read(String nodesLocation, String flowsLocation) throws IOException {
@@ -92,9 +106,8 @@ public class CsvFlowMapGraphReader {
       public void apply(Map<String, String> attrs) { builder.addNode(attrs); }
     });
 
-    parseCsv(flowsLocation, new LineParser() {
-      public void apply(Map<String, String> attrs) { builder.addEdge(attrs); }
-    });
+    ParallelCsvFlowsReader.readFlows(
+        builder, attrSpec, flowsLocation, separator, charset, numThreads);
 
     return builder.build();
   }
@@ -58,34 +58,6 @@ public class EdgeListFlowMapStats extends AbstractFlowMapStats {
     );
   }
 
-  @Override
-  public SeqStat getEdgeWeightAttrStats(String weightAttr) {
-    return getEdgeAttrStats(weightAttr,
-        edgesAsTuples(),
-        Arrays.asList(weightAttr));
-  }
-
-  @Override
-  public SeqStat getEdgeWeightStats() {
-    return getEdgeAttrStats(AttrKeys.EDGE_WEIGHT.name(),
-        edgesAsTuples(),
-        getAttrSpec().getFlowWeightAttrs());
-  }
-
-  @Override
-  public SeqStat getEdgeWeightDiffStats() {
-    return getEdgeAttrStats(AttrKeys.EDGE_WEIGHT_DIFF.name(),
-        edgesAsTuples(),
-        getAttrSpec().getFlowWeightDiffAttrs());
-  }
-
-  @Override
-  public SeqStat getEdgeWeightRelativeDiffStats() {
-    return getEdgeAttrStats(AttrKeys.EDGE_WEIGHT_DIFF_REL.name(),
-        edgesAsTuples(),
-        getAttrSpec().getFlowWeightRelativeDiffAttrs());
-  }
-
   @Override
   public SeqStat getNodeAttrStats(String attrName) {
     return getEdgeAttrStats(AttrKeys.nodeAttr(attrName),
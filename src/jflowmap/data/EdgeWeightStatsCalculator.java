@@ -0,0 +1,299 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.data;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jflowmap.FlowMapGraph;
+import jflowmap.util.MathUtils;
+import prefuse.data.Edge;
+import prefuse.data.Table;
+import prefuse.data.column.Column;
+import prefuse.util.collections.IntIterator;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Calculates the stats of the flow weights, of their differences and of their relative
+ * differences for all the weight attrs in one pass over the edges. The edges are split
+ * into chunks of a fixed size which are processed in parallel and then merged in order,
+ * so the result doesn't depend on the number of threads.
+ *
+ * The differences are calculated from the weights in the same way as in
+ * {@link FlowMapGraph#addEdgeWeightDifferenceColumns()} and
+ * {@link FlowMapGraph#addEdgeWeightRelativeDifferenceColumns()}.
+ *
+ * @author Ilya Boyandin
+ */
+class EdgeWeightStatsCalculator {
+
+  static final int CHUNK_SIZE = 1 << 14;
+
+  /**
+   * Sequence of edges whose weights are read by index. Reading must be safe
+   * to do concurrently.
+   */
+  interface WeightSource {
+    int size();
+    void getWeights(int index, double[] dest);
+  }
+
+  static class Result {
+    final SeqStat weightStats;
+    final SeqStat diffStats;
+    final SeqStat relDiffStats;
+    final SeqStat[] weightAttrStats;
+
+    private Result(ChunkStats stats) {
+      this.weightStats = stats.weights.toSeqStat();
+      this.diffStats = stats.diffs.toSeqStat();
+      this.relDiffStats = stats.relDiffs.toSeqStat();
+      this.weightAttrStats = new SeqStat[stats.attrWeights.length];
+      for (int i = 0; i < weightAttrStats.length; i++) {
+        weightAttrStats[i] = stats.attrWeights[i].toSeqStat();
+      }
+    }
+  }
+
+  private final WeightSource source;
+  private final int numAttrs;
+  private final int numThreads;
+
+  EdgeWeightStatsCalculator(WeightSource source, int numAttrs, int numThreads) {
+    this.source = source;
+    this.numAttrs = numAttrs;
+    this.numThreads = numThreads;
+  }
+
+  EdgeWeightStatsCalculator(WeightSource source, int numAttrs) {
+    this(source, numAttrs, Runtime.getRuntime().availableProcessors());
+  }
+
+  Result calc() {
+    int size = source.size();
+    List<ChunkStats> chunks = Lists.newArrayList();
+    for (int start = 0; start < size; start += CHUNK_SIZE) {
+      chunks.add(new ChunkStats(start, Math.min(start + CHUNK_SIZE, size)));
+    }
+
+    if (numThreads > 1  &&  chunks.size() > 1) {
+      ExecutorService executor = Executors.newFixedThreadPool(
+          Math.min(numThreads, chunks.size()), new WorkerThreadFactory());
+      try {
+        List<Future<ChunkStats>> futures = Lists.newArrayListWithCapacity(chunks.size());
+        for (ChunkStats chunk : chunks) {
+          futures.add(executor.submit(chunk));
+        }
+        for (Future<ChunkStats> future : futures) {
+          getResult(future);
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+    } else {
+      for (ChunkStats chunk : chunks) {
+        chunk.call();
+      }
+    }
+
+    ChunkStats total = new ChunkStats(0, 0);
+    for (ChunkStats chunk : chunks) {
+      total.merge(chunk);
+    }
+    return new Result(total);
+  }
+
+  private class ChunkStats implements Callable<ChunkStats> {
+    private final int start, end;
+    private final SeqStatAccumulator weights = new SeqStatAccumulator();
+    private final SeqStatAccumulator diffs = new SeqStatAccumulator();
+    private final SeqStatAccumulator relDiffs = new SeqStatAccumulator();
+    private final SeqStatAccumulator[] attrWeights = new SeqStatAccumulator[numAttrs];
+
+    public ChunkStats(int start, int end) {
+      this.start = start;
+      this.end = end;
+      for (int i = 0; i < numAttrs; i++) {
+        attrWeights[i] = new SeqStatAccumulator();
+      }
+    }
+
+    @Override
+    public ChunkStats call() {
+      double[] values = new double[numAttrs];
+      for (int index = start; index < end; index++) {
+        source.getWeights(index, values);
+        double prev = Double.NaN;
+        for (int i = 0; i < numAttrs; i++) {
+          double v = values[i];
+          weights.add(v);
+          attrWeights[i].add(v);
+          diffs.add(v - prev);
+          relDiffs.add(MathUtils.relativeDiff(v, prev));
+          prev = v;
+        }
+      }
+      return this;
+    }
+
+    void merge(ChunkStats other) {
+      weights.merge(other.weights);
+      diffs.merge(other.diffs);
+      relDiffs.merge(other.relDiffs);
+      for (int i = 0; i < numAttrs; i++) {
+        attrWeights[i].merge(other.attrWeights[i]);
+      }
+    }
+  }
+
+  /**
+   * Weights of the valid edges of the flow map graphs taken from their edge weight stores.
+   * The graphs can have different weight attrs: the weights of the attrs which a graph
+   * doesn't have are NaN.
+   */
+  static WeightSource sourceForGraphs(List<FlowMapGraph> flowMapGraphs, List<String> weightAttrs) {
+    final int numAttrs = weightAttrs.size();
+    final EdgeWeightStore[] stores = new EdgeWeightStore[flowMapGraphs.size()];
+    final int[][] attrIndices = new int[flowMapGraphs.size()][numAttrs];
+    final boolean[] sameAttrs = new boolean[flowMapGraphs.size()];
+    final int[][] rows = new int[flowMapGraphs.size()][];
+    final int[] offsets = new int[flowMapGraphs.size() + 1];
+    for (int i = 0; i < stores.length; i++) {
+      FlowMapGraph fmg = flowMapGraphs.get(i);
+      stores[i] = fmg.getEdgeWeightStore();
+      sameAttrs[i] = (stores[i].getNumOfAttrs() == numAttrs);
+      for (int k = 0; k < numAttrs; k++) {
+        attrIndices[i][k] = stores[i].getAttrIndex(weightAttrs.get(k));
+        sameAttrs[i] &= (attrIndices[i][k] == k);
+      }
+      Table edgeTable = fmg.getGraph().getEdgeTable();
+      rows[i] = new int[edgeTable.getRowCount()];
+      int count = 0;
+      for (IntIterator it = edgeTable.rows(); it.hasNext(); ) {
+        rows[i][count++] = it.nextInt();
+      }
+      offsets[i + 1] = offsets[i] + count;
+    }
+    return new WeightSource() {
+      int lastGraph = 0;  // races are harmless, it's only a hint
+
+      @Override
+      public int size() {
+        return offsets[stores.length];
+      }
+
+      @Override
+      public void getWeights(int index, double[] dest) {
+        int g = lastGraph;
+        if (index < offsets[g]  ||  index >= offsets[g + 1]) {
+          g = 0;
+          while (index >= offsets[g + 1]) {
+            g++;
+          }
+          lastGraph = g;
+        }
+        int row = rows[g][index - offsets[g]];
+        if (sameAttrs[g]) {
+          stores[g].getAll(row, dest);
+        } else {
+          int[] indices = attrIndices[g];
+          for (int k = 0; k < numAttrs; k++) {
+            dest[k] = (indices[k] >= 0 ? stores[g].get(row, indices[k]) : Double.NaN);
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Weights of the given edges read from the columns of their tables.
+   */
+  static WeightSource sourceFor(final List<Edge> edges, final List<String> weightAttrs) {
+    final Map<Table, Column[]> columnsByTable = new IdentityHashMap<Table, Column[]>();
+    final Column[][] columns = new Column[edges.size()][];
+    for (int i = 0; i < columns.length; i++) {
+      Table table = edges.get(i).getTable();
+      Column[] tableColumns = columnsByTable.get(table);
+      if (tableColumns == null) {
+        tableColumns = new Column[weightAttrs.size()];
+        for (int k = 0; k < tableColumns.length; k++) {
+          tableColumns[k] = table.getColumn(weightAttrs.get(k));
+        }
+        columnsByTable.put(table, tableColumns);
+      }
+      columns[i] = tableColumns;
+    }
+    final int[] rows = new int[edges.size()];
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = edges.get(i).getRow();
+    }
+    return new WeightSource() {
+      @Override
+      public int size() {
+        return rows.length;
+      }
+
+      @Override
+      public void getWeights(int index, double[] dest) {
+        Column[] cols = columns[index];
+        for (int k = 0; k < cols.length; k++) {
+          dest[k] = (cols[k] != null ? cols[k].getDouble(rows[index]) : Double.NaN);
+        }
+      }
+    };
+  }
+
+  private static class WorkerThreadFactory implements ThreadFactory {
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "Stats-worker-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+  private static <T> T getResult(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while calculating stats", ie);
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+}
@@ -0,0 +1,247 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.data;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import prefuse.data.Table;
+import prefuse.data.column.Column;
+import prefuse.data.event.EventConstants;
+import prefuse.data.event.TableListener;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+/**
+ * Dense copy of the flow weights of an edge table: one double array indexed
+ * by edge row and by the index of the weight attr. The store listens to the
+ * edge table and keeps itself in sync with it.
+ *
+ * Reading the weights from the store is not synchronized with the changes
+ * of the table (the same as for prefuse tables).
+ *
+ * @author Ilya Boyandin
+ */
+public class EdgeWeightStore implements TableListener {
+
+  private final Table edgeTable;
+  private final List<String> weightAttrs;
+  private final Map<String, Integer> attrIndices;
+  private final int numAttrs;
+
+  private Column[] columns;
+  private double[] weights;
+  private int numRows;
+
+  public EdgeWeightStore(Table edgeTable, List<String> weightAttrs) {
+    this.edgeTable = edgeTable;
+    this.weightAttrs = ImmutableList.copyOf(weightAttrs);
+    this.numAttrs = weightAttrs.size();
+    this.attrIndices = Maps.newHashMap();
+    for (int i = 0; i < numAttrs; i++) {
+      attrIndices.put(weightAttrs.get(i), i);
+    }
+    this.columns = new Column[numAttrs];
+    this.numRows = edgeTable.getMaximumRow() + 1;
+    this.weights = new double[Math.max(numRows, 16) * numAttrs];
+    Arrays.fill(weights, Double.NaN);
+    updateColumns();
+    edgeTable.addTableListener(this);
+  }
+
+  /**
+   * Stops listening to the edge table.
+   */
+  public void dispose() {
+    edgeTable.removeTableListener(this);
+  }
+
+  public List<String> getWeightAttrs() {
+    return weightAttrs;
+  }
+
+  public int getNumOfAttrs() {
+    return numAttrs;
+  }
+
+  /**
+   * @return Index of the weight attr or -1 if it isn't one of the weight attrs
+   */
+  public int getAttrIndex(String weightAttr) {
+    Integer index = attrIndices.get(weightAttr);
+    return (index == null ? -1 : index);
+  }
+
+  /**
+   * @return Indices of the attrs or null if some of them aren't weight attrs
+   */
+  public int[] getAttrIndices(Iterable<String> attrs) {
+    int[] indices = new int[numAttrs];
+    int count = 0;
+    for (String attr : attrs) {
+      int index = getAttrIndex(attr);
+      if (index < 0) {
+        return null;
+      }
+      if (count == indices.length) {
+        indices = Arrays.copyOf(indices, count * 2 + 1);
+      }
+      indices[count++] = index;
+    }
+    return Arrays.copyOf(indices, count);
+  }
+
+  public double get(int edgeRow, int attrIndex) {
+    return weights[edgeRow * numAttrs + attrIndex];
+  }
+
+  /**
+   * Copies the weights of the edge into the given array.
+   */
+  public double[] getAll(int edgeRow, double[] dest) {
+    System.arraycopy(weights, edgeRow * numAttrs, dest, 0, numAttrs);
+    return dest;
+  }
+
+  /**
+   * @return Max of the weights of the edge for the given attrs or NaN if all of them are NaN
+   */
+  public double getMax(int edgeRow, int[] attrIndices) {
+    int offset = edgeRow * numAttrs;
+    double max = Double.NaN;
+    for (int attrIndex : attrIndices) {
+      double v = weights[offset + attrIndex];
+      if (Double.isNaN(max)  ||  v > max) {
+        max = v;
+      }
+    }
+    return max;
+  }
+
+  /**
+   * @return Average of the non-NaN weights of the edge for the given attrs
+   *         or NaN if all of them are NaN
+   */
+  public double getAvg(int edgeRow, int[] attrIndices) {
+    int offset = edgeRow * numAttrs;
+    double sum = 0;
+    int cnt = 0;
+    for (int attrIndex : attrIndices) {
+      double v = weights[offset + attrIndex];
+      if (!Double.isNaN(v)) {
+        sum += v;
+        cnt++;
+      }
+    }
+    return (cnt == 0 ? Double.NaN : sum / cnt);
+  }
+
+  /**
+   * @return True if at least one of the weights of the edge isn't NaN
+   */
+  public boolean hasNonNaNWeight(int edgeRow) {
+    for (int i = edgeRow * numAttrs, end = i + numAttrs; i < end; i++) {
+      if (!Double.isNaN(weights[i])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reloads the values of the weight columns which were replaced or removed.
+   */
+  private void updateColumns() {
+    for (int i = 0; i < numAttrs; i++) {
+      Column column = edgeTable.getColumn(weightAttrs.get(i));  // null if there is none
+      if (column != columns[i]) {
+        columns[i] = column;
+        copyRows(0, numRows - 1, i);
+      }
+    }
+  }
+
+  private void ensureCapacity(int rows) {
+    if (rows > numRows) {
+      if (rows * numAttrs > weights.length) {
+        weights = Arrays.copyOf(weights, Math.max(rows, numRows * 2) * numAttrs);
+      }
+      numRows = rows;
+    }
+  }
+
+  private void copyRows(int start, int end) {
+    for (int attrIndex = 0; attrIndex < numAttrs; attrIndex++) {
+      copyRows(start, end, attrIndex);
+    }
+  }
+
+  private void copyRows(int start, int end, int attrIndex) {
+    Column column = columns[attrIndex];
+    for (int row = start; row <= end; row++) {
+      weights[row * numAttrs + attrIndex] =
+        (column != null  &&  edgeTable.isValidRow(row) ? column.getDouble(row) : Double.NaN);
+    }
+  }
+
+  private int indexOfColumn(Column column) {
+    for (int i = 0; i < numAttrs; i++) {
+      if (columns[i] == column) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public void tableChanged(Table t, int start, int end, int col, int type) {
+    if (col != EventConstants.ALL_COLUMNS  &&  type != EventConstants.UPDATE) {
+      // a column was added or removed
+      updateColumns();
+      return;
+    }
+    switch (type) {
+    case EventConstants.INSERT:
+      ensureCapacity(end + 1);
+      copyRows(start, end);
+      break;
+
+    case EventConstants.UPDATE:
+      ensureCapacity(end + 1);
+      if (col == EventConstants.ALL_COLUMNS) {
+        copyRows(start, end);
+      } else {
+        int attrIndex = indexOfColumn(t.getColumn(col));
+        if (attrIndex >= 0) {
+          copyRows(start, end, attrIndex);
+        }
+      }
+      break;
+
+    case EventConstants.DELETE:
+      if (start < numRows) {
+        Arrays.fill(weights, start * numAttrs, (Math.min(end, numRows - 1) + 1) * numAttrs,
+            Double.NaN);
+      }
+      break;
+    }
+  }
+
+}
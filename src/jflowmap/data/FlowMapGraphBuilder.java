@@ -32,6 +32,7 @@ import prefuse.data.Graph;
 import prefuse.data.Node;
 import prefuse.data.Table;
 import prefuse.data.Tuple;
+import prefuse.data.column.Column;
 
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
@@ -200,6 +201,16 @@ public class FlowMapGraphBuilder {
     return addEdge(requireNode(srcId), requireNode(targetId), weights);
   }
 
+  /**
+   * This method can be called concurrently as long as no nodes are being added.
+   *
+   * @return The row of the node in the node table or -1 if there is no node with this id
+   */
+  int getNodeRow(String nodeId) {
+    Node node = nodesById.get(nodeId);
+    return (node == null ? -1 : node.getRow());
+  }
+
   private Node requireNode(String nodeId) {
     Node node = nodesById.get(nodeId);
     if (node == null) {
@@ -243,6 +254,76 @@ public class FlowMapGraphBuilder {
     return edge;
   }
 
+  /**
+   * Adds {@code count} edges at once. The nodes are given by their rows in the node table,
+   * the weights are indexed by weight attr and then by edge.
+   *
+   * @return The rows of the added (or cumulated) edges in the edge table
+   */
+  int[] addEdges(int[] srcRows, int[] targetRows, double[][] weights, int count) {
+    List<String> weightAttrs = attrSpec.getFlowWeightAttrs();
+    if (weights.length != weightAttrs.size()) {
+      throw new IllegalArgumentException(
+          "Number of supplied weights doesn't match the number of weight attrs");
+    }
+    int[] rows = new int[count];
+    if (cumulatedEdges != null) {
+      double[] edgeWeights = new double[weights.length];
+      for (int i = 0; i < count; i++) {
+        for (int k = 0; k < weights.length; k++) {
+          edgeWeights[k] = weights[k][i];
+        }
+        rows[i] = addEdge(graph.getNode(srcRows[i]), graph.getNode(targetRows[i]), edgeWeights)
+            .getRow();
+      }
+      return rows;
+    }
+
+    for (int i = 0; i < count; i++) {
+      rows[i] = graph.addEdge(srcRows[i], targetRows[i]);
+    }
+    Table edgeTable = graph.getEdgeTable();
+    for (int k = 0; k < weights.length; k++) {
+      Column column = edgeTable.getColumn(weightAttrs.get(k));
+      double[] values = weights[k];
+      column.removeColumnListener(edgeTable);
+      try {
+        for (int i = 0; i < count; i++) {
+          column.setDouble(values[i], rows[i]);
+        }
+      } finally {
+        column.addColumnListener(edgeTable);
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * The edge table doesn't propagate the changes of the values in the column while
+   * its events are disabled. This makes setting many values much faster, but must
+   * only be used for custom attr columns (not the ones linking the edges to the nodes).
+   */
+  void setEdgeColumnEventsEnabled(Column column, boolean enabled) {
+    Table edgeTable = graph.getEdgeTable();
+    if (enabled) {
+      column.addColumnListener(edgeTable);
+    } else {
+      column.removeColumnListener(edgeTable);
+    }
+  }
+
+  /**
+   * Returns the edge table column for a custom attribute adding it if there is none
+   * which can take values of the given type.
+   */
+  Column requireEdgeColumn(String attr, Class<?> type) {
+    Table table = graph.getEdgeTable();
+    if (!table.canSet(attr, type)) {
+      table.addColumn(attr, type);
+    }
+    return table.getColumn(attr);
+  }
+
   private Graph buildGraph() {
     cumulatedEdges = null;
     return graph;
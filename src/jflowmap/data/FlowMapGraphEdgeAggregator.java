@@ -1,7 +1,7 @@
 package jflowmap.data;
 
-import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -15,14 +15,16 @@ import prefuse.data.Graph;
 import prefuse.data.Node;
 import prefuse.data.Table;
 import prefuse.data.Tuple;
+import prefuse.data.column.Column;
+import prefuse.util.collections.IntIterator;
 
 import com.google.common.base.Function;
-import com.google.common.collect.ArrayListMultimap;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Multimap;
 
 /**
  * @author Ilya Boyandin
@@ -32,14 +34,25 @@ public class FlowMapGraphEdgeAggregator {
   private static Logger logger = Logger.getLogger(FlowMapGraphEdgeAggregator.class);
 
   private static final String AGGREGATE_LIST_COLUMN = "_:agg-list";
-  private Map<List<String>, Node> nodesByIds;
-  private final FlowMapGraph flowMapGraph;
+  private Map<NodeKey, Node> nodesByKeys;
+  private int[] nodeRowsByRank;
+  private final Supplier<FlowMapGraph> flowMapGraphSupplier;
+  private FlowMapGraph flowMapGraph;
   private final Function<Edge, Object> groupFunction;
   private Graph aggGraph;
   private Map<String, ValueAggregator> customValueAggregators;
+  private int numThreads = Runtime.getRuntime().availableProcessors();
 
   public FlowMapGraphEdgeAggregator(FlowMapGraph fmg, Function<Edge, Object> groupFunction) {
-    this.flowMapGraph = fmg;
+    this(Suppliers.ofInstance(fmg), groupFunction);
+  }
+
+  /**
+   * @param fmgSupplier Supplies the graph to aggregate when {@link #aggregate()} is called
+   */
+  public FlowMapGraphEdgeAggregator(Supplier<FlowMapGraph> fmgSupplier,
+      Function<Edge, Object> groupFunction) {
+    this.flowMapGraphSupplier = fmgSupplier;
     this.groupFunction = groupFunction;
   }
 
@@ -85,6 +98,15 @@ public class FlowMapGraphEdgeAggregator {
     return this;
   }
 
+  /**
+   * Sets the number of threads used to group the edges and to sum up their weights.
+   * The group function must be safe to call concurrently if it's greater than one.
+   */
+  public FlowMapGraphEdgeAggregator withNumberOfThreads(int numThreads) {
+    this.numThreads = numThreads;
+    return this;
+  }
+
   public static boolean isAggregate(Edge edge) {
     return edge.canGet(AGGREGATE_LIST_COLUMN, List.class);
   }
@@ -123,15 +145,31 @@ public class FlowMapGraphEdgeAggregator {
   }
 
   public FlowMapGraph aggregate() {
+    flowMapGraph = flowMapGraphSupplier.get();
     logger.info("Aggregating FlowMapGraph id='" + flowMapGraph.getId() + "', group function: " +
         groupFunction);
-    Multimap<Object, Edge> groups = ArrayListMultimap.create();
-    for (Edge e : flowMapGraph.edges()) {
-      groups.put(groupFunction.apply(e), e);
+    Graph graph = flowMapGraph.getGraph();
+
+    // the weights aggregated by summing up are calculated by ParallelEdgeGroupBy
+    List<String> summedColumns = Lists.newArrayList();
+    List<String> otherColumns = Lists.newArrayList();
+    for (String column : flowMapGraph.getAggregatableEdgeColumns()) {
+      Class<?> type = graph.getEdgeTable().getColumnType(column);
+      if (getAggregator(column, type) == AttrDataTypes.DOUBLE) {
+        summedColumns.add(column);
+      } else {
+        otherColumns.add(column);
+      }
+    }
+    Column[] sumColumns = new Column[summedColumns.size()];
+    for (int i = 0; i < sumColumns.length; i++) {
+      sumColumns[i] = graph.getEdgeTable().getColumn(summedColumns.get(i));
     }
 
-    nodesByIds = Maps.newHashMap();
-    Graph graph = flowMapGraph.getGraph();
+    List<ParallelEdgeGroupBy.Group> groups = new ParallelEdgeGroupBy(
+        graph, groupFunction, rankNodesByIds(graph), sumColumns, numThreads).run();
+
+    nodesByKeys = Maps.newHashMap();
     aggGraph = new Graph(
         graph.getNodeTable().getSchema().instantiate(),
         graph.getEdgeTable().getSchema().instantiate(),
@@ -140,20 +178,56 @@ public class FlowMapGraphEdgeAggregator {
     addAggListColumn(aggGraph.getNodeTable());
     addAggListColumn(aggGraph.getEdgeTable());
 
-    for (Object group : groups.keySet()) {
-      Collection<Edge> edges = groups.get(group);
+    for (ParallelEdgeGroupBy.Group group : groups) {
+      List<Edge> edges = Lists.newArrayListWithCapacity(group.getNumEdges());
+      for (int i = 0; i < group.getNumEdges(); i++) {
+        edges.add(graph.getEdge(group.getEdgeRow(i)));
+      }
       Edge newEdge = aggGraph.addEdge(
-          aggregateNodes(Nodes.distinctNodesOfEdges(edges, FlowEndpoint.ORIGIN), AggEntity.SOURCE_NODE),
-          aggregateNodes(Nodes.distinctNodesOfEdges(edges, FlowEndpoint.DEST), AggEntity.TARGET_NODE));
+          aggregateNodes(group.srcNodeRanks, AggEntity.SOURCE_NODE),
+          aggregateNodes(group.targetNodeRanks, AggEntity.TARGET_NODE));
 
-      aggregateEdges(edges, newEdge);
+      for (int i = 0; i < sumColumns.length; i++) {
+        newEdge.setDouble(summedColumns.get(i), group.sums[i]);
+      }
+      aggregateColumns(edges, newEdge, otherColumns, AggEntity.EDGE);
 
       newEdge.set(AGGREGATE_LIST_COLUMN, ImmutableList.copyOf(edges));
     }
 
     FlowMapGraph.setGraphId(aggGraph, flowMapGraph.getId() + " aggregated by " + groupFunction);
 
-    return new FlowMapGraph(aggGraph, flowMapGraph.getAttrSpec());
+    FlowMapGraph aggregated = new FlowMapGraph(aggGraph, flowMapGraph.getAttrSpec());
+
+    // don't hold on to the graphs, so that they can be garbage-collected
+    // if the aggregated one is dropped and later created again
+    flowMapGraph = null;
+    aggGraph = null;
+    nodesByKeys = null;
+    nodeRowsByRank = null;
+
+    return aggregated;
+  }
+
+  /**
+   * Ranks the nodes in the order of their ids, in which the aggregated nodes are listed.
+   */
+  private int[] rankNodesByIds(Graph graph) {
+    Table nodeTable = graph.getNodeTable();
+    List<Node> nodes = Lists.newArrayListWithCapacity(nodeTable.getRowCount());
+    for (IntIterator it = nodeTable.rows(); it.hasNext(); ) {
+      nodes.add(graph.getNode(it.nextInt()));
+    }
+    Collections.sort(nodes, FlowMapGraph.COMPARE_NODES_BY_IDS);
+
+    int[] ranks = new int[nodeTable.getMaximumRow() + 1];
+    nodeRowsByRank = new int[nodes.size()];
+    for (int rank = 0; rank < nodes.size(); rank++) {
+      int row = nodes.get(rank).getRow();
+      ranks[row] = rank;
+      nodeRowsByRank[rank] = row;
+    }
+    return ranks;
   }
 
   private void addAggListColumn(Table et) {
@@ -162,23 +236,22 @@ public class FlowMapGraphEdgeAggregator {
     }
   }
 
-  private void aggregateEdges(Collection<Edge> edges, Edge newEdge) {
-    aggregateColumns(edges, newEdge, flowMapGraph.getAggregatableEdgeColumns(), AggEntity.EDGE);
-  }
-
   public enum AggEntity {
     SOURCE_NODE, TARGET_NODE, EDGE;
   }
 
-  private Node aggregateNodes(Iterable<Node> nodes, AggEntity entity) {
-//    nodes = Nodes.unique(nodes);
-    List<String> nodeIds = nodeIdsOf(nodes);
-    Node newNode = nodesByIds.get(nodeIds);  // if a node has degree > 1, we mustn't recreate it
-                                             // for each edge
+  private Node aggregateNodes(int[] nodeRanks, AggEntity entity) {
+    NodeKey key = new NodeKey(nodeRanks);
+    Node newNode = nodesByKeys.get(key);  // if a node has degree > 1, we mustn't recreate it
+                                          // for each edge
     if (newNode == null) {
+      List<Node> nodes = Lists.newArrayListWithCapacity(nodeRanks.length);
+      for (int rank : nodeRanks) {
+        nodes.add(flowMapGraph.getGraph().getNode(nodeRowsByRank[rank]));
+      }
       newNode = aggregateColumns(nodes, aggGraph.addNode(),
           flowMapGraph.getAggregatableNodeColumns(), entity);
-      nodesByIds.put(nodeIds, newNode);
+      nodesByKeys.put(key, newNode);
 
       newNode.set(AGGREGATE_LIST_COLUMN, ImmutableList.copyOf(nodes));
     }
@@ -249,12 +322,27 @@ public class FlowMapGraphEdgeAggregator {
     Object aggregate(Iterable<Object> values, Iterable<Tuple> tuples, AggEntity entity);
   }
 
-  private List<String> nodeIdsOf(Iterable<Node> nodes) {
-    List<String> ids = new ArrayList<String>();
-    for (Node node : nodes) {
-      ids.add(flowMapGraph.getNodeId(node));
+  /**
+   * Identifies an aggregated node by the sorted ranks of the nodes it consists of.
+   */
+  private static class NodeKey {
+    private final int[] nodeRanks;
+    private final int hash;
+
+    NodeKey(int[] nodeRanks) {
+      this.nodeRanks = nodeRanks;
+      this.hash = Arrays.hashCode(nodeRanks);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return (obj instanceof NodeKey)  &&  Arrays.equals(nodeRanks, ((NodeKey)obj).nodeRanks);
     }
-    return ids;
   }
 
 }
@@ -0,0 +1,408 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+
+import jflowmap.FlowMapAttrSpec;
+import jflowmap.FlowMapGraph;
+import jflowmap.geom.Point;
+
+import org.apache.log4j.Logger;
+
+import prefuse.data.Edge;
+import prefuse.data.Graph;
+import prefuse.data.Schema;
+import prefuse.data.Table;
+import prefuse.data.column.Column;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Compact columnar binary format for flow map graphs. A snapshot contains the
+ * attr spec, all the node and edge columns of the primitive and string types
+ * (which include the node ids, labels, coordinates, the edge endpoints and all
+ * the weight attrs) and optionally the edge subdivision points.
+ * <p>
+ * The file is read through a memory-mapped buffer and the primitive columns are
+ * transferred in bulk, so loading a snapshot is much faster than parsing the
+ * CSV or GraphML files it was created from. Use {@link #main} to create
+ * a snapshot of the data of a view config.
+ *
+ * @author Ilya Boyandin
+ */
+public class FlowMapGraphSnapshot {
+
+  private static Logger logger = Logger.getLogger(FlowMapGraphSnapshot.class);
+
+  private static final int MAGIC = 0x464d4753;   // "FMGS"
+  private static final int FORMAT_VERSION = 1;
+  private static final Charset UTF8 = Charset.forName("utf-8");
+
+  private static final byte TYPE_DOUBLE = 'D';
+  private static final byte TYPE_FLOAT = 'F';
+  private static final byte TYPE_INT = 'I';
+  private static final byte TYPE_LONG = 'J';
+  private static final byte TYPE_BOOLEAN = 'Z';
+  private static final byte TYPE_STRING = 'S';
+
+  private FlowMapGraphSnapshot() {
+  }
+
+  /**
+   * @param includeSubdivisionPoints Whether to store the edge subdivision points
+   *    (e.g. produced by edge bundling) if the graph has them
+   */
+  public static void write(FlowMapGraph flowMapGraph, String filename,
+      boolean includeSubdivisionPoints) throws IOException {
+    Graph graph = flowMapGraph.getGraph();
+    FlowMapAttrSpec attrSpec = flowMapGraph.getAttrSpec();
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(filename), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      writeString(out, flowMapGraph.getId());
+      out.writeBoolean(graph.isDirected());
+
+      writeString(out, attrSpec.getFlowSrcNodeAttr());
+      writeString(out, attrSpec.getFlowTargetNodeAttr());
+      out.writeInt(attrSpec.getFlowWeightAttrs().size());
+      for (String attr : attrSpec.getFlowWeightAttrs()) {
+        writeString(out, attr);
+      }
+      writeString(out, attrSpec.getNodeIdAttr());
+      writeString(out, attrSpec.getNodeLabelAttr());
+      writeString(out, attrSpec.getNodeLonAttr());
+      writeString(out, attrSpec.getNodeLatAttr());
+
+      writeTable(graph.getNodeTable(), out);
+      writeTable(graph.getEdgeTable(), out);
+
+      int numEdges = graph.getEdgeCount();
+      boolean hasPoints = false;
+      if (includeSubdivisionPoints) {
+        for (int i = 0; i < numEdges  &&  !hasPoints; i++) {
+          hasPoints = flowMapGraph.hasEdgeSubdivisionPoints(graph.getEdge(i));
+        }
+      }
+      out.writeBoolean(hasPoints);
+      if (hasPoints) {
+        writeSubdivisionPoints(flowMapGraph, out);
+      }
+    } finally {
+      out.close();
+    }
+    logger.info("Stored snapshot of graph '" + flowMapGraph.getId() + "' in '" + filename + "'");
+  }
+
+  private static void writeTable(Table table, DataOutputStream out) throws IOException {
+    int numRows = table.getRowCount();
+    List<Integer> columns = Lists.newArrayList();
+    for (int col = 0; col < table.getColumnCount(); col++) {
+      if (typeCodeOf(table.getColumnType(col)) != 0) {
+        columns.add(col);
+      } else {
+        logger.debug("Column '" + table.getColumnName(col) + "' of type " +
+            table.getColumnType(col) + " is not stored in the snapshot");
+      }
+    }
+    out.writeInt(numRows);
+    out.writeInt(columns.size());
+    for (int col : columns) {
+      Class<?> type = table.getColumnType(col);
+      byte typeCode = typeCodeOf(type);
+      writeString(out, table.getColumnName(col));
+      out.writeByte(typeCode);
+      align(out);
+      for (int row = 0; row < numRows; row++) {
+        switch (typeCode) {
+          case TYPE_DOUBLE: out.writeDouble(table.getDouble(row, col)); break;
+          case TYPE_FLOAT: out.writeFloat(table.getFloat(row, col)); break;
+          case TYPE_INT: out.writeInt(table.getInt(row, col)); break;
+          case TYPE_LONG: out.writeLong(table.getLong(row, col)); break;
+          case TYPE_BOOLEAN: out.writeBoolean(table.getBoolean(row, col)); break;
+          case TYPE_STRING: writeString(out, table.getString(row, col)); break;
+          default: throw new AssertionError();
+        }
+      }
+    }
+  }
+
+  private static void writeSubdivisionPoints(FlowMapGraph flowMapGraph, DataOutputStream out)
+      throws IOException {
+    Graph graph = flowMapGraph.getGraph();
+    int numEdges = graph.getEdgeCount();
+    for (int i = 0; i < numEdges; i++) {
+      Edge edge = graph.getEdge(i);
+      // -1 for the edges without subdivision points
+      int count = -1;
+      if (flowMapGraph.hasEdgeSubdivisionPoints(edge)) {
+        count = flowMapGraph.getEdgeSubdivisionPoints(edge).size();
+      }
+      out.writeInt(count);
+    }
+    align(out);
+    for (int i = 0; i < numEdges; i++) {
+      Edge edge = graph.getEdge(i);
+      if (flowMapGraph.hasEdgeSubdivisionPoints(edge)) {
+        for (Point p : flowMapGraph.getEdgeSubdivisionPoints(edge)) {
+          out.writeDouble(p.x());
+          out.writeDouble(p.y());
+        }
+      }
+    }
+  }
+
+  private static byte typeCodeOf(Class<?> type) {
+    if (type == double.class) return TYPE_DOUBLE;
+    if (type == float.class) return TYPE_FLOAT;
+    if (type == int.class) return TYPE_INT;
+    if (type == long.class) return TYPE_LONG;
+    if (type == boolean.class) return TYPE_BOOLEAN;
+    if (type == String.class) return TYPE_STRING;
+    return 0;
+  }
+
+  private static Class<?> typeOf(byte typeCode) throws IOException {
+    switch (typeCode) {
+      case TYPE_DOUBLE: return double.class;
+      case TYPE_FLOAT: return float.class;
+      case TYPE_INT: return int.class;
+      case TYPE_LONG: return long.class;
+      case TYPE_BOOLEAN: return boolean.class;
+      case TYPE_STRING: return String.class;
+      default: throw new IOException("Unknown column type code: " + typeCode);
+    }
+  }
+
+  public static FlowMapGraph read(String filename) throws IOException {
+    logger.info("Loading snapshot \"" + filename + "\"");
+    RandomAccessFile file = new RandomAccessFile(filename, "r");
+    MappedByteBuffer buf;
+    try {
+      FileChannel channel = file.getChannel();
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Snapshot file is too big to be mapped: " + filename);
+      }
+      buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      // the mapping stays valid after the channel is closed
+      file.close();
+    }
+    try {
+      return read(buf);
+    } catch (RuntimeException re) {
+      // e.g. BufferUnderflowException for truncated files
+      throw new IOException("Couldn't read snapshot '" + filename + "': " + re, re);
+    }
+  }
+
+  private static FlowMapGraph read(ByteBuffer buf) throws IOException {
+    if (buf.getInt() != MAGIC) {
+      throw new IOException("Not a flow map graph snapshot");
+    }
+    int version = buf.getInt();
+    if (version != FORMAT_VERSION) {
+      throw new IOException("Unsupported snapshot format version: " + version);
+    }
+    String graphId = readString(buf);
+    boolean directed = (buf.get() != 0);
+
+    String flowSrcNodeAttr = readString(buf);
+    String flowTargetNodeAttr = readString(buf);
+    int numWeightAttrs = buf.getInt();
+    ImmutableList.Builder<String> weightAttrs = ImmutableList.builder();
+    for (int i = 0; i < numWeightAttrs; i++) {
+      weightAttrs.add(readString(buf));
+    }
+    FlowMapAttrSpec attrSpec = new FlowMapAttrSpec(
+        flowSrcNodeAttr, flowTargetNodeAttr, weightAttrs.build(),
+        readString(buf), readString(buf), readString(buf), readString(buf));
+
+    Table nodeTable = readTable(buf);
+    Table edgeTable = readTable(buf);
+    Graph graph = new Graph(nodeTable, edgeTable, directed);
+    FlowMapGraph.setGraphId(graph, graphId);
+
+    FlowMapGraph flowMapGraph = new FlowMapGraph(graph, attrSpec);
+    if (buf.get() != 0) {
+      readSubdivisionPoints(buf, flowMapGraph);
+    }
+    return flowMapGraph;
+  }
+
+  private static Table readTable(ByteBuffer buf) throws IOException {
+    int numRows = buf.getInt();
+    int numColumns = buf.getInt();
+    Schema schema = new Schema(numColumns);
+    Table table = schema.instantiate();
+    table.addRows(numRows);
+    for (int c = 0; c < numColumns; c++) {
+      String name = readString(buf);
+      Class<?> type = typeOf(buf.get());
+      align(buf);
+      table.addColumn(name, type);
+      Column column = table.getColumn(c);
+      // the table doesn't need the change events of the new column
+      column.removeColumnListener(table);
+      readColumn(buf, column, type, numRows);
+      column.addColumnListener(table);
+    }
+    return table;
+  }
+
+  private static void readColumn(ByteBuffer buf, Column column, Class<?> type, int numRows) {
+    if (type == double.class) {
+      double[] values = new double[numRows];
+      buf.asDoubleBuffer().get(values);
+      buf.position(buf.position() + numRows * 8);
+      for (int row = 0; row < numRows; row++) {
+        column.setDouble(values[row], row);
+      }
+    } else if (type == float.class) {
+      float[] values = new float[numRows];
+      buf.asFloatBuffer().get(values);
+      buf.position(buf.position() + numRows * 4);
+      for (int row = 0; row < numRows; row++) {
+        column.setFloat(values[row], row);
+      }
+    } else if (type == int.class) {
+      int[] values = new int[numRows];
+      buf.asIntBuffer().get(values);
+      buf.position(buf.position() + numRows * 4);
+      for (int row = 0; row < numRows; row++) {
+        column.setInt(values[row], row);
+      }
+    } else if (type == long.class) {
+      long[] values = new long[numRows];
+      buf.asLongBuffer().get(values);
+      buf.position(buf.position() + numRows * 8);
+      for (int row = 0; row < numRows; row++) {
+        column.setLong(values[row], row);
+      }
+    } else if (type == boolean.class) {
+      for (int row = 0; row < numRows; row++) {
+        column.setBoolean(buf.get() != 0, row);
+      }
+    } else {
+      for (int row = 0; row < numRows; row++) {
+        column.set(readString(buf), row);
+      }
+    }
+  }
+
+  private static void readSubdivisionPoints(ByteBuffer buf, FlowMapGraph flowMapGraph) {
+    Graph graph = flowMapGraph.getGraph();
+    int numEdges = graph.getEdgeCount();
+    int[] counts = new int[numEdges];
+    buf.asIntBuffer().get(counts);
+    buf.position(buf.position() + numEdges * 4);
+    align(buf);
+    for (int i = 0; i < numEdges; i++) {
+      int count = counts[i];
+      if (count >= 0) {
+        List<Point> points;
+        if (count == 0) {
+          points = Collections.emptyList();
+        } else {
+          double[] coords = new double[count * 2];
+          buf.asDoubleBuffer().get(coords);
+          buf.position(buf.position() + coords.length * 8);
+          ImmutableList.Builder<Point> builder = ImmutableList.builder();
+          for (int j = 0; j < count; j++) {
+            builder.add(new Point(coords[j * 2], coords[j * 2 + 1]));
+          }
+          points = builder.build();
+        }
+        flowMapGraph.setEdgeSubdivisionPoints(graph.getEdge(i), points);
+      }
+    }
+  }
+
+  /**
+   * Strings are stored as the length of their UTF-8 encoding followed by the bytes.
+   * Null strings have length -1.
+   */
+  private static String readString(ByteBuffer buf) {
+    int length = buf.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buf.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * The primitive columns start at positions which are multiples of 8,
+   * so that the bulk transfers can use aligned reads.
+   */
+  private static void align(ByteBuffer buf) {
+    int rem = buf.position() % 8;
+    if (rem != 0) {
+      buf.position(buf.position() + 8 - rem);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String str) throws IOException {
+    if (str == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = str.getBytes(UTF8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static void align(DataOutputStream out) throws IOException {
+    while (out.size() % 8 != 0) {
+      out.writeByte(0);
+    }
+  }
+
+  /**
+   * Creates a snapshot of the data of a view config.
+   * <p>
+   * Usage: FlowMapGraphSnapshot &lt;view config&gt; &lt;snapshot file&gt;
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: FlowMapGraphSnapshot <view config> <snapshot file>");
+      System.exit(1);
+    }
+    Object data = ViewConfig.load(args[0]).loadData();
+    if (!(data instanceof FlowMapGraph)) {
+      throw new IOException("The data of the view config is not a flow map graph");
+    }
+    write((FlowMapGraph)data, args[1], true);
+  }
+
+}
@@ -78,8 +78,34 @@ public class FlowMapNodeTotals {
   }
 
   public static void supplyNodesWithWeightTotals(FlowMapGraph flowMapGraph, List<String> attrNames) {
-    for (String weightAttrName : attrNames) {
-      supplyNodesWithWeightTotals(flowMapGraph, weightAttrName);
+    NodeWeightTotals totals = new NodeWeightTotals(flowMapGraph, attrNames);
+    totals.setEdges(flowMapGraph.edges());
+
+    Graph g = flowMapGraph.getGraph();
+    Table nodeTable = g.getNodeTable();
+    for (int attrIndex = 0; attrIndex < attrNames.size(); attrIndex++) {
+      String weightAttrName = attrNames.get(attrIndex);
+      String outgoingSumAttrName = getTotalWeightNodeAttr(weightAttrName, FlowDirection.OUTGOING);
+      String incomingSumAttrName = getTotalWeightNodeAttr(weightAttrName, FlowDirection.INCOMING);
+
+      if (!nodeTable.canSetDouble(outgoingSumAttrName)) {  // could be inherited with the schema
+        nodeTable.addColumn(outgoingSumAttrName, double.class);
+      }
+      if (!nodeTable.canSetDouble(incomingSumAttrName)) {
+        nodeTable.addColumn(incomingSumAttrName, double.class);
+      }
+
+      for (int i = 0, numNodes = g.getNodeCount(); i < numNodes; i++) {
+        Node node = g.getNode(i);
+        double outsum = totals.getTotal(node, attrIndex, FlowEndpoint.ORIGIN);
+        if (!Double.isNaN(outsum)) {
+          node.setDouble(outgoingSumAttrName, outsum);
+        }
+        double insum = totals.getTotal(node, attrIndex, FlowEndpoint.DEST);
+        if (!Double.isNaN(insum)) {
+          node.setDouble(incomingSumAttrName, insum);
+        }
+      }
     }
   }
 
@@ -94,7 +120,8 @@ public class FlowMapNodeTotals {
 
 
   /**
-   * Returns map nodeId->total value
+   * Returns map nodeId->total value. Use {@link NodeWeightTotals} to calculate
+   * the totals repeatedly for changing sets of edges.
    */
   public static Map<String, Double> calcNodeTotalsFor(
       FlowMapGraph fmg, Iterable<Edge> edges, String attrName, FlowEndpoint ep) {
@@ -117,61 +144,6 @@ public class FlowMapNodeTotals {
 
 
 
-  private static void supplyNodesWithWeightTotals(FlowMapGraph flowMapGraph,
-      String weightAttrName) {
-    Graph g = flowMapGraph.getGraph();
-    Table nodeTable = g.getNodeTable();
-
-    Map<Integer, Double> outsums = Maps.newHashMap();
-    Map<Integer, Double> insums = Maps.newHashMap();
-
-    for (int i = 0, numEdges = g.getEdgeCount(); i < numEdges; i++) {
-      Edge e = g.getEdge(i);
-
-      double v = e.getDouble(weightAttrName);
-      if (!Double.isNaN(v)) {
-        Node src = e.getSourceNode();
-        Node trg = e.getTargetNode();
-        int srcRow = src.getRow();
-        int trgRow = trg.getRow();
-
-        Double outsum = outsums.get(srcRow);
-        if (outsum == null) {
-          outsums.put(srcRow, v);
-        } else {
-          outsums.put(srcRow, outsum + v);
-        }
-
-        Double inval = insums.get(trgRow);
-        if (inval == null) {
-          insums.put(trgRow, v);
-        } else {
-          insums.put(trgRow, inval + v);
-        }
-      }
-    }
-
-    String outgoingSumAttrName = getTotalWeightNodeAttr(weightAttrName, FlowDirection.OUTGOING);
-    String incomingSumAttrName = getTotalWeightNodeAttr(weightAttrName, FlowDirection.INCOMING);
-
-    nodeTable.addColumn(outgoingSumAttrName, double.class);
-    nodeTable.addColumn(incomingSumAttrName, double.class);
-
-    for (int i = 0, numNodes = g.getNodeCount(); i < numNodes; i++) {
-      Node node = g.getNode(i);
-      if (outsums.containsKey(i)) {
-        node.setDouble(outgoingSumAttrName, outsums.get(i));
-      }
-      if (insums.containsKey(i)) {
-        node.setDouble(incomingSumAttrName, insums.get(i));
-      }
-    }
-  }
-
-
-
-
-
   // TODO: fix intrareg summaries to support wildcarded weight attrs
 
   public static void supplyNodesWithIntraregTotals(FlowMapGraphSet fmset, String nodeRegionAttr,
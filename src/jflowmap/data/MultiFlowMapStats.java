@@ -60,67 +60,11 @@ public class MultiFlowMapStats extends AbstractFlowMapStats {
 
 
   @Override
-  public SeqStat getEdgeWeightAttrStats(String weightAttr) {
-    throw new UnsupportedOperationException();
+  EdgeWeightStatsCalculator.WeightSource createEdgeWeightSource() {
+    return EdgeWeightStatsCalculator.sourceForGraphs(
+        flowMapGraphs, getAttrSpec().getFlowWeightAttrs());
   }
 
-  @Override
-  public SeqStat getEdgeWeightStats() {
-    return getEdgeAttrsStats(AttrKeys.EDGE_WEIGHT.name(),
-        new Function<FlowMapGraph, List<String>>() {
-          @Override
-          public List<String> apply(FlowMapGraph fmg) {
-            return fmg.getEdgeWeightAttrs();
-          }
-        }
-    );
-  }
-
-  protected SeqStat getEdgeAttrsStats(String key, final Function<FlowMapGraph, List<String>> getEdgeAttrs) {
-    return getCachedOrCalc(
-        key,
-        new AttrStatsCalculator() {
-          @Override public SeqStat calc() {
-            SeqStat minMax = null;
-            for (FlowMapGraph fmg : flowMapGraphs) {
-              SeqStat mm = TupleStats.createFor(fmg.getGraph().getEdges(), getEdgeAttrs.apply(fmg));
-              if (minMax == null) {
-                minMax = mm;
-              } else {
-                minMax = minMax.mergeWith(mm);
-              }
-            }
-            return minMax;
-          }
-        }
-    );
-  }
-
-  public SeqStat getEdgeWeightDiffStats() {
-    return getEdgeAttrsStats(AttrKeys.EDGE_WEIGHT_DIFF.name(),
-        new Function<FlowMapGraph, List<String>>() {
-          @Override
-          public List<String> apply(FlowMapGraph fmg) {
-            return fmg.getEdgeWeightDiffAttr();
-          }
-        }
-    );
-  }
-
-
-  public SeqStat getEdgeWeightRelativeDiffStats() {
-    return getEdgeAttrsStats(AttrKeys.EDGE_WEIGHT_DIFF_REL.name(),
-        new Function<FlowMapGraph, List<String>>() {
-          @Override
-          public List<String> apply(FlowMapGraph fmg) {
-            return fmg.getEdgeWeightRelativeDiffAttrNames();
-          }
-        }
-    );
-  }
-
-
-
   public SeqStat getNodeXStats() {
     return getAttrStats(Attrs.NODE_X);
   }
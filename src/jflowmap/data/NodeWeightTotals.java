@@ -0,0 +1,335 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.data;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jflowmap.FlowEndpoint;
+import jflowmap.FlowMapGraph;
+import prefuse.data.Edge;
+import prefuse.data.Graph;
+import prefuse.data.Node;
+import prefuse.data.Table;
+import prefuse.data.column.Column;
+import prefuse.util.collections.IntIterator;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+/**
+ * Totals of the edge weights for every node of a flow map graph, for several
+ * weight attrs and for both flow endpoints. The totals are kept in arrays indexed
+ * by node row, so that they can be obtained without building maps.
+ * <p>
+ * The totals are calculated for a set of edges which can be changed with
+ * {@link #setEdges(Iterable)}: only the edges which were added to or removed from the
+ * set are processed. The edges can also belong to other graphs (e.g. aggregated ones),
+ * their nodes are then matched with the nodes of the flow map graph by their ids.
+ * <p>
+ * As in {@link FlowMapNodeTotals#calcNodeTotalsFor}, the NaN weights are ignored
+ * and the total of a node with only NaN weights is NaN. The weights of the edges
+ * in the set mustn't change, call {@link #clear()} after changing them.
+ *
+ * @author Ilya Boyandin
+ */
+public class NodeWeightTotals {
+
+  private static final int NUM_ENDPOINTS = FlowEndpoint.values().length;
+
+  private final FlowMapGraph flowMapGraph;
+  private final List<String> attrs;
+  private final int numAttrs;
+
+  private final Map<String, Integer> nodeIdsToIndices = Maps.newHashMap();
+  private final Map<Table, int[]> nodeTableRowsToIndices = new IdentityHashMap<Table, int[]>();
+  private final Map<Table, EdgeSet> edgeSets = new IdentityHashMap<Table, EdgeSet>();
+
+  private int numNodeIndices;
+  private int numEdges;
+
+  // [endpoint][nodeIndex * numAttrs + attrIndex]
+  private double[][] totals;
+  private int[][] valueCounts;
+  // [endpoint][nodeIndex]
+  private int[][] edgeCounts;
+
+  public NodeWeightTotals(FlowMapGraph flowMapGraph, List<String> attrs) {
+    this.flowMapGraph = flowMapGraph;
+    this.attrs = ImmutableList.copyOf(attrs);
+    this.numAttrs = attrs.size();
+
+    Table nodeTable = flowMapGraph.getGraph().getNodeTable();
+    int[] ownRows = new int[nodeTable.getMaximumRow() + 1];
+    Arrays.fill(ownRows, -1);
+    for (IntIterator it = nodeTable.rows(); it.hasNext(); ) {
+      int row = it.nextInt();
+      ownRows[row] = row;
+      nodeIdsToIndices.put(nodeTable.getString(row, FlowMapGraph.GRAPH_NODE_ID_COLUMN), row);
+    }
+    nodeTableRowsToIndices.put(nodeTable, ownRows);
+    numNodeIndices = ownRows.length;
+
+    int capacity = Math.max(numNodeIndices, 16);
+    totals = new double[NUM_ENDPOINTS][capacity * numAttrs];
+    valueCounts = new int[NUM_ENDPOINTS][capacity * numAttrs];
+    edgeCounts = new int[NUM_ENDPOINTS][capacity];
+  }
+
+  public FlowMapGraph getFlowMapGraph() {
+    return flowMapGraph;
+  }
+
+  public List<String> getAttrs() {
+    return attrs;
+  }
+
+  public int getNumberOfEdges() {
+    return numEdges;
+  }
+
+  /**
+   * @return Total of the weights of the node's edges or NaN if the node has no
+   *         edges in the set or all of their weights are NaN
+   */
+  public double getTotal(Node node, int attrIndex, FlowEndpoint ep) {
+    return getTotalByIndex(nodeIndexOf(node.getTable(), node.getRow()), attrIndex, ep);
+  }
+
+  public double getTotal(String nodeId, int attrIndex, FlowEndpoint ep) {
+    Integer index = nodeIdsToIndices.get(nodeId);
+    return (index == null ? Double.NaN : getTotalByIndex(index, attrIndex, ep));
+  }
+
+  private double getTotalByIndex(int nodeIndex, int attrIndex, FlowEndpoint ep) {
+    int i = nodeIndex * numAttrs + attrIndex;
+    if (valueCounts[ep.ordinal()][i] == 0) {
+      return Double.NaN;
+    }
+    return totals[ep.ordinal()][i];
+  }
+
+  /**
+   * @return Number of the edges in the set having the node as the endpoint
+   */
+  public int getNumberOfEdges(Node node, FlowEndpoint ep) {
+    return edgeCounts[ep.ordinal()][nodeIndexOf(node.getTable(), node.getRow())];
+  }
+
+  /**
+   * @return Stats of the totals of the nodes which have edges in the set
+   */
+  public SeqStat getTotalsStats(int attrIndex, FlowEndpoint ep) {
+    int e = ep.ordinal();
+    SeqStatAccumulator acc = new SeqStatAccumulator();
+    for (int nodeIndex = 0; nodeIndex < numNodeIndices; nodeIndex++) {
+      if (edgeCounts[e][nodeIndex] > 0) {
+        acc.add(getTotalByIndex(nodeIndex, attrIndex, ep));
+      }
+    }
+    return acc.toSeqStat();
+  }
+
+  /**
+   * Removes all the edges from the set.
+   */
+  public void clear() {
+    for (int e = 0; e < NUM_ENDPOINTS; e++) {
+      Arrays.fill(totals[e], 0);
+      Arrays.fill(valueCounts[e], 0);
+      Arrays.fill(edgeCounts[e], 0);
+    }
+    for (EdgeSet edgeSet : edgeSets.values()) {
+      edgeSet.rows.clear();
+    }
+    numEdges = 0;
+  }
+
+  /**
+   * Replaces the set of the edges for which the totals are calculated. Only the
+   * difference to the current set is processed, unless it's bigger than the new set.
+   */
+  public void setEdges(Iterable<Edge> edges) {
+    Map<EdgeSet, BitSet> next = new IdentityHashMap<EdgeSet, BitSet>();
+    int size = 0, numAdded = 0;
+    for (Edge edge : edges) {
+      EdgeSet edgeSet = edgeSetOf(edge);
+      BitSet rows = next.get(edgeSet);
+      if (rows == null) {
+        rows = new BitSet();
+        next.put(edgeSet, rows);
+      }
+      int row = edge.getRow();
+      if (!rows.get(row)) {
+        rows.set(row);
+        size++;
+        if (!edgeSet.rows.get(row)) {
+          numAdded++;
+        }
+      }
+    }
+    int numRemoved = numEdges - (size - numAdded);
+
+    if (numAdded + numRemoved > size) {
+      clear();
+    } else {
+      for (EdgeSet edgeSet : edgeSets.values()) {
+        BitSet nextRows = next.get(edgeSet);
+        BitSet current = edgeSet.rows;
+        for (int row = current.nextSetBit(0); row >= 0; row = current.nextSetBit(row + 1)) {
+          if (nextRows == null  ||  !nextRows.get(row)) {
+            update(edgeSet, row, -1);
+          }
+        }
+      }
+    }
+    for (Map.Entry<EdgeSet, BitSet> entry : next.entrySet()) {
+      EdgeSet edgeSet = entry.getKey();
+      BitSet rows = entry.getValue();
+      for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+        if (!edgeSet.rows.get(row)) {
+          update(edgeSet, row, +1);
+        }
+      }
+    }
+  }
+
+  public void addEdge(Edge edge) {
+    EdgeSet edgeSet = edgeSetOf(edge);
+    if (!edgeSet.rows.get(edge.getRow())) {
+      update(edgeSet, edge.getRow(), +1);
+    }
+  }
+
+  public void removeEdge(Edge edge) {
+    EdgeSet edgeSet = edgeSetOf(edge);
+    if (edgeSet.rows.get(edge.getRow())) {
+      update(edgeSet, edge.getRow(), -1);
+    }
+  }
+
+  private void update(EdgeSet edgeSet, int edgeRow, int sign) {
+    Graph graph = edgeSet.graph;
+    Table nodeTable = graph.getNodeTable();
+    int src = nodeIndexOf(nodeTable, graph.getSourceNode(edgeRow));
+    int target = nodeIndexOf(nodeTable, graph.getTargetNode(edgeRow));
+
+    edgeCounts[FlowEndpoint.ORIGIN.ordinal()][src] += sign;
+    edgeCounts[FlowEndpoint.DEST.ordinal()][target] += sign;
+
+    double[] srcTotals = totals[FlowEndpoint.ORIGIN.ordinal()];
+    double[] targetTotals = totals[FlowEndpoint.DEST.ordinal()];
+    int[] srcCounts = valueCounts[FlowEndpoint.ORIGIN.ordinal()];
+    int[] targetCounts = valueCounts[FlowEndpoint.DEST.ordinal()];
+    for (int attrIndex = 0; attrIndex < numAttrs; attrIndex++) {
+      Column column = edgeSet.columns[attrIndex];
+      if (column == null) {
+        continue;
+      }
+      double v = column.getDouble(edgeRow);
+      if (!Double.isNaN(v)) {
+        add(srcTotals, srcCounts, src * numAttrs + attrIndex, v, sign);
+        add(targetTotals, targetCounts, target * numAttrs + attrIndex, v, sign);
+      }
+    }
+
+    edgeSet.rows.set(edgeRow, sign > 0);
+    numEdges += sign;
+  }
+
+  private static void add(double[] totals, int[] counts, int i, double v, int sign) {
+    counts[i] += sign;
+    if (counts[i] == 0) {
+      totals[i] = 0;  // don't let the rounding errors accumulate
+    } else {
+      totals[i] += sign * v;
+    }
+  }
+
+  private EdgeSet edgeSetOf(Edge edge) {
+    Table edgeTable = edge.getTable();
+    EdgeSet edgeSet = edgeSets.get(edgeTable);
+    if (edgeSet == null) {
+      edgeSet = new EdgeSet(edge.getGraph(), edgeTable);
+      edgeSets.put(edgeTable, edgeSet);
+    }
+    return edgeSet;
+  }
+
+  private int nodeIndexOf(Table nodeTable, int nodeRow) {
+    int[] indices = nodeTableRowsToIndices.get(nodeTable);
+    if (indices == null  ||  nodeRow >= indices.length  ||  indices[nodeRow] < 0) {
+      indices = mapNodeRows(nodeTable, indices);
+    }
+    return indices[nodeRow];
+  }
+
+  /**
+   * Matches the rows of the node table with the node indices by the ids of the nodes.
+   */
+  private int[] mapNodeRows(Table nodeTable, int[] indices) {
+    int oldLength = (indices == null ? 0 : indices.length);
+    int length = Math.max(oldLength, nodeTable.getMaximumRow() + 1);
+    indices = (indices == null ? new int[length] : Arrays.copyOf(indices, length));
+    Arrays.fill(indices, oldLength, length, -1);
+    for (int row = 0; row < length; row++) {
+      if (indices[row] < 0  &&  nodeTable.isValidRow(row)) {
+        String nodeId = nodeTable.getString(row, FlowMapGraph.GRAPH_NODE_ID_COLUMN);
+        Integer index = nodeIdsToIndices.get(nodeId);
+        if (index == null) {
+          index = numNodeIndices++;
+          nodeIdsToIndices.put(nodeId, index);
+          ensureCapacity(numNodeIndices);
+        }
+        indices[row] = index;
+      }
+    }
+    nodeTableRowsToIndices.put(nodeTable, indices);
+    return indices;
+  }
+
+  private void ensureCapacity(int numNodes) {
+    if (numNodes > edgeCounts[0].length) {
+      int capacity = Math.max(numNodes, edgeCounts[0].length * 2);
+      for (int e = 0; e < NUM_ENDPOINTS; e++) {
+        totals[e] = Arrays.copyOf(totals[e], capacity * numAttrs);
+        valueCounts[e] = Arrays.copyOf(valueCounts[e], capacity * numAttrs);
+        edgeCounts[e] = Arrays.copyOf(edgeCounts[e], capacity);
+      }
+    }
+  }
+
+  private class EdgeSet {
+    final Graph graph;
+    final Column[] columns;
+    final BitSet rows = new BitSet();
+
+    EdgeSet(Graph graph, Table edgeTable) {
+      this.graph = graph;
+      this.columns = new Column[numAttrs];
+      for (int i = 0; i < numAttrs; i++) {
+        columns[i] = edgeTable.getColumn(attrs.get(i));  // null if there is none
+      }
+    }
+  }
+
+}
@@ -0,0 +1,647 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.data;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jflowmap.FlowMapAttrSpec;
+import jflowmap.util.IOUtils;
+
+import org.apache.log4j.Logger;
+
+import prefuse.data.column.Column;
+import au.com.bytecode.opencsv.CSVParser;
+import au.com.bytecode.opencsv.CSVReader;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Reads the flows CSV file of a flow map graph. The file is read in chunks of
+ * about {@link #CHUNK_SIZE} characters which are cut at the last record boundary,
+ * the rest is carried over to the next chunk. The chunks are parsed concurrently
+ * into primitive arrays by column index, and only a limited number of them is read
+ * ahead, so the file is never kept in memory as a whole. The parsed chunks are then
+ * added to the graph builder in the order of the file, so the result is the same
+ * as if the lines were added one by one.
+ *
+ * Records containing quotes or escape characters are parsed with opencsv,
+ * all the others are split directly.
+ *
+ * @author Ilya Boyandin
+ */
+class ParallelCsvFlowsReader {
+
+  private static Logger logger = Logger.getLogger(ParallelCsvFlowsReader.class);
+
+  private static final int CHUNK_SIZE = 1 << 20;
+  /** The maximum number of chunks per thread which are read, but not parsed yet */
+  private static final int CHUNKS_PER_THREAD = 2;
+
+  private static final char QUOTE = CSVParser.DEFAULT_QUOTE_CHARACTER;
+  private static final char ESCAPE = CSVParser.DEFAULT_ESCAPE_CHARACTER;
+
+  private static final byte EMPTY = 0;
+  private static final byte NUMBER = 1;
+  private static final byte STRING = 2;
+
+  private final FlowMapGraphBuilder builder;
+  private final FlowMapAttrSpec attrSpec;
+  private final String location;
+  private final char separator;
+  private final int chunkSize;
+
+  private int srcCol;
+  private int targetCol;
+  private int[] weightCols;
+  private String[] customAttrs;
+  private int[] customCols;
+  private int minNumOfFields;
+
+  private ParallelCsvFlowsReader(FlowMapGraphBuilder builder, FlowMapAttrSpec attrSpec,
+      String location, char separator, int chunkSize) {
+    this.builder = builder;
+    this.attrSpec = attrSpec;
+    this.location = location;
+    this.separator = separator;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Reads the flows from the given location and adds them to the builder.
+   * The nodes must already have been added.
+   */
+  static void readFlows(FlowMapGraphBuilder builder, FlowMapAttrSpec attrSpec,
+      String location, char separator, String charset, int numThreads) throws IOException {
+    readFlows(builder, attrSpec, location, separator, charset, numThreads, CHUNK_SIZE);
+  }
+
+  /**
+   * @param chunkSize The number of characters read at once, a chunk is longer
+   *        only if a single record doesn't fit in it
+   */
+  static void readFlows(FlowMapGraphBuilder builder, FlowMapAttrSpec attrSpec,
+      String location, char separator, String charset, int numThreads, int chunkSize)
+  throws IOException {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("chunkSize must be at least 1");
+    }
+    new ParallelCsvFlowsReader(builder, attrSpec, location, separator, chunkSize)
+        .read(charset, numThreads);
+  }
+
+  private void read(String charset, int numThreads) throws IOException {
+    logger.info("Parsing CSV '" + location + "' using " + numThreads + " threads");
+    Reader in = new InputStreamReader(IOUtils.asInputStream(location), charset);
+    ExecutorService executor = null;
+    try {
+      ChunkReader reader = new ChunkReader(in);
+      String[] header = null;
+      List<ChunkParser> parsers = Lists.newArrayList();
+      List<Future<ChunkParser>> futures = Lists.newArrayList();
+      int numDone = 0;
+      Chunk chunk;
+      while ((chunk = reader.next()) != null) {
+        if (header == null) {
+          int headerEnd = recordEnd(chunk.text, chunk.start, chunk.end);
+          header = parseRecord(chunk.text, chunk.start, headerEnd);
+          chunk = new Chunk(chunk.text, nextRecordStart(chunk.text, headerEnd, chunk.end), chunk.end,
+              chunk.firstLine + 1, chunk.numOfLines - 1);
+        }
+        if (chunk.numOfLines == 0) {
+          continue;
+        }
+        if (parsers.isEmpty()) {
+          initColumns(header);
+        }
+        ChunkParser parser = new ChunkParser(chunk);
+        parsers.add(parser);
+        if (numThreads == 1) {
+          parser.call();
+        } else if (parsers.size() > 1) {
+          if (executor == null) {
+            executor = Executors.newFixedThreadPool(numThreads, new WorkerThreadFactory());
+            futures.add(executor.submit(parsers.get(0)));
+          }
+          futures.add(executor.submit(parser));
+          // don't read further ahead than the threads can parse
+          while (futures.size() - numDone > numThreads * CHUNKS_PER_THREAD) {
+            getResult(futures.get(numDone++));
+          }
+        }
+      }
+      if (parsers.isEmpty()) {
+        return;  // no flows
+      }
+      if (executor != null) {
+        while (numDone < futures.size()) {
+          getResult(futures.get(numDone++));
+        }
+      } else if (numThreads > 1) {
+        parsers.get(0).call();  // only one chunk
+      }
+      addToBuilder(parsers);
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+      try { in.close(); } catch (IOException ioe) {}
+    }
+  }
+
+  /**
+   * @return The end of the record starting at pos (exclusive, without the line terminator)
+   *         or length if it isn't terminated. Line breaks within quoted fields belong to the record.
+   */
+  private static int recordEnd(char[] text, int pos, int length) {
+    boolean inQuotes = false;
+    for (int i = pos; i < length; i++) {
+      char c = text[i];
+      if (c == QUOTE) {
+        inQuotes = !inQuotes;
+      } else if (c == ESCAPE) {
+        if (inQuotes  &&  i + 1 < length  &&
+            (text[i + 1] == QUOTE  ||  text[i + 1] == ESCAPE)) {
+          i++;  // escaped character
+        }
+      } else if ((c == '\n'  ||  c == '\r')  &&  !inQuotes) {
+        return i;
+      }
+    }
+    return length;
+  }
+
+  private static int nextRecordStart(char[] text, int recordEnd, int length) {
+    int i = recordEnd;
+    if (i < length  &&  text[i] == '\r') {
+      i++;
+    }
+    if (i < length  &&  text[i] == '\n') {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * Whole records [start, end) of the file in text.
+   */
+  private static class Chunk {
+    final char[] text;
+    final int start, end;
+    final int firstLine;
+    final int numOfLines;
+    Chunk(char[] text, int start, int end, int firstLine, int numOfLines) {
+      this.text = text;
+      this.start = start;
+      this.end = end;
+      this.firstLine = firstLine;
+      this.numOfLines = numOfLines;
+    }
+  }
+
+  /**
+   * Reads the input in chunks of whole records. The incomplete record at the end
+   * of the characters read is carried over to the next chunk.
+   */
+  private class ChunkReader {
+    private final Reader in;
+    private char[] buf = new char[chunkSize];
+    private int length;
+    private boolean eof;
+    private int nextLine = 1;
+
+    ChunkReader(Reader in) {
+      this.in = in;
+    }
+
+    /**
+     * @return The next chunk or null if the end of the input is reached
+     */
+    Chunk next() throws IOException {
+      while (true) {
+        while (!eof  &&  length < buf.length) {
+          int n = in.read(buf, length, buf.length - length);
+          if (n < 0) {
+            eof = true;
+          } else {
+            length += n;
+          }
+        }
+        if (length == 0) {
+          return null;
+        }
+        int numOfLines = 0;
+        int pos = 0;
+        while (pos < length) {
+          int end = recordEnd(buf, pos, length);
+          if (!eof  &&  (end == length  ||  (end == length - 1  &&  buf[end] == '\r'))) {
+            break;  // the record or its line terminator can continue in the next chunk
+          }
+          pos = nextRecordStart(buf, end, length);
+          numOfLines++;
+        }
+        if (pos == 0) {
+          buf = Arrays.copyOf(buf, buf.length * 2);  // a record longer than the chunk
+          continue;
+        }
+        Chunk chunk = new Chunk(buf, 0, pos, nextLine, numOfLines);
+        nextLine += numOfLines;
+        char[] rest = new char[Math.max(chunkSize, (length - pos) * 2)];
+        System.arraycopy(buf, pos, rest, 0, length - pos);
+        buf = rest;
+        length -= pos;
+        return chunk;
+      }
+    }
+  }
+
+  private void initColumns(String[] header) throws IOException {
+    Map<String, Integer> colsByName = Maps.newHashMap();
+    for (int i = 0; i < header.length; i++) {
+      colsByName.put(header[i], i);
+    }
+    srcCol = requireColumn(attrSpec.getFlowSrcNodeAttr(), colsByName);
+    targetCol = requireColumn(attrSpec.getFlowTargetNodeAttr(), colsByName);
+    minNumOfFields = Math.max(srcCol, targetCol) + 1;
+
+    List<String> weightAttrs = attrSpec.getFlowWeightAttrs();
+    weightCols = new int[weightAttrs.size()];
+    for (int i = 0; i < weightCols.length; i++) {
+      weightCols[i] = requireColumn(weightAttrs.get(i), colsByName);
+      minNumOfFields = Math.max(minNumOfFields, weightCols[i] + 1);
+    }
+
+    List<String> custom = Lists.newArrayList();
+    for (String attr : colsByName.keySet()) {
+      if (!attrSpec.isRequiredFlowAttr(attr)) {
+        custom.add(attr);
+      }
+    }
+    customAttrs = custom.toArray(new String[custom.size()]);
+    customCols = new int[customAttrs.length];
+    for (int i = 0; i < customCols.length; i++) {
+      customCols[i] = colsByName.get(customAttrs[i]);
+      minNumOfFields = Math.max(minNumOfFields, customCols[i] + 1);
+    }
+  }
+
+  private int requireColumn(String attr, Map<String, Integer> colsByName) throws IOException {
+    Integer col = colsByName.get(attr);
+    if (col == null) {
+      throw new IOException(
+          "Error loading '" + location + "' (line 2): No value for column '" + attr + "'");
+    }
+    return col;
+  }
+
+  /**
+   * Parses a record with opencsv. Used for the header and for the records
+   * containing quotes or escape characters.
+   */
+  private String[] parseRecord(char[] text, int start, int end) throws IOException {
+    CSVReader csv = new CSVReader(
+        new StringReader(new String(text, start, end - start)), separator);
+    try {
+      String[] fields = csv.readNext();
+      return (fields != null ? fields : new String[] { "" });
+    } finally {
+      csv.close();
+    }
+  }
+
+  /**
+   * Parses the records of a chunk into primitive arrays.
+   */
+  private class ChunkParser implements Callable<ChunkParser> {
+    private Chunk chunk;
+    private char[] text;
+
+    int count;
+    final int[] srcRows;
+    final int[] targetRows;
+    final double[][] weights;
+
+    final byte[][] customKinds;
+    final double[][] customNumbers;
+    final String[][] customStrings;
+    final int[] firstNumberLine;
+    final int[] firstStringLine;
+
+    // the fields of the current record are [fieldStarts[i], fieldEnds[i]) in fieldChars
+    private char[] fieldChars;
+    private int[] fieldStarts = new int[16];
+    private int[] fieldEnds = new int[16];
+    private int numOfFields;
+
+    ChunkParser(Chunk chunk) {
+      this.chunk = chunk;
+      int maxCount = chunk.numOfLines;
+      srcRows = new int[maxCount];
+      targetRows = new int[maxCount];
+      weights = new double[weightCols.length][maxCount];
+      customKinds = new byte[customCols.length][maxCount];
+      customNumbers = new double[customCols.length][];
+      customStrings = new String[customCols.length][];
+      firstNumberLine = new int[customCols.length];
+      firstStringLine = new int[customCols.length];
+      Arrays.fill(firstNumberLine, Integer.MAX_VALUE);
+      Arrays.fill(firstStringLine, Integer.MAX_VALUE);
+    }
+
+    public ChunkParser call() throws IOException {
+      text = chunk.text;
+      int line = chunk.firstLine;
+      int pos = chunk.start;
+      while (pos < chunk.end) {
+        int end = recordEnd(text, pos, chunk.end);
+        if (end > pos) {   // skip empty lines
+          try {
+            splitFields(pos, end);
+            parseFields(line);
+          } catch (IllegalArgumentException iae) {
+            throw new IOException(
+                "Error loading '" + location + "' (line " + line + "): " + iae.getMessage(), iae);
+          }
+        }
+        pos = nextRecordStart(text, end, chunk.end);
+        line++;
+      }
+      // release the text of the chunk
+      chunk = null;
+      text = null;
+      fieldChars = null;
+      return this;
+    }
+
+    private void splitFields(int start, int end) throws IOException {
+      for (int i = start; i < end; i++) {
+        if (text[i] == QUOTE  ||  text[i] == ESCAPE) {
+          splitFieldsWithOpenCsv(start, end);
+          return;
+        }
+      }
+      fieldChars = text;
+      numOfFields = 0;
+      int fieldStart = start;
+      for (int i = start; i < end; i++) {
+        if (text[i] == separator) {
+          addField(fieldStart, i);
+          fieldStart = i + 1;
+        }
+      }
+      addField(fieldStart, end);
+    }
+
+    private void splitFieldsWithOpenCsv(int start, int end) throws IOException {
+      String[] fields = parseRecord(text, start, end);
+      StringBuilder sb = new StringBuilder();
+      numOfFields = 0;
+      for (String field : fields) {
+        addField(sb.length(), sb.length() + field.length());
+        sb.append(field);
+      }
+      fieldChars = sb.toString().toCharArray();
+    }
+
+    private void addField(int start, int end) {
+      if (numOfFields == fieldStarts.length) {
+        fieldStarts = Arrays.copyOf(fieldStarts, numOfFields * 2);
+        fieldEnds = Arrays.copyOf(fieldEnds, numOfFields * 2);
+      }
+      fieldStarts[numOfFields] = start;
+      fieldEnds[numOfFields] = end;
+      numOfFields++;
+    }
+
+    private String fieldValue(int col) {
+      return new String(fieldChars, fieldStarts[col], fieldEnds[col] - fieldStarts[col]);
+    }
+
+    private void parseFields(int line) {
+      if (numOfFields < minNumOfFields) {
+        throw new IllegalArgumentException(
+            "Expected at least " + minNumOfFields + " columns, found " + numOfFields);
+      }
+      int i = count;
+      srcRows[i] = requireNodeRow(fieldValue(srcCol));
+      targetRows[i] = requireNodeRow(fieldValue(targetCol));
+      for (int k = 0; k < weightCols.length; k++) {
+        weights[k][i] = parseWeight(weightCols[k]);
+      }
+      for (int k = 0; k < customCols.length; k++) {
+        parseCustomValue(k, i, line);
+      }
+      count++;
+    }
+
+    private int requireNodeRow(String nodeId) {
+      int row = builder.getNodeRow(nodeId);
+      if (row < 0) {
+        throw new IllegalArgumentException("Node could not be found by id '" + nodeId + "'");
+      }
+      return row;
+    }
+
+    private double parseWeight(int col) {
+      int start = trimStart(col), end = trimEnd(col);
+      if (start >= end) {
+        return Double.NaN;
+      }
+      try {
+        return parseNumber(start, end);
+      } catch (NumberFormatException nfe) {
+        throw new IllegalArgumentException("Cannot parse number '" + fieldValue(col) + "'");
+      }
+    }
+
+    private void parseCustomValue(int k, int i, int line) {
+      int col = customCols[k];
+      int start = trimStart(col), end = trimEnd(col);
+      if (start >= end) {
+        customKinds[k][i] = EMPTY;
+        return;
+      }
+      if (isNumberStart(fieldChars[start])) {
+        try {
+          double value = parseNumber(start, end);
+          if (customNumbers[k] == null) {
+            customNumbers[k] = new double[customKinds[k].length];
+          }
+          customNumbers[k][i] = value;
+          customKinds[k][i] = NUMBER;
+          firstNumberLine[k] = Math.min(firstNumberLine[k], line);
+          return;
+        } catch (NumberFormatException nfe) {
+          // not a number
+        }
+      }
+      if (customStrings[k] == null) {
+        customStrings[k] = new String[customKinds[k].length];
+      }
+      customStrings[k][i] = fieldValue(col);
+      customKinds[k][i] = STRING;
+      firstStringLine[k] = Math.min(firstStringLine[k], line);
+    }
+
+    private double parseNumber(int start, int end) {
+      double value = StaxGraphMLReader.parseDecimal(fieldChars, start, end);
+      if (Double.isNaN(value)) {
+        value = Double.parseDouble(new String(fieldChars, start, end - start));
+      }
+      return value;
+    }
+
+    private int trimStart(int col) {
+      int i = fieldStarts[col], end = fieldEnds[col];
+      while (i < end  &&  fieldChars[i] <= ' ') {
+        i++;
+      }
+      return i;
+    }
+
+    private int trimEnd(int col) {
+      int start = fieldStarts[col], i = fieldEnds[col];
+      while (i > start  &&  fieldChars[i - 1] <= ' ') {
+        i--;
+      }
+      return i;
+    }
+  }
+
+  /**
+   * Only these characters can start a text accepted by {@link Double#parseDouble}
+   * (including "NaN" and "Infinity"), so for other values we can avoid the exception.
+   */
+  private static boolean isNumberStart(char c) {
+    return (c >= '0'  &&  c <= '9')  ||  c == '-'  ||  c == '+'  ||  c == '.'  ||
+            c == 'N'  ||  c == 'I';
+  }
+
+  private void addToBuilder(List<ChunkParser> parsers) throws IOException {
+    final int[] firstNumberLines = new int[customAttrs.length];
+    final int[] firstStringLines = new int[customAttrs.length];
+    List<Integer> customIndices = Lists.newArrayList();
+    for (int k = 0; k < customAttrs.length; k++) {
+      firstNumberLines[k] = firstStringLines[k] = Integer.MAX_VALUE;
+      for (ChunkParser parser : parsers) {
+        firstNumberLines[k] = Math.min(firstNumberLines[k], parser.firstNumberLine[k]);
+        firstStringLines[k] = Math.min(firstStringLines[k], parser.firstStringLine[k]);
+      }
+      customIndices.add(k);
+    }
+    // Add the columns in the order in which their first values appear, like addEdge(Map) does
+    Collections.sort(customIndices, new Comparator<Integer>() {
+      public int compare(Integer k1, Integer k2) {
+        return Integer.valueOf(Math.min(firstNumberLines[k1], firstStringLines[k1]))
+            .compareTo(Math.min(firstNumberLines[k2], firstStringLines[k2]));
+      }
+    });
+
+    // The type of a custom column is determined by its first non-empty value
+    Column[] customColumns = new Column[customAttrs.length];
+    for (int k : customIndices) {
+      int firstNumberLine = firstNumberLines[k], firstStringLine = firstStringLines[k];
+      if (firstNumberLine == Integer.MAX_VALUE  &&  firstStringLine == Integer.MAX_VALUE) {
+        continue;  // no values
+      }
+      boolean isNumber = (firstNumberLine < firstStringLine);
+      int conflictLine = Math.max(firstNumberLine, firstStringLine);
+      if (conflictLine != Integer.MAX_VALUE) {
+        throw new IOException("Error loading '" + location + "' (line " + conflictLine + "): " +
+            "Column '" + customAttrs[k] + "' contains both numbers and strings");
+      }
+      try {
+        customColumns[k] = builder.requireEdgeColumn(
+            customAttrs[k], isNumber ? double.class : String.class);
+      } catch (IllegalArgumentException iae) {
+        throw new IOException("Error loading '" + location + "': " + iae.getMessage(), iae);
+      }
+    }
+
+    for (ChunkParser parser : parsers) {
+      int[] rows = builder.addEdges(
+          parser.srcRows, parser.targetRows, parser.weights, parser.count);
+      for (int k = 0; k < customColumns.length; k++) {
+        Column column = customColumns[k];
+        if (column == null) {
+          continue;
+        }
+        byte[] kinds = parser.customKinds[k];
+        builder.setEdgeColumnEventsEnabled(column, false);
+        try {
+          for (int i = 0; i < parser.count; i++) {
+            switch (kinds[i]) {
+              case NUMBER: column.setDouble(parser.customNumbers[k][i], rows[i]); break;
+              case STRING: column.set(parser.customStrings[k][i], rows[i]); break;
+            }
+          }
+        } finally {
+          builder.setEdgeColumnEventsEnabled(column, true);
+        }
+      }
+    }
+  }
+
+  private static class WorkerThreadFactory implements ThreadFactory {
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "CSV-reader-worker-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+  private static <T> T getResult(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading CSV", ie);
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+}
@@ -0,0 +1,318 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.data;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import prefuse.data.Edge;
+import prefuse.data.Graph;
+import prefuse.data.column.Column;
+import prefuse.util.collections.IntIterator;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Groups the edges of a graph by the values of a group function and calculates
+ * for every group the sorted ranks of its distinct source and target nodes and
+ * the sums of several double columns.
+ * <p>
+ * The group keys are calculated in parallel for consecutive chunks of edges. Then
+ * the edges are partitioned by the hash codes of their keys, so that every thread
+ * groups and aggregates all the edges with the keys of its partition. The groups are
+ * returned in the order of their first edges and the edges of a group are in the order
+ * of their rows, so the result doesn't depend on the number of threads.
+ * <p>
+ * The group function must be safe to call concurrently for different edges.
+ *
+ * @author Ilya Boyandin
+ */
+class ParallelEdgeGroupBy {
+
+  private static final int MIN_EDGES_PER_THREAD = 1 << 12;
+
+  static class Group {
+    final Object key;
+    private int[] edgeRows = new int[4];
+    private int numEdges;
+    int[] srcNodeRanks;
+    int[] targetNodeRanks;
+    double[] sums;
+
+    private Group(Object key) {
+      this.key = key;
+    }
+
+    private void add(int edgeRow) {
+      if (numEdges == edgeRows.length) {
+        edgeRows = Arrays.copyOf(edgeRows, numEdges * 2);
+      }
+      edgeRows[numEdges++] = edgeRow;
+    }
+
+    int getNumEdges() {
+      return numEdges;
+    }
+
+    int getEdgeRow(int index) {
+      return edgeRows[index];
+    }
+  }
+
+  private final Graph graph;
+  private final Function<Edge, Object> groupFunction;
+  private final int[] nodeRanks;
+  private final Column[] sumColumns;
+  private final int numThreads;
+
+  private int[] edgeRows;
+  private Object[] keys;
+  private int[] partitions;
+
+  /**
+   * @param nodeRanks Unique ranks of the node rows defining the order in which
+   *          the distinct nodes of the groups are listed
+   * @param sumColumns Columns of the edge table for which the sums of the non-NaN values
+   *          are calculated (NaN if all of them are NaN)
+   */
+  ParallelEdgeGroupBy(Graph graph, Function<Edge, Object> groupFunction, int[] nodeRanks,
+      Column[] sumColumns, int numThreads) {
+    this.graph = graph;
+    this.groupFunction = groupFunction;
+    this.nodeRanks = nodeRanks;
+    this.sumColumns = sumColumns;
+    this.numThreads = numThreads;
+  }
+
+  List<Group> run() {
+    edgeRows = new int[graph.getEdgeCount()];
+    int count = 0;
+    for (IntIterator it = graph.getEdgeTable().rows(); it.hasNext(); ) {
+      int row = it.nextInt();
+      graph.getEdge(row);  // create the tuples before accessing them concurrently
+      edgeRows[count++] = row;
+    }
+    for (int i = 0, n = graph.getNodeTable().getMaximumRow(); i <= n; i++) {
+      if (graph.getNodeTable().isValidRow(i)) {
+        graph.getNode(i);
+      }
+    }
+
+    int threads = Math.max(1, Math.min(numThreads, edgeRows.length / MIN_EDGES_PER_THREAD));
+    keys = new Object[edgeRows.length];
+    partitions = new int[edgeRows.length];
+
+    List<Callable<Void>> keyTasks = Lists.newArrayList();
+    int chunkSize = (edgeRows.length + threads - 1) / threads;
+    for (int start = 0; start < edgeRows.length; start += chunkSize) {
+      int end = Math.min(start + chunkSize, edgeRows.length);
+      keyTasks.add(new KeysCalculator(start, end, threads));
+    }
+    List<Partition> partitionTasks = Lists.newArrayList();
+    for (int p = 0; p < threads; p++) {
+      partitionTasks.add(new Partition(p));
+    }
+
+    if (threads > 1) {
+      ExecutorService executor = Executors.newFixedThreadPool(threads, new WorkerThreadFactory());
+      try {
+        invokeAll(executor, keyTasks);
+        invokeAll(executor, partitionTasks);
+      } finally {
+        executor.shutdownNow();
+      }
+    } else {
+      for (Callable<Void> task : keyTasks) {
+        call(task);
+      }
+      for (Partition task : partitionTasks) {
+        task.call();
+      }
+    }
+    keys = null;
+    partitions = null;
+
+    List<Group> groups = Lists.newArrayList();
+    for (Partition partition : partitionTasks) {
+      groups.addAll(partition.groups.values());
+    }
+    Collections.sort(groups, new Comparator<Group>() {
+      @Override
+      public int compare(Group g1, Group g2) {
+        int r1 = g1.getEdgeRow(0), r2 = g2.getEdgeRow(0);
+        return (r1 < r2 ? -1 : (r1 == r2 ? 0 : 1));
+      }
+    });
+    return groups;
+  }
+
+  private class KeysCalculator implements Callable<Void> {
+    private final int start, end, numPartitions;
+
+    public KeysCalculator(int start, int end, int numPartitions) {
+      this.start = start;
+      this.end = end;
+      this.numPartitions = numPartitions;
+    }
+
+    @Override
+    public Void call() {
+      for (int i = start; i < end; i++) {
+        Object key = groupFunction.apply(graph.getEdge(edgeRows[i]));
+        keys[i] = key;
+        int hash = (key == null ? 0 : key.hashCode());
+        hash ^= (hash >>> 16);
+        partitions[i] = (hash & Integer.MAX_VALUE) % numPartitions;
+      }
+      return null;
+    }
+  }
+
+  private class Partition implements Callable<Void> {
+    private final int partition;
+    private final Map<Object, Group> groups = Maps.newLinkedHashMap();
+
+    public Partition(int partition) {
+      this.partition = partition;
+    }
+
+    @Override
+    public Void call() {
+      for (int i = 0; i < edgeRows.length; i++) {
+        if (partitions[i] == partition) {
+          Object key = keys[i];
+          Group group = groups.get(key);
+          if (group == null) {
+            group = new Group(key);
+            groups.put(key, group);
+          }
+          group.add(edgeRows[i]);
+        }
+      }
+      for (Group group : groups.values()) {
+        aggregate(group);
+      }
+      return null;
+    }
+  }
+
+  private void aggregate(Group group) {
+    int n = group.numEdges;
+    int[] src = new int[n], target = new int[n];
+    for (int i = 0; i < n; i++) {
+      src[i] = graph.getSourceNode(group.edgeRows[i]);
+      target[i] = graph.getTargetNode(group.edgeRows[i]);
+    }
+    group.srcNodeRanks = distinctRanks(src);
+    group.targetNodeRanks = distinctRanks(target);
+
+    double[] sums = new double[sumColumns.length];
+    for (int c = 0; c < sumColumns.length; c++) {
+      Column column = sumColumns[c];
+      double sum = 0;
+      int cnt = 0;
+      for (int i = 0; i < n; i++) {
+        double v = column.getDouble(group.edgeRows[i]);
+        if (!Double.isNaN(v)) {
+          sum += v;
+          cnt++;
+        }
+      }
+      sums[c] = (cnt == 0 ? Double.NaN : sum);
+    }
+    group.sums = sums;
+  }
+
+  private int[] distinctRanks(int[] nodeRows) {
+    int[] ranks = new int[nodeRows.length];
+    for (int i = 0; i < nodeRows.length; i++) {
+      ranks[i] = nodeRanks[nodeRows[i]];
+    }
+    Arrays.sort(ranks);
+    int count = 0;
+    for (int i = 0; i < ranks.length; i++) {
+      if (i == 0  ||  ranks[i] != ranks[i - 1]) {
+        ranks[count++] = ranks[i];
+      }
+    }
+    return Arrays.copyOf(ranks, count);
+  }
+
+  private static void call(Callable<Void> task) {
+    try {
+      task.call();
+    } catch (RuntimeException re) {
+      throw re;
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static <T extends Callable<Void>> void invokeAll(ExecutorService executor,
+      List<T> tasks) {
+    List<Future<Void>> futures = Lists.newArrayListWithCapacity(tasks.size());
+    for (T task : tasks) {
+      futures.add(executor.submit(task));
+    }
+    for (Future<Void> future : futures) {
+      getResult(future);
+    }
+  }
+
+  private static class WorkerThreadFactory implements ThreadFactory {
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "Edge-aggregator-worker-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+  private static <T> T getResult(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while aggregating edges", ie);
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+}
@@ -36,7 +36,7 @@ public class SeqStat {
   private final int count;
   private final Normalizer normalizer;
 
-  private SeqStat(double minValue, double maxValue, double sum, int count) {
+  SeqStat(double minValue, double maxValue, double sum, int count) {
     if (minValue > maxValue) {
       throw new IllegalArgumentException("minValue > maxValue");
     }
@@ -62,35 +62,17 @@ public class SeqStat {
   }
 
   public static SeqStat createFor(Iterator<Double> it) {
-    if (!it.hasNext()) {
-      return new SeqStat(Double.NaN, Double.NaN, Double.NaN, 0);
-    }
-    double max = Double.NaN;
-    double min = Double.NaN;
-    double sum = 0;
-    double sumPos = 0;
-    double sumNeg = 0;
-    int count = 0;
-
+    SeqStatAccumulator acc = new SeqStatAccumulator();
     while (it.hasNext()) {
-      double v = it.next();
-      if (Double.isNaN(max) || v > max) {
-        max = v;
-      }
-      if (Double.isNaN(min) || v < min) {
-        min = v;
-      }
-      if (!Double.isNaN(v)) {
-        if (v > 0) {
-          sumPos += v;
-        } else if (v < 0) {
-          sumNeg += v;
-        }
-        sum += v;
-        count++;
-      }
+      acc.add(it.next());
     }
-    return new SeqStat(min, max, sum, count);
+    return acc.toSeqStat();
+  }
+
+  public static SeqStat createFor(double[] values) {
+    SeqStatAccumulator acc = new SeqStatAccumulator();
+    acc.addAll(values, 0, values.length);
+    return acc.toSeqStat();
   }
 
   public SeqStat mergeWith(Iterable<Double> it) {
@@ -0,0 +1,79 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.data;
+
+import jflowmap.util.MathUtils;
+
+/**
+ * Mutable counterpart of {@link SeqStat} which accumulates the stats of a sequence
+ * of numbers without boxing them. Accumulators of consecutive parts of a sequence
+ * (e.g. filled by different threads) can be merged.
+ *
+ * @author Ilya Boyandin
+ */
+public class SeqStatAccumulator {
+
+  private double min = Double.NaN;
+  private double max = Double.NaN;
+  private double sum = 0;
+  private int count = 0;
+  private boolean empty = true;
+
+  public void add(double v) {
+    if (Double.isNaN(max) || v > max) {
+      max = v;
+    }
+    if (Double.isNaN(min) || v < min) {
+      min = v;
+    }
+    if (!Double.isNaN(v)) {
+      sum += v;
+      count++;
+    }
+    empty = false;
+  }
+
+  public void addAll(double[] values, int from, int to) {
+    for (int i = from; i < to; i++) {
+      add(values[i]);
+    }
+  }
+
+  /**
+   * Adds the values accumulated by the other accumulator.
+   */
+  public void merge(SeqStatAccumulator other) {
+    if (other.empty) {
+      return;
+    }
+    min = MathUtils.nonNaNMin(min, other.min);
+    max = MathUtils.nonNaNMax(max, other.max);
+    sum += other.sum;
+    count += other.count;
+    empty = false;
+  }
+
+  public SeqStat toSeqStat() {
+    if (empty) {
+      return new SeqStat(Double.NaN, Double.NaN, Double.NaN, 0);
+    }
+    return new SeqStat(min, max, sum, count);
+  }
+
+}
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -38,9 +39,9 @@ import org.apache.log4j.Logger;
 import prefuse.data.Graph;
 import prefuse.data.Schema;
 import prefuse.data.Table;
+import prefuse.data.column.Column;
 import prefuse.data.parser.DataParseException;
 import prefuse.data.parser.ParserFactory;
-import prefuse.util.collections.IntIterator;
 import prefuse.util.io.IOLib;
 
 import com.google.common.collect.Iterables;
@@ -50,6 +51,13 @@ import com.google.common.collect.Maps;
 /**
  * GraphML reader able of loading several graphs in one file. It's based on StAX and
  * therefore requires much less memory than GraphMLReader2 and works faster.
+ * <p>
+ * The attribute keys are resolved to the table columns once per graph, the values
+ * are written directly into the columns, and plain decimal numbers are parsed
+ * from the character buffer of the XML reader without creating strings.
+ * The edge endpoints are resolved while reading the edges; only the edges
+ * referring to nodes which come later in the file are resolved at the end
+ * of the graph.
  *
  * @author Ilya Boyandin
  */
@@ -68,6 +76,11 @@ public class StaxGraphMLReader {
   private Schema nodeSchema, edgeSchema;
   private Map<String, String> attrIdToName;
   private Map<String, Integer> nodeIdToIndex;
+  private Map<String, Column> nodeColumnsByAttrId, edgeColumnsByAttrId;
+  private Column nodeIdColumn, srcColumn, trgColumn;
+  private List<UnresolvedEdge> unresolvedEdges;
+
+  private char[] textBuffer = new char[64];
 
   public StaxGraphMLReader() {
     dataParser = ParserFactory.getDefaultFactory();
@@ -108,6 +121,8 @@ public class StaxGraphMLReader {
   public Iterable<Graph> readFromStream(InputStream is) throws IOException {
     XMLInputFactory inputFactory = XMLInputFactory.newInstance();
     XMLStreamReader in;
+    Table nodeTable = null, edgeTable = null;
+    boolean columnEventsDisabled = false;
     try {
       lineNumberReader = new LineNumberReader(new InputStreamReader(is, charset));
       in = inputFactory.createXMLStreamReader(lineNumberReader);
@@ -118,7 +133,6 @@ public class StaxGraphMLReader {
       attrIdToName = Maps.newHashMap();
       String graphId = null;
       boolean graphDirected = false;
-      Table nodeTable = null, edgeTable = null;
 
       OUTER: while (in.hasNext()) {
         int eventType = in.nextTag();
@@ -135,6 +149,15 @@ public class StaxGraphMLReader {
               nodeIdToIndex = Maps.newHashMap();
               nodeTable = nodeSchema.instantiate();
               edgeTable = edgeSchema.instantiate();
+              setColumnEventsEnabled(nodeTable, false);
+              setColumnEventsEnabled(edgeTable, false);
+              columnEventsDisabled = true;
+              nodeColumnsByAttrId = resolveColumns(nodeTable);
+              edgeColumnsByAttrId = resolveColumns(edgeTable);
+              nodeIdColumn = nodeTable.getColumn(FlowMapGraph.GRAPH_NODE_ID_COLUMN);
+              srcColumn = edgeTable.getColumn(FlowMapGraph.SRC);
+              trgColumn = edgeTable.getColumn(FlowMapGraph.TRG);
+              unresolvedEdges = Lists.newArrayList();
 
               graphId = in.getAttributeValue(NAMESPACE, "id");
               graphDirected = ("directed".equals(in.getAttributeValue(NAMESPACE, "edgedefault")));
@@ -144,23 +167,31 @@ public class StaxGraphMLReader {
               int ri = nodeTable.addRow();
 
               String nodeId = in.getAttributeValue(NAMESPACE, "id");
-              if (nodeIdToIndex.containsKey(nodeId)) {
+              if (nodeIdToIndex.put(nodeId, ri) != null) {
                 throw new IOException("Duplicate node id: '" + nodeId + "'");
               }
-              nodeIdToIndex.put(nodeId, ri);
 
-              nodeTable.set(ri, FlowMapGraph.GRAPH_NODE_ID_COLUMN, nodeId);
+              nodeIdColumn.set(nodeId, ri);
 
-              readData(in, nodeTable, ri, "node");
+              readData(in, nodeColumnsByAttrId, ri, "node");
 
             } else if (tag.equals("edge")) {
 
               int ri = edgeTable.addRow();
 
-              edgeTable.setString(ri, FlowMapGraph.SRC_TEMP_ID, in.getAttributeValue(NAMESPACE, "source"));
-              edgeTable.setString(ri, FlowMapGraph.TRG_TEMP_ID, in.getAttributeValue(NAMESPACE, "target"));
+              String src = in.getAttributeValue(NAMESPACE, "source");
+              String trg = in.getAttributeValue(NAMESPACE, "target");
+              Integer srcIndex = nodeIdToIndex.get(src);
+              Integer trgIndex = nodeIdToIndex.get(trg);
+              if (srcIndex != null  &&  trgIndex != null) {
+                srcColumn.setInt(srcIndex, ri);
+                trgColumn.setInt(trgIndex, ri);
+              } else {
+                // the nodes might come later in the file
+                unresolvedEdges.add(new UnresolvedEdge(ri, src, trg));
+              }
 
-              readData(in, edgeTable, ri, "edge");
+              readData(in, edgeColumnsByAttrId, ri, "edge");
             }
             break;
 
@@ -170,30 +201,10 @@ public class StaxGraphMLReader {
               assert(nodeTable != null);
               assert(edgeTable != null);
 
-              // Map edge starts/ends to nodes
-              IntIterator rows = edgeTable.rows();
-              while (rows.hasNext()) {
-                int ri = rows.nextInt();
-
-                String src = edgeTable.getString(ri, FlowMapGraph.SRC_TEMP_ID);
-                if (!nodeIdToIndex.containsKey(src)) {
-                  throw new IOException(
-                    "Tried to create edge with source node id=" + src
-                    + " which does not exist.");
-                }
-                edgeTable.setInt(ri, FlowMapGraph.SRC, nodeIdToIndex.get(src));
-
-                String trg = edgeTable.getString(ri, FlowMapGraph.TRG_TEMP_ID);
-                if (!nodeIdToIndex.containsKey(trg)) {
-                  throw new IOException(
-                    "Tried to create edge with target node id=" + trg
-                    + " which does not exist.");
-                }
-                edgeTable.setInt(ri, FlowMapGraph.TRG, nodeIdToIndex.get(trg));
-              }
-              edgeTable.removeColumn(FlowMapGraph.SRC_TEMP_ID);
-              edgeTable.removeColumn(FlowMapGraph.TRG_TEMP_ID);
-
+              resolveEdges();
+              setColumnEventsEnabled(nodeTable, true);
+              setColumnEventsEnabled(edgeTable, true);
+              columnEventsDisabled = false;
 
               // Finally, create the graph
               Graph graph = new Graph(nodeTable, edgeTable, graphDirected);
@@ -213,10 +224,78 @@ public class StaxGraphMLReader {
       return graphs;
     } catch (XMLStreamException e) {
       throw new IOException("Parse error in line " + lineNumberReader.getLineNumber() + ": " + e.getMessage(), e);
+    } finally {
+      if (columnEventsDisabled) {
+        // don't leave the tables of a graph which failed to load detached from their columns
+        setColumnEventsEnabled(nodeTable, true);
+        setColumnEventsEnabled(edgeTable, true);
+      }
     }
   }
 
-  private void readData(XMLStreamReader in, Table table, int tableRowIdx, String untilEndOf)
+  private static class UnresolvedEdge {
+    final int row;
+    final String src, trg;
+
+    UnresolvedEdge(int row, String src, String trg) {
+      this.row = row;
+      this.src = src;
+      this.trg = trg;
+    }
+  }
+
+  private void resolveEdges() throws IOException {
+    for (UnresolvedEdge edge : unresolvedEdges) {
+      Integer srcIndex = nodeIdToIndex.get(edge.src);
+      if (srcIndex == null) {
+        throw new IOException(
+          "Tried to create edge with source node id=" + edge.src
+          + " which does not exist.");
+      }
+      srcColumn.setInt(srcIndex, edge.row);
+
+      Integer trgIndex = nodeIdToIndex.get(edge.trg);
+      if (trgIndex == null) {
+        throw new IOException(
+          "Tried to create edge with target node id=" + edge.trg
+          + " which does not exist.");
+      }
+      trgColumn.setInt(trgIndex, edge.row);
+    }
+    unresolvedEdges = null;
+  }
+
+  /**
+   * The tables don't have listeners or indices while the graph is being read,
+   * so there is no need for them to handle the change events of every value.
+   */
+  private static void setColumnEventsEnabled(Table table, boolean enabled) {
+    for (int i = 0, count = table.getColumnCount(); i < count; i++) {
+      Column column = table.getColumn(i);
+      if (enabled) {
+        column.addColumnListener(table);
+      } else {
+        column.removeColumnListener(table);
+      }
+    }
+  }
+
+  /**
+   * @return The columns of the table by the ids of the attribute keys
+   */
+  private Map<String, Column> resolveColumns(Table table) {
+    Map<String, Column> columns = Maps.newHashMap();
+    for (Map.Entry<String, String> e : attrIdToName.entrySet()) {
+      int col = table.getColumnNumber(e.getValue());
+      if (col >= 0) {
+        columns.put(e.getKey(), table.getColumn(col));
+      }
+    }
+    return columns;
+  }
+
+  private void readData(XMLStreamReader in, Map<String, Column> columnsByAttrId,
+      int tableRowIdx, String untilEndOf)
     throws IOException, XMLStreamException {
 
     OUTER: while (in.hasNext()) {
@@ -227,18 +306,23 @@ public class StaxGraphMLReader {
         case XMLStreamReader.START_ELEMENT:
           if (tag.equals("data")) {
             String attrId = in.getAttributeValue(NAMESPACE, "key");
-            String attrName = attrIdToName.get(attrId);
-            String valueStr = in.getElementText();
-            Object value;
-            if (valueStr == null) {
-              value = null;
-            } else {
-              Class<?> columnType = table.getColumnType(attrName);
-              if (columnType == null) {
-                throw new IOException("Type of column '" + attrId + "' not found");
+            Column column = columnsByAttrId.get(attrId);
+            if (column == null) {
+              throw new IOException("Type of column '" + attrId + "' not found");
+            }
+            int length = readElementText(in);
+            Class<?> columnType = column.getColumnType();
+            if (columnType == double.class) {
+              double value = parseDecimal(textBuffer, 0, length);
+              if (Double.isNaN(value)) {
+                // not a plain decimal number, let the regular parser handle it
+                value = ((Double)parseData(new String(textBuffer, 0, length), columnType)).doubleValue();
               }
-              value = parseData(valueStr, columnType);
-              table.set(tableRowIdx, attrName, value);
+              column.setDouble(value, tableRowIdx);
+            } else if (columnType == String.class) {
+              column.set(new String(textBuffer, 0, length), tableRowIdx);
+            } else {
+              column.set(parseData(new String(textBuffer, 0, length), columnType), tableRowIdx);
             }
           }
           break;
@@ -252,6 +336,100 @@ public class StaxGraphMLReader {
     }
   }
 
+  /**
+   * Reads the text of the current element into {@link #textBuffer}. Works like
+   * {@link XMLStreamReader#getElementText()}, but doesn't create a string.
+   *
+   * @return The length of the text
+   */
+  private int readElementText(XMLStreamReader in) throws XMLStreamException {
+    int length = 0;
+    while (true) {
+      int eventType = in.next();
+      switch (eventType) {
+        case XMLStreamReader.CHARACTERS:
+        case XMLStreamReader.CDATA:
+        case XMLStreamReader.SPACE:
+          int textLength = in.getTextLength();
+          ensureTextBufferCapacity(length + textLength);
+          System.arraycopy(in.getTextCharacters(), in.getTextStart(), textBuffer, length, textLength);
+          length += textLength;
+          break;
+
+        case XMLStreamReader.ENTITY_REFERENCE:
+          String text = in.getText();
+          ensureTextBufferCapacity(length + text.length());
+          text.getChars(0, text.length(), textBuffer, length);
+          length += text.length();
+          break;
+
+        case XMLStreamReader.COMMENT:
+        case XMLStreamReader.PROCESSING_INSTRUCTION:
+          break;
+
+        case XMLStreamReader.END_ELEMENT:
+          return length;
+
+        default:
+          throw new XMLStreamException("Unexpected event type " + eventType +
+              " while reading element text", in.getLocation());
+      }
+    }
+  }
+
+  private void ensureTextBufferCapacity(int capacity) {
+    if (capacity > textBuffer.length) {
+      textBuffer = Arrays.copyOf(textBuffer, Math.max(capacity, textBuffer.length * 2));
+    }
+  }
+
+  private static final int MAX_EXACT_DECIMAL_DIGITS = 15;
+  private static final double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+  };
+
+  /**
+   * Parses plain decimal numbers like "-123.45" which have at most 15 digits.
+   * Both the digits taken as an integer and the power of ten are then exactly
+   * representable as doubles, so their quotient is correctly rounded and
+   * equals the result of {@link Double#parseDouble}.
+   *
+   * @return NaN if the text is not a plain decimal number with at most 15 digits
+   */
+  static double parseDecimal(char[] chars, int start, int end) {
+    int i = start;
+    boolean negative = false;
+    if (i < end  &&  (chars[i] == '-'  ||  chars[i] == '+')) {
+      negative = (chars[i] == '-');
+      i++;
+    }
+    long digits = 0;
+    int numDigits = 0;
+    int numFractionDigits = 0;
+    boolean point = false;
+    for (; i < end; i++) {
+      char c = chars[i];
+      if (c >= '0'  &&  c <= '9') {
+        if (++numDigits > MAX_EXACT_DECIMAL_DIGITS) {
+          return Double.NaN;
+        }
+        digits = digits * 10 + (c - '0');
+        if (point) {
+          numFractionDigits++;
+        }
+      } else if (c == '.'  &&  !point) {
+        point = true;
+      } else {
+        return Double.NaN;
+      }
+    }
+    if (numDigits == 0) {
+      return Double.NaN;
+    }
+    double value = digits / POWERS_OF_TEN[numFractionDigits];
+    return negative ? -value : value;
+  }
+
   private void lockSchemas() {
     nodeSchema.lockSchema();
     edgeSchema.lockSchema();
@@ -263,8 +441,6 @@ public class StaxGraphMLReader {
     edgeSchema = new Schema();
     edgeSchema.addColumn(FlowMapGraph.SRC, int.class);
     edgeSchema.addColumn(FlowMapGraph.TRG, int.class);
-    edgeSchema.addColumn(FlowMapGraph.SRC_TEMP_ID, String.class);
-    edgeSchema.addColumn(FlowMapGraph.TRG_TEMP_ID, String.class);
   }
 
   private void readKey(XMLStreamReader in) throws IOException {
@@ -19,15 +19,10 @@
 package jflowmap.data;
 
 import java.util.Iterator;
-import java.util.List;
 
 import prefuse.data.Tuple;
 import prefuse.data.tuple.TupleSet;
 
-import com.google.common.base.Function;
-import com.google.common.collect.Iterators;
-import com.google.common.collect.Lists;
-
 /**
  * @author Ilya Boyandin
  */
@@ -38,55 +33,44 @@ public class TupleStats {
 
   @SuppressWarnings("unchecked")
   public static SeqStat createFor(final TupleSet tupleSet, Iterable<String> attrNames) {
-    Iterable it = new Iterable<Tuple>() {@Override
-      public Iterator<Tuple> iterator() {
-        return tupleSet.tuples();
-      } };
-    return createFor(it, attrNames);
+    SeqStatAccumulator acc = new SeqStatAccumulator();
+    for (String attrName : attrNames) {
+      addAttrValues(tupleSet.tuples(), attrName, acc);
+    }
+    return acc.toSeqStat();
   }
 
   @SuppressWarnings("unchecked")
   public static SeqStat createFor(TupleSet tupleSet, String attrName) {
-    return SeqStat.createFor(attrValuesIterator(tupleSet.tuples(), attrName));
+    SeqStatAccumulator acc = new SeqStatAccumulator();
+    addAttrValues(tupleSet.tuples(), attrName, acc);
+    return acc.toSeqStat();
   }
 
   public static SeqStat createFor(Iterable<Tuple> edges, Iterable<String> attrNames) {
-    return SeqStat.createFor(attrValuesIterator(edges, attrNames));
+    SeqStatAccumulator acc = new SeqStatAccumulator();
+    for (String attrName : attrNames) {
+      addAttrValues(edges.iterator(), attrName, acc);
+    }
+    return acc.toSeqStat();
   };
 
 
   @SuppressWarnings("unchecked")
   public static SeqStat createFor(Iterator<TupleSet> it, Iterator<String> attrNameIt) {
-    List<Iterator<Double>> iterators = Lists.newArrayList();
+    SeqStatAccumulator acc = new SeqStatAccumulator();
     while (it.hasNext()) {
       assert attrNameIt.hasNext();
-      iterators.add(attrValuesIterator(it.next().tuples(), attrNameIt.next()));
+      addAttrValues(it.next().tuples(), attrNameIt.next(), acc);
     }
     assert !attrNameIt.hasNext();
-    return SeqStat.createFor(Iterators.concat(iterators.iterator()));
+    return acc.toSeqStat();
   }
 
-  private static Iterator<Double> attrValuesIterator(Iterator<Tuple> it, final String attrName) {
-    return Iterators.transform(
-        it,
-        new Function<Tuple, Double>() {
-          public Double apply(Tuple from) {
-            return from.getDouble(attrName);
-          }
-        }
-    );
-  };
-
-  /**
-   * Returns a concatenated iterator over tuple entries' values of the given set of attrNames
-   */
-  @SuppressWarnings("unchecked")
-  private static Iterator<Double> attrValuesIterator(Iterable<Tuple> it, Iterable<String> attrNames) {
-    List<Iterator<Double>> attrValueIterators = Lists.newArrayList();
-    for (String attrName : attrNames) {
-      attrValueIterators.add(attrValuesIterator(it.iterator(), attrName));
+  private static void addAttrValues(Iterator<Tuple> it, String attrName, SeqStatAccumulator acc) {
+    while (it.hasNext()) {
+      acc.add(it.next().getDouble(attrName));
     }
-    return Iterators.concat(attrValueIterators.iterator());
   }
 
 }
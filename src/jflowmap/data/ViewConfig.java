@@ -80,6 +80,9 @@ public class ViewConfig {
   public static final String PROP_DATA_GRAPHML = PROP_DATA + ".graphml";
   public static final String PROP_DATA_GRAPHML_SRC = PROP_DATA_GRAPHML + ".src";
 
+  public static final String PROP_DATA_SNAPSHOT = PROP_DATA + ".snapshot";
+  public static final String PROP_DATA_SNAPSHOT_SRC = PROP_DATA_SNAPSHOT + ".src";
+
   public static final String PROP_DATA_AGGREGATOR = PROP_DATA + ".aggregator";
 
   public static final String PROP_MAP = "map";
@@ -125,6 +128,10 @@ public class ViewConfig {
     }
   }
 
+  Object loadData() throws IOException {
+    return dataLoader.load(this);
+  }
+
   private GeoMap createMap() throws IOException {
     if (mapLoader != null) {
       return mapLoader.load(this);
@@ -236,6 +243,13 @@ public class ViewConfig {
                     public Iterable<String> get() { return FlowMapGraph.listFlowAttrs(graph); }
                 }));
       }
+    },
+    SNAPSHOT {
+      @Override
+      public Object load(ViewConfig config) throws IOException {
+        // the attr spec is stored in the snapshot
+        return FlowMapGraphSnapshot.read(config.require(PROP_DATA_SNAPSHOT_SRC));
+      }
     };
 
     interface LazyGet<T> {
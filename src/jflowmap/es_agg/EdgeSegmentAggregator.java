@@ -19,6 +19,10 @@
 package jflowmap.es_agg;
 
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jflowmap.FlowMapGraph;
 import jflowmap.geom.FPoint;
@@ -31,8 +35,6 @@ import at.fhj.utils.misc.ProgressTracker;
 import ch.unifr.dmlib.cluster.ClusterNode;
 import ch.unifr.dmlib.cluster.DistanceMatrix;
 import ch.unifr.dmlib.cluster.DistanceMeasure;
-import ch.unifr.dmlib.cluster.HierarchicalClusterer;
-import ch.unifr.dmlib.cluster.Linkage;
 
 import com.google.common.collect.Lists;
 
@@ -55,6 +57,9 @@ public class EdgeSegmentAggregator {
 
   private static Logger logger = Logger.getLogger(EdgeSegmentAggregator.class);
 
+  private static final double MAX_MERGEABLE_DISTANCE = 10;
+  private static final double CANDIDATES_SUBTASK_WEIGHT = 0.2;
+
   private List<EdgeSegment> segments;
   private List<SegmentedEdge> segmentedEdges;
 
@@ -62,28 +67,108 @@ public class EdgeSegmentAggregator {
 
   private final FlowMapGraph flowMapGraph;
 
+  private boolean useSpatialIndex = true;
+  private int numThreads = Runtime.getRuntime().availableProcessors();
+
   public EdgeSegmentAggregator(FlowMapGraph flowMapGraph) {
     this.flowMapGraph = flowMapGraph;
   }
 
+  /**
+   * If true (the default), only the pairs of segments lying within the max
+   * mergeable distance of each other are considered as merge candidates
+   * (see {@link IndexedEdgeSegmentDistanceMatrix}). Otherwise, all the pairs
+   * are compared in every merge step. The results are the same.
+   */
+  public void setUseSpatialIndex(boolean useSpatialIndex) {
+    this.useSpatialIndex = useSpatialIndex;
+  }
+
+  public boolean getUseSpatialIndex() {
+    return useSpatialIndex;
+  }
+
+  /**
+   * Number of threads used for the distance calculations. The results don't
+   * depend on the number of threads.
+   */
+  public void setNumThreads(int numThreads) {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("numThreads must be positive");
+    }
+    this.numThreads = numThreads;
+  }
+
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  private DistanceMatrix<EdgeSegment> createDistanceMatrix(ExecutorService executor) {
+    if (useSpatialIndex) {
+      return new IndexedEdgeSegmentDistanceMatrix(
+          segments, DISTANCE_MEASURE, MAX_MERGEABLE_DISTANCE, executor, numThreads);
+    } else {
+      return new EdgeSegmentDistanceMatrix(
+          segments, DISTANCE_MEASURE, MAX_MERGEABLE_DISTANCE, executor, numThreads);
+    }
+  }
+
+  /**
+   * Merges the nearest pairs of segments until there are no mergeable pairs left.
+   * The pairs are merged roughly in the order of increasing distance, so the progress
+   * of the merging is measured by the greatest distance of a merged pair so far
+   * relative to the max mergeable distance.
+   */
+  private List<ClusterNode<EdgeSegment>> cluster(DistanceMatrix<EdgeSegment> matrix, ProgressTracker pt) {
+    pt.startSubtask("Finding merge candidates", useSpatialIndex ? CANDIDATES_SUBTASK_WEIGHT : 0.0);
+    matrix.calc(pt);
+    if (pt.isCancelled()) {
+      return matrix.getTopLevelNodes();
+    }
+    pt.subtaskCompleted();
+
+    pt.startSubtask("Merging segments", useSpatialIndex ? 1.0 - CANDIDATES_SUBTASK_WEIGHT : 1.0);
+    double progress = 0;
+    ClusterNode<EdgeSegment> merged;
+    while (!pt.isCancelled()  &&  (merged = matrix.mergeNearestNeighbours()) != null) {
+      double p = Math.min(100.0, 100.0 * merged.getDistance() / MAX_MERGEABLE_DISTANCE);
+      if (p > progress) {
+        pt.incSubtaskProgress(p - progress);
+        progress = p;
+      }
+    }
+    if (!pt.isCancelled()) {
+      pt.subtaskCompleted();
+    }
+    return matrix.getTopLevelNodes();
+  }
+
+  private static class WorkerThreadFactory implements ThreadFactory {
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "ES-aggregation-worker-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
   public void aggregate(ProgressTracker pt) {
     logger.info("Edge segment aggregation started");
     createSegmentedEdges();
     pt.startTask("Edge segment aggregation", 1.0);
-    List<ClusterNode<EdgeSegment>> nodes =
-      HierarchicalClusterer
-//        .createWith(DISTANCE_MEASURE, LINKAGE)
-        .createWith(DISTANCE_MEASURE, null)
-        .withDistanceMatrixFactory(DISTANCE_MATRIX_FACTORY)
-        .withDistanceMatrixCalcWeight(0.0)
-//        .withMaxMergeableDistance(Double.MAX_VALUE)  // disallows POSITIVE_INFINITY
-//        .withMaxMergeableDistance(.9575)
-//        .withMaxMergeableDistance(5)
-//        .withMaxMergeableDistance(3)
-        .withMaxMergeableDistance(10)
-//        .withMaxMergeableDistance(50)
-        .build()
-        .cluster(segments, pt);
+    List<ClusterNode<EdgeSegment>> nodes;
+    ExecutorService executor = null;
+    if (numThreads > 1) {
+      executor = Executors.newFixedThreadPool(numThreads, new WorkerThreadFactory());
+    }
+    try {
+      nodes = cluster(createDistanceMatrix(executor), pt);
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
 
     assert checkEdgesSegmentConsecutivity();
 
@@ -255,16 +340,4 @@ public class EdgeSegmentAggregator {
     }
   };
 
-  private static final DistanceMatrix.Factory<EdgeSegment> DISTANCE_MATRIX_FACTORY =
-    new DistanceMatrix.Factory<EdgeSegment>() {
-      @Override
-      public DistanceMatrix<EdgeSegment> createFor(
-          List<EdgeSegment> items,
-          Linkage<EdgeSegment> linkage,
-          DistanceMeasure<EdgeSegment> measure,
-          double maxMergeableDistance) {
-        return new EdgeSegmentDistanceMatrix(items, measure, /*linkage,*/ maxMergeableDistance);
-      }
-    };
-
 }
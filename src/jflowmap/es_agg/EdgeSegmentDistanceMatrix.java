@@ -18,27 +18,197 @@
 
 package jflowmap.es_agg;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import at.fhj.utils.misc.ProgressTracker;
 import ch.unifr.dmlib.cluster.AbstractDistanceMatrix;
 import ch.unifr.dmlib.cluster.ClusterNode;
 import ch.unifr.dmlib.cluster.DistanceMeasure;
 
+import com.google.common.collect.Lists;
+
 /**
+ * Compares all the pairs of top-level nodes in every merge step. If an executor
+ * is given, the pairs are split into chunks of rows which are scanned concurrently.
+ * The nearest pairs of the chunks are then compared in the chunk order, so the
+ * merge order is the same as with a sequential scan.
+ * <p>
+ * The nodes are kept in this class instead of AbstractDistanceMatrix,
+ * because the latter doesn't allow to override the scan.
+ *
  * @author Ilya Boyandin
  */
 class EdgeSegmentDistanceMatrix extends AbstractDistanceMatrix<EdgeSegment> {
 
+  private static final int CHUNKS_PER_THREAD = 4;
+
+  private final ClusterNode<EdgeSegment>[] nodes;
+  private final ExecutorService executor;
+  private final int[] chunkStarts;
+
   public EdgeSegmentDistanceMatrix(List<EdgeSegment> items,
       DistanceMeasure<EdgeSegment> distanceMeasure,
       double maxMergeableDistance) {
+    this(items, distanceMeasure, maxMergeableDistance, null, 1);
+  }
+
+  /**
+   * @param executor Executor for the concurrent scans or null to scan in the calling thread
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})  // generic array creation
+  public EdgeSegmentDistanceMatrix(List<EdgeSegment> items,
+      DistanceMeasure<EdgeSegment> distanceMeasure,
+      double maxMergeableDistance, ExecutorService executor, int numThreads) {
     super(items, distanceMeasure, null, maxMergeableDistance);
+    int numItems = items.size();
+    this.nodes = new ClusterNode[numItems];
+    for (int i = 0; i < numItems; i++) {
+      nodes[i] = createLeafClusterNode(i);
+    }
+    this.executor = executor;
+
+    // row i has i pairs, so the chunks with the same number of pairs get shorter
+    int numChunks = (executor == null ? 1 : Math.max(1, Math.min(numItems, numThreads * CHUNKS_PER_THREAD)));
+    this.chunkStarts = new int[numChunks + 1];
+    for (int k = 1; k < numChunks; k++) {
+      chunkStarts[k] = (int)Math.round(numItems * Math.sqrt((double)k / numChunks));
+    }
+    chunkStarts[numChunks] = numItems;
+  }
+
+  @Override
+  protected ClusterNode<EdgeSegment> getNode(int index) {
+    return nodes[index];
+  }
+
+  @Override
+  public List<ClusterNode<EdgeSegment>> getTopLevelNodes() {
+    List<ClusterNode<EdgeSegment>> list = new ArrayList<ClusterNode<EdgeSegment>>(nodes.length);
+    for (ClusterNode<EdgeSegment> node : nodes) {
+      if (node != null) {
+        list.add(node);
+      }
+    }
+    return list;
+  }
+
+  @Override
+  public ClusterNode<EdgeSegment> mergeNearestNeighbours() {
+    NearestPair nearest;
+    if (executor == null) {
+      nearest = findNearestPair(0, nodes.length);
+    } else {
+      nearest = findNearestPairInParallel();
+    }
+    if (nearest == null) {
+      return null;
+    }
+    ClusterNode<EdgeSegment> merged =
+      mergeClusterNodes(nodes[nearest.i], nodes[nearest.j], nearest.dist);
+    nodes[nearest.i] = merged;
+    nodes[nearest.j] = null;
+    return merged;
+  }
+
+  /**
+   * Scans the pairs (i, j) with j < i for i in [fromRow, toRow) in the same order
+   * as AbstractDistanceMatrix.mergeNearestNeighbours().
+   *
+   * @return Null if there are no mergeable pairs in the rows
+   */
+  private NearestPair findNearestPair(int fromRow, int toRow) {
+    final double maxMergeableDistance = getMaxMergeableDistance();
+    double min = Double.NaN;
+    int minI = -1, minJ = -1;
+    for (int i = fromRow; i < toRow; i++) {
+      if (nodes[i] == null) {
+        continue;
+      }
+      for (int j = 0; j < i; j++) {
+        if (nodes[j] != null) {
+          double d = getDistanceBetweenClusterNodes(i, j);
+          if (d <= maxMergeableDistance  &&  (Double.isNaN(min)  ||  d < min)) {
+            min = d;
+            minI = i;
+            minJ = j;
+          }
+        }
+      }
+    }
+    if (minI < 0) {
+      return null;
+    }
+    return new NearestPair(min, minI, minJ);
+  }
+
+  private NearestPair findNearestPairInParallel() {
+    List<Callable<NearestPair>> tasks = Lists.newArrayListWithCapacity(chunkStarts.length - 1);
+    for (int k = 0; k < chunkStarts.length - 1; k++) {
+      final int fromRow = chunkStarts[k], toRow = chunkStarts[k + 1];
+      tasks.add(new Callable<NearestPair>() {
+        @Override
+        public NearestPair call() {
+          return findNearestPair(fromRow, toRow);
+        }
+      });
+    }
+    NearestPair nearest = null;
+    List<Future<NearestPair>> results = submitAll(executor, tasks);
+    for (Future<NearestPair> result : results) {
+      NearestPair chunkNearest = getResult(result);
+      // of equally near pairs the one of the earlier chunk wins
+      if (chunkNearest != null  &&  (nearest == null  ||  chunkNearest.dist < nearest.dist)) {
+        nearest = chunkNearest;
+      }
+    }
+    return nearest;
+  }
+
+  static <T> List<Future<T>> submitAll(ExecutorService executor, List<Callable<T>> tasks) {
+    List<Future<T>> futures = Lists.newArrayListWithCapacity(tasks.size());
+    for (Callable<T> task : tasks) {
+      futures.add(executor.submit(task));
+    }
+    return futures;
+  }
+
+  /**
+   * Waits for the result of a task and rethrows its exceptions unchecked.
+   */
+  static <T> T getResult(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for a task", ie);
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new RuntimeException(cause);
+    }
   }
 
   @Override
   protected ClusterNode<EdgeSegment> mergeClusterNodes(
       ClusterNode<EdgeSegment> cn1, ClusterNode<EdgeSegment> cn2, double dist) {
+    return aggregate(cn1, cn2, dist);
+  }
+
+  /**
+   * Replaces the items of the two nodes with their aggregate in the parent edges.
+   */
+  static ClusterNode<EdgeSegment> aggregate(
+      ClusterNode<EdgeSegment> cn1, ClusterNode<EdgeSegment> cn2, double dist) {
     EdgeSegment item1 = cn1.getItem();
     EdgeSegment item2 = cn2.getItem();
 
@@ -72,5 +242,15 @@ class EdgeSegmentDistanceMatrix extends AbstractDistanceMatrix<EdgeSegment> {
       ClusterNode<EdgeSegment> newNode) {
   }
 
+  private static class NearestPair {
+    final double dist;
+    final int i, j;
+
+    NearestPair(double dist, int i, int j) {
+      this.dist = dist;
+      this.i = i;
+      this.j = j;
+    }
+  }
 
 }
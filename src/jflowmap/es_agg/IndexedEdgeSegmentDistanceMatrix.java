@@ -0,0 +1,400 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.es_agg;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import jflowmap.geom.FPoint;
+import at.fhj.utils.misc.ProgressTracker;
+import ch.unifr.dmlib.cluster.ClusterNode;
+import ch.unifr.dmlib.cluster.DistanceMatrix;
+import ch.unifr.dmlib.cluster.DistanceMeasure;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Distance matrix which only considers the pairs of segments lying within
+ * the max mergeable distance of each other. The segments are kept in a uniform
+ * grid over their A points (the distance between two segments is never smaller
+ * than the distance between their A points) and the candidate pairs are kept in
+ * a priority queue. When two segments are merged, the candidates of the aggregate
+ * and of all the segments which were changed by {@link EdgeSegment#replaceWith}
+ * are recomputed and their old queue entries are discarded.
+ * <p>
+ * The merge order is the same as that of {@link EdgeSegmentDistanceMatrix}:
+ * the nearest pair is merged first, and of several equally near pairs the one
+ * which comes first in the order in which AbstractDistanceMatrix scans the pairs.
+ * If an executor is given, the initial candidates are found concurrently.
+ * This doesn't change the merge order, as the candidates are totally ordered.
+ *
+ * @author Ilya Boyandin
+ */
+class IndexedEdgeSegmentDistanceMatrix implements DistanceMatrix<EdgeSegment> {
+
+  private static final int CHUNKS_PER_THREAD = 4;
+
+  private final List<EdgeSegment> items;
+  private final DistanceMeasure<EdgeSegment> distanceMeasure;
+  private final double maxMergeableDistance;
+
+  private final ClusterNode<EdgeSegment>[] nodes;
+  private final Map<EdgeSegment, Integer> nodeIndices;
+  private final FPoint[] nodeA;
+  private final FPoint[] nodeB;
+  private final int[] versions;
+
+  private final double cellSize;
+  private final Map<Long, List<Integer>> grid = Maps.newHashMap();
+  private final long[] cellKeys;
+
+  private final PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+
+  private final ExecutorService executor;
+  private final int numThreads;
+
+  private final int[] stamps;
+  private int stamp;
+
+  public IndexedEdgeSegmentDistanceMatrix(List<EdgeSegment> items,
+      DistanceMeasure<EdgeSegment> distanceMeasure,
+      double maxMergeableDistance) {
+    this(items, distanceMeasure, maxMergeableDistance, null, 1);
+  }
+
+  /**
+   * @param executor Executor for finding the initial candidates or null
+   *    to find them in the calling thread
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})  // generic array creation
+  public IndexedEdgeSegmentDistanceMatrix(List<EdgeSegment> items,
+      DistanceMeasure<EdgeSegment> distanceMeasure,
+      double maxMergeableDistance, ExecutorService executor, int numThreads) {
+    if (!(maxMergeableDistance > 0)  ||  Double.isInfinite(maxMergeableDistance)) {
+      throw new IllegalArgumentException(
+          "Max mergeable distance must be positive and finite: " + maxMergeableDistance);
+    }
+    this.items = items;
+    this.distanceMeasure = distanceMeasure;
+    this.maxMergeableDistance = maxMergeableDistance;
+    this.cellSize = maxMergeableDistance;
+    this.executor = executor;
+    this.numThreads = numThreads;
+
+    int numItems = items.size();
+    this.nodes = new ClusterNode[numItems];
+    this.nodeIndices = new IdentityHashMap<EdgeSegment, Integer>(numItems);
+    this.nodeA = new FPoint[numItems];
+    this.nodeB = new FPoint[numItems];
+    this.versions = new int[numItems];
+    this.cellKeys = new long[numItems];
+    this.stamps = new int[numItems];
+    for (int i = 0; i < numItems; i++) {
+      EdgeSegment seg = items.get(i);
+      nodes[i] = new ClusterNode<EdgeSegment>(seg, i);
+      nodeIndices.put(seg, i);
+      nodeA[i] = seg.getA();
+      nodeB[i] = seg.getB();
+      cellKeys[i] = cellKeyOf(seg.getA());
+      addToGrid(i);
+    }
+  }
+
+  public int getNumOfItems() {
+    return items.size();
+  }
+
+  public List<EdgeSegment> getItems() {
+    return items;
+  }
+
+  public double getMaxMergeableDistance() {
+    return maxMergeableDistance;
+  }
+
+  public List<ClusterNode<EdgeSegment>> getTopLevelNodes() {
+    List<ClusterNode<EdgeSegment>> list = new ArrayList<ClusterNode<EdgeSegment>>(nodes.length);
+    for (ClusterNode<EdgeSegment> node : nodes) {
+      if (node != null) {
+        list.add(node);
+      }
+    }
+    return list;
+  }
+
+  public double distance(int i, int j) {
+    return distanceMeasure.distance(nodes[i].getItem(), nodes[j].getItem());
+  }
+
+  /**
+   * Finds the initial candidate pairs. The progress of the current subtask
+   * of {@code progress} is advanced as the nodes are processed.
+   */
+  public void calc(final ProgressTracker progress) {
+    final int numNodes = nodes.length;
+    if (numNodes == 0) {
+      return;
+    }
+    int numChunks = Math.min(numNodes, (executor == null ? 1 : numThreads) * CHUNKS_PER_THREAD);
+    int chunkSize = (numNodes + numChunks - 1) / numChunks;
+    numChunks = (numNodes + chunkSize - 1) / chunkSize;
+    if (executor == null) {
+      for (int start = 0; start < numNodes; start += chunkSize) {
+        queue.addAll(findCandidates(start, Math.min(numNodes, start + chunkSize), progress));
+        progress.incSubtaskProgress(100.0 / numChunks);
+      }
+    } else {
+      List<Callable<List<Candidate>>> tasks = Lists.newArrayListWithCapacity(numChunks);
+      for (int start = 0; start < numNodes; start += chunkSize) {
+        final int from = start;
+        final int to = Math.min(numNodes, start + chunkSize);
+        tasks.add(new Callable<List<Candidate>>() {
+          @Override
+          public List<Candidate> call() {
+            return findCandidates(from, to, progress);
+          }
+        });
+      }
+      for (Future<List<Candidate>> result : EdgeSegmentDistanceMatrix.submitAll(executor, tasks)) {
+        queue.addAll(EdgeSegmentDistanceMatrix.getResult(result));
+        progress.incSubtaskProgress(100.0 / numChunks);
+      }
+    }
+  }
+
+  /**
+   * Finds the candidate pairs of the nodes in [from, to) with the nodes with smaller indices.
+   * Doesn't modify the state of the matrix, so can be called concurrently.
+   */
+  private List<Candidate> findCandidates(int from, int to, ProgressTracker progress) {
+    List<Candidate> candidates = Lists.newArrayList();
+    for (int k = from; k < to; k++) {
+      if (progress.isCancelled()) {
+        break;
+      }
+      addCandidates(k, false, candidates);
+    }
+    return candidates;
+  }
+
+  public ClusterNode<EdgeSegment> mergeNearestNeighbours() {
+    Candidate nearest = pollValidCandidate();
+    if (nearest == null) {
+      return null;
+    }
+    int i = nearest.i, j = nearest.j;
+    nodeIndices.remove(nodes[i].getItem());
+    nodeIndices.remove(nodes[j].getItem());
+    ClusterNode<EdgeSegment> merged =
+      EdgeSegmentDistanceMatrix.aggregate(nodes[i], nodes[j], nearest.dist);
+
+    removeFromGrid(j);
+    nodes[j] = null;
+    versions[j]++;
+
+    EdgeSegment aggregate = merged.getItem();
+    nodes[i] = merged;
+    nodeIndices.put(aggregate, i);
+
+    updateCandidates(findChangedNodes(i));
+    return merged;
+  }
+
+  private Candidate pollValidCandidate() {
+    Candidate c;
+    while ((c = queue.poll()) != null) {
+      if (nodes[c.i] != null  &&  nodes[c.j] != null  &&
+          versions[c.i] == c.versionI  &&  versions[c.j] == c.versionJ) {
+        return c;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Finds the nodes whose segments were changed when the segments of the merged node
+   * were replaced with the aggregate. The changes propagate only to the previous and
+   * next segments of the changed ones in their parent edges, so it suffices to
+   * follow these from the aggregate.
+   *
+   * @return The indices of the changed nodes, marked in {@code stamps} with the current stamp
+   */
+  private List<Integer> findChangedNodes(int mergedIdx) {
+    List<Integer> changed = Lists.newArrayList();
+    List<EdgeSegment> toVisit = Lists.newArrayList();
+    stamp++;
+    stamps[mergedIdx] = stamp;
+    changed.add(mergedIdx);
+    toVisit.add(nodes[mergedIdx].getItem());
+    while (!toVisit.isEmpty()) {
+      EdgeSegment seg = toVisit.remove(toVisit.size() - 1);
+      for (SegmentedEdge se : seg.getParents()) {
+        visitIfChanged(se.getPrev(seg), changed, toVisit);
+        visitIfChanged(se.getNext(seg), changed, toVisit);
+      }
+    }
+    return changed;
+  }
+
+  private void visitIfChanged(EdgeSegment seg, List<Integer> changed, List<EdgeSegment> toVisit) {
+    if (seg == null) {
+      return;
+    }
+    Integer idx = nodeIndices.get(seg);
+    if (idx == null  ||  stamps[idx] == stamp) {
+      return;
+    }
+    if (seg.getA() != nodeA[idx]  ||  seg.getB() != nodeB[idx]) {
+      stamps[idx] = stamp;
+      changed.add(idx);
+      toVisit.add(seg);
+    }
+  }
+
+  private void updateCandidates(List<Integer> changed) {
+    for (int k : changed) {
+      versions[k]++;
+      EdgeSegment seg = nodes[k].getItem();
+      nodeA[k] = seg.getA();
+      nodeB[k] = seg.getB();
+      long key = cellKeyOf(seg.getA());
+      if (key != cellKeys[k]) {
+        removeFromGrid(k);
+        cellKeys[k] = key;
+        addToGrid(k);
+      }
+    }
+    for (int k : changed) {
+      addCandidates(k, true, queue);
+    }
+  }
+
+  /**
+   * @param changedOnly If true, the pairs with the other nodes marked by the current
+   *    stamp are only added once (from the node with the smaller index). Otherwise,
+   *    only the pairs with the nodes with smaller indices are added.
+   */
+  private void addCandidates(int k, boolean changedOnly, Collection<Candidate> out) {
+    EdgeSegment seg = nodes[k].getItem();
+    FPoint a = seg.getA();
+    double r = maxMergeableDistance;
+    long c0 = cellCoord(a.x() - r), c1 = cellCoord(a.x() + r);
+    long r0 = cellCoord(a.y() - r), r1 = cellCoord(a.y() + r);
+    for (long row = r0; row <= r1; row++) {
+      for (long col = c0; col <= c1; col++) {
+        List<Integer> cell = grid.get(cellKey(col, row));
+        if (cell == null) {
+          continue;
+        }
+        for (int m : cell) {
+          if (m == k) {
+            continue;
+          }
+          if (changedOnly) {
+            if (stamps[m] == stamp  &&  m < k) {
+              continue;
+            }
+          } else if (m > k) {
+            continue;
+          }
+          addCandidate(Math.max(k, m), Math.min(k, m), out);
+        }
+      }
+    }
+  }
+
+  private void addCandidate(int i, int j, Collection<Candidate> out) {
+    // same argument order as in AbstractDistanceMatrix.mergeNearestNeighbours()
+    double d = distanceMeasure.distance(nodes[i].getItem(), nodes[j].getItem());
+    if (d <= maxMergeableDistance) {
+      out.add(new Candidate(d, i, j, versions[i], versions[j]));
+    }
+  }
+
+  private long cellCoord(double v) {
+    return (long)Math.floor(v / cellSize);
+  }
+
+  private long cellKey(long col, long row) {
+    return (col << 32) ^ (row & 0xffffffffL);
+  }
+
+  private long cellKeyOf(FPoint p) {
+    return cellKey(cellCoord(p.x()), cellCoord(p.y()));
+  }
+
+  private void addToGrid(int k) {
+    Long key = cellKeys[k];
+    List<Integer> cell = grid.get(key);
+    if (cell == null) {
+      cell = Lists.newArrayListWithCapacity(4);
+      grid.put(key, cell);
+    }
+    cell.add(k);
+  }
+
+  private void removeFromGrid(int k) {
+    Long key = cellKeys[k];
+    List<Integer> cell = grid.get(key);
+    if (cell != null) {
+      cell.remove(Integer.valueOf(k));
+      if (cell.isEmpty()) {
+        grid.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Candidates are ordered by distance and then in the order in which
+   * AbstractDistanceMatrix scans the pairs (i, j) with j < i.
+   */
+  private static class Candidate implements Comparable<Candidate> {
+    final double dist;
+    final int i, j;
+    final int versionI, versionJ;
+
+    Candidate(double dist, int i, int j, int versionI, int versionJ) {
+      this.dist = dist;
+      this.i = i;
+      this.j = j;
+      this.versionI = versionI;
+      this.versionJ = versionJ;
+    }
+
+    public int compareTo(Candidate o) {
+      int c = Double.compare(dist, o.dist);
+      if (c != 0) {
+        return c;
+      }
+      if (i != o.i) {
+        return i < o.i ? -1 : 1;
+      }
+      return j < o.j ? -1 : (j == o.j ? 0 : 1);
+    }
+  }
+
+}
@@ -0,0 +1,309 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.geom;
+
+import java.awt.Shape;
+import java.awt.geom.FlatteningPathIterator;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Polylines kept in primitive arrays together with a uniform grid over their
+ * segments which allows to quickly find the polylines intersecting a rectangle
+ * or lying close to a point. The points of the polyline i are the ones from
+ * {@link #getStart(int)} inclusive to {@link #getEnd(int)} exclusive.
+ *
+ * @author Ilya Boyandin
+ */
+public class PolylineGrid {
+
+  private static final int MIN_CELLS = 16;
+  private static final int MAX_CELLS = 1 << 16;
+  private static final int POLYLINES_PER_CELL = 4;
+  private static final int FLATTENING_LIMIT = 6;
+
+  private final int[] offsets;
+  private final float[] xs, ys;
+  private final float[] minX, minY, maxX, maxY;
+  private final Rectangle2D bounds;
+
+  private final double cellSize;
+  private final int numCellsX, numCellsY;
+  private final int[] cellStarts;
+  private final int[] cellEntries;
+
+  /**
+   * @param offsets The first point of every polyline followed by the total number of points
+   */
+  public PolylineGrid(int[] offsets, float[] xs, float[] ys) {
+    this.offsets = offsets;
+    this.xs = xs;
+    this.ys = ys;
+
+    int n = offsets.length - 1;
+    minX = new float[n];  minY = new float[n];
+    maxX = new float[n];  maxY = new float[n];
+    Rectangle2D b = null;
+    for (int i = 0; i < n; i++) {
+      float x0 = Float.POSITIVE_INFINITY, y0 = Float.POSITIVE_INFINITY;
+      float x1 = Float.NEGATIVE_INFINITY, y1 = Float.NEGATIVE_INFINITY;
+      for (int p = offsets[i]; p < offsets[i + 1]; p++) {
+        x0 = Math.min(x0, xs[p]);  x1 = Math.max(x1, xs[p]);
+        y0 = Math.min(y0, ys[p]);  y1 = Math.max(y1, ys[p]);
+      }
+      minX[i] = x0;  minY[i] = y0;
+      maxX[i] = x1;  maxY[i] = y1;
+      if (x0 <= x1) {
+        Rectangle2D r = new Rectangle2D.Float(x0, y0, x1 - x0, y1 - y0);
+        if (b == null) {
+          b = r;
+        } else {
+          Rectangle2D.union(b, r, b);
+        }
+      }
+    }
+    bounds = (b != null ? b : new Rectangle2D.Float());
+
+    double w = bounds.getWidth(), h = bounds.getHeight();
+    int numCells = Math.max(MIN_CELLS, Math.min(MAX_CELLS, n / POLYLINES_PER_CELL));
+    double size = Math.max(Math.sqrt(w * h / numCells), Math.max(w, h) / numCells);
+    cellSize = (size > 0 ? size : 1);
+    numCellsX = (int)(w / cellSize) + 1;
+    numCellsY = (int)(h / cellSize) + 1;
+
+    // two passes: count the entries of the cells, then fill them in
+    cellStarts = new int[numCellsX * numCellsY + 1];
+    int[] lastInCell = new int[numCellsX * numCellsY];
+    Arrays.fill(lastInCell, -1);
+    for (int i = 0; i < n; i++) {
+      addToCells(i, lastInCell, cellStarts, null);
+    }
+    for (int c = 0; c < cellStarts.length - 1; c++) {
+      cellStarts[c + 1] += cellStarts[c];
+    }
+    cellEntries = new int[cellStarts[cellStarts.length - 1]];
+    int[] fill = new int[cellStarts.length - 1];
+    System.arraycopy(cellStarts, 0, fill, 0, fill.length);
+    Arrays.fill(lastInCell, -1);
+    for (int i = 0; i < n; i++) {
+      addToCells(i, lastInCell, fill, cellEntries);
+    }
+  }
+
+  /**
+   * Flattens the shapes into polylines. Closed subpaths are closed by
+   * repeating their first point, moves to new subpaths are connected by lines.
+   */
+  public static PolylineGrid flatten(List<? extends Shape> shapes, double flatness) {
+    int[] offsets = new int[shapes.size() + 1];
+    float[] xs = new float[shapes.size() * 2];
+    float[] ys = new float[xs.length];
+    float[] coords = new float[6];
+    int count = 0;
+    for (int i = 0, n = shapes.size(); i < n; i++) {
+      offsets[i] = count;
+      float startX = 0, startY = 0;
+      PathIterator it = new FlatteningPathIterator(
+          shapes.get(i).getPathIterator(null), flatness, FLATTENING_LIMIT);
+      for (; !it.isDone(); it.next()) {
+        int type = it.currentSegment(coords);
+        if (type == PathIterator.SEG_CLOSE) {
+          coords[0] = startX;
+          coords[1] = startY;
+        } else if (type == PathIterator.SEG_MOVETO) {
+          startX = coords[0];
+          startY = coords[1];
+        }
+        if (count == xs.length) {
+          xs = Arrays.copyOf(xs, count * 2);
+          ys = Arrays.copyOf(ys, count * 2);
+        }
+        xs[count] = coords[0];
+        ys[count] = coords[1];
+        count++;
+      }
+    }
+    offsets[shapes.size()] = count;
+    return new PolylineGrid(offsets, Arrays.copyOf(xs, count), Arrays.copyOf(ys, count));
+  }
+
+  /**
+   * Adds the polyline to the cells crossed by its segments. The segments are split
+   * into pieces not longer than a cell, so that only the cells along them are used.
+   */
+  private void addToCells(int i, int[] lastInCell, int[] counts, int[] entries) {
+    int start = offsets[i], end = offsets[i + 1];
+    if (start == end) {
+      return;
+    }
+    if (end - start == 1) {
+      addToCells(i, xs[start], ys[start], xs[start], ys[start], lastInCell, counts, entries);
+      return;
+    }
+    for (int p = start + 1; p < end; p++) {
+      double x1 = xs[p - 1], y1 = ys[p - 1], x2 = xs[p], y2 = ys[p];
+      int pieces = (int)Math.ceil(GeomUtils.distance(x1, y1, x2, y2) / cellSize);
+      double px = x1, py = y1;
+      for (int k = 1; k <= pieces; k++) {
+        double t = (double)k / pieces;
+        double qx = x1 + (x2 - x1) * t, qy = y1 + (y2 - y1) * t;
+        addToCells(i, px, py, qx, qy, lastInCell, counts, entries);
+        px = qx;
+        py = qy;
+      }
+      if (pieces == 0) {
+        addToCells(i, x1, y1, x2, y2, lastInCell, counts, entries);
+      }
+    }
+  }
+
+  private void addToCells(int i, double x1, double y1, double x2, double y2,
+      int[] lastInCell, int[] counts, int[] entries) {
+    int cx1 = cellX(Math.min(x1, x2)), cx2 = cellX(Math.max(x1, x2));
+    int cy1 = cellY(Math.min(y1, y2)), cy2 = cellY(Math.max(y1, y2));
+    for (int cy = cy1; cy <= cy2; cy++) {
+      for (int cx = cx1; cx <= cx2; cx++) {
+        int cell = cy * numCellsX + cx;
+        if (lastInCell[cell] != i) {
+          lastInCell[cell] = i;
+          if (entries == null) {
+            counts[cell + 1]++;
+          } else {
+            entries[counts[cell]++] = i;
+          }
+        }
+      }
+    }
+  }
+
+  private int cellX(double x) {
+    return Math.min(numCellsX - 1, Math.max(0, (int)((x - bounds.getMinX()) / cellSize)));
+  }
+
+  private int cellY(double y) {
+    return Math.min(numCellsY - 1, Math.max(0, (int)((y - bounds.getMinY()) / cellSize)));
+  }
+
+  public int size() {
+    return offsets.length - 1;
+  }
+
+  public Rectangle2D getBounds() {
+    return (Rectangle2D)bounds.clone();
+  }
+
+  public int getStart(int polyline) {
+    return offsets[polyline];
+  }
+
+  public int getEnd(int polyline) {
+    return offsets[polyline + 1];
+  }
+
+  public float getX(int point) {
+    return xs[point];
+  }
+
+  public float getY(int point) {
+    return ys[point];
+  }
+
+  public double getWidth(int polyline) {
+    return maxX[polyline] - minX[polyline];
+  }
+
+  public double getHeight(int polyline) {
+    return maxY[polyline] - minY[polyline];
+  }
+
+  public boolean intersects(int polyline, Rectangle2D rect) {
+    return
+      minX[polyline] <= rect.getMaxX()  &&  rect.getMinX() <= maxX[polyline]  &&
+      minY[polyline] <= rect.getMaxY()  &&  rect.getMinY() <= maxY[polyline];
+  }
+
+  /**
+   * @return Indices of the polylines which can intersect the rectangle in ascending
+   *         order: the ones having a segment which intersects it are always included,
+   *         and the bounding boxes of all of them intersect it
+   */
+  public int[] findIntersecting(Rectangle2D rect) {
+    int n = size();
+    if (n == 0) {
+      return new int[0];
+    }
+    if (rect.contains(bounds)) {
+      int[] all = new int[n];
+      int count = 0;
+      for (int i = 0; i < n; i++) {
+        if (offsets[i] < offsets[i + 1]) {
+          all[count++] = i;
+        }
+      }
+      return Arrays.copyOf(all, count);
+    }
+    int cx1 = cellX(rect.getMinX()), cx2 = cellX(rect.getMaxX());
+    int cy1 = cellY(rect.getMinY()), cy2 = cellY(rect.getMaxY());
+    int total = 0;
+    for (int cy = cy1; cy <= cy2; cy++) {
+      total += cellStarts[cy * numCellsX + cx2 + 1] - cellStarts[cy * numCellsX + cx1];
+    }
+    int[] found = new int[total];
+    int count = 0;
+    for (int cy = cy1; cy <= cy2; cy++) {
+      for (int e = cellStarts[cy * numCellsX + cx1]; e < cellStarts[cy * numCellsX + cx2 + 1]; e++) {
+        int i = cellEntries[e];
+        if (intersects(i, rect)) {
+          found[count++] = i;
+        }
+      }
+    }
+    Arrays.sort(found, 0, count);
+    int unique = 0;
+    for (int k = 0; k < count; k++) {
+      if (unique == 0  ||  found[unique - 1] != found[k]) {
+        found[unique++] = found[k];
+      }
+    }
+    return Arrays.copyOf(found, unique);
+  }
+
+  /**
+   * @return The distance from the point to the nearest segment of the polyline
+   */
+  public double distanceTo(int polyline, double x, double y) {
+    int start = offsets[polyline], end = offsets[polyline + 1];
+    if (start == end) {
+      return Double.POSITIVE_INFINITY;
+    }
+    double min = GeomUtils.distance(xs[start], ys[start], x, y);
+    for (int p = start + 1; p < end; p++) {
+      double x1 = xs[p - 1], y1 = ys[p - 1];
+      double dx = xs[p] - x1, dy = ys[p] - y1;
+      double len2 = dx * dx + dy * dy;
+      double t = (len2 > 0 ? ((x - x1) * dx + (y - y1) * dy) / len2 : 0);
+      t = Math.max(0, Math.min(1, t));
+      min = Math.min(min, GeomUtils.distance(x1 + t * dx, y1 + t * dy, x, y));
+    }
+    return min;
+  }
+
+}
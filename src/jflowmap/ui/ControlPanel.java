@@ -559,7 +559,7 @@ public class ControlPanel {
                 fdBundlingParams.setUseSimpleCompatibilityMeasure(simpleCompatibilityMeasureCheckBox.isSelected());
                 fdBundlingParams.setRepulsionAmount((Double) repulsionSpinner.getValue());
                 fdBundlingParams.setEdgeValueAffectsAttraction(edgeValueAffectsAttractionCheckBox.isSelected());
-                getVisualFlowMap().bundleEdges(fdBundlingParams);
+                getVisualFlowMap().bundleOrRebundleEdges(fdBundlingParams);
             }
         });
         resetBundlingButton.addActionListener(new ActionListener() {
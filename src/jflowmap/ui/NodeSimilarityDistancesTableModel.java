@@ -18,12 +18,11 @@
 
 package jflowmap.ui;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import javax.swing.table.AbstractTableModel;
 
+import jflowmap.views.flowmap.NodeDistanceList;
 import jflowmap.views.flowmap.VisualNodeDistance;
 
 class NodeSimilarityDistancesTableModel extends AbstractTableModel {
@@ -31,12 +30,11 @@ class NodeSimilarityDistancesTableModel extends AbstractTableModel {
     private List<VisualNodeDistance> distances;
 //    private VisualNode selectedNode;
 
-    public void setDistances(List<VisualNodeDistance> distances) {
+    public void setDistances(NodeDistanceList distances) {
       if (distances == null) {
         this.distances = null;
       } else {
-        this.distances = new ArrayList<VisualNodeDistance>(distances);
-        Collections.sort(this.distances, VisualNodeDistance.FROM_LABEL_COMPARATOR);
+        this.distances = distances.sortedByLabels();
       }
       fireTableDataChanged();
       fireTableStructureChanged();
@@ -103,4 +101,4 @@ class NodeSimilarityDistancesTableModel extends AbstractTableModel {
           return distances.get(row).getDistance();
       }
     }
-  }
\ No newline at end of file
+  }
\ No newline at end of file
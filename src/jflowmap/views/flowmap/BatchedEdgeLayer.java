@@ -0,0 +1,265 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.views.flowmap;
+
+import java.awt.BasicStroke;
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.geom.Path2D;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.List;
+
+import jflowmap.geom.GeomUtils;
+import jflowmap.geom.PolylineGrid;
+import jflowmap.util.piccolo.PNodes;
+
+import com.google.common.collect.Lists;
+
+import edu.umd.cs.piccolo.PNode;
+import edu.umd.cs.piccolo.event.PBasicInputEventHandler;
+import edu.umd.cs.piccolo.event.PInputEvent;
+import edu.umd.cs.piccolo.nodes.PPath;
+import edu.umd.cs.piccolo.util.PDimension;
+import edu.umd.cs.piccolo.util.PPaintContext;
+import edu.umd.cs.piccolo.util.PPickPath;
+import edu.umd.cs.piccolox.util.PFixedWidthStroke;
+
+/**
+ * Paints all the edges of a flow map in one pass instead of adding a node
+ * for every {@link VisualEdge} to the scene graph. The visual edges are still
+ * created and keep the paints, strokes and visibility of the edges, but they
+ * are not added to the scene graph. The geometry of the edges is flattened into
+ * a {@link PolylineGrid} which is used to find the edges within the clip when
+ * painting and the edge under the mouse cursor when picking.
+ * <p>
+ * When the map is zoomed out the vertices of the edges closer to each other than
+ * {@link #LOD_MIN_SEGMENT_PIXELS} on the screen are skipped and the edges smaller
+ * than {@link #LOD_MIN_EDGE_PIXELS} aren't painted at all.
+ *
+ * @author Ilya Boyandin
+ */
+public class BatchedEdgeLayer extends PNode {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final double LOD_MIN_SEGMENT_PIXELS = 1.5;
+  private static final double LOD_MIN_EDGE_PIXELS = 0.5;
+  private static final double PICK_TOLERANCE_PIXELS = 2;
+
+  /** Relative to the size of the layer */
+  private static final double FLATNESS = 1e-4;
+
+  private final VisualFlowMap visualFlowMap;
+  private final List<VisualEdge> edges;
+  private final PolylineGrid geometry;
+  private final Path2D.Float path = new Path2D.Float();
+
+  private VisualEdge hoveredEdge;
+
+  public BatchedEdgeLayer(VisualFlowMap visualFlowMap, List<VisualEdge> edges) {
+    this(visualFlowMap, edges, flatten(edges));
+    for (VisualEdge ve : edges) {
+      ve.setBatchedEdgeLayer(this);
+    }
+    addInputEventListener(hoverHandler);
+  }
+
+  /**
+   * Creates a layer painting the edges with the given geometry instead of the
+   * shapes of their PPaths. The layer isn't notified of the changes of the edges
+   * and doesn't handle any mouse events.
+   *
+   * @param geometry The polyline i is the geometry of the i-th edge
+   */
+  BatchedEdgeLayer(VisualFlowMap visualFlowMap, List<VisualEdge> edges, PolylineGrid geometry) {
+    if (geometry.size() != edges.size()) {
+      throw new IllegalArgumentException("The geometry doesn't match the edges");
+    }
+    this.visualFlowMap = visualFlowMap;
+    this.edges = Lists.newArrayList(edges);
+    this.geometry = geometry;
+    setBounds(geometry.getBounds());
+  }
+
+  private static PolylineGrid flatten(List<VisualEdge> edges) {
+    List<Shape> shapes = Lists.newArrayListWithCapacity(edges.size());
+    Rectangle2D b = null;
+    for (VisualEdge ve : edges) {
+      Shape shape = ve.getEdgePPath().getPathReference();
+      shapes.add(shape);
+      if (b == null) {
+        b = shape.getBounds2D();
+      } else {
+        Rectangle2D.union(b, shape.getBounds2D(), b);
+      }
+    }
+    double flatness = (b != null ? Math.max(b.getWidth(), b.getHeight()) * FLATNESS : 1);
+    return PolylineGrid.flatten(shapes, flatness);
+  }
+
+  public List<VisualEdge> getEdges() {
+    return edges;
+  }
+
+  @Override
+  protected void paint(PPaintContext pc) {
+    Graphics2D g2 = pc.getGraphics();
+    double pixel = 1 / pc.getScale();
+    Rectangle2D clip = GeomUtils.growRect(pc.getLocalClip(), maxStrokeWidth(pixel));
+
+    double minSegment = LOD_MIN_SEGMENT_PIXELS * pixel;
+    double minEdge = LOD_MIN_EDGE_PIXELS * pixel;
+    for (int i : geometry.findIntersecting(clip)) {
+      VisualEdge ve = edges.get(i);
+      if (!ve.getVisible()) {
+        continue;
+      }
+      if (geometry.getWidth(i) < minEdge  &&  geometry.getHeight(i) < minEdge) {
+        continue;
+      }
+      PPath ppath = ve.getEdgePPath();
+      if (ve.isSelfLoop()) {
+        g2.setPaint(ppath.getPaint());
+        g2.fill(ppath.getPathReference());
+      } else {
+        Paint paint = ppath.getStrokePaint();
+        Stroke stroke = ppath.getStroke();
+        if (paint == null  ||  stroke == null) {
+          continue;
+        }
+        g2.setPaint(paint);
+        g2.setStroke(stroke);
+        g2.draw(simplifiedPath(i, minSegment));
+      }
+    }
+  }
+
+  /**
+   * Skips the vertices which are closer than minSegment to the previous one,
+   * but always keeps the end points of the edge.
+   */
+  private Shape simplifiedPath(int edge, double minSegment) {
+    int start = geometry.getStart(edge), end = geometry.getEnd(edge);
+    path.reset();
+    float lastX = geometry.getX(start), lastY = geometry.getY(start);
+    path.moveTo(lastX, lastY);
+    for (int p = start + 1; p < end; p++) {
+      float x = geometry.getX(p), y = geometry.getY(p);
+      if (p == end - 1  ||  GeomUtils.distance(lastX, lastY, x, y) >= minSegment) {
+        path.lineTo(x, y);
+        lastX = x;
+        lastY = y;
+      }
+    }
+    return path;
+  }
+
+  private double maxStrokeWidth(double pixel) {
+    return (1 + visualFlowMap.getModel().getMaxEdgeWidth()) * pixel;
+  }
+
+  private static double strokeWidth(Stroke stroke, double pixel) {
+    if (stroke instanceof PFixedWidthStroke) {
+      return ((PFixedWidthStroke)stroke).getLineWidth() * pixel;
+    }
+    if (stroke instanceof BasicStroke) {
+      return ((BasicStroke)stroke).getLineWidth();
+    }
+    return pixel;
+  }
+
+  /**
+   * @return The topmost visible edge within the pick tolerance from the point or null
+   */
+  VisualEdge findEdgeAt(double x, double y, double pixel) {
+    double tolerance = PICK_TOLERANCE_PIXELS * pixel;
+    double maxDist = maxStrokeWidth(pixel) / 2 + tolerance;
+    int[] found = geometry.findIntersecting(
+        new Rectangle2D.Double(x - maxDist, y - maxDist, maxDist * 2, maxDist * 2));
+    for (int k = found.length - 1; k >= 0; k--) {
+      int i = found[k];
+      VisualEdge ve = edges.get(i);
+      if (!ve.getVisible()) {
+        continue;
+      }
+      PPath ppath = ve.getEdgePPath();
+      if (ve.isSelfLoop()) {
+        if (ppath.getPathReference().contains(x, y)) {
+          return ve;
+        }
+      } else if (geometry.distanceTo(i, x, y) <=
+          strokeWidth(ppath.getStroke(), pixel) / 2 + tolerance) {
+        return ve;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public boolean intersects(Rectangle2D localBounds) {
+    PPickPath pickPath = PPickPath.CURRENT_PICK_PATH;
+    double pixel = (pickPath != null ? 1 / pickPath.getScale() : localBounds.getWidth());
+    return findEdgeAt(localBounds.getCenterX(), localBounds.getCenterY(), pixel) != null;
+  }
+
+  private void setHoveredEdge(VisualEdge ve, PInputEvent event) {
+    if (hoveredEdge == ve) {
+      return;
+    }
+    if (hoveredEdge != null) {
+      hoveredEdge.setHighlighted(false, false, false);
+      visualFlowMap.hideTooltip();
+    }
+    hoveredEdge = ve;
+    if (ve != null) {
+      ve.setHighlighted(true, false, false);
+      visualFlowMap.showTooltip(ve, event.getPosition());
+    }
+  }
+
+  private static final PBasicInputEventHandler hoverHandler = new PBasicInputEventHandler() {
+    @Override
+    public void mouseMoved(PInputEvent event) {
+      BatchedEdgeLayer layer = PNodes.getAncestorOfType(event.getPickedNode(), BatchedEdgeLayer.class);
+      if (layer == null) {
+        return;
+      }
+      Point2D pos = event.getPositionRelativeTo(layer);
+      double pixel = event.getPath().canvasToLocal(new PDimension(1, 1), layer).getWidth();
+      layer.setHoveredEdge(layer.findEdgeAt(pos.getX(), pos.getY(), pixel), event);
+    }
+
+    @Override
+    public void mouseEntered(PInputEvent event) {
+      mouseMoved(event);
+    }
+
+    @Override
+    public void mouseExited(PInputEvent event) {
+      BatchedEdgeLayer layer = PNodes.getAncestorOfType(event.getPickedNode(), BatchedEdgeLayer.class);
+      if (layer != null) {
+        layer.setHoveredEdge(null, event);
+      }
+    }
+  };
+
+}
@@ -0,0 +1,197 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.views.flowmap;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.geom.Point2D;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import jflowmap.FlowMapGraph;
+import jflowmap.bundling.ForceDirectedEdgeBundler;
+import jflowmap.geo.MapProjection;
+import jflowmap.geom.Point;
+import jflowmap.geom.PolylineGrid;
+
+import prefuse.data.Edge;
+
+import com.google.common.collect.ImmutableList;
+
+import edu.umd.cs.piccolo.PNode;
+
+/**
+ * Shows the subdivision points of the edges after each bundling cycle without
+ * recreating the visual edges. The geometry of a cycle is copied in the bundling
+ * thread and painted by a {@link BatchedEdgeLayer} in place of the edge layer.
+ * The points are projected in the same way as in
+ * {@link VisualFlowMap#createEdgeVisuals()}, so every edge is shown as the
+ * polyline through the control points of its final spline.
+ * If the cycles are completed faster than {@link #FRAME_BUDGET_MILLIS}, only the
+ * geometry of the last one is shown.
+ *
+ * @author Ilya Boyandin
+ */
+class BundlingPreview implements ForceDirectedEdgeBundler.CycleListener {
+
+  private static final int FRAME_BUDGET_MILLIS = 40;
+
+  private final VisualFlowMap visualFlowMap;
+  private final PNode edgeLayer;
+  private final List<VisualEdge> edges;
+  private final int[] edgeIndices;
+  private final MapProjection mapProjection;
+  private final float[] endpoints;
+
+  private final AtomicReference<PolylineGrid> pending = new AtomicReference<PolylineGrid>();
+  private final AtomicInteger numCyclesCompleted = new AtomicInteger();
+  private final Timer timer;
+  private BatchedEdgeLayer previewLayer;
+
+  /**
+   * Must be created in the event dispatch thread
+   *
+   * @param edgeLayer The layer which is hidden while the preview is shown
+   */
+  public BundlingPreview(VisualFlowMap visualFlowMap, PNode edgeLayer, List<VisualEdge> edges) {
+    this.visualFlowMap = visualFlowMap;
+    this.edgeLayer = edgeLayer;
+    this.edges = ImmutableList.copyOf(edges);
+    this.edgeIndices = new int[edges.size()];
+    for (int i = 0; i < edgeIndices.length; i++) {
+      edgeIndices[i] = edges.get(i).getEdge().getRow();
+    }
+    this.mapProjection = visualFlowMap.getMapProjection();
+    this.endpoints = projectEndpoints(visualFlowMap.getFlowMapGraph(), edgeIndices, mapProjection);
+    this.timer = new Timer(FRAME_BUDGET_MILLIS, new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        showPending();
+      }
+    });
+    timer.setRepeats(false);
+  }
+
+  public int getNumCyclesCompleted() {
+    return numCyclesCompleted.get();
+  }
+
+  @Override
+  public void cycleCompleted(ForceDirectedEdgeBundler bundler, int cycle, int numCycles) {
+    numCyclesCompleted.incrementAndGet();
+    pending.set(copyGeometry(bundler, edgeIndices, endpoints, mapProjection));
+    SwingUtilities.invokeLater(new Runnable() {
+      @Override
+      public void run() {
+        if (!timer.isRunning()) {
+          timer.start();
+        }
+      }
+    });
+  }
+
+  /**
+   * @return The projected source and target points of the edges: four
+   *         coordinates per edge in the order of the edge indices
+   */
+  static float[] projectEndpoints(FlowMapGraph fmg, int[] edgeIndices, MapProjection projection) {
+    float[] endpoints = new float[edgeIndices.length * 4];
+    for (int i = 0; i < edgeIndices.length; i++) {
+      Edge edge = fmg.getGraph().getEdge(edgeIndices[i]);
+      Point src = fmg.getEdgeSourcePoint(edge), dest = fmg.getEdgeTargetPoint(edge);
+      Point2D source = projection.project(src.x(), src.y());
+      Point2D target = projection.project(dest.x(), dest.y());
+      endpoints[i * 4] = (float)source.getX();
+      endpoints[i * 4 + 1] = (float)source.getY();
+      endpoints[i * 4 + 2] = (float)target.getX();
+      endpoints[i * 4 + 3] = (float)target.getY();
+    }
+    return endpoints;
+  }
+
+  /**
+   * Copies the current subdivision points of the edges projecting them and
+   * adding the source point before and the target point after them.
+   *
+   * @param endpoints As returned by {@link #projectEndpoints}
+   */
+  static PolylineGrid copyGeometry(ForceDirectedEdgeBundler bundler, int[] edgeIndices,
+      float[] endpoints, MapProjection projection) {
+    int P = bundler.getNumSubdivisionPoints();
+    int[] offsets = new int[edgeIndices.length + 1];
+    float[] xs = new float[edgeIndices.length * (P + 2)];
+    float[] ys = new float[xs.length];
+    int count = 0;
+    for (int i = 0; i < edgeIndices.length; i++) {
+      offsets[i] = count;
+      int edge = edgeIndices[i];
+      xs[count] = endpoints[i * 4];  ys[count] = endpoints[i * 4 + 1];
+      count++;
+      if (bundler.hasSubdivisionPoints(edge)) {
+        for (int j = 0; j < P; j++) {
+          Point2D p = projection.project(
+              bundler.getSubdivisionPointX(edge, j), bundler.getSubdivisionPointY(edge, j));
+          xs[count] = (float)p.getX();
+          ys[count] = (float)p.getY();
+          count++;
+        }
+      }
+      xs[count] = endpoints[i * 4 + 2];  ys[count] = endpoints[i * 4 + 3];
+      count++;
+    }
+    offsets[edgeIndices.length] = count;
+    return new PolylineGrid(offsets, xs, ys);
+  }
+
+  private void showPending() {
+    PolylineGrid geometry = pending.getAndSet(null);
+    if (geometry == null) {
+      return;
+    }
+    removePreviewLayer();
+    previewLayer = new BatchedEdgeLayer(visualFlowMap, edges, geometry);
+    previewLayer.setPickable(false);
+    visualFlowMap.addChild(previewLayer);
+    previewLayer.moveInFrontOf(edgeLayer);
+    edgeLayer.setVisible(false);
+  }
+
+  private void removePreviewLayer() {
+    if (previewLayer != null) {
+      visualFlowMap.removeChild(previewLayer);
+      previewLayer = null;
+    }
+  }
+
+  /**
+   * Removes the preview and shows the edge layer again. Must be called
+   * in the event dispatch thread when the bundling is finished or cancelled.
+   */
+  public void dispose() {
+    timer.stop();
+    pending.set(null);
+    removePreviewLayer();
+    edgeLayer.setVisible(true);
+  }
+
+}
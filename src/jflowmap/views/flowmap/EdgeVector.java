@@ -0,0 +1,177 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.views.flowmap;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sparse vector of the weights of the incoming or outgoing edges of a node indexed
+ * by the rows of their opposite nodes. The entries are sorted by the opposite node rows
+ * (edges having the same opposite node keep their order), so that two vectors can be
+ * compared in one merge pass instead of looking up every edge of one node among
+ * the edges of the other.
+ *
+ * @author Ilya Boyandin
+ */
+public final class EdgeVector {
+
+  private final String weightAttr;
+  private final int[] oppositeRows;
+  private final double[] weights;
+  private final VisualEdge[] edges;
+  private final double squareSum;
+
+  private EdgeVector(String weightAttr, int[] oppositeRows, double[] weights,
+      VisualEdge[] edges) {
+    this.weightAttr = weightAttr;
+    this.oppositeRows = oppositeRows;
+    this.weights = weights;
+    this.edges = edges;
+    double sum = 0;
+    for (double w : weights) {
+      sum += w * w;
+    }
+    this.squareSum = sum;
+  }
+
+  static EdgeVector of(VisualNode node, boolean incoming, String weightAttr) {
+    List<VisualEdge> edgeList = node.getEdges(incoming);
+    int size = edgeList.size();
+    int[] rows = new int[size];
+    double[] weights = new double[size];
+    VisualEdge[] edges = new VisualEdge[size];
+    for (int i = 0; i < size; i++) {
+      VisualEdge ve = edgeList.get(i);
+      rows[i] = ve.getOppositeNode(node).getNode().getRow();
+      weights[i] = ve.getEdgeWeight();
+      edges[i] = ve;
+    }
+    return sorted(weightAttr, rows, weights, edges);
+  }
+
+  /**
+   * Sorts the entries by the opposite node rows. The entries with the same row
+   * keep their relative order.
+   */
+  static EdgeVector sorted(String weightAttr, int[] oppositeRows, double[] weights,
+      VisualEdge[] edges) {
+    int size = oppositeRows.length;
+    long[] keys = new long[size];
+    for (int i = 0; i < size; i++) {
+      keys[i] = ((long)oppositeRows[i] << 32) | i;
+    }
+    Arrays.sort(keys);
+    int[] sortedRows = new int[size];
+    double[] sortedWeights = new double[size];
+    VisualEdge[] sortedEdges = new VisualEdge[size];
+    for (int i = 0; i < size; i++) {
+      int index = (int)keys[i];
+      sortedRows[i] = oppositeRows[index];
+      sortedWeights[i] = weights[index];
+      sortedEdges[i] = edges[index];
+    }
+    return new EdgeVector(weightAttr, sortedRows, sortedWeights, sortedEdges);
+  }
+
+  String getWeightAttr() {
+    return weightAttr;
+  }
+
+  public int size() {
+    return oppositeRows.length;
+  }
+
+  public int getOppositeRow(int index) {
+    return oppositeRows[index];
+  }
+
+  public double getWeight(int index) {
+    return weights[index];
+  }
+
+  public VisualEdge getEdge(int index) {
+    return edges[index];
+  }
+
+  /**
+   * @return Sum of the squares of the weights
+   */
+  public double getSquareSum() {
+    return squareSum;
+  }
+
+  /**
+   * For every entry of this vector finds the first entry of the other vector
+   * with the same opposite node.
+   *
+   * @return Indices of the matching entries of the other vector or -1 for the entries
+   *         which have no match
+   */
+  public int[] findMatches(EdgeVector other) {
+    int[] matches = new int[oppositeRows.length];
+    int[] otherRows = other.oppositeRows;
+    for (int i = 0, j = 0; i < oppositeRows.length; i++) {
+      int row = oppositeRows[i];
+      while (j < otherRows.length  &&  otherRows[j] < row) {
+        j++;
+      }
+      matches[i] = (j < otherRows.length  &&  otherRows[j] == row ? j : -1);
+    }
+    return matches;
+  }
+
+  /**
+   * @return Sum of the products of the weights of the entries of this vector and
+   *         of their matches in the other vector (see {@link #findMatches(EdgeVector)})
+   */
+  public double dotProduct(EdgeVector other) {
+    double sum = 0;
+    int[] otherRows = other.oppositeRows;
+    for (int i = 0, j = 0; i < oppositeRows.length; i++) {
+      int row = oppositeRows[i];
+      while (j < otherRows.length  &&  otherRows[j] < row) {
+        j++;
+      }
+      if (j < otherRows.length  &&  otherRows[j] == row) {
+        sum += weights[i] * other.weights[j];
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * @return Number of the entries of this vector which have a match in the other vector
+   */
+  public int numberOfMatches(EdgeVector other) {
+    int count = 0;
+    int[] otherRows = other.oppositeRows;
+    for (int i = 0, j = 0; i < oppositeRows.length; i++) {
+      int row = oppositeRows[i];
+      while (j < otherRows.length  &&  otherRows[j] < row) {
+        j++;
+      }
+      if (j < otherRows.length  &&  otherRows[j] == row) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+}
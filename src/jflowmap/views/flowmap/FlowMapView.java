@@ -109,7 +109,7 @@ public class FlowMapView extends AbstractCanvasView {
   }
 
   public void load(GraphMLDatasetSpec dataset) {
-    load(dataset, null);
+    load(dataset, (FlowMapStats)null);
   }
 
   /**
@@ -119,9 +119,22 @@ public class FlowMapView extends AbstractCanvasView {
    */
   public void load(GraphMLDatasetSpec dataset, FlowMapStats stats) {
     logger.info("> Loading flow map '" + dataset + "'");
+    FlowMapGraph flowMapGraph;
     try {
-      FlowMapGraph flowMapGraph = FlowMapGraph.loadGraphML(dataset, stats);
+      flowMapGraph = FlowMapGraph.loadGraphML(dataset, stats);
+    } catch (Exception ex) {
+      logger.error("Couldn't load flow map " + dataset.getFilename(), ex);
+      throw new RuntimeException("Couldn't load flow map '" + dataset.getFilename() + "':\n" + ex.getMessage());
+    }
+    load(dataset, flowMapGraph);
+  }
 
+  /**
+   * Use when the flow map graph of the dataset is already loaded. The area map
+   * of the dataset is loaded here.
+   */
+  public void load(GraphMLDatasetSpec dataset, FlowMapGraph flowMapGraph) {
+    try {
       VisualFlowMap visualFlowMap = createVisualFlowMap(
           flowMapGraph, dataset.getMapProjection(), flowMapGraph.getEdgeWeightAttrs().get(0));
 
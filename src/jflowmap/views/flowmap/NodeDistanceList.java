@@ -0,0 +1,147 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.views.flowmap;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.RandomAccess;
+
+import jflowmap.clustering.CondensedDistanceMatrix;
+import ch.unifr.dmlib.cluster.DistanceMatrix;
+
+/**
+ * Distances between all the pairs of the items of a distance matrix. The
+ * {@link VisualNodeDistance} objects are created on demand when they are accessed,
+ * so that the list doesn't take more memory than the matrix. The pairs (i, j), j < i,
+ * are listed in the order of the condensed index of {@link CondensedDistanceMatrix}.
+ *
+ * @author Ilya Boyandin
+ */
+public class NodeDistanceList extends AbstractList<VisualNodeDistance> implements RandomAccess {
+
+  private final List<VisualNode> items;
+  private final DistanceMatrix<VisualNode> distMatrix;
+  private final int size;
+
+  public NodeDistanceList(List<VisualNode> items, DistanceMatrix<VisualNode> distMatrix) {
+    long numPairs = CondensedDistanceMatrix.numberOfPairs(distMatrix.getNumOfItems());
+    if (numPairs > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many node pairs: " + numPairs);
+    }
+    this.items = items;
+    this.distMatrix = distMatrix;
+    this.size = (int)numPairs;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public VisualNodeDistance get(int index) {
+    if (index < 0  ||  index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+    }
+    int i = CondensedDistanceMatrix.pairRow(index);
+    int j = index - CondensedDistanceMatrix.pairIndex(i, 0);
+    return pair(i, j);
+  }
+
+  private VisualNodeDistance pair(int i, int j) {
+    return new VisualNodeDistance(items.get(i), items.get(j), distMatrix.distance(i, j));
+  }
+
+  /**
+   * Returns a view of the list in the order of
+   * {@link VisualNodeDistance#FROM_LABEL_COMPARATOR}. Only the order of the nodes
+   * by their labels is kept in memory, the pairs are looked up when they are accessed.
+   */
+  public List<VisualNodeDistance> sortedByLabels() {
+    return new SortedByLabels();
+  }
+
+  private class SortedByLabels extends AbstractList<VisualNodeDistance> implements RandomAccess {
+
+    private final int[] itemsByLabel;   // item indices
+    private final int[] firstPairOfSource;   // by label rank of the source
+
+    private int cachedSourceRank = -1;
+    private int[] cachedTargets;  // item indices less than the source's in the label order
+
+    SortedByLabels() {
+      int n = items.size();
+      Integer[] order = new Integer[n];
+      for (int i = 0; i < n; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer i1, Integer i2) {
+          return VisualNode.LABEL_COMPARATOR.compare(items.get(i1), items.get(i2));
+        }
+      });
+      itemsByLabel = new int[n];
+      firstPairOfSource = new int[n + 1];
+      for (int rank = 0; rank < n; rank++) {
+        itemsByLabel[rank] = order[rank];
+        // the source i is paired with all the items j < i
+        firstPairOfSource[rank + 1] = firstPairOfSource[rank] + order[rank];
+      }
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public synchronized VisualNodeDistance get(int index) {
+      if (index < 0  ||  index >= size) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+      }
+      int pos = Arrays.binarySearch(firstPairOfSource, index);
+      int rank;
+      if (pos >= 0) {
+        rank = pos;
+        while (firstPairOfSource[rank + 1] == index) {  // skip the sources without pairs
+          rank++;
+        }
+      } else {
+        rank = -pos - 2;
+      }
+      int source = itemsByLabel[rank];
+      if (rank != cachedSourceRank) {
+        int[] targets = new int[source];
+        int count = 0;
+        for (int item : itemsByLabel) {
+          if (item < source) {
+            targets[count++] = item;
+          }
+        }
+        cachedTargets = targets;
+        cachedSourceRank = rank;
+      }
+      return pair(source, cachedTargets[index - firstPairOfSource[rank]]);
+    }
+  }
+
+}
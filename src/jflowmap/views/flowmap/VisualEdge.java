@@ -59,6 +59,7 @@ public abstract class VisualEdge extends PNode {
   private final double edgeLength;
 
   private PPath edgePPath;
+  private BatchedEdgeLayer batchedEdgeLayer;
 
   public VisualEdge(VisualFlowMap visualFlowMap, Edge edge, VisualNode sourceNode, VisualNode targetNode) {
     this.edge = edge;
@@ -141,6 +142,19 @@ public abstract class VisualEdge extends PNode {
     return edgePPath;
   }
 
+  /**
+   * Sets the layer which paints the edge instead of its PPath.
+   */
+  void setBatchedEdgeLayer(BatchedEdgeLayer layer) {
+    this.batchedEdgeLayer = layer;
+  }
+
+  private void invalidateBatchedEdgeLayer() {
+    if (batchedEdgeLayer != null) {
+      batchedEdgeLayer.invalidatePaint();
+    }
+  }
+
   public void updateEdgeWidth() {
     PPath ppath = getEdgePPath();
     if (ppath != null) {
@@ -150,6 +164,7 @@ public abstract class VisualEdge extends PNode {
       } else {
         ppath.setStroke(createStroke());
       }
+      invalidateBatchedEdgeLayer();
     }
   }
 
@@ -195,6 +210,7 @@ public abstract class VisualEdge extends PNode {
     setVisible(visible);
     setPickable(visible);
     setChildrenPickable(visible);
+    invalidateBatchedEdgeLayer();
   }
 
   public Edge getEdge() {
@@ -264,6 +280,7 @@ public abstract class VisualEdge extends PNode {
       } else {
         ppath.setStrokePaint(createPaint());
       }
+      invalidateBatchedEdgeLayer();
     }
   }
 
@@ -306,6 +323,7 @@ public abstract class VisualEdge extends PNode {
         paint = createPaint();
       }
       ppath.setStrokePaint(paint);
+      invalidateBatchedEdgeLayer();
 //      getSourceNode().setVisible(value);
 //      getTargetNode().setVisible(value);
     }
@@ -21,6 +21,9 @@ package jflowmap.views.flowmap;
 import java.awt.Color;
 import java.awt.LinearGradientPaint;
 import java.awt.Paint;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import jflowmap.data.SeqStat;
 import jflowmap.geom.GeomUtils;
@@ -28,6 +31,12 @@ import jflowmap.util.ColorUtils;
 import jflowmap.views.ColorCodes;
 
 /**
+ * Creates the paints of the edges. The normalized values and the sizes of the
+ * direction markers are quantized to {@link #NUM_LEVELS} levels, so that the colors
+ * and the gradient fractions can be cached and shared by the edges. The cache
+ * must be cleared with {@link #clearCache()} when the colors or the parameters
+ * of the model they depend on are changed.
+ *
  * @author Ilya Boyandin
  */
 public class VisualEdgePaintFactory {
@@ -36,12 +45,32 @@ public class VisualEdgePaintFactory {
   private static final float[] DEFAULT_GRADIENT_FRACTIONS = new float[] { 0.0f, 1.0f };
   private static final float MIN_FRACTION_DIFF = 1e-5f;
 
+  static final int NUM_LEVELS = 256;
+  private static final int MAX_CACHED_GRADIENTS = 4096;
+
   private final VisualFlowMap visualFlowMap;
 
+  private final Color[] selfLoopColors = new Color[NUM_LEVELS];
+  private final Color[] noGradientColors = new Color[NUM_LEVELS];
+  private final Map<Integer, Gradient> gradients =
+    new LinkedHashMap<Integer, Gradient>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, Gradient> eldest) {
+        return size() > MAX_CACHED_GRADIENTS;
+      }
+    };
+
   public VisualEdgePaintFactory(VisualFlowMap visualFlowMap) {
     this.visualFlowMap = visualFlowMap;
   }
 
+  public void clearCache() {
+    Arrays.fill(selfLoopColors, null);
+    Arrays.fill(noGradientColors, null);
+    gradients.clear();
+  }
+
   public Paint createPaint(double normalizedValue, double srcX, double srcY, double targetX, double targetY) {
     return createPaint(
         normalizedValue, srcX, srcY, targetX, targetY,
@@ -59,92 +88,40 @@ public class VisualEdgePaintFactory {
       double srcX, double srcY, double targetX, double targetY,
       double edgeLength, boolean isSelfLoop)
   {
+    if (!(0 <= normalizedValue  &&  normalizedValue <= 1)) {
+      throw new IllegalArgumentException(
+          "Normalized value must be between 0.0 and 1.0. Actual: " + normalizedValue);
+    }
+    int level = quantize(normalizedValue);
     VisualFlowMapModel model = visualFlowMap.getModel();
-    int alpha = model.getEdgeAlpha();
     if (isSelfLoop) {
 
-      return ColorUtils.colorBetween(
-          visualFlowMap.getColor(ColorCodes.EDGE_SELF_LOOP_MIN_WEIGHT),
-          visualFlowMap.getColor(ColorCodes.EDGE_SELF_LOOP_MAX_WEIGHT),
-          normalizedValue, alpha);
+      if (selfLoopColors[level] == null) {
+        selfLoopColors[level] = colorBetween(
+            ColorCodes.EDGE_SELF_LOOP_MIN_WEIGHT, ColorCodes.EDGE_SELF_LOOP_MAX_WEIGHT,
+            level, model.getEdgeAlpha());
+      }
+      return selfLoopColors[level];
 
     } else {
 
       if (!model.getShowDirectionMarkers()  &&  !model.getFillEdgesWithGradient()) {
-        return ColorUtils.colorBetween(
-            visualFlowMap.getColor(ColorCodes.EDGE_NO_GRADIENT_MIN_WEIGHT),
-            visualFlowMap.getColor(ColorCodes.EDGE_NO_GRADIENT_MAX_WEIGHT),
-            normalizedValue, alpha);
-      } else {
-        Color startEdgeColor, endEdgeColor;
-        if (model.getFillEdgesWithGradient()) {
-//          startEdgeColor = new Color(value, 0, 0, alpha);
-//          endEdgeColor = new Color(0, value, 0, alpha);
-          startEdgeColor = ColorUtils.colorBetween(
-              visualFlowMap.getColor(ColorCodes.EDGE_GRADIENT_START_MIN_WEIGHT),
-              visualFlowMap.getColor(ColorCodes.EDGE_GRADIENT_START_MAX_WEIGHT),
-              normalizedValue, alpha);
-          endEdgeColor = ColorUtils.colorBetween(
-              visualFlowMap.getColor(ColorCodes.EDGE_GRADIENT_END_MIN_WEIGHT),
-              visualFlowMap.getColor(ColorCodes.EDGE_GRADIENT_END_MAX_WEIGHT),
-              normalizedValue, alpha);
-        } else {
-          // TODO: use a special paint (not gradient) for this case
-//          startEdgeColor = new Color(value, value, value, alpha);
-          startEdgeColor = ColorUtils.colorBetween(
-              visualFlowMap.getColor(ColorCodes.EDGE_NO_GRADIENT_MIN_WEIGHT),
-              visualFlowMap.getColor(ColorCodes.EDGE_NO_GRADIENT_MAX_WEIGHT),
-              normalizedValue, alpha);
-          endEdgeColor = startEdgeColor;
+        if (noGradientColors[level] == null) {
+          noGradientColors[level] = colorBetween(
+              ColorCodes.EDGE_NO_GRADIENT_MIN_WEIGHT, ColorCodes.EDGE_NO_GRADIENT_MAX_WEIGHT,
+              level, model.getEdgeAlpha());
         }
-
-        float[] fractions = null;
-        Color[] colors = null;
+        return noGradientColors[level];
+      } else {
+        int markerLevel = 0;
         if (model.getShowDirectionMarkers()) {
-          float markerSize;
-          if (model.getUseProportionalDirectionMarkers()) {
-            markerSize = (float)model.getDirectionMarkerSize();
-          } else {
-            SeqStat lstats = visualFlowMap.getStats().getEdgeLengthStats();
-            markerSize = (float)Math.min(
-                .5 - MIN_FRACTION_DIFF,  // the markers must not be longer than half of an edge
-                ((lstats.getMin() + model.getDirectionMarkerSize() * (lstats.getMax() - lstats.getMin()))
-                / 2)
-                / edgeLength  // the markers must be of equal length for every edge
-                        // (excepting the short ones)
-            );
-          }
-          if (markerSize - MIN_FRACTION_DIFF < 0) {
-            markerSize = MIN_FRACTION_DIFF;
-          }
-          if (markerSize > 0.5f - MIN_FRACTION_DIFF) {
-            markerSize = 0.5f - MIN_FRACTION_DIFF;
-          }
-          int markerAlpha = model.getDirectionMarkerAlpha();
-//          Color startMarkerColor = new Color(value, 0, 0, markerAlpha);
-//          Color endMarkerColor = new Color(0, value, 0, markerAlpha);
-          Color startMarkerColor = ColorUtils.colorBetween(
-              visualFlowMap.getColor(ColorCodes.EDGE_START_MARKER_MIN_WEIGHT),
-              visualFlowMap.getColor(ColorCodes.EDGE_START_MARKER_MAX_WEIGHT),
-              normalizedValue, markerAlpha);
-          Color endMarkerColor = ColorUtils.colorBetween(
-              visualFlowMap.getColor(ColorCodes.EDGE_END_MARKER_MIN_WEIGHT),
-              visualFlowMap.getColor(ColorCodes.EDGE_END_MARKER_MAX_WEIGHT),
-              normalizedValue, markerAlpha);
-          fractions = new float[] {
-              markerSize - MIN_FRACTION_DIFF,     // start marker
-              markerSize, 1.0f - markerSize,      // line
-              1.0f - markerSize + MIN_FRACTION_DIFF   // end marker
-          };
-          colors = new Color[] {
-              startMarkerColor,
-              startEdgeColor,
-              endEdgeColor,
-              endMarkerColor,
-          };
-        } else {
-          fractions = DEFAULT_GRADIENT_FRACTIONS;
-          colors = new Color[] { startEdgeColor, endEdgeColor };
+          markerLevel = quantize(Math.max(0, Math.min(1, markerSize(edgeLength) * 2)));
+        }
+        Integer key = level * NUM_LEVELS + markerLevel;
+        Gradient gradient = gradients.get(key);
+        if (gradient == null) {
+          gradient = createGradient(level, markerLevel);
+          gradients.put(key, gradient);
         }
 
 //        if (isSelfLoop) {
@@ -156,7 +133,7 @@ public class VisualEdgePaintFactory {
 //        } else {
           return new LinearGradientPaint(
               (float)srcX, (float)srcY, (float)targetX, (float)targetY,
-              fractions, colors
+              gradient.fractions, gradient.colors
           );
 //        }
       }
@@ -164,4 +141,104 @@ public class VisualEdgePaintFactory {
     }
   }
 
+  private static int quantize(double normalizedValue) {
+    return (int)Math.round(normalizedValue * (NUM_LEVELS - 1));
+  }
+
+  private static double dequantize(int level) {
+    return (double)level / (NUM_LEVELS - 1);
+  }
+
+  private Color colorBetween(ColorCodes min, ColorCodes max, int level, int alpha) {
+    return ColorUtils.colorBetween(
+        visualFlowMap.getColor(min), visualFlowMap.getColor(max), dequantize(level), alpha);
+  }
+
+  private float markerSize(double edgeLength) {
+    VisualFlowMapModel model = visualFlowMap.getModel();
+    float markerSize;
+    if (model.getUseProportionalDirectionMarkers()) {
+      markerSize = (float)model.getDirectionMarkerSize();
+    } else {
+      SeqStat lstats = visualFlowMap.getStats().getEdgeLengthStats();
+      markerSize = (float)Math.min(
+          .5 - MIN_FRACTION_DIFF,  // the markers must not be longer than half of an edge
+          ((lstats.getMin() + model.getDirectionMarkerSize() * (lstats.getMax() - lstats.getMin()))
+          / 2)
+          / edgeLength  // the markers must be of equal length for every edge
+                  // (excepting the short ones)
+      );
+    }
+    return markerSize;
+  }
+
+  private Gradient createGradient(int level, int markerLevel) {
+    VisualFlowMapModel model = visualFlowMap.getModel();
+    int alpha = model.getEdgeAlpha();
+    Color startEdgeColor, endEdgeColor;
+    if (model.getFillEdgesWithGradient()) {
+//      startEdgeColor = new Color(value, 0, 0, alpha);
+//      endEdgeColor = new Color(0, value, 0, alpha);
+      startEdgeColor = colorBetween(
+          ColorCodes.EDGE_GRADIENT_START_MIN_WEIGHT, ColorCodes.EDGE_GRADIENT_START_MAX_WEIGHT,
+          level, alpha);
+      endEdgeColor = colorBetween(
+          ColorCodes.EDGE_GRADIENT_END_MIN_WEIGHT, ColorCodes.EDGE_GRADIENT_END_MAX_WEIGHT,
+          level, alpha);
+    } else {
+      // TODO: use a special paint (not gradient) for this case
+//      startEdgeColor = new Color(value, value, value, alpha);
+      startEdgeColor = colorBetween(
+          ColorCodes.EDGE_NO_GRADIENT_MIN_WEIGHT, ColorCodes.EDGE_NO_GRADIENT_MAX_WEIGHT,
+          level, alpha);
+      endEdgeColor = startEdgeColor;
+    }
+
+    float[] fractions = null;
+    Color[] colors = null;
+    if (model.getShowDirectionMarkers()) {
+      float markerSize = (float)dequantize(markerLevel) / 2;
+      if (markerSize - MIN_FRACTION_DIFF < 0) {
+        markerSize = MIN_FRACTION_DIFF;
+      }
+      if (markerSize > 0.5f - MIN_FRACTION_DIFF) {
+        markerSize = 0.5f - MIN_FRACTION_DIFF;
+      }
+      int markerAlpha = model.getDirectionMarkerAlpha();
+//      Color startMarkerColor = new Color(value, 0, 0, markerAlpha);
+//      Color endMarkerColor = new Color(0, value, 0, markerAlpha);
+      Color startMarkerColor = colorBetween(
+          ColorCodes.EDGE_START_MARKER_MIN_WEIGHT, ColorCodes.EDGE_START_MARKER_MAX_WEIGHT,
+          level, markerAlpha);
+      Color endMarkerColor = colorBetween(
+          ColorCodes.EDGE_END_MARKER_MIN_WEIGHT, ColorCodes.EDGE_END_MARKER_MAX_WEIGHT,
+          level, markerAlpha);
+      fractions = new float[] {
+          markerSize - MIN_FRACTION_DIFF,     // start marker
+          markerSize, 1.0f - markerSize,      // line
+          1.0f - markerSize + MIN_FRACTION_DIFF   // end marker
+      };
+      colors = new Color[] {
+          startMarkerColor,
+          startEdgeColor,
+          endEdgeColor,
+          endMarkerColor,
+      };
+    } else {
+      fractions = DEFAULT_GRADIENT_FRACTIONS;
+      colors = new Color[] { startEdgeColor, endEdgeColor };
+    }
+    return new Gradient(fractions, colors);
+  }
+
+  private static class Gradient {
+    final float[] fractions;
+    final Color[] colors;
+
+    Gradient(float[] fractions, Color[] colors) {
+      this.fractions = fractions;
+      this.colors = colors;
+    }
+  }
+
 }
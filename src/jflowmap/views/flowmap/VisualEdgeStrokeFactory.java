@@ -19,24 +19,45 @@
 package jflowmap.views.flowmap;
 
 import java.awt.Stroke;
+import java.util.Arrays;
 
 import edu.umd.cs.piccolox.util.PFixedWidthStroke;
 
 /**
+ * Creates the strokes of the edges. The normalized values are quantized to
+ * {@link VisualEdgePaintFactory#NUM_LEVELS} levels and the strokes are shared
+ * by the edges with the same level until the max edge width is changed.
+ *
  * @author Ilya Boyandin
  */
 public class VisualEdgeStrokeFactory {
 
+  private static final int NUM_LEVELS = VisualEdgePaintFactory.NUM_LEVELS;
+
   private final VisualFlowMap visualFlowMap;
+  private final Stroke[] strokes = new Stroke[NUM_LEVELS];
+  private double strokesMaxEdgeWidth = Double.NaN;
 
   public VisualEdgeStrokeFactory(VisualFlowMap visualFlowMap) {
     this.visualFlowMap = visualFlowMap;
   }
 
   public Stroke createStroke(double normalizedValue) {
-    float width = (float)(1 + normalizedValue * visualFlowMap.getModel().getMaxEdgeWidth());
-    return new PFixedWidthStroke(width);
-//    return new BasicStroke(width);
+    double maxEdgeWidth = visualFlowMap.getModel().getMaxEdgeWidth();
+    if (!(0 <= normalizedValue  &&  normalizedValue <= 1)) {
+      return new PFixedWidthStroke((float)(1 + normalizedValue * maxEdgeWidth));
+    }
+    if (maxEdgeWidth != strokesMaxEdgeWidth) {
+      Arrays.fill(strokes, null);
+      strokesMaxEdgeWidth = maxEdgeWidth;
+    }
+    int level = (int)Math.round(normalizedValue * (NUM_LEVELS - 1));
+    if (strokes[level] == null) {
+      float width = (float)(1 + (double)level / (NUM_LEVELS - 1) * maxEdgeWidth);
+      strokes[level] = new PFixedWidthStroke(width);
+//      strokes[level] = new BasicStroke(width);
+    }
+    return strokes[level];
   }
 
 }
@@ -27,8 +27,10 @@ import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.io.IOException;
 import java.lang.Math;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -39,8 +41,11 @@ import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 
 import jflowmap.FlowMapGraph;
+import jflowmap.bundling.BundlingResultCache;
 import jflowmap.bundling.ForceDirectedBundlerParameters;
 import jflowmap.bundling.ForceDirectedEdgeBundler;
+import jflowmap.clustering.CondensedDistanceMatrix;
+import jflowmap.clustering.EuclideanClusterer;
 import jflowmap.clustering.NodeDistanceMeasure;
 import jflowmap.data.FlowMapStats;
 import jflowmap.data.SeqStat;
@@ -71,7 +76,6 @@ import ch.unifr.dmlib.cluster.ClusterVisitor;
 import ch.unifr.dmlib.cluster.DistanceMatrix;
 import ch.unifr.dmlib.cluster.HierarchicalClusterer;
 import ch.unifr.dmlib.cluster.Linkage;
-import ch.unifr.dmlib.cluster.Linkages;
 
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Maps;
@@ -115,7 +119,7 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
   // clustering fields
   private ClusterNode<VisualNode> rootCluster = null;
   private ClusterNode<VisualNode> euclideanRootCluster = null;
-  private List<VisualNodeDistance> nodeDistanceList;
+  private NodeDistanceList nodeDistanceList;
   private double maxNodeDistance;
   private double clusterDistanceThreshold;
   private double euclideanClusterDistanceThreshold;
@@ -125,6 +129,9 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
   private double euclideanMaxNodeDistance;
   // endOf clustering fields
   private boolean bundled;
+  // bundler of the last completed interactive bundling, kept to reuse its compatibility lists
+  private ForceDirectedEdgeBundler lastBundler;
+  private List<Object> lastBundlerSettings;
 
   private final VisualEdgePaintFactory visualEdgePaintFactory;
   private final VisualEdgeStrokeFactory visualEdgeStrokeFactory;
@@ -317,6 +324,7 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
 
   private void createEdgeVisuals() {
     edgeLayer.removeAllChildren();
+    visualEdgePaintFactory.clearCache();
     clearAggregatedEdgesLayer();
 
 //    for (int i = 0; i < graph.getEdgeTable().getColumnCount(); i++) {
@@ -392,12 +400,17 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
           visualEdge = new LineVisualEdge(this, edge, fromNode, toNode);
         }
         visualEdge.update();
-        edgeLayer.addChild(visualEdge);
+        if (!visualFlowMapModel.getBatchEdges()) {
+          edgeLayer.addChild(visualEdge);
+        }
 
         visualEdges.add(visualEdge);
         edgesToVisuals.put(edge, visualEdge);
       }
     }
+    if (visualFlowMapModel.getBatchEdges()) {
+      edgeLayer.addChild(new BatchedEdgeLayer(this, visualEdges));
+    }
   }
 
   private PBounds getVisualNodesBounds() {
@@ -549,6 +562,9 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
         } else if (prop.equals(VisualFlowMapModel.PROPERTY_EDGE_LENGTH_FILTER_MIN)
             || prop.equals(VisualFlowMapModel.PROPERTY_EDGE_LENGTH_FILTER_MAX)) {
           updateEdgeVisibility();
+        } else if (prop.equals(VisualFlowMapModel.PROPERTY_BATCH_EDGES)) {
+          createEdgeVisuals();
+          repaint();
         } else if (prop.equals(VisualFlowMapModel.PROPERTY_SHOW_NODES)) {
           updateNodeVisibility();
         } else if (prop.equals(VisualFlowMapModel.PROPERTY_NODE_SIZE)) {
@@ -571,6 +587,7 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
 
 
   protected void updateEdgeColors() {
+    visualEdgePaintFactory.clearCache();
     for (VisualEdge ve : visualEdges) {
       ve.updateEdgeColors();
     }
@@ -618,20 +635,129 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
 
   public void resetBundling() {
     bundled = false;
+    lastBundler = null;
     getFlowMapGraph().removeAllEdgeSubdivisionPoints();
     createEdgeVisuals();
     repaint();
   }
 
+  /**
+   * Bundles the edges from scratch. The current subdivision points are replaced
+   * by the result.
+   */
   public void bundleEdges(ForceDirectedBundlerParameters bundlerParams) {
+    bundleEdges(bundlerParams, null);
+  }
+
+  /**
+   * Bundles the edges starting from the current subdivision points, if the edges
+   * are already bundled, which is faster than bundling from scratch after small
+   * changes of the parameters. See
+   * {@link ForceDirectedEdgeBundler#rebundle(ProgressTracker, ForceDirectedEdgeBundler)}.
+   */
+  public void rebundleEdges(ForceDirectedBundlerParameters bundlerParams) {
+    startBundlingWorker(createBundlingWorker(bundlerParams, null, true, true));
+  }
+
+  /**
+   * Used when the user bundles the edges from the control panel. Rebundles the edges
+   * (see {@link #rebundleEdges(ForceDirectedBundlerParameters)}) if they were bundled
+   * here before and only the simulation parameters (the number of cycles, the steps
+   * per cycle, the step size or its damping factor) were changed since then.
+   * Otherwise, bundles them from scratch.
+   */
+  public void bundleOrRebundleEdges(ForceDirectedBundlerParameters bundlerParams) {
+    boolean warmStart = canRebundle(bundlerParams);
+    if (warmStart) {
+      logger.info("Only the simulation parameters changed, rebundling the edges");
+    }
+    startBundlingWorker(createBundlingWorker(bundlerParams, null, warmStart, true));
+  }
+
+  boolean canRebundle(ForceDirectedBundlerParameters bundlerParams) {
+    return bundled  &&  lastBundler != null  &&
+      getNonSimulationSettings(bundlerParams).equals(lastBundlerSettings);
+  }
+
+  private static List<Object> getNonSimulationSettings(ForceDirectedBundlerParameters params) {
+    return Arrays.<Object>asList(
+        params.getEdgeWeightAttr(),
+        params.getP(),
+        params.getSubdivisionPointsCycleIncreaseRate(),
+        params.getK(),
+        params.getEdgeCompatibilityThreshold(),
+        params.getDirectionAffectsCompatibility(),
+        params.getBinaryCompatibility(),
+        params.getUseInverseQuadraticModel(),
+        params.getUseRepulsionForOppositeEdges(),
+        params.getUseSimpleCompatibilityMeasure(),
+        params.getEdgeValueAffectsAttraction(),
+        params.getRepulsionAmount(),
+        params.getForceApproximationTheta());
+  }
+
+  /**
+   * Uses the bundling result from the cache if there is one for the graph and
+   * the parameters. Otherwise, bundles the edges from scratch and stores the
+   * result in the cache.
+   *
+   * @param cache If null, works as {@link #bundleEdges(ForceDirectedBundlerParameters)}
+   */
+  public void bundleEdges(final ForceDirectedBundlerParameters bundlerParams,
+      final BundlingResultCache cache) {
+    if (cache != null  &&  cache.load(getFlowMapGraph(), bundlerParams)) {
+      createEdgeVisuals();
+      bundled = true;
+      repaint();
+      return;
+    }
+    startBundlingWorker(createBundlingWorker(bundlerParams, cache, false, false));
+  }
+
+  private void startBundlingWorker(ProgressWorker worker) {
+    ProgressDialog dialog = new ProgressDialog(jFlowMap.getParentFrame(), "Edge Bundling", worker, true);
+    worker.getProgressTracker().addProgressListener(dialog);
+    worker.start();
+    dialog.setVisible(true);
+  }
+
+  /**
+   * @param cache Can be null, the result isn't stored there if warmStart is true
+   * @param warmStart Start from the current subdivision points instead of bundling from scratch
+   * @param keepForRebundling Keep the compatibility lists of the bundler after it completes,
+   *        so that they can be reused when the edges are rebundled
+   */
+  ProgressWorker createBundlingWorker(final ForceDirectedBundlerParameters bundlerParams,
+      final BundlingResultCache cache, final boolean warmStart, final boolean keepForRebundling) {
     final ProgressTracker pt = new ProgressTracker();
     final ForceDirectedEdgeBundler bundler = new ForceDirectedEdgeBundler(
         getFlowMapGraph(), bundlerParams);
+    final ForceDirectedEdgeBundler previous = (warmStart ? lastBundler : null);
+    final List<Object> settings = getNonSimulationSettings(bundlerParams);
+    lastBundler = null;
+    final BundlingPreview preview;
+    if (visualFlowMapModel.getShowBundlingProgress()) {
+      preview = new BundlingPreview(this, edgeLayer, visualEdges);
+      bundler.addCycleListener(preview);
+    } else {
+      preview = null;
+    }
     ProgressWorker worker = new ProgressWorker(pt) {
+      private volatile boolean completed;
+
       @Override
       public Object construct() {
         try {
-          bundler.bundle(getProgressTracker());
+          if (warmStart) {
+            bundler.rebundle(getProgressTracker(), previous);
+          } else {
+            bundler.bundle(getProgressTracker());
+            if (cache != null  &&  !getProgressTracker().isCancelled()) {
+              storeBundlingResult(bundlerParams, cache);
+            }
+          }
+          completed = !getProgressTracker().isCancelled();
+          bundler.releaseSimulationData();
         } catch (Exception ex) {
           logger.error("Bundling error", ex);
           JOptionPane.showMessageDialog(jFlowMap.getVisualCanvas(),
@@ -643,22 +769,67 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
         }
         return null;
       }
-    };
-    ProgressDialog dialog = new ProgressDialog(jFlowMap.getParentFrame(), "Edge Bundling", worker, true);
-    pt.addProgressListener(dialog);
-    pt.addTaskCompletionListener(new TaskCompletionListener() {
-      public void taskCompleted(int taskId) {
-        SwingUtilities.invokeLater(new Runnable() {
-          public void run() {
+
+      @Override
+      public void finished() {
+        super.finished();
+        if (completed  &&  keepForRebundling) {
+          lastBundler = bundler;
+          lastBundlerSettings = settings;
+        }
+        if (preview != null) {
+          // keep the result of the last completed cycle also if the bundling was cancelled
+          preview.dispose();
+          if (preview.getNumCyclesCompleted() > 0) {
             createEdgeVisuals();
             bundled = true;
-            repaint();
           }
-        });
+          repaint();
+        }
       }
-    });
-    worker.start();
-    dialog.setVisible(true);
+    };
+    if (preview == null) {
+      pt.addTaskCompletionListener(new TaskCompletionListener() {
+        public void taskCompleted(int taskId) {
+          SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+              createEdgeVisuals();
+              bundled = true;
+              repaint();
+            }
+          });
+        }
+      });
+    }
+    return worker;
+  }
+
+  /**
+   * Bundles the edges from scratch in the calling thread without showing any
+   * progress dialogs. Meant for batch rendering, so the scene graph mustn't be
+   * accessed concurrently from other threads.
+   *
+   * @param cache Can be null
+   */
+  public void bundleEdgesInCurrentThread(ForceDirectedBundlerParameters bundlerParams,
+      BundlingResultCache cache) {
+    if (cache == null  ||  !cache.load(getFlowMapGraph(), bundlerParams)) {
+      ForceDirectedEdgeBundler bundler = new ForceDirectedEdgeBundler(getFlowMapGraph(), bundlerParams);
+      bundler.bundle(new ProgressTracker());
+      if (cache != null) {
+        storeBundlingResult(bundlerParams, cache);
+      }
+    }
+    createEdgeVisuals();
+    bundled = true;
+  }
+
+  private void storeBundlingResult(ForceDirectedBundlerParameters bundlerParams, BundlingResultCache cache) {
+    try {
+      cache.store(getFlowMapGraph(), bundlerParams);
+    } catch (IOException ioe) {
+      logger.warn("Couldn't store the bundling result", ioe);
+    }
   }
 
 
@@ -837,7 +1008,7 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
     return rootCluster;
   }
 
-  public List<VisualNodeDistance> getNodeDistanceList() {
+  public NodeDistanceList getNodeDistanceList() {
     return nodeDistanceList;
   }
 
@@ -937,7 +1108,9 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
       boolean combineWithEuclideanClusters) {
     logger.info("Clustering nodes");
     HierarchicalClusterer<VisualNode> clusterer =
-      HierarchicalClusterer.createWith(distanceMeasure, linkage).build();
+      HierarchicalClusterer.createWith(distanceMeasure, linkage)
+        .withDistanceMatrixFactory(CondensedDistanceMatrix.<VisualNode>factory())
+        .build();
 
     List<VisualNode> items = distanceMeasure.filterNodes(visualNodes);
 
@@ -948,10 +1121,10 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
     maxNodeDistance = findMaxClusterDist(rootCluster);
     clusterDistanceThreshold = maxNodeDistance / 2;
     if (combineWithEuclideanClusters) {
-      euclideanRootCluster = HierarchicalClusterer
-        .createWith(NodeDistanceMeasure.EUCLIDEAN, Linkages.<VisualNode>complete())
-        .build()
-        .clusterToRoot(items, new ProgressTracker());
+      // same as clustering with NodeDistanceMeasure.EUCLIDEAN and complete linkage,
+      // but without the distance matrix
+      euclideanRootCluster = new EuclideanClusterer<VisualNode>(
+          VisualNode.TRANSFORM_NODE_TO_VALUE_POSITION).clusterToRoot(items, new ProgressTracker());
 
       euclideanMaxNodeDistance = findMaxClusterDist(euclideanRootCluster);
       euclideanClusterDistanceThreshold = euclideanMaxNodeDistance / 2;
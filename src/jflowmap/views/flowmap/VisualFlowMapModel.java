@@ -35,6 +35,9 @@ public class VisualFlowMapModel {
   public static final String DEFAULT_EDGE_WEIGHT_ATTR_NAME = "value";
   public static final String DEFAULT_NODE_LABEL_ATTR_NAME = "label";
 
+  /** The edges of the maps with at least as many edges are batched by default */
+  public static final int MIN_EDGES_TO_BATCH = 5000;
+
   private boolean autoAdjustColorScale;
   private boolean useLogColorScale = true;
   private boolean useLogWidthScale = false;
@@ -42,6 +45,8 @@ public class VisualFlowMapModel {
   private boolean showDirectionMarkers = true;
   private boolean fillEdgesWithGradient = true;
   private boolean useProportionalDirectionMarkers = true;
+  private boolean batchEdges;
+  private boolean showBundlingProgress = true;
 
 
 //  private int edgeAlpha = 150;
@@ -66,6 +71,7 @@ public class VisualFlowMapModel {
 
   public VisualFlowMapModel(FlowMapGraph flowMapGraph) {
     this.flowMapGraph = flowMapGraph;
+    this.batchEdges = (flowMapGraph.getGraph().getEdgeCount() >= MIN_EDGES_TO_BATCH);
     initFromStats();
   }
 
@@ -281,6 +287,36 @@ public class VisualFlowMapModel {
     }
   }
 
+  public boolean getBatchEdges() {
+    return batchEdges;
+  }
+
+  /**
+   * @param value If true, the edges are painted by a {@link BatchedEdgeLayer}
+   *          instead of being added to the scene graph one by one
+   */
+  public void setBatchEdges(boolean value) {
+    if (batchEdges != value) {
+      batchEdges = value;
+      changes.firePropertyChange(PROPERTY_BATCH_EDGES, !value, value);
+    }
+  }
+
+  public boolean getShowBundlingProgress() {
+    return showBundlingProgress;
+  }
+
+  /**
+   * @param value If true, the edges are redrawn after each bundling cycle
+   *          while the bundling is in progress
+   */
+  public void setShowBundlingProgress(boolean value) {
+    if (showBundlingProgress != value) {
+      showBundlingProgress = value;
+      changes.firePropertyChange(PROPERTY_SHOW_BUNDLING_PROGRESS, !value, value);
+    }
+  }
+
   public double getDirectionMarkerSize() {
     return directionMarkerSize;
   }
@@ -334,6 +370,8 @@ public class VisualFlowMapModel {
   public static final String PROPERTY_FILL_EDGES_WITH_GRADIENT = "fillEdgesWithGradient";
   public static final String PROPERTY_SHOW_DIRECTION_MARKERS = "showDirectionMarkers";
   public static final String PROPERTY_SHOW_NODES = "showNodes";
+  public static final String PROPERTY_BATCH_EDGES = "batchEdges";
+  public static final String PROPERTY_SHOW_BUNDLING_PROGRESS = "showBundlingProgress";
   public static final String PROPERTY_NODE_SIZE = "nodeSize";
 
 
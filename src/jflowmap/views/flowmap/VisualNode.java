@@ -65,6 +65,8 @@ public class VisualNode extends PNode {
 
   private final List<VisualEdge> outgoingEdges = new ArrayList<VisualEdge>();
   private final List<VisualEdge> incomingEdges = new ArrayList<VisualEdge>();
+  private EdgeVector outgoingEdgeVector;
+  private EdgeVector incomingEdgeVector;
 
   private final VisualFlowMap visualFlowMap;
 
@@ -258,6 +260,7 @@ public class VisualNode extends PNode {
 
   public void addOutgoingEdge(VisualEdge flow) {
     outgoingEdges.add(flow);
+    outgoingEdgeVector = null;
   }
 
   public List<VisualEdge> getOutgoingEdges() {
@@ -266,6 +269,7 @@ public class VisualNode extends PNode {
 
   public void addIncomingEdge(VisualEdge flow) {
     incomingEdges.add(flow);
+    incomingEdgeVector = null;
   }
 
   public List<VisualEdge> getIncomingEdges() {
@@ -312,6 +316,25 @@ public class VisualNode extends PNode {
     return found;
   }
 
+  /**
+   * Returns the weights of the incoming edges if incoming is true and of the outgoing
+   * if incoming is false as a sparse vector indexed by the opposite nodes. The vector
+   * is created once and then reused until the edges or the flow weight attr change.
+   */
+  public EdgeVector getEdgeVector(boolean incoming) {
+    String weightAttr = visualFlowMap.getFlowWeightAttr();
+    EdgeVector vector = (incoming ? incomingEdgeVector : outgoingEdgeVector);
+    if (vector == null  ||  !weightAttr.equals(vector.getWeightAttr())) {
+      vector = EdgeVector.of(this, incoming, weightAttr);
+      if (incoming) {
+        incomingEdgeVector = vector;
+      } else {
+        outgoingEdgeVector = vector;
+      }
+    }
+    return vector;
+  }
+
   public List<VisualNode> getEdgeOppositeNodes(boolean incoming) {
     List<VisualEdge> edges = getEdges(incoming);
     List<VisualNode> nodes = new ArrayList<VisualNode>(edges.size());
@@ -475,4 +498,10 @@ public class VisualNode extends PNode {
     }
   };
 
+  public static final Function<VisualNode, Point> TRANSFORM_NODE_TO_VALUE_POSITION = new Function<VisualNode, Point>() {
+    public Point apply(VisualNode node) {
+      return new Point(node.getValueX(), node.getValueY());
+    }
+  };
+
 }
@@ -18,7 +18,6 @@
 
 package jflowmap.views.flowmap;
 
-import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 
@@ -55,14 +54,12 @@ public class VisualNodeDistance implements Comparable<VisualNodeDistance> {
     return Double.compare(distance, o.distance);
   }
 
-  public static List<VisualNodeDistance> makeDistanceList(List<VisualNode> items,
+  /**
+   * The returned list creates the distance objects on demand when they are accessed.
+   */
+  public static NodeDistanceList makeDistanceList(List<VisualNode> items,
       DistanceMatrix<VisualNode> distMatrix) {
-    List<VisualNodeDistance> list = new ArrayList<VisualNodeDistance>();
-    for (int i = 0; i < distMatrix.getNumOfItems(); i++)
-    for (int j = 0; j < i; j++) {
-      list.add(new VisualNodeDistance(items.get(i), items.get(j), distMatrix.distance(i, j)));
-    }
-    return list;
+    return new NodeDistanceList(items, distMatrix);
   }
 
   public static double findMaxDistance(List<VisualNodeDistance> distances) {
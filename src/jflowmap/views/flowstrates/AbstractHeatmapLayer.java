@@ -18,11 +18,9 @@
 
 package jflowmap.views.flowstrates;
 
-import java.util.List;
-
 import jflowmap.FlowEndpoint;
+import jflowmap.data.NodeWeightTotals;
 import jflowmap.data.SeqStat;
-import prefuse.data.Edge;
 
 /**
  * @author Ilya Boyandin
@@ -53,18 +51,17 @@ public abstract class AbstractHeatmapLayer extends TemporalViewLayer {
     MapLayer originMap = getFlowstratesView().getMapLayer(FlowEndpoint.ORIGIN);
     MapLayer destMap = getFlowstratesView().getMapLayer(FlowEndpoint.DEST);
 
-    List<Edge> edges = getFlowstratesView().getVisibleEdges();
-
     SeqStat wstat = getFlowstratesView().getValueStat();
 
     if (hover) {
       if (weightAttrTotalsStat == null) {
-         for (String attr : getFlowMapGraph().getEdgeWeightAttrs()) {
+        NodeWeightTotals totals = getFlowstratesView().getVisibleEdgesNodeTotals();
+        for (int i = 0, n = getFlowMapGraph().getEdgeWeightAttrs().size(); i < n; i++) {
           // "merge" the value stats with the max value of the sums, to construct a color
           // scale in which we can represent the totals for the nodes
           wstat = wstat
-              .mergeWith(originMap.calcNodeTotalsFor(edges, attr).values())
-              .mergeWith(destMap.calcNodeTotalsFor(edges, attr).values());
+              .mergeWith(totals.getTotalsStats(i, FlowEndpoint.ORIGIN))
+              .mergeWith(totals.getTotalsStats(i, FlowEndpoint.DEST));
         }
         weightAttrTotalsStat = wstat;
       }
@@ -235,8 +235,11 @@ public class FastHeatmapLayer extends AbstractHeatmapLayer {
     return new IDataValues() {
       FlowstratesView fs = getFlowstratesView();
       FlowMapGraph fmg = fs.getFlowMapGraph();
-      List<String> attrs = fmg.getEdgeWeightAttrs();
       List<Edge> edges = fs.getVisibleEdges();
+      {
+        // the whole heatmap is read, so let the weight accessors use the dense store
+        fmg.getEdgeWeightStore();
+      }
       @Override
       public int getSize() {
         return edges.size();
@@ -247,7 +250,7 @@ public class FastHeatmapLayer extends AbstractHeatmapLayer {
       }
       @Override
       public double getValue(int element, int attribute) {
-        return getFlowstratesView().getValue(edges.get(element), attrs.get(attribute));
+        return fs.getValue(edges.get(element), attribute);
       }
     };
   }
@@ -46,6 +46,7 @@ import jflowmap.FlowMapGraphAggLayers;
 import jflowmap.data.EdgeListFlowMapStats;
 import jflowmap.data.FlowMapNodeTotals;
 import jflowmap.data.FlowMapStats;
+import jflowmap.data.NodeWeightTotals;
 import jflowmap.data.SeqStat;
 import jflowmap.geo.MapProjection;
 import jflowmap.models.map.GeoMap;
@@ -175,14 +176,19 @@ public class FlowstratesView extends AbstractCanvasView {
     }
     this.layers = aggregator.build(flowMapGraph);
 
-    for (FlowMapGraph fmg : layers.getFlowMapGraphs()) {
-      fmg.addEdgeWeightDifferenceColumns();
-      fmg.addEdgeWeightRelativeDifferenceColumns();
-
-      FlowMapNodeTotals.supplyNodesWithWeightTotals(fmg);
-      FlowMapNodeTotals.supplyNodesWithWeightTotals(fmg, fmg.getEdgeWeightDiffAttr());
-      FlowMapNodeTotals.supplyNodesWithWeightTotals(fmg, fmg.getEdgeWeightRelativeDiffAttrNames());
-    }
+    // the layers are aggregated only when they are selected
+    layers.setLayerInitializer(new FlowMapGraphAggLayers.LayerInitializer() {
+      @Override
+      public void init(FlowMapGraph fmg) {
+        fmg.addEdgeWeightDifferenceColumns();
+        fmg.addEdgeWeightRelativeDifferenceColumns();
+
+        FlowMapNodeTotals.supplyNodesWithWeightTotals(fmg);
+        FlowMapNodeTotals.supplyNodesWithWeightTotals(fmg, fmg.getEdgeWeightDiffAttr());
+        FlowMapNodeTotals.supplyNodesWithWeightTotals(fmg,
+            fmg.getEdgeWeightRelativeDiffAttrNames());
+      }
+    });
 
 
     beforeInitialize();
@@ -758,6 +764,53 @@ public class FlowstratesView extends AbstractCanvasView {
     return valueType;
   }
 
+  /**
+   * @return Names of the attrs holding the values of the current value type
+   *         for the weight attrs of the flow map graph
+   */
+  public List<String> getValueAttrs() {
+    FlowMapAttrSpec attrSpec = getFlowMapGraph().getAttrSpec();
+    List<String> attrs = Lists.newArrayList();
+    for (String weightAttr : getFlowMapGraph().getEdgeWeightAttrs()) {
+      attrs.add(valueType.getColumnValueAttr(attrSpec, weightAttr));
+    }
+    return attrs;
+  }
+
+  /**
+   * Node totals of the values of the visible edges. The attr indices of the totals
+   * are the indices of the weight attrs.
+   */
+  NodeWeightTotals getVisibleEdgesNodeTotals() {
+    List<Edge> edges = getVisibleEdges();
+    if (edges != visibleEdgesOfNodeTotals  ||  !isUpToDate(visibleEdgesNodeTotals)) {
+      visibleEdgesNodeTotals = updateNodeTotals(visibleEdgesNodeTotals, edges);
+      visibleEdgesOfNodeTotals = edges;
+    }
+    return visibleEdgesNodeTotals;
+  }
+
+  /**
+   * Node totals of the values of the given edges (e.g. of the base edges of an aggregate).
+   * Only the changes to the edges passed in the previous call are processed.
+   */
+  NodeWeightTotals getNodeTotals(Iterable<Edge> edges) {
+    nodeTotals = updateNodeTotals(nodeTotals, edges);
+    return nodeTotals;
+  }
+
+  private boolean isUpToDate(NodeWeightTotals totals) {
+    return totals != null  &&  totals.getAttrs().equals(getValueAttrs());
+  }
+
+  private NodeWeightTotals updateNodeTotals(NodeWeightTotals totals, Iterable<Edge> edges) {
+    if (!isUpToDate(totals)) {
+      totals = new NodeWeightTotals(flowMapGraph, getValueAttrs());
+    }
+    totals.setEdges(edges);
+    return totals;
+  }
+
   public double getValue(Edge edge, String attr) {
     ValueType vtype = getValueType();
     FlowMapAttrSpec attrSpec = getFlowMapGraph().getAttrSpec();
@@ -765,6 +818,17 @@ public class FlowstratesView extends AbstractCanvasView {
     return edge.getDouble(vtype.getColumnValueAttr(attrSpec, attr));
   }
 
+  /**
+   * @param weightAttrIndex Index of the attr in the weight attrs of the flow map graph
+   */
+  public double getValue(Edge edge, int weightAttrIndex) {
+    FlowMapGraph fmg = getFlowMapGraph();
+    if (getValueType() == ValueType.VALUE) {
+      return fmg.getEdgeWeight(edge, weightAttrIndex);
+    }
+    return getValue(edge, fmg.getEdgeWeightAttrs().get(weightAttrIndex));
+  }
+
   public void setDivergingColorScheme(ColorSchemes divergingColorScheme) {
     if (this.divergingColorScheme != divergingColorScheme) {
       this.divergingColorScheme = divergingColorScheme;
@@ -949,6 +1013,9 @@ public class FlowstratesView extends AbstractCanvasView {
   private boolean fitInViewOnce = false;
   private RowOrdering rowOrdering = RowOrderings.MAX_MAGNITUDE_IN_ROW;
   private FlowMapStats visibleEdgesStats;
+  private NodeWeightTotals visibleEdgesNodeTotals;
+  private List<Edge> visibleEdgesOfNodeTotals;
+  private NodeWeightTotals nodeTotals;
 
   @Override
   public void fitInView() {
@@ -35,6 +35,7 @@ import jflowmap.FlowEndpoint;
 import jflowmap.FlowMapGraph;
 import jflowmap.data.FlowMapGraphEdgeAggregator;
 import jflowmap.data.FlowMapNodeTotals;
+import jflowmap.data.NodeWeightTotals;
 import jflowmap.data.Nodes;
 import jflowmap.data.SeqStat;
 import jflowmap.geo.MapProjections;
@@ -473,25 +474,21 @@ public class MapLayer extends PLayer implements ViewLayer {
     }
   }
 
-  private void colorizeMapAreasWithNodeTotals(Iterable<Edge> edges, String weightAttr, boolean hover) {
-    Map<String, Double> totals = calcNodeTotalsFor(edges, weightAttr);
+  private void colorizeMapAreasWithNodeTotals(NodeWeightTotals totals, Iterable<Edge> edges,
+      String weightAttr, boolean hover) {
+    int attrIndex = flowstratesView.getEdgeWeightAttrIndex(weightAttr);
 
     for (Node node : Nodes.distinctNodesOfEdges(edges, endpoint)) {
       String nodeId = getFlowMapGraph().getNodeId(node);
-      colorizeMapArea(nodeId, totals.get(nodeId), hover);
+      colorizeMapArea(nodeId, totals.getTotal(node, attrIndex, endpoint), hover);
     }
   }
 
-  public Map<String, Double> calcNodeTotalsFor(Iterable<Edge> edges, String weightAttr) {
-    return FlowMapNodeTotals.calcNodeTotalsFor(getFlowMapGraph(), edges, getColumnValueAttrName(weightAttr),
-        endpoint);
-  }
-
   void updateMapAreaColorsOnHeatmapCellHover(Edge edge, String weightAttr, boolean hover) {
     if (FlowMapGraphEdgeAggregator.isAggregate(edge)) {
 
       List<Edge> edges = FlowMapGraphEdgeAggregator.getBaseAggregateList(edge);
-      colorizeMapAreasWithNodeTotals(edges, weightAttr, hover);
+      colorizeMapAreasWithNodeTotals(flowstratesView.getNodeTotals(edges), edges, weightAttr, hover);
 
     } else {
       double value = flowstratesView.getValue(edge, weightAttr);
@@ -507,13 +504,8 @@ public class MapLayer extends PLayer implements ViewLayer {
     // edges = getFlowMapGraph().edges();
     // }
     setCentroidsOpaque(!hover);
-    colorizeMapAreasWithNodeTotals(edges, columnAttr, hover);
-  }
-
-  private String getColumnValueAttrName(String columnAttr) {
-    ValueType vtype = flowstratesView.getValueType();
-
-    return vtype.getColumnValueAttr(getFlowMapGraph().getAttrSpec(), columnAttr);
+    colorizeMapAreasWithNodeTotals(flowstratesView.getVisibleEdgesNodeTotals(), edges, columnAttr,
+        hover);
   }
 
   void setVisualAreaMapHighlighted(String nodeId, boolean highlighted) {
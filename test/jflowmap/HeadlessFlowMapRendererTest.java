@@ -0,0 +1,116 @@
+package jflowmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import jflowmap.data.GraphMLDatasetSpec;
+import jflowmap.geo.MapProjections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class HeadlessFlowMapRendererTest {
+
+  private static final Color BACKGROUND = new Color(0x60, 0x60, 0x60);
+
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    System.setProperty("java.awt.headless", "true");
+    dir = File.createTempFile("headless-renderer", "");
+    dir.delete();
+    dir.mkdir();
+  }
+
+  @After
+  public void tearDown() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  private static String graphML(double value) {
+    return
+      "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+      "<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\">\n" +
+      "  <key id=\"name\" for=\"node\" attr.name=\"name\" attr.type=\"string\"/>\n" +
+      "  <key id=\"x\" for=\"node\" attr.name=\"x\" attr.type=\"double\"/>\n" +
+      "  <key id=\"y\" for=\"node\" attr.name=\"y\" attr.type=\"double\"/>\n" +
+      "  <key id=\"v\" for=\"edge\" attr.name=\"value\" attr.type=\"double\"/>\n" +
+      "  <graph id=\"g\" edgedefault=\"directed\">\n" +
+      "    <node id=\"a\"><data key=\"name\">A</data><data key=\"x\">0</data><data key=\"y\">0</data></node>\n" +
+      "    <node id=\"b\"><data key=\"name\">B</data><data key=\"x\">100</data><data key=\"y\">0</data></node>\n" +
+      "    <node id=\"c\"><data key=\"name\">C</data><data key=\"x\">50</data><data key=\"y\">80</data></node>\n" +
+      "    <edge source=\"a\" target=\"b\"><data key=\"v\">" + value + "</data></edge>\n" +
+      "    <edge source=\"b\" target=\"c\"><data key=\"v\">" + (value * 2) + "</data></edge>\n" +
+      "    <edge source=\"c\" target=\"a\"><data key=\"v\">" + (value * 3) + "</data></edge>\n" +
+      "  </graph>\n" +
+      "</graphml>\n";
+  }
+
+  private GraphMLDatasetSpec writeDataset(String name, double value) throws IOException {
+    File file = new File(dir, "dataset-" + name + ".xml");
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(graphML(value).getBytes("utf-8"));
+    } finally {
+      out.close();
+    }
+    return new GraphMLDatasetSpec(file.getPath(), "value", "x", "y", "name",
+        null, null, null, MapProjections.NONE);
+  }
+
+  private static boolean hasNonBackgroundPixels(BufferedImage image, int x0, int y0, int w, int h) {
+    for (int y = y0; y < y0 + h; y++) {
+      for (int x = x0; x < x0 + w; x++) {
+        if ((image.getRGB(x, y) & 0xffffff) != (BACKGROUND.getRGB() & 0xffffff)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @Test
+  public void testRenderSmallMultiples() throws IOException {
+    Map<String, GraphMLDatasetSpec> datasets = Maps.newLinkedHashMap();
+    datasets.put("first", writeDataset("first", 10));
+    datasets.put("second", writeDataset("second", 20));
+    File output = new File(dir, "out.png");
+
+    HeadlessFlowMapRenderer renderer = new HeadlessFlowMapRenderer(output.getPath(), datasets);
+    renderer.setSize(200, 150);
+    renderer.setNumColumns(2);
+    renderer.setNumThreads(2);
+    renderer.setBackground(BACKGROUND);
+    renderer.setShowLegend(false);
+    renderer.setUseBundlingCache(false);
+    renderer.render();
+
+    BufferedImage image = ImageIO.read(output);
+    assertEquals(2 * (200 + 5) + 5, image.getWidth());
+    assertEquals(150 + 2 * 5, image.getHeight());
+    assertTrue(!hasNonBackgroundPixels(image, 0, 0, image.getWidth(), 5));  // padding
+    assertTrue("First map is blank", hasNonBackgroundPixels(image, 5, 5, 200, 150));
+    assertTrue("Second map is blank", hasNonBackgroundPixels(image, 5 + 205, 5, 200, 150));
+  }
+
+}
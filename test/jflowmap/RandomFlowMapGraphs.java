@@ -0,0 +1,42 @@
+package jflowmap;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import jflowmap.data.FlowMapGraphBuilder;
+import jflowmap.geom.Point;
+
+import prefuse.data.Node;
+
+/**
+ * Random flow map graphs for the tests.
+ *
+ * @author Ilya Boyandin
+ */
+public class RandomFlowMapGraphs {
+
+  private RandomFlowMapGraphs() {
+  }
+
+  /**
+   * Builds a graph with the nodes placed randomly in the area 100 x 50 and the edges
+   * connecting random pairs of the nodes. The edge weights are in the attr "value".
+   */
+  public static FlowMapGraph build(long seed, int numNodes, int numEdges) {
+    FlowMapGraphBuilder builder =
+      new FlowMapGraphBuilder("randomGraph", new FlowMapAttrSpec(
+          Arrays.asList("value"), "label", "lon", "lat"));
+    Random rnd = new Random(seed);
+    Node[] nodes = new Node[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      nodes[i] = builder.addNode("" + i,
+          new Point(rnd.nextDouble() * 100, rnd.nextDouble() * 50), "Node" + i);
+    }
+    for (int i = 0; i < numEdges; i++) {
+      builder.addEdge(nodes[rnd.nextInt(numNodes)], nodes[rnd.nextInt(numNodes)],
+          1 + rnd.nextInt(1000));
+    }
+    return builder.build();
+  }
+
+}
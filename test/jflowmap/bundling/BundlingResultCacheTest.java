@@ -0,0 +1,83 @@
+package jflowmap.bundling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import jflowmap.FlowMapGraph;
+import jflowmap.RandomFlowMapGraphs;
+import jflowmap.geom.Point;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import prefuse.data.Edge;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class BundlingResultCacheTest {
+
+  private File dir;
+  private BundlingResultCache cache;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = File.createTempFile("fdeb-cache", "");
+    dir.delete();
+    dir.mkdir();
+    cache = new BundlingResultCache(new File(dir, "dataset.xml"));
+  }
+
+  @After
+  public void tearDown() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void testStoreAndLoad() throws IOException {
+    FlowMapGraph fmg = RandomFlowMapGraphs.build(1, 20, 50);
+    ForceDirectedBundlerParameters params = ForceDirectedEdgeBundlerTest.createTestParams(fmg);
+    assertFalse(cache.load(fmg, params));
+
+    ForceDirectedEdgeBundlerTest.bundle(fmg, params);
+    cache.store(fmg, params);
+    assertTrue(cache.getCacheFile(BundlingResultCache.computeKey(fmg, params)).isFile());
+
+    int numEdges = fmg.getGraph().getEdgeCount();
+    List<List<Point>> expected = ForceDirectedEdgeBundlerTest.getGraphSubdivisionPoints(fmg);
+    fmg.removeAllEdgeSubdivisionPoints();
+    assertTrue(cache.load(fmg, params));
+    for (int i = 0; i < numEdges; i++) {
+      Edge edge = fmg.getGraph().getEdge(i);
+      assertEquals(expected.get(i), fmg.getEdgeSubdivisionPoints(edge));
+    }
+  }
+
+  @Test
+  public void testKeyDependsOnResultAffectingParamsOnly() {
+    FlowMapGraph fmg = RandomFlowMapGraphs.build(2, 20, 50);
+    ForceDirectedBundlerParameters params = ForceDirectedEdgeBundlerTest.createTestParams(fmg);
+    String key = BundlingResultCache.computeKey(fmg, params);
+
+    params.setNumThreads(params.getNumThreads() + 1);
+    params.setUseSpatialCompatibilityIndex(!params.getUseSpatialCompatibilityIndex());
+    assertEquals(key, BundlingResultCache.computeKey(fmg, params));
+
+    params.setS(params.getS() / 2);
+    assertFalse(key.equals(BundlingResultCache.computeKey(fmg, params)));
+
+    FlowMapGraph other = RandomFlowMapGraphs.build(3, 20, 50);
+    assertFalse(BundlingResultCache.computeKey(fmg, params).equals(
+        BundlingResultCache.computeKey(other, params)));
+  }
+
+}
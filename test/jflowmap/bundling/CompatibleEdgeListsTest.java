@@ -0,0 +1,97 @@
+package jflowmap.bundling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class CompatibleEdgeListsTest {
+
+  private static final double EPS = 1e-10;
+
+  @Test
+  public void testBuild() {
+    CompatibleEdgeLists.Builder builder = new CompatibleEdgeLists.Builder(4);
+    builder.add(1, 0, 0.7);
+    builder.add(2, 0, 0.8);
+    builder.add(3, 1, 0.9);
+    builder.add(3, 2, -0.6);
+    CompatibleEdgeLists lists = builder.build();
+
+    assertEquals(4, lists.getNumEdges());
+    assertEquals(4, lists.getNumCompatiblePairs());
+
+    assertListEquals(lists, 0, new int[] { 1, 2 }, new double[] { 0.7, 0.8 });
+    assertListEquals(lists, 1, new int[] { 0, 3 }, new double[] { 0.7, 0.9 });
+    assertListEquals(lists, 2, new int[] { 0, 3 }, new double[] { 0.8, -0.6 });
+    assertListEquals(lists, 3, new int[] { 1, 2 }, new double[] { 0.9, -0.6 });
+  }
+
+  @Test
+  public void testEmpty() {
+    CompatibleEdgeLists lists = new CompatibleEdgeLists.Builder(3).build();
+    for (int i = 0; i < 3; i++) {
+      assertEquals(lists.getStart(i), lists.getEnd(i));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAddPairInWrongOrder() {
+    new CompatibleEdgeLists.Builder(3).add(0, 1, 1.0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAddPairsInDescendingOrder() {
+    CompatibleEdgeLists.Builder builder = new CompatibleEdgeLists.Builder(3);
+    builder.add(2, 0, 1.0);
+    builder.add(1, 0, 1.0);
+  }
+
+  @Test
+  public void testBuildFromSeveralChunks() {
+    int numEdges = 1000;
+    CompatibleEdgeLists.Builder builder = new CompatibleEdgeLists.Builder(numEdges);
+    for (int i = 0; i < numEdges; i++) {
+      for (int j = 0; j < i; j++) {
+        if ((i + j) % 3 == 0) {
+          builder.add(i, j, i * 1000 + j);
+        }
+      }
+    }
+    int numPairs = builder.getNumPairs();
+    assertTrue(numPairs > 2 * CompatibleEdgeLists.Builder.CHUNK_SIZE);
+    CompatibleEdgeLists lists = builder.build();
+
+    assertEquals(numPairs, lists.getNumCompatiblePairs());
+    for (int i = 0; i < numEdges; i++) {
+      int k = lists.getStart(i);
+      for (int j = 0; j < numEdges; j++) {
+        if (j != i  &&  (i + j) % 3 == 0) {
+          assertEquals(j, lists.getEdge(k));
+          assertEquals(Math.max(i, j) * 1000 + Math.min(i, j), lists.getCompatibility(k), EPS);
+          k++;
+        }
+      }
+      assertEquals(lists.getEnd(i), k);
+    }
+  }
+
+  @Test
+  public void testPeakMemoryIncludesStagedPairs() {
+    long pairs = 1000000;
+    assertTrue(CompatibleEdgeLists.estimatePeakMemoryUsage(1000, pairs) >=
+        CompatibleEdgeLists.estimateMemoryUsage(1000, pairs) + 12 * pairs);
+  }
+
+  private void assertListEquals(CompatibleEdgeLists lists, int edgeIdx, int[] edges, double[] cs) {
+    assertEquals(edges.length, lists.getEnd(edgeIdx) - lists.getStart(edgeIdx));
+    for (int k = 0; k < edges.length; k++) {
+      assertEquals(edges[k], lists.getEdge(lists.getStart(edgeIdx) + k));
+      assertEquals(cs[k], lists.getCompatibility(lists.getStart(edgeIdx) + k), EPS);
+    }
+  }
+
+}
@@ -0,0 +1,48 @@
+package jflowmap.bundling;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class EdgeMidpointGridTest {
+
+  private static int[] findBruteForce(double[] mx, double[] my, double[] radius, int edgeIdx) {
+    int[] out = new int[edgeIdx];
+    int count = 0;
+    for (int j = 0; j < edgeIdx; j++) {
+      double dx = mx[j] - mx[edgeIdx], dy = my[j] - my[edgeIdx], rr = radius[j] + radius[edgeIdx];
+      if (dx * dx + dy * dy <= rr * rr) {
+        out[count++] = j;
+      }
+    }
+    return Arrays.copyOf(out, count);
+  }
+
+  @Test
+  public void testCandidatesWithLongEdges() {
+    Random rnd = new Random(1);
+    int numEdges = 500;
+    double[] mx = new double[numEdges], my = new double[numEdges], radius = new double[numEdges];
+    for (int i = 0; i < numEdges; i++) {
+      mx[i] = rnd.nextDouble() * 1000;
+      my[i] = rnd.nextDouble() * 500;
+      // mostly short edges and a few spanning most of the area
+      radius[i] = (i % 25 == 0 ? 200 + rnd.nextDouble() * 400 : rnd.nextDouble() * 20);
+    }
+
+    EdgeMidpointGrid grid = new EdgeMidpointGrid(mx, my, radius);
+    int[] out = new int[numEdges];
+    for (int i = 0; i < numEdges; i++) {
+      int count = grid.findCandidatesBefore(i, out);
+      assertArrayEquals("Candidates of edge " + i,
+          findBruteForce(mx, my, radius, i), Arrays.copyOf(out, count));
+    }
+  }
+
+}
@@ -0,0 +1,91 @@
+package jflowmap.bundling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import jflowmap.geom.Point;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class ForceApproximationTreeTest {
+
+  private static final double EPS = 1e-10;
+
+  private ForceApproximationTree tree;
+
+  @Before
+  public void setUp() {
+    // edges 1 and 2 are in the same group, edge 0 is only compatible with 1
+    Point[] starts = { new Point(0, 0), new Point(0, 50), new Point(1, 51), new Point(0, -50) };
+    Point[] ends = { new Point(100, 0), new Point(100, 50), new Point(101, 51), new Point(100, -50) };
+    CompatibleEdgeLists.Builder builder = new CompatibleEdgeLists.Builder(4);
+    builder.add(1, 0, 0.5);
+    builder.add(2, 1, 0.8);
+    builder.add(3, 1, 0.4);
+    builder.add(3, 2, -0.6);
+    CompatibleEdgeLists lists = builder.build();
+    double[] pairWeights = new double[lists.getNumCompatiblePairs() * 2];
+    for (int k = 0; k < pairWeights.length; k++) {
+      pairWeights[k] = lists.getCompatibility(k);
+    }
+    tree = new ForceApproximationTree(starts, ends, 10, 3, lists, pairWeights);
+  }
+
+  /**
+   * @return The node in the tree of the edge pe containing exactly the given neighbours
+   */
+  private int findNode(int pe, int ... neighbours) {
+    int node = findNode(tree.getRootStart(pe), tree.getRootEnd(pe), neighbours);
+    assertTrue("No node with the neighbours " + Arrays.toString(neighbours), node >= 0);
+    return node;
+  }
+
+  private int findNode(int start, int end, int[] neighbours) {
+    for (int node = start; node < end; node++) {
+      int[] actual = new int[tree.getNodeNeighbourEnd(node) - tree.getNodeNeighbourStart(node)];
+      for (int k = 0; k < actual.length; k++) {
+        actual[k] = tree.getNeighbour(tree.getNodeNeighbourStart(node) + k);
+      }
+      Arrays.sort(actual);
+      if (Arrays.equals(actual, neighbours)) {
+        return node;
+      }
+      int child = findNode(tree.getNodeChildStart(node), tree.getNodeChildEnd(node), neighbours);
+      if (child >= 0) {
+        return child;
+      }
+    }
+    return -1;
+  }
+
+  @Test
+  public void testNodeWithIncompatibleGroupMembersIsPartial() {
+    int node = findNode(0, 1);
+    assertEquals(2, tree.getGroupSize(tree.getNodeGroup(node)));
+    assertEquals(ForceApproximationTree.PARTIAL_NODE, tree.getNodeKind(node));
+  }
+
+  @Test
+  public void testNodeOfOwnGroupExcludesSelf() {
+    int node = findNode(1, 2);
+    assertEquals(ForceApproximationTree.COMPLETE_EXCEPT_SELF_NODE, tree.getNodeKind(node));
+    assertEquals(0.8, tree.getNodeMaxAbsWeight(node), EPS);
+
+    assertEquals(ForceApproximationTree.COMPLETE_EXCEPT_SELF_NODE, tree.getNodeKind(findNode(2, 1)));
+  }
+
+  @Test
+  public void testCompleteNode() {
+    int node = findNode(3, 1, 2);
+    assertEquals(ForceApproximationTree.COMPLETE_NODE, tree.getNodeKind(node));
+    assertEquals(-0.2, tree.getNodeWeight(node), EPS);
+    assertEquals(0.6, tree.getNodeMaxAbsWeight(node), EPS);
+  }
+
+}
@@ -0,0 +1,239 @@
+package jflowmap.bundling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import jflowmap.FlowMapGraph;
+import jflowmap.RandomFlowMapGraphs;
+import jflowmap.geom.GeomUtils;
+import jflowmap.geom.Point;
+
+import org.junit.Test;
+
+import prefuse.data.Edge;
+import at.fhj.utils.misc.ProgressTracker;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class ForceDirectedEdgeBundlerTest {
+
+  static ForceDirectedBundlerParameters createTestParams(FlowMapGraph fmg) {
+    ForceDirectedBundlerParameters params = new ForceDirectedBundlerParameters(fmg, "value");
+    params.setNumCycles(4);
+    params.setI(20);
+    return params;
+  }
+
+  static ForceDirectedEdgeBundler bundle(FlowMapGraph fmg, ForceDirectedBundlerParameters params) {
+    ForceDirectedEdgeBundler bundler = new ForceDirectedEdgeBundler(fmg, params);
+    bundler.bundle(new ProgressTracker());
+    return bundler;
+  }
+
+  static List<List<Point>> getGraphSubdivisionPoints(FlowMapGraph fmg) {
+    List<List<Point>> points = new ArrayList<List<Point>>();
+    for (int i = 0, numEdges = fmg.getGraph().getEdgeCount(); i < numEdges; i++) {
+      points.add(fmg.getEdgeSubdivisionPoints(fmg.getGraph().getEdge(i)));
+    }
+    return points;
+  }
+
+  static void assertSameSubdivisionPoints(
+      ForceDirectedEdgeBundler expected, ForceDirectedEdgeBundler actual, int numEdges) {
+    for (int i = 0; i < numEdges; i++) {
+      List<Point> exp = expected.getSubdivisionPoints(i);
+      assertEquals("Subdivision points of edge " + i, exp, actual.getSubdivisionPoints(i));
+    }
+  }
+
+  @Test
+  public void testSpatialCompatibilityIndexGivesSameResults() {
+    FlowMapGraph fmg = RandomFlowMapGraphs.build(1, 60, 300);
+    int numEdges = fmg.getGraph().getEdgeCount();
+
+    ForceDirectedBundlerParameters params = createTestParams(fmg);
+    params.setUseSpatialCompatibilityIndex(false);
+    ForceDirectedEdgeBundler bruteForce = bundle(fmg, params);
+
+    params.setUseSpatialCompatibilityIndex(true);
+    ForceDirectedEdgeBundler indexed = bundle(fmg, params);
+
+    assertSameSubdivisionPoints(bruteForce, indexed, numEdges);
+  }
+
+  @Test
+  public void testSpatialCompatibilityIndexGivesSameResults_simpleMeasure() {
+    FlowMapGraph fmg = RandomFlowMapGraphs.build(2, 60, 300);
+    int numEdges = fmg.getGraph().getEdgeCount();
+
+    ForceDirectedBundlerParameters params = createTestParams(fmg);
+    params.setUseSimpleCompatibilityMeasure(true);
+    params.setEdgeCompatibilityThreshold(0.3);
+    params.setUseSpatialCompatibilityIndex(false);
+    ForceDirectedEdgeBundler bruteForce = bundle(fmg, params);
+
+    params.setUseSpatialCompatibilityIndex(true);
+    ForceDirectedEdgeBundler indexed = bundle(fmg, params);
+
+    assertSameSubdivisionPoints(bruteForce, indexed, numEdges);
+  }
+
+  @Test
+  public void testParallelStepsGiveSameResults() {
+    FlowMapGraph fmg = RandomFlowMapGraphs.build(3, 60, 300);
+    int numEdges = fmg.getGraph().getEdgeCount();
+
+    ForceDirectedBundlerParameters params = createTestParams(fmg);
+    params.setNumThreads(1);
+    ForceDirectedEdgeBundler sequential = bundle(fmg, params);
+
+    params.setNumThreads(4);
+    ForceDirectedEdgeBundler parallel = bundle(fmg, params);
+
+    assertSameSubdivisionPoints(sequential, parallel, numEdges);
+  }
+
+  @Test
+  public void testParallelStepsStopWhenCancelled() {
+    FlowMapGraph fmg = RandomFlowMapGraphs.build(4, 60, 300);
+    ForceDirectedBundlerParameters params = createTestParams(fmg);
+    params.setNumThreads(4);
+    final ProgressTracker pt = new ProgressTracker();
+    final List<Integer> cycles = new ArrayList<Integer>();
+    ForceDirectedEdgeBundler bundler = new ForceDirectedEdgeBundler(fmg, params);
+    bundler.addCycleListener(new ForceDirectedEdgeBundler.CycleListener() {
+      @Override
+      public void cycleCompleted(ForceDirectedEdgeBundler b, int cycle, int numCycles) {
+        cycles.add(cycle);
+        pt.processCancelled();
+      }
+    });
+    bundler.bundle(pt);
+
+    assertTrue(pt.isCancelled());
+    assertEquals(Arrays.asList(0), cycles);
+  }
+
+  @Test
+  public void testRebundleWithoutSubdivisionPointsReusesCompatibilityLists() {
+    FlowMapGraph fmg = RandomFlowMapGraphs.build(7, 60, 300);
+    int numEdges = fmg.getGraph().getEdgeCount();
+
+    ForceDirectedBundlerParameters params = createTestParams(fmg);
+    ForceDirectedEdgeBundler first = bundle(fmg, params);
+
+    fmg.removeAllEdgeSubdivisionPoints();
+    ForceDirectedEdgeBundler second = new ForceDirectedEdgeBundler(fmg, params);
+    second.rebundle(new ProgressTracker(), first);
+
+    assertSameSubdivisionPoints(first, second, numEdges);
+  }
+
+  @Test
+  public void testRebundleResumesWithAdditionalCycles() {
+    FlowMapGraph fmg = RandomFlowMapGraphs.build(8, 60, 300);
+    int numEdges = fmg.getGraph().getEdgeCount();
+
+    ForceDirectedBundlerParameters params = createTestParams(fmg);
+    params.setNumCycles(5);
+    ForceDirectedEdgeBundler fromScratch = bundle(fmg, params);
+
+    fmg.removeAllEdgeSubdivisionPoints();
+    params.setNumCycles(4);
+    ForceDirectedEdgeBundler first = bundle(fmg, params);
+    params.setNumCycles(5);
+    ForceDirectedEdgeBundler resumed = new ForceDirectedEdgeBundler(fmg, params);
+    resumed.rebundle(new ProgressTracker(), first);
+
+    assertSameSubdivisionPoints(fromScratch, resumed, numEdges);
+  }
+
+  /**
+   * @return The sum of the distances between the approximated and the exact points
+   *         relative to the sum of the displacements of the exact points
+   */
+  private static double approximationError(FlowMapGraph fmg, ForceDirectedEdgeBundler exact,
+      ForceDirectedBundlerParameters params, double theta) {
+    params.setForceApproximationTheta(theta);
+    ForceDirectedEdgeBundler approximated = bundle(fmg, params);
+    double diff = 0, displacement = 0;
+    for (int i = 0, numEdges = fmg.getGraph().getEdgeCount(); i < numEdges; i++) {
+      Edge edge = fmg.getGraph().getEdge(i);
+      Point src = fmg.getEdgeSourcePoint(edge), target = fmg.getEdgeTargetPoint(edge);
+      List<Point> exp = exact.getSubdivisionPoints(i);
+      List<Point> act = approximated.getSubdivisionPoints(i);
+      assertEquals(exp.size(), act.size());
+      for (int j = 0; j < exp.size(); j++) {
+        diff += exp.get(j).distanceTo(act.get(j));
+        displacement += exp.get(j).distanceTo(GeomUtils.between(src, target, (j + 1.0) / (exp.size() + 1)));
+      }
+    }
+    return diff / displacement;
+  }
+
+  @Test
+  public void testForceApproximationConvergesToExactResults() {
+    FlowMapGraph fmg = RandomFlowMapGraphs.build(5, 60, 300);
+    ForceDirectedBundlerParameters params = createTestParams(fmg);
+    // few steps, so that the differences aren't amplified by the simulation
+    params.setNumCycles(2);
+    params.setI(5);
+    ForceDirectedEdgeBundler exact = bundle(fmg, params);
+
+    double previous = Double.POSITIVE_INFINITY;
+    for (double theta : new double[] { 0.3, 0.1, 0.05, 0.01 }) {
+      double error = approximationError(fmg, exact, params, theta);
+      assertTrue("Error " + error + " for theta " + theta + " isn't smaller than " + previous,
+          error < previous);
+      previous = error;
+    }
+    assertTrue("Error " + previous + " for theta 0.01 isn't near zero", previous < 1e-4);
+    double finest = approximationError(fmg, exact, params, 1e-4);
+    assertTrue("Error " + finest + " for theta 1e-4 isn't near zero", finest < 1e-9);
+  }
+
+  @Test
+  public void testCycleListenerSeesPointsOfEachCycle() {
+    FlowMapGraph fmg = RandomFlowMapGraphs.build(9, 30, 100);
+    final int numEdges = fmg.getGraph().getEdgeCount();
+    ForceDirectedBundlerParameters params = createTestParams(fmg);
+    final List<Integer> cycles = new ArrayList<Integer>();
+    final List<List<Point>> lastCyclePoints = new ArrayList<List<Point>>();
+    ForceDirectedEdgeBundler bundler = new ForceDirectedEdgeBundler(fmg, params);
+    bundler.addCycleListener(new ForceDirectedEdgeBundler.CycleListener() {
+      @Override
+      public void cycleCompleted(ForceDirectedEdgeBundler b, int cycle, int numCycles) {
+        assertEquals(4, numCycles);
+        cycles.add(cycle);
+        lastCyclePoints.clear();
+        for (int i = 0; i < numEdges; i++) {
+          List<Point> points = new ArrayList<Point>();
+          if (b.hasSubdivisionPoints(i)) {
+            for (int j = 0; j < b.getNumSubdivisionPoints(); j++) {
+              points.add(new Point(b.getSubdivisionPointX(i, j), b.getSubdivisionPointY(i, j)));
+            }
+          }
+          lastCyclePoints.add(points);
+        }
+      }
+    });
+    bundler.bundle(new ProgressTracker());
+
+    assertEquals(Arrays.asList(0, 1, 2, 3), cycles);
+    for (int i = 0; i < numEdges; i++) {
+      assertEquals(bundler.getSubdivisionPoints(i), lastCyclePoints.get(i));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeForceApproximationTheta() {
+    FlowMapGraph fmg = RandomFlowMapGraphs.build(6, 10, 10);
+    createTestParams(fmg).setForceApproximationTheta(-1);
+  }
+
+}
@@ -0,0 +1,168 @@
+package jflowmap.clustering;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Random;
+
+import jflowmap.geom.Point;
+
+import org.junit.Test;
+
+import at.fhj.utils.misc.ProgressTracker;
+import ch.unifr.dmlib.cluster.ClusterNode;
+import ch.unifr.dmlib.cluster.DistanceMatrix;
+import ch.unifr.dmlib.cluster.DistanceMeasure;
+import ch.unifr.dmlib.cluster.HierarchicalClusterer;
+import ch.unifr.dmlib.cluster.Linkage;
+import ch.unifr.dmlib.cluster.Linkages;
+
+import com.google.common.collect.Lists;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class CondensedDistanceMatrixTest {
+
+  private static final DistanceMeasure<Point> EUCLIDEAN = new DistanceMeasure<Point>() {
+    @Override
+    public double distance(Point p1, Point p2) {
+      return p1.distanceTo(p2);
+    }
+  };
+
+  private static List<Point> randomPoints(int n, long seed) {
+    Random rnd = new Random(seed);
+    List<Point> points = Lists.newArrayList();
+    for (int i = 0; i < n; i++) {
+      points.add(new Point(rnd.nextInt(100000) / 7.0, rnd.nextInt(100000) / 11.0));
+    }
+    return points;
+  }
+
+  private static HierarchicalClusterer<Point> clusterer(Linkage<Point> linkage) {
+    return HierarchicalClusterer.createWith(EUCLIDEAN, linkage)
+        .withDistanceMatrixFactory(CondensedDistanceMatrix.<Point>factory())
+        .build();
+  }
+
+  @Test
+  public void testPairIndices() {
+    int index = 0;
+    for (int i = 0; i < 300; i++) {
+      for (int j = 0; j < i; j++) {
+        assertEquals(index, CondensedDistanceMatrix.pairIndex(i, j));
+        assertEquals(index, CondensedDistanceMatrix.pairIndex(j, i));
+        assertEquals(i, CondensedDistanceMatrix.pairRow(index));
+        index++;
+      }
+    }
+    assertEquals(index, CondensedDistanceMatrix.numberOfPairs(300));
+    assertEquals(46341, CondensedDistanceMatrix.pairRow(
+        (int)CondensedDistanceMatrix.numberOfPairs(46341)));
+  }
+
+  @Test
+  public void testItemDistances() {
+    List<Point> points = randomPoints(50, 1);
+    DistanceMatrix<Point> matrix =
+      clusterer(Linkages.<Point>complete()).makeDistanceMatrix(points, new ProgressTracker());
+    assertEquals(points.size(), matrix.getNumOfItems());
+    for (int i = 0; i < points.size(); i++) {
+      assertEquals(0, matrix.distance(i, i), 0);
+      for (int j = 0; j < points.size(); j++) {
+        assertEquals(points.get(i).distanceTo(points.get(j)), matrix.distance(i, j), 0);
+      }
+    }
+  }
+
+  /**
+   * Points on an integer grid with duplicates, so that there are many equal distances.
+   */
+  private static List<Point> gridPoints(int n, long seed) {
+    Random rnd = new Random(seed);
+    List<Point> points = Lists.newArrayList();
+    for (int i = 0; i < n; i++) {
+      points.add(new Point(rnd.nextInt(20), rnd.nextInt(15)));
+    }
+    return points;
+  }
+
+  private static void assertSameTreeAsDefaultDistanceMatrix(List<Point> points, Linkage<Point> linkage) {
+    ClusterNode<Point> expected = HierarchicalClusterer.createWith(EUCLIDEAN, linkage).build()
+        .clusterToRoot(points, new ProgressTracker());
+    ClusterNode<Point> actual = clusterer(linkage).clusterToRoot(points, new ProgressTracker());
+    assertSameTree(expected, actual);
+  }
+
+  @Test
+  public void testSameTreesAsDefaultDistanceMatrix() {
+    for (Linkage<Point> linkage : Lists.newArrayList(
+        Linkages.<Point>complete(), Linkages.<Point>single(), Linkages.<Point>average())) {
+      assertSameTreeAsDefaultDistanceMatrix(randomPoints(200, 2), linkage);
+      assertSameTreeAsDefaultDistanceMatrix(gridPoints(200, 3), linkage);
+    }
+  }
+
+  @Test
+  public void testSingleLinkage() {
+    List<Point> points = Lists.newArrayList(
+        new Point(0, 0), new Point(1, 0), new Point(2, 0), new Point(10, 0));
+    ClusterNode<Point> root =
+      clusterer(Linkages.<Point>single()).clusterToRoot(points, new ProgressTracker());
+    assertEquals(8, root.getDistance(), 1e-6);
+    assertEquals(3, root.getLeftChild().getItemIndex());
+    assertEquals(1, root.getRightChild().getDistance(), 1e-6);
+  }
+
+  /**
+   * The merge distances for the points 0, 1, 3 and 7 on a line computed by hand:
+   * {0,1} are merged first at 1 and kept in the slot of the item 1, so its distances
+   * to 3 and 7 are 2 and 6 whichever linkage is used. 3 is added to it next at 2 and
+   * the result kept in the slot of 3, so the root is merged at the distance 4 between
+   * 3 and 7. These are also the results of DefaultDistanceMatrix.
+   */
+  @Test
+  public void testLinkagesOfMergedClusters() {
+    List<Point> points = Lists.newArrayList(
+        new Point(0, 0), new Point(1, 0), new Point(3, 0), new Point(7, 0));
+    assertMergeDistances(new double[] { 1, 2, 4 },
+        clusterer(Linkages.<Point>complete()).clusterToRoot(points, new ProgressTracker()));
+    assertMergeDistances(new double[] { 1, 2, 4 },
+        clusterer(Linkages.<Point>single()).clusterToRoot(points, new ProgressTracker()));
+    assertMergeDistances(new double[] { 1, 2, 4 },
+        clusterer(Linkages.<Point>average()).clusterToRoot(points, new ProgressTracker()));
+  }
+
+  /**
+   * Checks that the tree is a chain adding the items 2 and 3 to the cluster
+   * of the items 0 and 1 at the given distances.
+   */
+  private static void assertMergeDistances(double[] expected, ClusterNode<Point> root) {
+    ClusterNode<Point> node = root;
+    for (int k = expected.length - 1; k >= 0; k--) {
+      assertEquals(expected[k], node.getDistance(), 1e-6);
+      ClusterNode<Point> left = node.getLeftChild(), right = node.getRightChild();
+      if (k == 0) {
+        assertEquals(0, Math.min(left.getItemIndex(), right.getItemIndex()));
+        assertEquals(1, Math.max(left.getItemIndex(), right.getItemIndex()));
+      } else {
+        ClusterNode<Point> leaf = (left.isLeafNode() ? left : right);
+        assertEquals(k + 1, leaf.getItemIndex());
+        node = (left.isLeafNode() ? right : left);
+      }
+    }
+  }
+
+  private static void assertSameTree(ClusterNode<Point> expected, ClusterNode<Point> actual) {
+    assertEquals(expected.isLeafNode(), actual.isLeafNode());
+    if (expected.isLeafNode()) {
+      assertEquals(expected.getItemIndex(), actual.getItemIndex());
+    } else {
+      assertEquals(expected.getDistance(), actual.getDistance(), 0);
+      assertSameTree(expected.getLeftChild(), actual.getLeftChild());
+      assertSameTree(expected.getRightChild(), actual.getRightChild());
+    }
+  }
+
+}
@@ -0,0 +1,137 @@
+package jflowmap.clustering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import jflowmap.geom.Point;
+
+import org.junit.Test;
+
+import at.fhj.utils.misc.ProgressListener;
+import at.fhj.utils.misc.ProgressTracker;
+import ch.unifr.dmlib.cluster.ClusterNode;
+import ch.unifr.dmlib.cluster.DistanceMeasure;
+import ch.unifr.dmlib.cluster.HierarchicalClusterer;
+import ch.unifr.dmlib.cluster.Linkages;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.collect.Lists;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class EuclideanClustererTest {
+
+  private static final Function<Point, Point> IDENTITY = Functions.identity();
+
+  private static final DistanceMeasure<Point> EUCLIDEAN = new DistanceMeasure<Point>() {
+    @Override
+    public double distance(Point p1, Point p2) {
+      return p1.distanceTo(p2);
+    }
+  };
+
+  private static ClusterNode<Point> clusterWithDistanceMatrix(List<Point> points) {
+    return HierarchicalClusterer.createWith(EUCLIDEAN, Linkages.<Point>complete()).build()
+        .clusterToRoot(points, new ProgressTracker());
+  }
+
+  private static ClusterNode<Point> clusterWithGrid(List<Point> points) {
+    return new EuclideanClusterer<Point>(IDENTITY).clusterToRoot(points, new ProgressTracker());
+  }
+
+  private static void assertSameTree(ClusterNode<Point> expected, ClusterNode<Point> actual) {
+    assertEquals(expected.isLeafNode(), actual.isLeafNode());
+    if (expected.isLeafNode()) {
+      assertEquals(expected.getItemIndex(), actual.getItemIndex());
+    } else {
+      assertEquals(expected.getDistance(), actual.getDistance(), 0);
+      assertSameTree(expected.getLeftChild(), actual.getLeftChild());
+      assertSameTree(expected.getRightChild(), actual.getRightChild());
+    }
+  }
+
+  @Test
+  public void testSameAsWithDistanceMatrix() {
+    Random rnd = new Random(7);
+    for (int size : new int[] { 1, 2, 3, 10, 150, 400 }) {
+      List<Point> points = Lists.newArrayList();
+      for (int i = 0; i < size; i++) {
+        // clustered points like the locations of the nodes on a map
+        double cx = (i % 5) * 100, cy = (i % 3) * 70;
+        points.add(new Point(cx + rnd.nextGaussian() * 20, cy + rnd.nextGaussian() * 20));
+      }
+      assertSameTree(clusterWithDistanceMatrix(points), clusterWithGrid(points));
+    }
+  }
+
+  @Test
+  public void testCollinearAndCoincidingPoints() {
+    List<Point> points = Lists.newArrayList();
+    for (int i = 0; i < 50; i++) {
+      points.add(new Point(i * i * 0.5, 3));
+      points.add(new Point(i * i * 0.5, 3));
+    }
+    assertSameTree(clusterWithDistanceMatrix(points), clusterWithGrid(points));
+  }
+
+  @Test
+  public void testEqualDistances() {
+    Random rnd = new Random(5);
+    for (int size : new int[] { 20, 300 }) {
+      List<Point> points = Lists.newArrayList();
+      for (int i = 0; i < size; i++) {
+        points.add(new Point(rnd.nextInt(12), rnd.nextInt(8)));
+      }
+      assertSameTree(clusterWithDistanceMatrix(points), clusterWithGrid(points));
+    }
+  }
+
+  @Test
+  public void testManyPoints() {
+    Random rnd = new Random(1);
+    List<Point> points = Lists.newArrayList();
+    for (int i = 0; i < 20000; i++) {
+      points.add(new Point(rnd.nextDouble() * 360 - 180, rnd.nextDouble() * 180 - 90));
+    }
+    ClusterNode<Point> root = clusterWithGrid(points);
+    assertEquals(points.size(), root.listItems().size());
+    assertTrue(root.getDistance() <= Math.hypot(360, 180));
+  }
+
+  @Test
+  public void testProgressIsReportedAndCancellationChecked() {
+    Random rnd = new Random(3);
+    List<Point> points = Lists.newArrayList();
+    for (int i = 0; i < 300; i++) {
+      points.add(new Point(rnd.nextDouble() * 100, rnd.nextDouble() * 100));
+    }
+    final ProgressTracker pt = new ProgressTracker();
+    final List<Double> progress = Lists.newArrayList();
+    pt.addProgressListener(new ProgressListener() {
+      public void progressUpdated() {
+        progress.add(pt.getTaskProgress());
+        if (progress.size() == 100) {
+          pt.processCancelled();
+        }
+      }
+      public void processFinished() {
+      }
+      public void processCancelled() {
+      }
+    });
+    pt.startTask("Clustering", 1);
+    assertNull(new EuclideanClusterer<Point>(IDENTITY).clusterToRoot(points, pt));
+    assertTrue(progress.size() >= 100);
+    for (int i = 1; i < progress.size(); i++) {
+      assertTrue(progress.get(i) >= progress.get(i - 1));
+    }
+    assertTrue(progress.get(progress.size() - 1) > 0);
+  }
+
+}
@@ -0,0 +1,269 @@
+package jflowmap.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import jflowmap.FlowMapAttrSpec;
+import jflowmap.FlowMapGraph;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import prefuse.data.Edge;
+import prefuse.data.Table;
+import au.com.bytecode.opencsv.CSVReader;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class CsvFlowMapGraphReaderTest {
+
+  private static final FlowMapAttrSpec ATTR_SPEC = new FlowMapAttrSpec(
+      "Origin", "Dest", Arrays.asList("w1", "w2"), "Code", "Name", "Lon", "Lat");
+
+  private static final String NODES =
+    "Code,Name,Lat,Lon\n" +
+    "A,Node A,1.5,2\n" +
+    "B,\"Node B, quoted\",-3,4.25\n" +
+    "C,Node C,5,6\n";
+
+  private File nodesFile;
+  private File flowsFile;
+
+  @Before
+  public void setUp() throws IOException {
+    nodesFile = File.createTempFile("nodes", ".csv");
+    flowsFile = File.createTempFile("flows", ".csv");
+    write(nodesFile, NODES);
+  }
+
+  @After
+  public void tearDown() {
+    nodesFile.delete();
+    flowsFile.delete();
+  }
+
+  private static void write(File file, String text) throws IOException {
+    Writer out = new OutputStreamWriter(new FileOutputStream(file), "utf-8");
+    try {
+      out.write(text);
+    } finally {
+      out.close();
+    }
+  }
+
+  private FlowMapGraph read(int numThreads) throws IOException {
+    return CsvFlowMapGraphReader.readFlowMapGraph(nodesFile.getPath(), flowsFile.getPath(),
+        ATTR_SPEC, ',', "utf-8", numThreads);
+  }
+
+  /**
+   * Reads the nodes and the flows line by line adding them with
+   * FlowMapGraphBuilder.addNode(Map) and addEdge(Map).
+   */
+  private FlowMapGraph readLineByLine() throws IOException {
+    FlowMapGraphBuilder builder = new FlowMapGraphBuilder(flowsFile.getName(), ATTR_SPEC);
+    for (Map<String, String> attrs : readLines(nodesFile)) {
+      builder.addNode(attrs);
+    }
+    for (Map<String, String> attrs : readLines(flowsFile)) {
+      builder.addEdge(attrs);
+    }
+    return builder.build();
+  }
+
+  private static List<Map<String, String>> readLines(File file) throws IOException {
+    List<Map<String, String>> lines = Lists.newArrayList();
+    CSVReader csv = new CSVReader(new InputStreamReader(new FileInputStream(file), "utf-8"), ',');
+    try {
+      String[] header = csv.readNext();
+      String[] line;
+      while ((line = csv.readNext()) != null) {
+        Map<String, String> attrs = Maps.newHashMap();
+        for (int i = 0; i < header.length; i++) {
+          attrs.put(header[i], line[i]);
+        }
+        lines.add(attrs);
+      }
+    } finally {
+      csv.close();
+    }
+    return lines;
+  }
+
+  private static void assertSameEdges(FlowMapGraph expected, FlowMapGraph actual) {
+    Table exp = expected.getGraph().getEdgeTable(), act = actual.getGraph().getEdgeTable();
+    assertEquals(exp.getRowCount(), act.getRowCount());
+    assertEquals(exp.getColumnCount(), act.getColumnCount());
+    for (int col = 0; col < exp.getColumnCount(); col++) {
+      String name = exp.getColumnName(col);
+      assertEquals(name, act.getColumnName(col));
+      assertEquals(exp.getColumnType(col), act.getColumnType(col));
+      for (int row = 0; row < exp.getRowCount(); row++) {
+        assertEquals(name + " of row " + row, exp.get(row, col), act.get(row, col));
+      }
+    }
+  }
+
+  @Test
+  public void testReadFlows() throws IOException {
+    write(flowsFile,
+        "Origin,Dest,w1,w2,Note,Count\r\n" +
+        "A,B,1,2.5,,\r\n" +
+        "B,C, 3 ,,\"with, comma\",7\r\n" +
+        "\r\n" +
+        "C,A,1e3,-0.125,\"two\nlines \"\"quoted\"\"\",8.5\r\n" +
+        "A,C,NaN,4,plain,\n");
+    FlowMapGraph fmg = read(4);
+
+    assertEquals(4, fmg.getGraph().getEdgeCount());
+    Edge e0 = fmg.getGraph().getEdge(0), e1 = fmg.getGraph().getEdge(1);
+    Edge e2 = fmg.getGraph().getEdge(2), e3 = fmg.getGraph().getEdge(3);
+    assertEquals("A", fmg.getNodeId(e0.getSourceNode()));
+    assertEquals("B", fmg.getNodeId(e0.getTargetNode()));
+    assertEquals(2.5, fmg.getEdgeWeight(e0, "w2"), 0);
+    assertEquals(3.0, fmg.getEdgeWeight(e1, "w1"), 0);
+    assertTrue(Double.isNaN(fmg.getEdgeWeight(e1, "w2")));
+    assertEquals(1000.0, fmg.getEdgeWeight(e2, "w1"), 0);
+    assertTrue(Double.isNaN(fmg.getEdgeWeight(e3, "w1")));
+
+    assertEquals(String.class, fmg.getGraph().getEdgeTable().getColumnType("Note"));
+    assertNull(e0.getString("Note"));
+    assertEquals("with, comma", e1.getString("Note"));
+    assertEquals("two\nlines \"quoted\"", e2.getString("Note"));
+    assertEquals(double.class, fmg.getGraph().getEdgeTable().getColumnType("Count"));
+    assertEquals(8.5, e2.getDouble("Count"), 0);
+  }
+
+  @Test
+  public void testSameAsLineByLine() throws IOException {
+    StringBuilder sb = new StringBuilder("Origin,w1,Dest,Note,w2,Value\n");
+    Random rnd = new Random(3);
+    String[] ids = { "A", "B", "C" };
+    for (int i = 0; i < 30000; i++) {
+      sb.append(ids[rnd.nextInt(3)]).append(',')
+        .append(rnd.nextInt(10) == 0 ? "" : "" + rnd.nextInt(1000000) / 100.0).append(',')
+        .append(ids[rnd.nextInt(3)]).append(',')
+        .append(rnd.nextInt(5) == 0 ? "\"note " + i + "\"" : "note" + (i % 7)).append(',')
+        .append(rnd.nextDouble()).append(',')
+        .append(rnd.nextInt(3) == 0 ? "" : "" + rnd.nextInt())
+        .append('\n');
+    }
+    write(flowsFile, sb.toString());
+
+    FlowMapGraph expected = readLineByLine();
+    assertSameEdges(expected, read(1));
+    assertSameEdges(expected, read(4));
+  }
+
+  private FlowMapGraph readInChunks(int numThreads, int chunkSize) throws IOException {
+    FlowMapGraphBuilder builder = new FlowMapGraphBuilder(flowsFile.getName(), ATTR_SPEC);
+    for (Map<String, String> attrs : readLines(nodesFile)) {
+      builder.addNode(attrs);
+    }
+    ParallelCsvFlowsReader.readFlows(
+        builder, ATTR_SPEC, flowsFile.getPath(), ',', "utf-8", numThreads, chunkSize);
+    return builder.build();
+  }
+
+  @Test
+  public void testRecordsSpanningChunks() throws IOException {
+    StringBuilder sb = new StringBuilder("Origin,Dest,w1,w2,Note\r\n");
+    Random rnd = new Random(5);
+    String[] ids = { "A", "B", "C" };
+    for (int i = 0; i < 500; i++) {
+      sb.append(ids[rnd.nextInt(3)]).append(',')
+        .append(ids[rnd.nextInt(3)]).append(',')
+        .append(rnd.nextInt(1000)).append(',')
+        .append(rnd.nextDouble()).append(',');
+      switch (rnd.nextInt(4)) {
+        case 0: sb.append("\"note\r\nwith \"\"line\"\" breaks ").append(i).append('"'); break;
+        case 1: sb.append("\"quoted, ").append(i).append('"'); break;
+        default: sb.append("note").append(i % 7);
+      }
+      sb.append(rnd.nextBoolean() ? "\r\n" : "\n");
+    }
+    write(flowsFile, sb.toString());
+
+    FlowMapGraph expected = readLineByLine();
+    for (int chunkSize : new int[] { 1, 7, 64, 1000 }) {
+      assertSameEdges(expected, readInChunks(1, chunkSize));
+      assertSameEdges(expected, readInChunks(4, chunkSize));
+    }
+  }
+
+  @Test
+  public void testErrorLineInLaterChunk() throws IOException {
+    write(flowsFile,
+        "Origin,Dest,w1,w2,Note\nA,B,1,2,x\nA,C,1,2,\"two\nlines\"\nA,B,1,2,y\nA,X,1,2,z\n");
+    try {
+      readInChunks(4, 8);
+      fail();
+    } catch (IOException ioe) {
+      assertTrue(ioe.getMessage(), ioe.getMessage().contains("(line 5)"));
+      assertTrue(ioe.getMessage(), ioe.getMessage().contains("'X'"));
+    }
+  }
+
+  @Test
+  public void testRefugeeFlows() throws IOException {
+    FlowMapAttrSpec attrSpec = new FlowMapAttrSpec(
+        "Origin", "Dest", Arrays.asList("1990", "2009"), "Code", "Name", "Lon", "Lat");
+    String nodes = "src/jflowmap/data/refugee-nodes.csv";
+    String flows = "src/jflowmap/data/refugee-flows.csv";
+    FlowMapGraph single = CsvFlowMapGraphReader.readFlowMapGraph(
+        nodes, flows, attrSpec, ',', "utf-8", 1);
+    FlowMapGraph multi = CsvFlowMapGraphReader.readFlowMapGraph(
+        nodes, flows, attrSpec, ',', "utf-8", 4);
+    assertEquals(6261, single.getGraph().getEdgeCount());
+    assertSameEdges(single, multi);
+  }
+
+  @Test
+  public void testUnknownNode() throws IOException {
+    write(flowsFile, "Origin,Dest,w1,w2\nA,B,1,2\nA,X,1,2\n");
+    try {
+      read(4);
+      fail();
+    } catch (IOException ioe) {
+      assertTrue(ioe.getMessage(), ioe.getMessage().contains("(line 3)"));
+      assertTrue(ioe.getMessage(), ioe.getMessage().contains("'X'"));
+    }
+  }
+
+  @Test
+  public void testMixedCustomValues() throws IOException {
+    write(flowsFile, "Origin,Dest,w1,w2,Note\nA,B,1,2,\nA,C,1,2,5\nB,C,1,2,x\n");
+    try {
+      read(4);
+      fail();
+    } catch (IOException ioe) {
+      assertTrue(ioe.getMessage(), ioe.getMessage().contains("(line 4)"));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testBadWeight() throws IOException {
+    write(flowsFile, "Origin,Dest,w1,w2\nA,B,1,abc\n");
+    read(1);
+  }
+
+}
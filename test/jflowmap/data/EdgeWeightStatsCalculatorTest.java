@@ -0,0 +1,153 @@
+package jflowmap.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import jflowmap.FlowMapAttrSpec;
+import jflowmap.FlowMapGraph;
+import jflowmap.geom.Point;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import prefuse.data.Edge;
+import prefuse.data.Node;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class EdgeWeightStatsCalculatorTest {
+
+  private static final List<String> WEIGHT_ATTRS = Arrays.asList("w1", "w2", "w3", "w4");
+
+  private FlowMapGraph fmg;
+
+  @Before
+  public void setUp() {
+    FlowMapGraphBuilder builder = new FlowMapGraphBuilder("test",
+        new FlowMapAttrSpec(WEIGHT_ATTRS, "label", "lon", "lat"));
+    Node[] nodes = new Node[20];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = builder.addNode("n" + i, new Point(i, -i), "N" + i);
+    }
+    Random rnd = new Random(5);
+    int numEdges = EdgeWeightStatsCalculator.CHUNK_SIZE * 2 + 123;
+    for (int i = 0; i < numEdges; i++) {
+      double[] weights = new double[WEIGHT_ATTRS.size()];
+      for (int k = 0; k < weights.length; k++) {
+        switch (rnd.nextInt(6)) {
+          case 0: weights[k] = Double.NaN; break;
+          case 1: weights[k] = 0; break;
+          default: weights[k] = rnd.nextInt(100000) / 10.0 - 1000;
+        }
+      }
+      builder.addEdge(nodes[rnd.nextInt(nodes.length)], nodes[rnd.nextInt(nodes.length)],
+          weights);
+    }
+    fmg = builder.build();
+  }
+
+  private static void assertSameStats(SeqStat expected, SeqStat actual) {
+    assertEquals(expected.getMin(), actual.getMin(), 0);
+    assertEquals(expected.getMax(), actual.getMax(), 0);
+    assertEquals(expected.getSum(), actual.getSum(), Math.abs(expected.getSum()) * 1e-9);
+    assertEquals(expected.getAvg(), actual.getAvg(), Math.abs(expected.getAvg()) * 1e-9);
+  }
+
+  private void assertSameAsTupleStats(FlowMapStats stats) {
+    FlowMapAttrSpec attrSpec = fmg.getAttrSpec();
+    assertSameStats(TupleStats.createFor(fmg.getGraph().getEdges(), WEIGHT_ATTRS),
+        stats.getEdgeWeightStats());
+    assertSameStats(
+        TupleStats.createFor(fmg.getGraph().getEdges(), attrSpec.getFlowWeightDiffAttrs()),
+        stats.getEdgeWeightDiffStats());
+    assertSameStats(
+        TupleStats.createFor(fmg.getGraph().getEdges(), attrSpec.getFlowWeightRelativeDiffAttrs()),
+        stats.getEdgeWeightRelativeDiffStats());
+    for (String attr : WEIGHT_ATTRS) {
+      assertSameStats(TupleStats.createFor(fmg.getGraph().getEdges(), attr),
+          stats.getEdgeWeightAttrStats(attr));
+    }
+  }
+
+  @SuppressWarnings("deprecation")
+  @Test
+  public void testSameAsDiffColumns() {
+    fmg.addEdgeWeightDifferenceColumns();
+    fmg.addEdgeWeightRelativeDifferenceColumns();
+    assertSameAsTupleStats(MultiFlowMapStats.createFor(fmg));
+    assertSameAsTupleStats(EdgeListFlowMapStats.createFor(fmg.edges(), fmg.getAttrSpec()));
+  }
+
+  @Test
+  public void testIndependentOfNumberOfThreads() {
+    EdgeWeightStatsCalculator.WeightSource source =
+      EdgeWeightStatsCalculator.sourceForGraphs(ImmutableList.of(fmg, fmg), WEIGHT_ATTRS);
+    assertEquals(fmg.getGraph().getEdgeCount() * 2, source.size());
+    EdgeWeightStatsCalculator.Result single =
+      new EdgeWeightStatsCalculator(source, WEIGHT_ATTRS.size(), 1).calc();
+    EdgeWeightStatsCalculator.Result multi =
+      new EdgeWeightStatsCalculator(source, WEIGHT_ATTRS.size(), 4).calc();
+    assertEquals(single.weightStats, multi.weightStats);
+    assertEquals(single.diffStats, multi.diffStats);
+    assertEquals(single.relDiffStats, multi.relDiffStats);
+    assertEquals(Arrays.asList(single.weightAttrStats), Arrays.asList(multi.weightAttrStats));
+  }
+
+  @Test
+  public void testSkipsRemovedEdges() {
+    fmg.getGraph().removeEdge(fmg.getGraph().getEdge(0));
+    EdgeWeightStatsCalculator.Result result = new EdgeWeightStatsCalculator(
+        EdgeWeightStatsCalculator.sourceForGraphs(ImmutableList.of(fmg), WEIGHT_ATTRS),
+        WEIGHT_ATTRS.size()).calc();
+    assertSameStats(TupleStats.createFor(fmg.getGraph().getEdges(), "w1"),
+        result.weightAttrStats[0]);
+  }
+
+  @Test
+  public void testGraphsWithDifferentWeightAttrs() {
+    FlowMapGraphBuilder builder = new FlowMapGraphBuilder("other",
+        new FlowMapAttrSpec(Arrays.asList("w3", "w1"), "label", "lon", "lat"));
+    Node a = builder.addNode("a", new Point(0, 0), "A");
+    Node b = builder.addNode("b", new Point(1, 1), "B");
+    builder.addEdge(a, b, new double[] { 1e6, -1e6 });
+    builder.addEdge(b, a, new double[] { Double.NaN, 7 });
+    FlowMapGraph other = builder.build();
+
+    for (List<FlowMapGraph> graphs : Arrays.asList(
+        ImmutableList.of(other, fmg), ImmutableList.of(fmg, other))) {
+      List<Edge> edges = Lists.newArrayList();
+      for (FlowMapGraph g : graphs) {
+        Iterables.addAll(edges, g.edges());
+      }
+      EdgeWeightStatsCalculator.Result expected = new EdgeWeightStatsCalculator(
+          EdgeWeightStatsCalculator.sourceFor(edges, WEIGHT_ATTRS), WEIGHT_ATTRS.size()).calc();
+      EdgeWeightStatsCalculator.Result actual = new EdgeWeightStatsCalculator(
+          EdgeWeightStatsCalculator.sourceForGraphs(graphs, WEIGHT_ATTRS), WEIGHT_ATTRS.size()).calc();
+      assertEquals(expected.weightStats, actual.weightStats);
+      assertEquals(expected.diffStats, actual.diffStats);
+      assertEquals(expected.relDiffStats, actual.relDiffStats);
+      assertEquals(Arrays.asList(expected.weightAttrStats), Arrays.asList(actual.weightAttrStats));
+      assertEquals(1e6, actual.weightAttrStats[2].getMax(), 0);
+      assertEquals(-1e6, actual.weightAttrStats[0].getMin(), 0);
+    }
+  }
+
+  @Test
+  public void testEmpty() {
+    FlowMapGraph empty = new FlowMapGraphBuilder("empty",
+        new FlowMapAttrSpec(WEIGHT_ATTRS, "label", "lon", "lat")).build();
+    SeqStat stats = empty.getStats().getEdgeWeightStats();
+    assertTrue(Double.isNaN(stats.getMin()));
+    assertTrue(Double.isNaN(stats.getMax()));
+  }
+
+}
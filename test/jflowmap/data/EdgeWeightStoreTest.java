@@ -0,0 +1,156 @@
+package jflowmap.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import jflowmap.FlowMapAttrSpec;
+import jflowmap.FlowMapGraph;
+import jflowmap.geom.Point;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import prefuse.data.Edge;
+import prefuse.data.Node;
+import prefuse.data.Table;
+
+import com.google.common.collect.Lists;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class EdgeWeightStoreTest {
+
+  private FlowMapGraph fmg;
+  private EdgeWeightStore store;
+
+  @Before
+  public void setUp() {
+    fmg = createGraph();
+    store = fmg.getEdgeWeightStore();
+  }
+
+  private static FlowMapGraph createGraph() {
+    FlowMapGraphBuilder builder =
+      new FlowMapGraphBuilder("test", new FlowMapAttrSpec(
+          Arrays.asList("w1", "w2", "w3"), "label", "lon", "lat"));
+    Node a = builder.addNode("a", new Point(0, 0), "A");
+    Node b = builder.addNode("b", new Point(1, 0), "B");
+    builder.addEdge(a, b, 1, 2, 3);
+    builder.addEdge(b, a, Double.NaN, 5, Double.NaN);
+    builder.addEdge(a, a, Double.NaN, Double.NaN, Double.NaN);
+    return builder.build();
+  }
+
+  private Edge edge(int row) {
+    return fmg.getGraph().getEdge(row);
+  }
+
+  @Test
+  public void testInitialValues() {
+    assertEquals(3, store.getNumOfAttrs());
+    assertEquals(1, store.getAttrIndex("w2"));
+    assertEquals(-1, store.getAttrIndex("label"));
+    assertArrayEquals(new double[] { 1, 2, 3 }, store.getAll(0, new double[3]), 0);
+    assertEquals(5.0, fmg.getEdgeWeight(edge(1), "w2"), 0);
+    assertEquals(5.0, fmg.getEdgeWeight(1, fmg.getEdgeWeightAttrIndex("w2")), 0);
+    assertEquals(Arrays.asList(1.0, 2.0, 3.0), Lists.newArrayList(fmg.getEdgeWeights(edge(0))));
+  }
+
+  @Test
+  public void testMaxAvgAndNaNs() {
+    int[] all = store.getAttrIndices(fmg.getEdgeWeightAttrs());
+    assertEquals(3.0, store.getMax(0, all), 0);
+    assertEquals(5.0, store.getMax(1, all), 0);
+    assertTrue(Double.isNaN(store.getMax(2, all)));
+    assertEquals(2.0, store.getAvg(0, all), 0);
+    assertEquals(5.0, store.getAvg(1, all), 0);
+    assertTrue(Double.isNaN(store.getAvg(2, all)));
+    assertNull(store.getAttrIndices(Arrays.asList("w1", "label")));
+
+    assertTrue(fmg.hasNonZeroWeight(edge(1)));
+    assertFalse(fmg.hasNonZeroWeight(edge(2)));
+  }
+
+  @Test
+  public void testKeepsInSyncWithTable() {
+    edge(0).setDouble("w1", 10);
+    assertEquals(10.0, fmg.getEdgeWeight(edge(0), "w1"), 0);
+
+    Edge added = fmg.getGraph().addEdge(fmg.getGraph().getNode(1), fmg.getGraph().getNode(1));
+    assertEquals(added.getDouble("w1"), store.get(added.getRow(), 0), 0);
+    added.setDouble("w3", 7);
+    assertEquals(7.0, fmg.getEdgeWeight(added, "w3"), 0);
+
+    fmg.getGraph().getEdgeTable().addColumn("other", double.class);
+    edge(0).setDouble("other", 99);
+    assertEquals(10.0, fmg.getEdgeWeight(edge(0), "w1"), 0);
+    assertEquals(99.0, fmg.getEdgeWeight(edge(0), "other"), 0);
+
+    int row = edge(1).getRow();
+    fmg.getGraph().removeEdge(edge(1));
+    assertTrue(Double.isNaN(store.get(row, 1)));
+  }
+
+  @Test
+  public void testSingleEdgeAccessorsDontCreateStore() {
+    FlowMapGraph g = createGraph();
+    int listeners = numOfListeners(g.getGraph().getEdgeTable());
+    Edge e = g.getGraph().getEdge(1);
+    assertEquals(5.0, g.getEdgeWeight(e, "w2"), 0);
+    assertEquals(5.0, g.getEdgeWeight(e, 1), 0);
+    assertEquals(5.0, g.getEdgeWeight(e.getRow(), g.getEdgeWeightAttrIndex("w2")), 0);
+    assertEquals(-1, g.getEdgeWeightAttrIndex("label"));
+    assertTrue(Double.isNaN(Lists.newArrayList(g.getEdgeWeights(e)).get(0)));
+    assertTrue(g.hasNonZeroWeight(e));
+    assertEquals(listeners, numOfListeners(g.getGraph().getEdgeTable()));
+  }
+
+  @Test
+  public void testDisposeDetachesStore() {
+    int listeners = numOfListeners(fmg.getGraph().getEdgeTable());
+    fmg.disposeEdgeWeightStore();
+    assertEquals(listeners - 1, numOfListeners(fmg.getGraph().getEdgeTable()));
+
+    edge(0).setDouble("w1", 10);
+    assertEquals(1.0, store.get(edge(0).getRow(), 0), 0);
+    assertEquals(10.0, fmg.getEdgeWeight(edge(0), "w1"), 0);
+    assertFalse(store == fmg.getEdgeWeightStore());
+    assertEquals(10.0, fmg.getEdgeWeightStore().get(edge(0).getRow(), 0), 0);
+  }
+
+  /**
+   * Table doesn't expose its listeners, so they are counted through the protected field.
+   */
+  private static int numOfListeners(Table table) {
+    try {
+      Field field = Table.class.getDeclaredField("m_listeners");
+      field.setAccessible(true);
+      return ((List<?>) field.get(table)).size();
+    } catch (Exception e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Test
+  public void testComparators() {
+    List<Edge> edges = Lists.newArrayList(fmg.edges());
+    Collections.sort(edges, fmg.createMaxEdgeWeightComparator());
+    assertEquals(Arrays.asList(edge(2), edge(0), edge(1)), edges);
+
+    Collections.sort(edges, fmg.createAvgEdgeWeightComparator());
+    assertEquals(Arrays.asList(edge(2), edge(0), edge(1)), edges);
+
+    Collections.sort(edges, fmg.createMaxEdgeWeightComparator("w1"));
+    assertEquals(edge(0), edges.get(2));
+  }
+
+}
@@ -2,11 +2,15 @@ package jflowmap.data;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
+import jflowmap.FlowMapAttrSpec;
 import jflowmap.FlowMapGraph;
+import jflowmap.geom.Point;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -14,8 +18,10 @@ import org.junit.Test;
 import prefuse.data.Edge;
 import prefuse.data.Node;
 
+import com.google.common.base.Function;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 
@@ -100,6 +106,68 @@ public class FlowMapGraphEdgeAggregatorTest {
   }
 
 
+  @Test
+  public void testParallelSameAsSingleThreaded() {
+    FlowMapGraphBuilder builder = new FlowMapGraphBuilder("test",
+        new FlowMapAttrSpec(Arrays.asList("w1", "w2"), "label", "lon", "lat"));
+    Random rnd = new Random(7);
+    Node[] nodes = new Node[50];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = builder.addNode("n" + i, new Point(i, i), "N" + (i % 5));
+    }
+    for (int i = 0; i < 20000; i++) {
+      builder.addEdge(nodes[rnd.nextInt(nodes.length)], nodes[rnd.nextInt(nodes.length)],
+          rnd.nextInt(5) == 0 ? Double.NaN : rnd.nextInt(1000) / 8.0,
+          rnd.nextInt(1000) / 8.0);
+    }
+    FlowMapGraph big = builder.build();
+    Function<Edge, Object> byLabels = new Function<Edge, Object>() {
+      @Override
+      public Object apply(Edge e) {
+        return e.getSourceNode().getString("label") + "->" + e.getTargetNode().getString("label");
+      }
+    };
+
+    FlowMapGraph single = new FlowMapGraphEdgeAggregator(big, byLabels)
+        .withNumberOfThreads(1).aggregate();
+    FlowMapGraph multi = new FlowMapGraphEdgeAggregator(big, byLabels)
+        .withNumberOfThreads(4).aggregate();
+
+    assertEquals(25, single.getGraph().getEdgeCount());
+    assertEquals(serializeEdgeList(single), serializeEdgeList(multi));
+
+    double sum = 0;
+    for (Edge e : big.edges()) {
+      if (byLabels.apply(e).equals("N0->N1")  &&  !Double.isNaN(big.getEdgeWeight(e, "w1"))) {
+        sum += big.getEdgeWeight(e, "w1");
+      }
+    }
+    Edge aggFirst = single.getGraph().getEdge(0);
+    assertEquals(big.getGraph().getEdge(0),
+        FlowMapGraphEdgeAggregator.getAggregateList(aggFirst).get(0));
+    int found = 0;
+    for (Edge e : single.edges()) {
+      List<Edge> aggList = FlowMapGraphEdgeAggregator.getAggregateList(e);
+      if (byLabels.apply(aggList.get(0)).equals("N0->N1")) {
+        assertEquals(sum, single.getEdgeWeight(e, "w1"), 1e-9);
+        found++;
+      }
+    }
+    assertEquals(1, found);
+  }
+
+  private List<String> serializeEdgeList(FlowMapGraph fmg) {
+    List<String> list = Lists.newArrayList();
+    for (Edge edge : fmg.edges()) {
+      list.add(
+          fmg.getSourceNodeId(edge) + "->" + fmg.getTargetNodeId(edge) + ": " +
+          fmg.getEdgeWeight(edge, "w1") + " " + fmg.getEdgeWeight(edge, "w2") + " " +
+          FlowMapGraphEdgeAggregator.getAggregateList(edge).size()
+      );
+    }
+    return list;
+  }
+
   private Set<String> serializeNodes(FlowMapGraph fmg) {
     Set<String> set = Sets.newHashSet();
     for (Node node : fmg.nodes()) {
@@ -0,0 +1,121 @@
+package jflowmap.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import jflowmap.FlowMapAttrSpec;
+import jflowmap.FlowMapGraph;
+import jflowmap.geom.Point;
+
+import org.junit.Test;
+
+import prefuse.data.Edge;
+import prefuse.data.Node;
+import prefuse.data.Table;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class FlowMapGraphSnapshotTest {
+
+  private static FlowMapGraph buildTestGraph() {
+    FlowMapGraphBuilder builder =
+      new FlowMapGraphBuilder("snapshotTest", new FlowMapAttrSpec(
+          Arrays.asList("w2000", "w2010"), "label", "lon", "lat"));
+    builder.addNodeAttr("region", String.class);
+    builder.addEdgeAttr("count", int.class);
+    Node n1 = builder.addNode("1", new Point(10.5, 20.25), "Z\u00fcrich");
+    Node n2 = builder.addNode("2", new Point(-3, 7), "Node2");
+    Node n3 = builder.addNode("3", new Point(0, Double.NaN), null);
+    n1.setString("region", "A");
+    n3.setString("region", "B");
+    Edge e1 = builder.addEdge(n1, n2, 100, 150.5);
+    builder.addEdge(n2, n3, 200, Double.NaN);
+    builder.addEdge(n3, n1, 300, 0);
+    e1.setInt("count", 42);
+    return builder.build();
+  }
+
+  private static FlowMapGraph writeAndRead(FlowMapGraph fmg, boolean includePoints) throws IOException {
+    File file = File.createTempFile("snapshot", ".fmgs");
+    try {
+      FlowMapGraphSnapshot.write(fmg, file.getPath(), includePoints);
+      return FlowMapGraphSnapshot.read(file.getPath());
+    } finally {
+      file.delete();
+    }
+  }
+
+  private static void assertSameTable(Table expected, Table actual) {
+    assertEquals(expected.getRowCount(), actual.getRowCount());
+    for (int col = 0; col < expected.getColumnCount(); col++) {
+      String name = expected.getColumnName(col);
+      if (expected.getColumnType(col) == List.class) {
+        continue;   // subdivision points
+      }
+      assertEquals(expected.getColumnType(col), actual.getColumnType(name));
+      for (int row = 0; row < expected.getRowCount(); row++) {
+        assertEquals(name + " of row " + row, expected.get(row, col), actual.get(row, name));
+      }
+    }
+  }
+
+  @Test
+  public void testWriteAndRead() throws IOException {
+    FlowMapGraph fmg = buildTestGraph();
+    FlowMapGraph read = writeAndRead(fmg, true);
+
+    assertEquals("snapshotTest", read.getId());
+    assertEquals(fmg.getAttrSpec(), read.getAttrSpec());
+    assertEquals(fmg.getGraph().isDirected(), read.getGraph().isDirected());
+    assertSameTable(fmg.getGraph().getNodeTable(), read.getGraph().getNodeTable());
+    assertSameTable(fmg.getGraph().getEdgeTable(), read.getGraph().getEdgeTable());
+
+    Edge edge = read.getGraph().getEdge(0);
+    assertEquals("1", read.getNodeId(edge.getSourceNode()));
+    assertEquals("2", read.getNodeId(edge.getTargetNode()));
+    assertEquals(150.5, read.getEdgeWeight(edge, "w2010"), 0);
+    assertEquals(fmg.getStats().getEdgeWeightStats().getMax(),
+        read.getStats().getEdgeWeightStats().getMax(), 0);
+    assertFalse(read.hasEdgeSubdivisionPoints(edge));
+  }
+
+  @Test
+  public void testSubdivisionPoints() throws IOException {
+    FlowMapGraph fmg = buildTestGraph();
+    List<Point> points = Arrays.asList(new Point(1, 2), new Point(3.5, -4));
+    fmg.setEdgeSubdivisionPoints(fmg.getGraph().getEdge(1), points);
+
+    FlowMapGraph read = writeAndRead(fmg, true);
+    assertFalse(read.hasEdgeSubdivisionPoints(read.getGraph().getEdge(0)));
+    assertEquals(points, read.getEdgeSubdivisionPoints(read.getGraph().getEdge(1)));
+
+    read = writeAndRead(fmg, false);
+    assertFalse(read.hasEdgeSubdivisionPoints(read.getGraph().getEdge(1)));
+  }
+
+  @Test(expected = IOException.class)
+  public void testNotASnapshot() throws IOException {
+    File file = File.createTempFile("snapshot", ".fmgs");
+    try {
+      FlowMapGraphSnapshot.read(file.getPath());
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testReadNodeCoordinates() throws IOException {
+    FlowMapGraph read = writeAndRead(buildTestGraph(), false);
+    Node node = read.getGraph().getNode(2);
+    assertEquals(0.0, node.getDouble("lon"), 0);
+    assertTrue(Double.isNaN(node.getDouble("lat")));
+  }
+
+}
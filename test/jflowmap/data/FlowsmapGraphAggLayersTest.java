@@ -1,8 +1,11 @@
 package jflowmap.data;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import jflowmap.FlowMapGraph;
@@ -14,6 +17,7 @@ import org.junit.Test;
 import prefuse.data.Edge;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 /**
@@ -203,6 +207,58 @@ public class FlowsmapGraphAggLayersTest {
     layers.expandSource(e);  // not visible
   }
 
+  @Test
+  public void test_layersCreatedOnDemand() {
+    assertTrue(layers.isLayerResident("src-to-all"));
+    assertTrue(layers.isLayerResident("src-node"));
+    assertFalse(layers.isLayerResident("target-node"));
+    assertFalse(layers.isLayerResident("target-to-all"));
+
+    layers.setSelectedLayer("target-to-all");
+    assertTrue(layers.isLayerResident("target-node"));
+    assertTrue(layers.isLayerResident("target-to-all"));
+    assertEquals(ImmutableSet.of("1,1,2,2->1,2,3,4: 1200.0"), serializeVisibleEdges(layers));
+  }
+
+  @Test
+  public void test_layerInitializer() {
+    final Map<FlowMapGraph, Integer> initCounts = Maps.newHashMap();
+    layers.setLayerInitializer(new FlowMapGraphAggLayers.LayerInitializer() {
+      @Override
+      public void init(FlowMapGraph fmg) {
+        Integer count = initCounts.get(fmg);
+        initCounts.put(fmg, (count == null ? 1 : count + 1));
+        fmg.addEdgeWeightDifferenceColumns();
+      }
+    });
+    assertEquals(3, initCounts.size());  // base, src-node and src-to-all
+
+    layers.setSelectedLayer("target-node");
+    assertEquals(4, initCounts.size());
+    for (Integer count : initCounts.values()) {
+      assertEquals(1, count.intValue());
+    }
+  }
+
+  @Test
+  public void test_evictionOfUnusedLayers() {
+    layers.setSelectedLayer("target-to-all");
+    layers.setMaxResidentAggEdges(0);
+    assertTrue(layers.isLayerResident("target-to-all"));  // its edges are visible
+    assertTrue(layers.isLayerResident("target-node"));  // needed by target-to-all
+    assertFalse(layers.isLayerResident("src-to-all"));
+    assertFalse(layers.isLayerResident("src-node"));
+    assertTrue(layers.isLayerResident("base"));
+
+    layers.setSelectedLayer("src-to-all");
+    assertFalse(layers.isLayerResident("target-to-all"));
+    assertFalse(layers.isLayerResident("target-node"));
+    assertEquals(ImmutableSet.of("1,2->1,4,2,3,4: 1200.0"), serializeVisibleEdges(layers));
+
+    layers.expandSource(layers.getEdges().get(0));
+    assertEquals(ImmutableSet.of("1->2,3,4: 900.0", "2->1,4: 300.0"), serializeVisibleEdges(layers));
+  }
+
   private static Set<String> serializeVisibleEdges(FlowMapGraphAggLayers ft) {
     Set<String> set = Sets.newHashSet();
     for (Edge edge : ft.getEdges()) {
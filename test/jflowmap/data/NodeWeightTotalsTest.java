@@ -0,0 +1,190 @@
+package jflowmap.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import jflowmap.FlowDirection;
+import jflowmap.FlowEndpoint;
+import jflowmap.FlowMapAttrSpec;
+import jflowmap.FlowMapGraph;
+import jflowmap.geom.Point;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import prefuse.data.Edge;
+import prefuse.data.Node;
+
+import com.google.common.collect.Lists;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class NodeWeightTotalsTest {
+
+  private static final List<String> WEIGHT_ATTRS = Arrays.asList("w1", "w2");
+  private static final FlowMapAttrSpec ATTR_SPEC =
+    new FlowMapAttrSpec(WEIGHT_ATTRS, "label", "lon", "lat");
+
+  private FlowMapGraph fmg;
+  private Random rnd;
+
+  @Before
+  public void setUp() {
+    rnd = new Random(11);
+    fmg = createGraph("test", 30, 3000);
+  }
+
+  private FlowMapGraph createGraph(String id, int numNodes, int numEdges) {
+    FlowMapGraphBuilder builder = new FlowMapGraphBuilder(id, ATTR_SPEC);
+    Node[] nodes = new Node[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      nodes[i] = builder.addNode("n" + i, new Point(i, i), "N" + i);
+    }
+    for (int i = 0; i < numEdges; i++) {
+      builder.addEdge(nodes[rnd.nextInt(numNodes)], nodes[rnd.nextInt(numNodes)],
+          weight(), weight());
+    }
+    return builder.build();
+  }
+
+  private double weight() {
+    return (rnd.nextInt(4) == 0 ? Double.NaN : rnd.nextInt(1000) / 4.0);
+  }
+
+  private List<Edge> randomSubset(List<Edge> edges) {
+    List<Edge> subset = Lists.newArrayList();
+    for (Edge e : edges) {
+      if (rnd.nextInt(3) == 0) {
+        subset.add(e);
+      }
+    }
+    Collections.shuffle(subset, rnd);
+    return subset;
+  }
+
+  private void assertSameAsCalcNodeTotals(NodeWeightTotals totals, Iterable<Edge> edges) {
+    for (int attrIndex = 0; attrIndex < WEIGHT_ATTRS.size(); attrIndex++) {
+      for (FlowEndpoint ep : FlowEndpoint.values()) {
+        Map<String, Double> expected = FlowMapNodeTotals.calcNodeTotalsFor(
+            fmg, edges, WEIGHT_ATTRS.get(attrIndex), ep);
+        for (Node node : fmg.nodes()) {
+          String nodeId = fmg.getNodeId(node);
+          Double exp = expected.get(nodeId);
+          double actual = totals.getTotal(nodeId, attrIndex, ep);
+          if (exp == null  ||  Double.isNaN(exp)) {
+            assertTrue(nodeId + ": " + actual, Double.isNaN(actual));
+          } else {
+            assertEquals(nodeId, exp, actual, 1e-9);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testDeltaUpdates() {
+    List<Edge> all = Lists.newArrayList(fmg.edges());
+    NodeWeightTotals totals = new NodeWeightTotals(fmg, WEIGHT_ATTRS);
+
+    totals.setEdges(all);
+    assertEquals(all.size(), totals.getNumberOfEdges());
+    assertSameAsCalcNodeTotals(totals, all);
+
+    List<Edge> subset = null;
+    for (int i = 0; i < 5; i++) {
+      subset = randomSubset(all);
+      totals.setEdges(subset);
+      assertEquals(subset.size(), totals.getNumberOfEdges());
+      assertSameAsCalcNodeTotals(totals, subset);
+    }
+
+    List<Edge> changed = Lists.newArrayList(subset);
+    changed.remove(0);
+    Edge added = null;
+    for (Edge e : all) {
+      if (!subset.contains(e)) {
+        added = e;
+        break;
+      }
+    }
+    changed.add(added);
+    totals.setEdges(changed);
+    assertSameAsCalcNodeTotals(totals, changed);
+
+    totals.removeEdge(added);
+    changed.remove(added);
+    totals.removeEdge(added);
+    assertSameAsCalcNodeTotals(totals, changed);
+    totals.addEdge(added);
+    changed.add(added);
+    assertSameAsCalcNodeTotals(totals, changed);
+
+    totals.clear();
+    assertEquals(0, totals.getNumberOfEdges());
+    assertTrue(Double.isNaN(totals.getTotal("n0", 0, FlowEndpoint.ORIGIN)));
+  }
+
+  @Test
+  public void testEdgesOfOtherGraph() {
+    FlowMapGraph other = createGraph("other", 40, 500);
+    List<Edge> edges = Lists.newArrayList(other.edges());
+    NodeWeightTotals totals = new NodeWeightTotals(fmg, WEIGHT_ATTRS);
+    totals.setEdges(edges);
+
+    for (FlowEndpoint ep : FlowEndpoint.values()) {
+      Map<String, Double> expected = FlowMapNodeTotals.calcNodeTotalsFor(other, edges, "w2", ep);
+      for (Node node : other.nodes()) {
+        String nodeId = other.getNodeId(node);
+        Double exp = expected.get(nodeId);
+        double actual = totals.getTotal(node, 1, ep);
+        if (exp == null  ||  Double.isNaN(exp)) {
+          assertTrue(Double.isNaN(actual));
+        } else {
+          assertEquals(exp, actual, 1e-9);
+          assertEquals(exp, totals.getTotal(nodeId, 1, ep), 1e-9);
+        }
+      }
+    }
+    Node n0 = fmg.getGraph().getNode(0);
+    assertEquals(totals.getTotal("n0", 0, FlowEndpoint.DEST),
+        totals.getTotal(n0, 0, FlowEndpoint.DEST), 0);
+  }
+
+  @Test
+  public void testTotalsStats() {
+    List<Edge> subset = randomSubset(Lists.newArrayList(fmg.edges()));
+    NodeWeightTotals totals = new NodeWeightTotals(fmg, WEIGHT_ATTRS);
+    totals.setEdges(subset);
+    SeqStat expected = SeqStat.createFor(
+        FlowMapNodeTotals.calcNodeTotalsFor(fmg, subset, "w1", FlowEndpoint.DEST).values());
+    SeqStat actual = totals.getTotalsStats(0, FlowEndpoint.DEST);
+    assertEquals(expected.getMin(), actual.getMin(), 1e-9);
+    assertEquals(expected.getMax(), actual.getMax(), 1e-9);
+    assertEquals(expected.getSum(), actual.getSum(), 1e-6);
+  }
+
+  @Test
+  public void testSupplyNodesWithWeightTotals() {
+    FlowMapNodeTotals.supplyNodesWithWeightTotals(fmg);
+    List<Edge> all = Lists.newArrayList(fmg.edges());
+    for (String attr : WEIGHT_ATTRS) {
+      Map<String, Double> outsums =
+        FlowMapNodeTotals.calcNodeTotalsFor(fmg, all, attr, FlowEndpoint.ORIGIN);
+      for (Node node : fmg.nodes()) {
+        Double exp = outsums.get(fmg.getNodeId(node));
+        if (exp != null  &&  !Double.isNaN(exp)) {
+          assertEquals(exp,
+              FlowMapNodeTotals.getTotalWeight(node, attr, FlowDirection.OUTGOING), 1e-9);
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,120 @@
+package jflowmap.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import jflowmap.FlowMapGraph;
+
+import org.junit.Test;
+
+import prefuse.data.Edge;
+import prefuse.data.Graph;
+import prefuse.data.Node;
+
+import com.google.common.collect.Lists;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class StaxGraphMLReaderTest {
+
+  private static final String GRAPHML =
+    "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+    "<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\">\n" +
+    "  <key id=\"name\" for=\"node\" attr.name=\"name\" attr.type=\"string\"/>\n" +
+    "  <key id=\"x\" for=\"node\" attr.name=\"x\" attr.type=\"double\"/>\n" +
+    "  <key id=\"capital\" for=\"node\" attr.name=\"capital\" attr.type=\"boolean\"/>\n" +
+    "  <key id=\"v\" for=\"edge\" attr.name=\"value\" attr.type=\"double\"/>\n" +
+    "  <key id=\"note\" attr.name=\"note\" attr.type=\"string\"/>\n" +
+    "  <graph id=\"g1\" edgedefault=\"directed\">\n" +
+    "    <node id=\"a\"><data key=\"name\">A &amp; B</data><data key=\"x\">-12.5</data>" +
+    "<data key=\"capital\">true</data></node>\n" +
+    // the target of this edge is defined later
+    "    <edge source=\"a\" target=\"c\"><data key=\"v\">1e3</data><data key=\"note\">fwd</data></edge>\n" +
+    "    <node id=\"b\"><data key=\"x\"> 7 </data></node>\n" +
+    "    <node id=\"c\"><data key=\"x\">NaN</data><data key=\"note\">n<!-- comment -->c</data></node>\n" +
+    "    <edge source=\"b\" target=\"a\"><data key=\"v\">0.1</data></edge>\n" +
+    "  </graph>\n" +
+    "  <graph id=\"g2\" edgedefault=\"directed\">\n" +
+    "    <node id=\"a\"/>\n" +
+    "    <edge source=\"a\" target=\"a\"/>\n" +
+    "  </graph>\n" +
+    "</graphml>\n";
+
+  private static List<Graph> read(String graphml) throws IOException {
+    return Lists.newArrayList(new StaxGraphMLReader().readFromStream(
+        new ByteArrayInputStream(graphml.getBytes("utf-8"))));
+  }
+
+  @Test
+  public void testReadGraphs() throws IOException {
+    List<Graph> graphs = read(GRAPHML);
+    assertEquals(2, graphs.size());
+
+    Graph g = graphs.get(0);
+    assertEquals("g1", FlowMapGraph.getGraphId(g));
+    assertEquals(3, g.getNodeCount());
+    assertEquals(2, g.getEdgeCount());
+
+    Node a = g.getNode(0), b = g.getNode(1), c = g.getNode(2);
+    assertEquals("a", a.getString(FlowMapGraph.GRAPH_NODE_ID_COLUMN));
+    assertEquals("A & B", a.getString("name"));
+    assertEquals(-12.5, a.getDouble("x"), 0);
+    assertTrue(a.getBoolean("capital"));
+    assertEquals(7.0, b.getDouble("x"), 0);
+    assertTrue(Double.isNaN(c.getDouble("x")));
+    assertEquals("nc", c.getString("note"));
+
+    Edge e0 = g.getEdge(0), e1 = g.getEdge(1);
+    assertEquals(a, e0.getSourceNode());
+    assertEquals(c, e0.getTargetNode());
+    assertEquals(1000.0, e0.getDouble("value"), 0);
+    assertEquals("fwd", e0.getString("note"));
+    assertEquals(b, e1.getSourceNode());
+    assertEquals(a, e1.getTargetNode());
+    assertEquals(0.1, e1.getDouble("value"), 0);
+
+    Graph g2 = graphs.get(1);
+    assertEquals("g2", FlowMapGraph.getGraphId(g2));
+    assertEquals(1, g2.getEdgeCount());
+    assertTrue(Double.isNaN(g2.getEdge(0).getDouble("value")));
+  }
+
+  @Test(expected = IOException.class)
+  public void testMissingNode() throws IOException {
+    read(GRAPHML.replace("target=\"c\"", "target=\"z\""));
+  }
+
+  @Test(expected = IOException.class)
+  public void testDuplicateNode() throws IOException {
+    read(GRAPHML.replace("<node id=\"b\">", "<node id=\"a\">"));
+  }
+
+  @Test
+  public void testParseDecimalEqualsParseDouble() {
+    Random rnd = new Random(1);
+    for (int i = 0; i < 100000; i++) {
+      String str;
+      switch (i % 3) {
+        case 0: str = Integer.toString(rnd.nextInt()); break;
+        case 1: str = String.format(Locale.US, "%.6f", (rnd.nextDouble() - 0.5) * 1e6); break;
+        default: str = Double.toString(rnd.nextDouble() * 1000); break;
+      }
+      char[] chars = str.toCharArray();
+      double value = StaxGraphMLReader.parseDecimal(chars, 0, chars.length);
+      if (!Double.isNaN(value)) {
+        assertEquals(str, Double.parseDouble(str), value, 0);
+      }
+    }
+    assertTrue(Double.isNaN(StaxGraphMLReader.parseDecimal("1e3".toCharArray(), 0, 3)));
+    assertTrue(Double.isNaN(StaxGraphMLReader.parseDecimal("-".toCharArray(), 0, 1)));
+    assertTrue(Double.isNaN(StaxGraphMLReader.parseDecimal("1234567890123456".toCharArray(), 0, 16)));
+  }
+
+}
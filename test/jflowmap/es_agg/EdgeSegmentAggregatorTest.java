@@ -0,0 +1,118 @@
+package jflowmap.es_agg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jflowmap.FlowMapGraph;
+import jflowmap.RandomFlowMapGraphs;
+import jflowmap.bundling.ForceDirectedBundlerParameters;
+import jflowmap.bundling.ForceDirectedEdgeBundler;
+import jflowmap.geom.Point;
+
+import org.junit.Test;
+
+import prefuse.data.Edge;
+import at.fhj.utils.misc.ProgressListener;
+import at.fhj.utils.misc.ProgressTracker;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class EdgeSegmentAggregatorTest {
+
+  static FlowMapGraph buildBundledFlowMapGraph(long seed, int numNodes, int numEdges) {
+    FlowMapGraph fmg = RandomFlowMapGraphs.build(seed, numNodes, numEdges);
+
+    ForceDirectedBundlerParameters params = new ForceDirectedBundlerParameters(fmg, "value");
+    params.setNumCycles(4);
+    params.setI(20);
+    new ForceDirectedEdgeBundler(fmg, params).bundle(new ProgressTracker());
+    return fmg;
+  }
+
+  /**
+   * @return The number of the segments of non-self-loop edges with a length greater
+   *         than zero before aggregation
+   */
+  private static int numOfNonEmptySegments(FlowMapGraph fmg) {
+    int count = 0;
+    for (Edge edge : fmg.edges()) {
+      if (fmg.isSelfLoop(edge)) {
+        continue;
+      }
+      List<Point> points = fmg.getEdgePoints(edge);
+      for (int i = 1; i < points.size(); i++) {
+        if (points.get(i - 1).distanceTo(points.get(i)) > 0) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  static List<EdgeSegment> aggregate(FlowMapGraph fmg, boolean useSpatialIndex, int numThreads) {
+    EdgeSegmentAggregator aggregator = new EdgeSegmentAggregator(fmg);
+    aggregator.setUseSpatialIndex(useSpatialIndex);
+    aggregator.setNumThreads(numThreads);
+    aggregator.aggregate(new ProgressTracker());
+    return aggregator.getAggregatedSegments();
+  }
+
+  @Test
+  public void testSpatialIndexGivesSameResults() {
+    FlowMapGraph fmg = buildBundledFlowMapGraph(7, 20, 60);
+
+    List<EdgeSegment> expected = aggregate(fmg, false, 1);
+    List<EdgeSegment> actual = aggregate(fmg, true, 1);
+
+    assertTrue(expected.size() < numOfNonEmptySegments(fmg));  // something was merged
+    assertSameSegments(expected, actual);
+  }
+
+  @Test
+  public void testParallelDistanceCalculationGivesSameResults() {
+    FlowMapGraph fmg = buildBundledFlowMapGraph(11, 20, 60);
+
+    List<EdgeSegment> expected = aggregate(fmg, false, 1);
+    assertSameSegments(expected, aggregate(fmg, false, 4));
+    assertSameSegments(expected, aggregate(fmg, true, 4));
+  }
+
+  @Test
+  public void testProgressIsReported() {
+    FlowMapGraph fmg = buildBundledFlowMapGraph(7, 20, 60);
+    EdgeSegmentAggregator aggregator = new EdgeSegmentAggregator(fmg);
+    final List<Double> progress = new ArrayList<Double>();
+    final ProgressTracker pt = new ProgressTracker();
+    pt.addProgressListener(new ProgressListener() {
+      public void progressUpdated() {
+        progress.add(pt.getTaskProgress());
+      }
+      public void processFinished() {
+      }
+      public void processCancelled() {
+      }
+    });
+    aggregator.aggregate(pt);
+
+    assertTrue(progress.size() > 2);
+    for (int i = 1; i < progress.size(); i++) {
+      assertTrue(progress.get(i) >= progress.get(i - 1));
+    }
+    assertEquals(100.0, progress.get(progress.size() - 1), 1e-6);
+  }
+
+  private static void assertSameSegments(List<EdgeSegment> expected, List<EdgeSegment> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      EdgeSegment exp = expected.get(i), act = actual.get(i);
+      assertEquals("A of segment " + i, exp.getA(), act.getA());
+      assertEquals("B of segment " + i, exp.getB(), act.getB());
+      assertEquals("Weight of segment " + i, exp.getWeight(), act.getWeight(), 0);
+    }
+  }
+
+}
@@ -0,0 +1,105 @@
+package jflowmap.geom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Shape;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class PolylineGridTest {
+
+  private static PolylineGrid randomPolylines(int n, Random rnd) {
+    List<Shape> shapes = Lists.newArrayList();
+    for (int i = 0; i < n; i++) {
+      Path2D path = new Path2D.Double();
+      path.moveTo(rnd.nextDouble() * 1000, rnd.nextDouble() * 500);
+      for (int k = rnd.nextInt(4); k >= 0; k--) {
+        path.lineTo(rnd.nextDouble() * 1000, rnd.nextDouble() * 500);
+      }
+      shapes.add(path);
+    }
+    return PolylineGrid.flatten(shapes, 1);
+  }
+
+  private static boolean segmentsIntersect(PolylineGrid grid, int i, Rectangle2D rect) {
+    for (int p = grid.getStart(i) + 1; p < grid.getEnd(i); p++) {
+      if (rect.intersectsLine(grid.getX(p - 1), grid.getY(p - 1), grid.getX(p), grid.getY(p))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Test
+  public void testFindIntersecting() {
+    Random rnd = new Random(3);
+    PolylineGrid grid = randomPolylines(2000, rnd);
+    for (int q = 0; q < 200; q++) {
+      double size = rnd.nextDouble() * 200;
+      Rectangle2D rect = new Rectangle2D.Double(
+          rnd.nextDouble() * 1100 - 50, rnd.nextDouble() * 600 - 50, size, size / 2);
+      int[] found = grid.findIntersecting(rect);
+      for (int k = 1; k < found.length; k++) {
+        assertTrue(found[k - 1] < found[k]);
+      }
+      for (int i : found) {
+        assertTrue(grid.intersects(i, rect));
+      }
+      for (int i = 0; i < grid.size(); i++) {
+        if (segmentsIntersect(grid, i, rect)) {
+          assertTrue(Arrays.binarySearch(found, i) >= 0);
+        }
+      }
+    }
+    assertEquals(grid.size(), grid.findIntersecting(new Rectangle2D.Double(-1, -1, 1e4, 1e4)).length);
+  }
+
+  @Test
+  public void testFindsPolylinesAlongTheirSegments() {
+    List<Shape> shapes = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      shapes.add(new Line2D.Double(i, 0, i, 1));
+    }
+    shapes.add(new Line2D.Double(0, 0, 100, 100));  // crosses many cells diagonally
+    PolylineGrid grid = PolylineGrid.flatten(shapes, 1);
+    assertArrayEquals(new int[] { 100 }, grid.findIntersecting(new Rectangle2D.Double(70, 70, 1, 1)));
+    assertArrayEquals(new int[] { 0, 1, 100 }, grid.findIntersecting(new Rectangle2D.Double(0, 0, 1, 1)));
+  }
+
+  @Test
+  public void testDistanceTo() {
+    Path2D path = new Path2D.Double();
+    path.moveTo(0, 0);
+    path.lineTo(10, 0);
+    path.lineTo(10, 10);
+    PolylineGrid grid = PolylineGrid.flatten(Arrays.asList(path), 1);
+    assertEquals(3, grid.getEnd(0) - grid.getStart(0));
+    assertEquals(2, grid.distanceTo(0, 5, 2), 1e-9);
+    assertEquals(1, grid.distanceTo(0, 11, 5), 1e-9);
+    assertEquals(5, grid.distanceTo(0, -3, -4), 1e-9);
+  }
+
+  @Test
+  public void testClosedPathsAreClosed() {
+    PolylineGrid grid = PolylineGrid.flatten(
+        Arrays.asList(new Rectangle2D.Double(0, 0, 4, 2)), 1);
+    int start = grid.getStart(0), end = grid.getEnd(0);
+    assertEquals(grid.getX(start), grid.getX(end - 1), 0);
+    assertEquals(grid.getY(start), grid.getY(end - 1), 0);
+    assertEquals(0, grid.distanceTo(0, 0, 1), 1e-9);
+  }
+
+}
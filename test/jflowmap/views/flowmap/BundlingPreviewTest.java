@@ -0,0 +1,70 @@
+package jflowmap.views.flowmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import jflowmap.FlowMapGraph;
+import jflowmap.RandomFlowMapGraphs;
+import jflowmap.bundling.ForceDirectedBundlerParameters;
+import jflowmap.bundling.ForceDirectedEdgeBundler;
+import jflowmap.geo.MapProjections;
+import jflowmap.geom.Point;
+import jflowmap.geom.PolylineGrid;
+
+import org.junit.Test;
+
+import at.fhj.utils.misc.ProgressTracker;
+
+import com.google.common.collect.Lists;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class BundlingPreviewTest {
+
+  @Test
+  public void testPreviewMatchesEdgeVisualsUnderProjection() {
+    final FlowMapGraph fmg = RandomFlowMapGraphs.build(4, 20, 60);
+    final int numEdges = fmg.getGraph().getEdgeCount();
+    final int[] edgeIndices = new int[numEdges];
+    for (int i = 0; i < numEdges; i++) {
+      edgeIndices[i] = i;
+    }
+    final float[] endpoints = BundlingPreview.projectEndpoints(
+        fmg, edgeIndices, MapProjections.MERCATOR);
+
+    ForceDirectedBundlerParameters params = new ForceDirectedBundlerParameters(fmg, "value");
+    params.setNumCycles(3);
+    params.setI(10);
+    final List<Integer> numPoints = Lists.newArrayList();
+    ForceDirectedEdgeBundler bundler = new ForceDirectedEdgeBundler(fmg, params);
+    bundler.addCycleListener(new ForceDirectedEdgeBundler.CycleListener() {
+      @Override
+      public void cycleCompleted(ForceDirectedEdgeBundler b, int cycle, int numCycles) {
+        numPoints.add(b.getNumSubdivisionPoints());
+        PolylineGrid preview = BundlingPreview.copyGeometry(
+            b, edgeIndices, endpoints, MapProjections.MERCATOR);
+        assertEquals(numEdges, preview.size());
+        for (int i = 0; i < numEdges; i++) {
+          // the same points as used in VisualFlowMap.createEdgeVisuals()
+          List<Point> expected = Lists.newArrayList(MapProjections.projectAll(
+              fmg.getEdgePoints(fmg.getGraph().getEdge(i)), MapProjections.MERCATOR));
+          int start = preview.getStart(i);
+          assertEquals(expected.size(), preview.getEnd(i) - start);
+          for (int p = 0; p < expected.size(); p++) {
+            assertEquals(expected.get(p).x(), preview.getX(start + p), 1e-4);
+            assertEquals(expected.get(p).y(), preview.getY(start + p), 1e-4);
+          }
+        }
+      }
+    });
+    bundler.bundle(new ProgressTracker());
+
+    assertEquals(3, numPoints.size());
+    assertEquals(1, (int)numPoints.get(0));
+    assertTrue(numPoints.get(2) > 1);
+  }
+
+}
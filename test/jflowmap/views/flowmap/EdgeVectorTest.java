@@ -0,0 +1,91 @@
+package jflowmap.views.flowmap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class EdgeVectorTest {
+
+  private static EdgeVector vector(int[] rows, double[] weights) {
+    return EdgeVector.sorted("w", rows, weights, new VisualEdge[rows.length]);
+  }
+
+  @Test
+  public void testSorted() {
+    EdgeVector v = vector(new int[] { 5, 1, 5, 3 }, new double[] { 1, 2, 3, 4 });
+    assertEquals(4, v.size());
+    int[] rows = new int[v.size()];
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = v.getOppositeRow(i);
+    }
+    assertArrayEquals(new int[] { 1, 3, 5, 5 }, rows);
+    assertEquals(2, v.getWeight(0), 0);
+    assertEquals(4, v.getWeight(1), 0);
+    assertEquals(1, v.getWeight(2), 0);  // keeps the order of the same rows
+    assertEquals(3, v.getWeight(3), 0);
+    assertEquals(1 + 4 + 9 + 16, v.getSquareSum(), 0);
+  }
+
+  @Test
+  public void testSameAsNestedScan() {
+    Random rnd = new Random(3);
+    for (int iter = 0; iter < 100; iter++) {
+      int[] rows1 = randomRows(rnd), rows2 = randomRows(rnd);
+      double[] weights1 = randomWeights(rnd, rows1.length);
+      double[] weights2 = randomWeights(rnd, rows2.length);
+      EdgeVector v1 = vector(rows1, weights1);
+      EdgeVector v2 = vector(rows2, weights2);
+
+      // for every entry of rows1 the first entry of rows2 with the same row
+      double expectedProduct = 0;
+      int expectedMatches = 0;
+      for (int i = 0; i < rows1.length; i++) {
+        for (int j = 0; j < rows2.length; j++) {
+          if (rows1[i] == rows2[j]) {
+            expectedProduct += weights1[i] * weights2[j];
+            expectedMatches++;
+            break;
+          }
+        }
+      }
+      assertEquals(expectedProduct, v1.dotProduct(v2), 1e-9);
+      assertEquals(expectedMatches, v1.numberOfMatches(v2));
+
+      int[] matches = v1.findMatches(v2);
+      for (int i = 0; i < v1.size(); i++) {
+        if (matches[i] >= 0) {
+          assertEquals(v1.getOppositeRow(i), v2.getOppositeRow(matches[i]));
+          assertEquals(true, matches[i] == 0  ||
+              v2.getOppositeRow(matches[i] - 1) != v2.getOppositeRow(matches[i]));
+        } else {
+          for (int j = 0; j < v2.size(); j++) {
+            assertEquals(false, v1.getOppositeRow(i) == v2.getOppositeRow(j));
+          }
+        }
+      }
+    }
+  }
+
+  private static int[] randomRows(Random rnd) {
+    int[] rows = new int[rnd.nextInt(30)];
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = rnd.nextInt(50);
+    }
+    return rows;
+  }
+
+  private static double[] randomWeights(Random rnd, int size) {
+    double[] weights = new double[size];
+    for (int i = 0; i < size; i++) {
+      weights[i] = rnd.nextInt(1000) / 10.0;
+    }
+    return weights;
+  }
+
+}
@@ -0,0 +1,105 @@
+package jflowmap.views.flowmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+
+import javax.swing.SwingUtilities;
+
+import jflowmap.FlowMapGraph;
+import jflowmap.RandomFlowMapGraphs;
+import jflowmap.bundling.ForceDirectedBundlerParameters;
+import jflowmap.bundling.ForceDirectedEdgeBundler;
+import jflowmap.geo.MapProjections;
+import jflowmap.geom.Point;
+
+import org.junit.Test;
+
+import at.fhj.utils.misc.ProgressTracker;
+import at.fhj.utils.swing.ProgressWorker;
+
+import com.google.common.collect.Lists;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class VisualFlowMapBundlingTest {
+
+  private static List<List<Point>> getGraphSubdivisionPoints(FlowMapGraph fmg) {
+    List<List<Point>> points = Lists.newArrayList();
+    for (int i = 0, numEdges = fmg.getGraph().getEdgeCount(); i < numEdges; i++) {
+      points.add(fmg.getEdgeSubdivisionPoints(fmg.getGraph().getEdge(i)));
+    }
+    return points;
+  }
+
+  @Test
+  public void testBundleEdgesStartsFromScratch() {
+    FlowMapGraph fmg = RandomFlowMapGraphs.build(5, 30, 100);
+    VisualFlowMap visualFlowMap =
+      new FlowMapView(fmg, null, MapProjections.NONE).getVisualFlowMap();
+    ForceDirectedBundlerParameters params = new ForceDirectedBundlerParameters(fmg, "value");
+    params.setNumCycles(4);
+    params.setI(20);
+
+    visualFlowMap.createBundlingWorker(params, null, false, false).construct();
+
+    // bundling again must not continue from the current subdivision points
+    params.setS(params.getS() / 2);
+    visualFlowMap.createBundlingWorker(params, null, false, false).construct();
+    List<List<Point>> bundled = getGraphSubdivisionPoints(fmg);
+
+    ForceDirectedEdgeBundler fresh = new ForceDirectedEdgeBundler(fmg, params);
+    fresh.bundle(new ProgressTracker());
+    for (int i = 0; i < bundled.size(); i++) {
+      assertEquals("Subdivision points of edge " + i, fresh.getSubdivisionPoints(i), bundled.get(i));
+    }
+  }
+
+  private static void runToCompletion(ProgressWorker worker)
+      throws InterruptedException, InvocationTargetException {
+    worker.construct();
+    worker.finished();
+    // let the completion listeners posted to the event thread run
+    SwingUtilities.invokeAndWait(new Runnable() {
+      @Override
+      public void run() {
+      }
+    });
+  }
+
+  @Test
+  public void testRebundlingIsOnlyPossibleAfterInteractiveBundling() throws Exception {
+    FlowMapGraph fmg = RandomFlowMapGraphs.build(6, 30, 100);
+    VisualFlowMap visualFlowMap =
+      new FlowMapView(fmg, null, MapProjections.NONE).getVisualFlowMap();
+    ForceDirectedBundlerParameters params = new ForceDirectedBundlerParameters(fmg, "value");
+    params.setNumCycles(3);
+    params.setI(10);
+
+    // the bundler of a non-interactive bundling isn't kept
+    runToCompletion(visualFlowMap.createBundlingWorker(params, null, false, false));
+    assertTrue(visualFlowMap.isBundled());
+    assertFalse(visualFlowMap.canRebundle(params));
+
+    runToCompletion(visualFlowMap.createBundlingWorker(params, null, false, true));
+    assertTrue(visualFlowMap.canRebundle(params));
+
+    params.setNumCycles(4);
+    params.setS(params.getS() / 2);
+    assertTrue(visualFlowMap.canRebundle(params));
+    runToCompletion(visualFlowMap.createBundlingWorker(params, null, true, true));
+    assertTrue(visualFlowMap.canRebundle(params));
+
+    params.setEdgeCompatibilityThreshold(params.getEdgeCompatibilityThreshold() + 0.1);
+    assertFalse(visualFlowMap.canRebundle(params));
+    params.setEdgeCompatibilityThreshold(params.getEdgeCompatibilityThreshold() - 0.1);
+
+    visualFlowMap.resetBundling();
+    assertFalse(visualFlowMap.canRebundle(params));
+  }
+
+}